@@ -1,6 +1,7 @@
 package com.android.mdl.app
 
 import android.app.Application
+import com.android.identity.Logger
 import com.android.mdl.app.util.PreferencesHelper
 import com.google.android.material.color.DynamicColors
 
@@ -8,6 +9,7 @@ class HolderApp: Application() {
 
     override fun onCreate() {
         super.onCreate()
+        Logger.setDebugEnabled(BuildConfig.DEBUG)
         DynamicColors.applyToActivitiesIfAvailable(this)
         PreferencesHelper.initialize(this)
     }
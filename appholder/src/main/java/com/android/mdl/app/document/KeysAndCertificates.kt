@@ -2,6 +2,7 @@ package com.android.mdl.app.document
 
 import android.content.Context
 import com.android.mdl.app.R
+import com.android.mdl.app.readerauth.SimpleReaderTrustStore
 import java.io.InputStream
 import java.nio.charset.StandardCharsets
 import java.security.KeyFactory
@@ -101,4 +102,13 @@ object KeysAndCertificates {
             getCertificate(context, R.raw.zetes_reader_ca_cer),
         )
 
-}
\ No newline at end of file
+    @Volatile
+    private var readerTrustStore: SimpleReaderTrustStore? = null
+
+    // Shared so that the chains it has verified stay cached across sessions.
+    fun getReaderTrustStore(context: Context): SimpleReaderTrustStore =
+        readerTrustStore ?: synchronized(this) {
+            readerTrustStore ?: SimpleReaderTrustStore(getTrustedReaderCertificates(context))
+                .also { readerTrustStore = it }
+        }
+}
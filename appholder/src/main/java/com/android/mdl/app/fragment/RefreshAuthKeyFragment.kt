@@ -8,6 +8,7 @@ import androidx.fragment.app.Fragment
 import androidx.navigation.fragment.findNavController
 import androidx.navigation.fragment.navArgs
 import co.nstant.`in`.cbor.CborBuilder
+import com.android.identity.AuthenticationKeyCertification
 import com.android.mdl.app.databinding.FragmentRefreshAuthKeyBinding
 import com.android.mdl.app.document.Document
 import com.android.mdl.app.document.DocumentManager
@@ -116,12 +117,13 @@ class RefreshAuthKeyFragment : Fragment() {
             override fun onMessageStaticAuthData(staticAuthDataList: MutableList<ByteArray>) {
                 binding.tvStatusRefreshing.append("\n- onMessageStaticAuthData ${staticAuthDataList.size} ")
 
-                dynAuthKeyCerts.forEachIndexed { i, cert ->
+                val certifications = dynAuthKeyCerts.mapIndexed { i, cert ->
                     log("Provisioned Issuer Auth ${FormatUtil.encodeToString(staticAuthDataList[i])} " +
                                 "for Device Key ${FormatUtil.encodeToString(cert.publicKey.encoded)}"
                     )
-                    credential.storeStaticAuthenticationData(cert, staticAuthDataList[i])
+                    AuthenticationKeyCertification(cert, null, staticAuthDataList[i])
                 }
+                credential.storeStaticAuthenticationData(certifications)
                 refreshAuthKeyFlow.sendMessageRequestEndSession()
 
             }
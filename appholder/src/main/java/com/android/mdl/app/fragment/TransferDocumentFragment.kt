@@ -15,7 +15,6 @@ import com.android.mdl.app.R
 import com.android.mdl.app.databinding.FragmentTransferDocumentBinding
 import com.android.mdl.app.document.Document
 import com.android.mdl.app.document.KeysAndCertificates
-import com.android.mdl.app.readerauth.SimpleReaderTrustStore
 import com.android.mdl.app.transfer.TransferManager
 import com.android.mdl.app.util.PreferencesHelper
 import com.android.mdl.app.util.TransferStatus
@@ -97,9 +96,7 @@ class TransferDocumentFragment : Fragment() {
         log("Request")
 
         try {
-            val trustStore = SimpleReaderTrustStore(
-                KeysAndCertificates.getTrustedReaderCertificates(requireContext())
-            )
+            val trustStore = KeysAndCertificates.getReaderTrustStore(requireContext())
             val requestedDocuments = viewModel.getRequestedDocuments()
             var readerCommonName = ""
             var readerIsTrusted = false
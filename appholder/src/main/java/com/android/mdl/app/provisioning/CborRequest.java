@@ -40,6 +40,9 @@ class CborRequest extends Request<DataItem> {
             @Nullable ErrorListener errorListener) {
         super(method, url, errorListener);
         this.listener = listener;
+        // Every message is part of a session so a cached response must never be used, this
+        // matters now that all flows share the cache of one RequestQueue.
+        setShouldCache(false);
     }
 
     @Override
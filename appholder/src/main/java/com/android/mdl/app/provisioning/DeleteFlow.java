@@ -9,7 +9,6 @@ import androidx.annotation.NonNull;
 
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.Volley;
 
 import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.Map;
@@ -38,8 +37,8 @@ public class DeleteFlow extends BaseFlow {
     }
 
     public void sendMessageDelete(byte[] credentialKey) {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -87,8 +86,8 @@ public class DeleteFlow extends BaseFlow {
     }
 
     public void sendMessageProveOwnership(byte[] proofOfOwnership) {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -142,8 +141,8 @@ public class DeleteFlow extends BaseFlow {
             return;
         }
 
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
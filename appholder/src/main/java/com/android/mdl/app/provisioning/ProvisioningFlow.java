@@ -13,7 +13,6 @@ import com.android.identity.PersonalizationData;
 
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.Volley;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -44,8 +43,8 @@ public class ProvisioningFlow extends BaseFlow {
 
     public void sendMessageStartProvisioning(@NonNull String serverUrl, @Nullable String provisioningCode) {
         this.serverUrl = serverUrl;
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -94,8 +93,8 @@ public class ProvisioningFlow extends BaseFlow {
             return;
         }
 
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -160,8 +159,8 @@ public class ProvisioningFlow extends BaseFlow {
             return;
         }
 
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -294,8 +293,8 @@ public class ProvisioningFlow extends BaseFlow {
             return;
         }
 
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -0,0 +1,205 @@
+package com.android.mdl.app.provisioning;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs provisioning work for several credentials, with a cap on how many run at once.
+ *
+ * <p>The work for each credential is a {@link Job}, typically driving one of the flows such
+ * as {@link ProvisioningFlow} or {@link RefreshAuthenticationKeyFlow} to the end of its
+ * session. Jobs are started in the order they were added and at most
+ * <code>maxConcurrentJobs</code> run at any time. A flow has at most one request in flight,
+ * so using {@link ProvisioningRequestQueue#MAX_PARALLEL_REQUESTS} keeps every network thread
+ * of the shared queue busy without requests waiting for each other.
+ *
+ * <p>A job which fails, either by reporting an error or by throwing when started, only fails
+ * its own credential. The other jobs keep running, and the errors for all credentials are
+ * reported once every job has finished.
+ *
+ * <p>Listener methods are called on whichever thread finishes a job, for flows that's the
+ * thread Volley delivers responses on.
+ */
+public final class ProvisioningPipeline {
+    private final int maxConcurrentJobs;
+    private final Listener listener;
+    private final Queue<PendingJob> pendingJobs = new ArrayDeque<>();
+    private final Set<String> names = new HashSet<>();
+    private final Map<String, String> errors = new LinkedHashMap<>();
+    private boolean started;
+    private int numRunningJobs;
+    private int numUnfinishedJobs;
+
+    public ProvisioningPipeline(int maxConcurrentJobs, @NonNull Listener listener) {
+        if (maxConcurrentJobs < 1) {
+            throw new IllegalArgumentException("maxConcurrentJobs must be at least 1");
+        }
+        this.maxConcurrentJobs = maxConcurrentJobs;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds the job for a credential.
+     *
+     * @param name the name of the credential, used when reporting the result.
+     * @param job the job.
+     * @throws IllegalArgumentException if a job with the same name was already added.
+     * @throws IllegalStateException if the pipeline has already been started.
+     */
+    public synchronized void addJob(@NonNull String name, @NonNull Job job) {
+        if (started) {
+            throw new IllegalStateException("Pipeline already started");
+        }
+        if (!names.add(name)) {
+            throw new IllegalArgumentException("Duplicate job " + name);
+        }
+        pendingJobs.add(new PendingJob(name, job));
+        numUnfinishedJobs += 1;
+    }
+
+    /**
+     * Starts running the jobs.
+     *
+     * @throws IllegalStateException if the pipeline has already been started.
+     */
+    public void start() {
+        boolean noJobs;
+        synchronized (this) {
+            if (started) {
+                throw new IllegalStateException("Pipeline already started");
+            }
+            started = true;
+            noJobs = numUnfinishedJobs == 0;
+        }
+        if (noJobs) {
+            listener.onAllJobsFinished(Collections.emptyMap());
+            return;
+        }
+        startPendingJobs();
+    }
+
+    private void startPendingJobs() {
+        while (true) {
+            PendingJob pendingJob;
+            synchronized (this) {
+                if (numRunningJobs >= maxConcurrentJobs || pendingJobs.isEmpty()) {
+                    return;
+                }
+                pendingJob = pendingJobs.remove();
+                numRunningJobs += 1;
+            }
+            // Jobs are started without holding the lock since they may finish right away.
+            JobCallback callback = new JobCallback(pendingJob.name);
+            try {
+                pendingJob.job.start(callback);
+            } catch (RuntimeException e) {
+                callback.onError("" + e.getMessage());
+            }
+        }
+    }
+
+    private void onJobFinished(@NonNull String name, @Nullable String error) {
+        Map<String, String> allErrors = null;
+        synchronized (this) {
+            numRunningJobs -= 1;
+            numUnfinishedJobs -= 1;
+            if (error != null) {
+                errors.put(name, error);
+            }
+            if (numUnfinishedJobs == 0) {
+                allErrors = Collections.unmodifiableMap(new LinkedHashMap<>(errors));
+            }
+        }
+        listener.onJobFinished(name, error);
+        if (allErrors != null) {
+            listener.onAllJobsFinished(allErrors);
+        } else {
+            startPendingJobs();
+        }
+    }
+
+    private static final class PendingJob {
+        final String name;
+        final Job job;
+
+        PendingJob(String name, Job job) {
+            this.name = name;
+            this.job = job;
+        }
+    }
+
+    private final class JobCallback implements Callback {
+        private final String name;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        JobCallback(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void onSuccess() {
+            finish(null);
+        }
+
+        @Override
+        public void onError(@NonNull String error) {
+            finish(error);
+        }
+
+        private void finish(@Nullable String error) {
+            // Flows can report an error after the session already ended, only the first
+            // result counts.
+            if (finished.compareAndSet(false, true)) {
+                onJobFinished(name, error);
+            }
+        }
+    }
+
+    /**
+     * The work for a single credential.
+     */
+    public interface Job {
+        /**
+         * Starts the work. The job must eventually call exactly one of the methods of the
+         * callback, possibly before this method returns.
+         *
+         * @param callback the callback to report the result to.
+         */
+        void start(@NonNull Callback callback);
+    }
+
+    /**
+     * Receives the result of a {@link Job}.
+     */
+    public interface Callback {
+        void onSuccess();
+
+        void onError(@NonNull String error);
+    }
+
+    public interface Listener {
+        /**
+         * Called when the job for a credential has finished.
+         *
+         * @param name the name of the credential.
+         * @param error the error or <code>null</code> if the job succeeded.
+         */
+        void onJobFinished(@NonNull String name, @Nullable String error);
+
+        /**
+         * Called once after all jobs have finished.
+         *
+         * @param errors a map from the names of the credentials which failed to their errors.
+         */
+        void onAllJobsFinished(@NonNull Map<String, String> errors);
+    }
+}
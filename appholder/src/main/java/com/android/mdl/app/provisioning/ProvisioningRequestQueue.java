@@ -0,0 +1,44 @@
+package com.android.mdl.app.provisioning;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HurlStack;
+
+import java.io.File;
+
+/**
+ * Holds the {@link RequestQueue} shared by all provisioning flows.
+ *
+ * <p>Creating a queue per message spins up a new set of network dispatcher threads and a new
+ * cache for a single request. With one queue, every flow uses the same dispatchers. Flows for
+ * different credentials, e.g. provisioning or refreshing several documents at once, then run
+ * concurrently. At most {@link #MAX_PARALLEL_REQUESTS} requests are in flight at any time.
+ * {@link ProvisioningPipeline} runs flows for many credentials with the same limit.
+ */
+final class ProvisioningRequestQueue {
+    static final int MAX_PARALLEL_REQUESTS = 4;
+
+    private static final String CACHE_DIR = "volley";
+
+    private static RequestQueue queue;
+
+    private ProvisioningRequestQueue() {
+    }
+
+    static synchronized @NonNull RequestQueue getInstance(@NonNull Context context) {
+        if (queue == null) {
+            Context appContext = context.getApplicationContext();
+            File cacheDir = new File(appContext.getCacheDir(), CACHE_DIR);
+            queue = new RequestQueue(new DiskBasedCache(cacheDir),
+                    new BasicNetwork(new HurlStack()),
+                    MAX_PARALLEL_REQUESTS);
+            queue.start();
+        }
+        return queue;
+    }
+}
@@ -9,7 +9,6 @@ import androidx.annotation.NonNull;
 
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.Volley;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -43,8 +42,8 @@ public class RefreshAuthenticationKeyFlow extends BaseFlow {
     }
 
     public void sendMessageCertifyAuthKeys(byte[] credentialKey) {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -92,8 +91,8 @@ public class RefreshAuthenticationKeyFlow extends BaseFlow {
     }
 
     public void sendMessageProveOwnership(byte[] proofOfOwnership) {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -134,8 +133,8 @@ public class RefreshAuthenticationKeyFlow extends BaseFlow {
     }
 
     public void sendMessageAuthKeyNeedingCertification(byte[] authKeyNeedingCertification) {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -190,8 +189,8 @@ public class RefreshAuthenticationKeyFlow extends BaseFlow {
     }
 
     public void sendMessageRequestEndSession() {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
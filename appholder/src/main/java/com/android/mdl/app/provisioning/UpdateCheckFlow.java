@@ -11,7 +11,6 @@ import com.android.identity.PersonalizationData;
 
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
-import com.android.volley.toolbox.Volley;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -48,8 +47,8 @@ public class UpdateCheckFlow extends BaseFlow {
     }
 
     public void sendMessageUpdateCheck(byte[] credentialKey) {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -97,8 +96,8 @@ public class UpdateCheckFlow extends BaseFlow {
     }
 
     public void sendMessageProveOwnership(byte[] proofOfOwnership) {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -143,8 +142,8 @@ public class UpdateCheckFlow extends BaseFlow {
     }
 
     public void sendMessageGetUpdatedData() {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -275,8 +274,8 @@ public class UpdateCheckFlow extends BaseFlow {
             return;
         }
 
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -320,8 +319,8 @@ public class UpdateCheckFlow extends BaseFlow {
     }
 
     public void sendMessageRequestEndSession() {
-        // Instantiate the RequestQueue.
-        RequestQueue queue = Volley.newRequestQueue(context);
+        // Use the RequestQueue shared by all flows.
+        RequestQueue queue = ProvisioningRequestQueue.getInstance(context);
 
         // Request a string response from the provided URL.
         CborRequest cborRequest = new CborRequest(
@@ -0,0 +1,109 @@
+package com.android.mdl.app.readerauth;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache for results computed from a certificate chain, keyed by the SHA-256 of the
+ * encoded certificates in the chain.
+ * <p>
+ * The same few certificate chains are seen over and over again, so there's no point in looking
+ * up and verifying them every time. Entries expire at the earliest notAfter in the chain, or
+ * after a maximum age, whichever comes first.
+ *
+ * @param <V> the type of the cached values
+ */
+class TrustPathCache<V> {
+
+	private static final int DEFAULT_MAX_ENTRIES = 32;
+	private static final long DEFAULT_MAX_AGE_MILLIS = 60 * 60 * 1000L;
+
+	private final long maxAgeMillis;
+	private final Map<ByteBuffer, Entry<V>> entries;
+
+	private static class Entry<V> {
+		final V value;
+		final long expiresAtMillis;
+
+		Entry(V value, long expiresAtMillis) {
+			this.value = value;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+	}
+
+	TrustPathCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MILLIS);
+	}
+
+	TrustPathCache(int maxEntries, long maxAgeMillis) {
+		this.maxAgeMillis = maxAgeMillis;
+		this.entries = new LinkedHashMap<ByteBuffer, Entry<V>>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry<V>> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Computes the cache key for a certificate chain.
+	 *
+	 * @param chain the certificate chain
+	 * @return the key, or null if the chain couldn't be encoded in which case it shouldn't be cached
+	 */
+	static ByteBuffer computeKey(List<X509Certificate> chain) {
+		try {
+			MessageDigest digester = MessageDigest.getInstance("SHA-256");
+			for (X509Certificate cert : chain) {
+				byte[] encoded = cert.getEncoded();
+				// length prefix so that different splits of the same bytes don't collide
+				digester.update(ByteBuffer.allocate(4).putInt(encoded.length).array());
+				digester.update(encoded);
+			}
+			return ByteBuffer.wrap(digester.digest());
+		} catch (NoSuchAlgorithmException | CertificateEncodingException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the cached value for the key, or null if there is none or it has expired.
+	 */
+	synchronized V get(ByteBuffer key) {
+		if (key == null) {
+			return null;
+		}
+		Entry<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (System.currentTimeMillis() >= entry.expiresAtMillis) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Caches a value computed from the given chain; expired chains are not cached.
+	 */
+	synchronized void put(ByteBuffer key, List<X509Certificate> chain, V value) {
+		if (key == null) {
+			return;
+		}
+		long nowMillis = System.currentTimeMillis();
+		long expiresAtMillis = nowMillis + maxAgeMillis;
+		for (X509Certificate cert : chain) {
+			expiresAtMillis = Math.min(expiresAtMillis, cert.getNotAfter().getTime());
+		}
+		if (expiresAtMillis > nowMillis) {
+			entries.put(key, new Entry<>(value, expiresAtMillis));
+		}
+	}
+}
@@ -87,6 +87,9 @@ class QrCommunicationSetup(
     val deviceEngagementUriEncoded: String
         get() = qrEngagement.deviceEngagementUriEncoded
 
+    val isDeviceEngagementReady: Boolean
+        get() = qrEngagement.isDeviceEngagementReady
+
     fun configure() {
         qrEngagement = QrEngagementHelper(
             context,
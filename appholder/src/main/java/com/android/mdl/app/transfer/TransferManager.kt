@@ -6,15 +6,16 @@ import android.graphics.Bitmap
 import android.graphics.Color.BLACK
 import android.graphics.Color.WHITE
 import android.nfc.cardemulation.HostApduService
+import android.os.Handler
+import android.os.Looper
 import android.util.Log
 import android.view.View
 import android.widget.ImageView
 import androidx.biometric.BiometricPrompt
-import androidx.core.util.component1
-import androidx.core.util.component2
 import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import com.android.identity.*
+import com.android.mdl.app.authconfirmation.RequestedDocumentData
 import com.android.mdl.app.document.Document
 import com.android.mdl.app.documentdata.RequestEuPid
 import com.android.mdl.app.documentdata.RequestMdl
@@ -27,12 +28,23 @@ import com.google.zxing.MultiFormatWriter
 import com.google.zxing.WriterException
 import com.google.zxing.common.BitMatrix
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
 
 class TransferManager private constructor(private val context: Context) {
 
     companion object {
         private const val LOG_TAG = "TransferManager"
 
+        // How long a pre-warmed QR engagement is kept before it's replaced with a fresh one.
+        private const val PREWARMED_QR_ENGAGEMENT_TTL_MILLIS = 60_000L
+
+        // How long a pre-warmed QR engagement is kept for the QR screen after pre-warming stops.
+        private const val PREWARMED_QR_ENGAGEMENT_HANDOFF_MILLIS = 5_000L
+
         @SuppressLint("StaticFieldLeak")
         @Volatile
         private var instance: TransferManager? = null
@@ -45,15 +57,43 @@ class TransferManager private constructor(private val context: Context) {
 
     private var reversedQrCommunicationSetup: ReverseQrCommunicationSetup? = null
     private var qrCommunicationSetup: QrCommunicationSetup? = null
+    private var qrCodeBitmap: Bitmap? = null
+    private var isPrewarmingQrEngagement = false
+    private var prewarmedQrCommunicationSetup: QrCommunicationSetup? = null
+    private var prewarmedQrCodeBitmap: Bitmap? = null
+    private val mainHandler = Handler(Looper.getMainLooper())
+    private val qrCodeExecutor = Executors.newSingleThreadExecutor()
+    private val refreshPrewarmedQrEngagement = Runnable {
+        log("Pre-warmed QR engagement expired, replacing it")
+        discardPrewarmedQrEngagement()
+        prewarmQrEngagement()
+    }
+    private val expirePrewarmedQrEngagementHandoff = Runnable {
+        log("Pre-warmed QR engagement wasn't used, discarding it")
+        discardPrewarmedQrEngagement()
+    }
+    private val speculationExecutor = Executors.newSingleThreadExecutor()
+    private var speculativeResponse: Future<Map<String, SpeculativeDocument>>? = null
     private var hostApduService: HostApduService? = null
     private var session: PresentationSession? = null
     private var hasStarted = false
 
     private lateinit var communication: Communication
 
+    // Issuer-signed values decrypted for a document before the user consented, only valid for
+    // the exact elements and reader authentication they were retrieved for. No authentication
+    // key is involved in getting these, that only happens once the user has consented.
+    private class SpeculativeDocument(
+        val issuerSignedEntriesToRequest: Map<String, Set<String>>,
+        val readerAuth: ByteArray?,
+        val issuerSignedEntries: CredentialDataResult.Entries
+    )
+
     private var transferStatusLd = MutableLiveData<TransferStatus>()
 
     fun setCommunication(session: PresentationSession, communication: Communication) {
+        // Engagement happened over NFC, so don't keep QR engagement transports around
+        discardPrewarmedQrEngagement()
         this.session = session
         this.communication = communication
     }
@@ -75,6 +115,7 @@ class TransferManager private constructor(private val context: Context) {
         if (hasStarted) {
             throw IllegalStateException("Transfer has already started.")
         }
+        discardPrewarmedQrEngagement()
         communication = Communication.getInstance(context)
         reversedQrCommunicationSetup = ReverseQrCommunicationSetup(
             context = context,
@@ -97,39 +138,179 @@ class TransferManager private constructor(private val context: Context) {
         hasStarted = true
     }
 
+    /**
+     * Keeps a QR engagement ready in the background, so [startQrEngagement] can show the QR code
+     * immediately. The engagement, including its ephemeral key, is replaced once it has been
+     * used and every [PREWARMED_QR_ENGAGEMENT_TTL_MILLIS] so keys are never reused.
+     *
+     * This keeps BLE advertising running, so it should only be done while the user is on a
+     * screen they can show the QR code from. Call [stopPrewarmingQrEngagement] when leaving it.
+     */
+    fun startPrewarmingQrEngagement() {
+        if (!isPrewarmingQrEngagement) {
+            // Don't reuse an engagement kept around for a hand-off which didn't happen.
+            discardPrewarmedQrEngagement()
+        }
+        isPrewarmingQrEngagement = true
+        prewarmQrEngagement()
+    }
+
+    /**
+     * Stops keeping a QR engagement ready.
+     *
+     * If [keepForQrEngagement] is set, because the screen showing the QR code is being opened,
+     * the current pre-warmed engagement is kept for [PREWARMED_QR_ENGAGEMENT_HANDOFF_MILLIS] so
+     * [startQrEngagement] can still use it. No new one is pre-warmed either way.
+     */
+    fun stopPrewarmingQrEngagement(keepForQrEngagement: Boolean = false) {
+        isPrewarmingQrEngagement = false
+        if (keepForQrEngagement && prewarmedQrCommunicationSetup != null) {
+            mainHandler.removeCallbacks(refreshPrewarmedQrEngagement)
+            mainHandler.postDelayed(
+                expirePrewarmedQrEngagementHandoff,
+                PREWARMED_QR_ENGAGEMENT_HANDOFF_MILLIS
+            )
+        } else {
+            discardPrewarmedQrEngagement()
+        }
+    }
+
+    private fun prewarmQrEngagement() {
+        if (!isPrewarmingQrEngagement || hasStarted || prewarmedQrCommunicationSetup != null) {
+            return
+        }
+        log("Pre-warming QR engagement")
+        prewarmedQrCommunicationSetup = createQrCommunicationSetup()
+        mainHandler.postDelayed(refreshPrewarmedQrEngagement, PREWARMED_QR_ENGAGEMENT_TTL_MILLIS)
+    }
+
+    private fun discardPrewarmedQrEngagement() {
+        mainHandler.removeCallbacks(refreshPrewarmedQrEngagement)
+        mainHandler.removeCallbacks(expirePrewarmedQrEngagementHandoff)
+        prewarmedQrCommunicationSetup?.close()
+        prewarmedQrCommunicationSetup = null
+        prewarmedQrCodeBitmap = null
+    }
+
     fun startQrEngagement() {
         if (hasStarted) {
             throw IllegalStateException("Transfer has already started.")
         }
         communication = Communication.getInstance(context)
-        qrCommunicationSetup = QrCommunicationSetup(
+        val prewarmed = prewarmedQrCommunicationSetup
+        if (prewarmed != null) {
+            log("Using pre-warmed QR engagement")
+            mainHandler.removeCallbacks(refreshPrewarmedQrEngagement)
+            mainHandler.removeCallbacks(expirePrewarmedQrEngagementHandoff)
+            prewarmedQrCommunicationSetup = null
+            qrCommunicationSetup = prewarmed
+            qrCodeBitmap = prewarmedQrCodeBitmap
+            prewarmedQrCodeBitmap = null
+            hasStarted = true
+            // Otherwise this is reported once the transports are set up
+            if (prewarmed.isDeviceEngagementReady) {
+                transferStatusLd.value = TransferStatus.QR_ENGAGEMENT_READY
+            }
+            return
+        }
+        qrCommunicationSetup = createQrCommunicationSetup()
+        hasStarted = true
+    }
+
+    private fun createQrCommunicationSetup(): QrCommunicationSetup {
+        lateinit var setup: QrCommunicationSetup
+        setup = QrCommunicationSetup(
             context = context,
-            onConnecting = { transferStatusLd.value = TransferStatus.CONNECTING },
-            onQrEngagementReady = { transferStatusLd.value = TransferStatus.QR_ENGAGEMENT_READY },
+            onConnecting = {
+                if (isActiveQrCommunicationSetup(setup)) {
+                    transferStatusLd.value = TransferStatus.CONNECTING
+                }
+            },
+            onQrEngagementReady = {
+                if (setup === qrCommunicationSetup) {
+                    transferStatusLd.value = TransferStatus.QR_ENGAGEMENT_READY
+                } else {
+                    renderQrCode(setup)
+                }
+            },
             onDeviceRetrievalHelperReady = { session, deviceRetrievalHelper ->
-                this.session = session
-                communication.setupPresentation(deviceRetrievalHelper)
-                transferStatusLd.value = TransferStatus.CONNECTED
+                if (isActiveQrCommunicationSetup(setup)) {
+                    this.session = session
+                    communication.setupPresentation(deviceRetrievalHelper)
+                    transferStatusLd.value = TransferStatus.CONNECTED
+                }
             },
             onNewDeviceRequest = { deviceRequest ->
-                communication.setDeviceRequest(deviceRequest)
-                transferStatusLd.value = TransferStatus.REQUEST
+                if (isActiveQrCommunicationSetup(setup)) {
+                    communication.setDeviceRequest(deviceRequest)
+                    transferStatusLd.value = TransferStatus.REQUEST
+                }
             },
             onSendResponseApdu = { responseApdu -> hostApduService?.sendResponseApdu(responseApdu) },
-            onDisconnected = { transferStatusLd.value = TransferStatus.DISCONNECTED },
+            onDisconnected = {
+                if (isActiveQrCommunicationSetup(setup)) {
+                    transferStatusLd.value = TransferStatus.DISCONNECTED
+                }
+            },
             onCommunicationError = { error ->
                 log("onError: ${error.message}")
-                transferStatusLd.value = TransferStatus.ERROR
+                if (setup === prewarmedQrCommunicationSetup) {
+                    // Try again once the pre-warmed engagement would have expired
+                    discardPrewarmedQrEngagement()
+                    mainHandler.postDelayed(
+                        refreshPrewarmedQrEngagement,
+                        PREWARMED_QR_ENGAGEMENT_TTL_MILLIS
+                    )
+                } else {
+                    transferStatusLd.value = TransferStatus.ERROR
+                }
+            }
+        )
+        setup.configure()
+        return setup
+    }
+
+    // Whether callbacks from the given setup should be acted on. Nobody has seen the QR code of a
+    // pre-warmed engagement, or of one which has been replaced, so a reader connecting to it is
+    // ignored and the engagement is thrown away.
+    private fun isActiveQrCommunicationSetup(setup: QrCommunicationSetup): Boolean {
+        if (setup === qrCommunicationSetup) {
+            return true
+        }
+        log("Ignoring callback from QR engagement which isn't in use")
+        if (setup === prewarmedQrCommunicationSetup) {
+            discardPrewarmedQrEngagement()
+            prewarmQrEngagement()
+        } else {
+            setup.close()
+        }
+        return false
+    }
+
+    // Encodes the QR code for a pre-warmed engagement in the background.
+    private fun renderQrCode(setup: QrCommunicationSetup) {
+        val deviceEngagementForQrCode = setup.deviceEngagementUriEncoded
+        qrCodeExecutor.execute {
+            val bitmap = try {
+                encodeQRCodeAsBitmap(deviceEngagementForQrCode)
+            } catch (e: IllegalArgumentException) {
+                log("Error encoding QR code", e)
+                return@execute
+            }
+            mainHandler.post {
+                if (setup === prewarmedQrCommunicationSetup) {
+                    prewarmedQrCodeBitmap = bitmap
+                } else if (setup === qrCommunicationSetup && qrCodeBitmap == null) {
+                    qrCodeBitmap = bitmap
+                }
             }
-        ).apply {
-            configure()
         }
-        hasStarted = true
     }
 
     fun getDeviceEngagementQrCode(): View {
-        val deviceEngagementForQrCode = qrCommunicationSetup!!.deviceEngagementUriEncoded
-        val qrCodeBitmap = encodeQRCodeAsBitmap(deviceEngagementForQrCode)
+        val qrCodeBitmap = this.qrCodeBitmap
+            ?: encodeQRCodeAsBitmap(qrCommunicationSetup!!.deviceEngagementUriEncoded)
+                .also { this.qrCodeBitmap = it }
         val qrCodeView = ImageView(context)
         qrCodeView.setImageBitmap(qrCodeBitmap)
 
@@ -160,6 +341,136 @@ class TransferManager private constructor(private val context: Context) {
         return bitmap
     }
 
+    /**
+     * Starts decrypting the requested issuer-signed data in the background while the user is
+     * deciding what to share, so [addDocumentToResponse] doesn't have to once they confirm.
+     *
+     * This uses a separate presentation session without a session transcript, so no
+     * authentication key is selected, no use count is incremented and nothing is signed or
+     * MACed. That, and checking reader authentication, is left for the presentation session
+     * after consent. The result is only used if the user confirms exactly the requested
+     * elements and all of them could be retrieved without reader or user authentication.
+     */
+    fun startSpeculativeResponse(requestedDocuments: List<RequestedDocumentData>) {
+        discardSpeculativeResponse()
+        if (session == null) {
+            return
+        }
+        // Same elements as SignedElementsCollection requests once everything is confirmed
+        val issuerSignedEntriesToRequest = requestedDocuments
+            .flatMap { it.requestedElements }
+            .groupBy { it.namespace }
+            .mapValues { (_, elements) -> elements.map { it.value }.toSet() }
+        speculativeResponse = speculationExecutor.submit(Callable {
+            val speculativeSession = SessionSetup(CredentialStore(context)).createSession()
+            val result = mutableMapOf<String, SpeculativeDocument>()
+            requestedDocuments.forEach { requestedDocument ->
+                try {
+                    speculateDocument(
+                        speculativeSession,
+                        requestedDocument.identityCredentialName,
+                        issuerSignedEntriesToRequest,
+                        requestedDocument.requestedDocument.readerAuth,
+                        requestedDocument.requestedDocument.itemsRequest
+                    )?.let { result[requestedDocument.identityCredentialName] = it }
+                } catch (e: IdentityCredentialException) {
+                    log("Speculative retrieval failed: ${e.message}", e)
+                } catch (e: IllegalArgumentException) {
+                    log("Speculative retrieval failed: ${e.message}", e)
+                }
+            }
+            result
+        })
+    }
+
+    fun discardSpeculativeResponse() {
+        speculativeResponse?.cancel(true)
+        speculativeResponse = null
+    }
+
+    private fun speculateDocument(
+        speculativeSession: PresentationSession,
+        credentialName: String,
+        issuerSignedEntriesToRequest: Map<String, Set<String>>,
+        readerAuth: ByteArray?,
+        requestMessage: ByteArray?
+    ): SpeculativeDocument? {
+        val credentialDataRequestBuilder = CredentialDataRequest.Builder()
+            .setIssuerSignedEntriesToRequest(issuerSignedEntriesToRequest)
+            .setIncrementUseCount(false)
+        if (requestMessage != null) {
+            credentialDataRequestBuilder.setRequestMessage(requestMessage)
+        }
+        val c = speculativeSession.getCredentialData(
+            credentialName,
+            credentialDataRequestBuilder.build()
+        ) ?: return null
+        // Elements needing reader or user authentication can't be decided on here
+        issuerSignedEntriesToRequest.forEach { (namespace, names) ->
+            names.forEach { name ->
+                val status = c.issuerSignedEntries.getStatus(namespace, name)
+                if (status != CredentialDataResult.Entries.STATUS_OK &&
+                    status != CredentialDataResult.Entries.STATUS_NO_SUCH_ENTRY
+                ) {
+                    return null
+                }
+            }
+        }
+        return SpeculativeDocument(
+            issuerSignedEntriesToRequest,
+            readerAuth,
+            c.issuerSignedEntries
+        )
+    }
+
+    // Waits for speculative retrieval to finish so nothing races with it once the user has
+    // made a decision, and returns its result.
+    private fun awaitSpeculativeResponse(): Map<String, SpeculativeDocument>? {
+        val future = speculativeResponse ?: return null
+        return try {
+            future.get()
+        } catch (e: ExecutionException) {
+            log("Speculative retrieval failed: ${e.message}", e)
+            null
+        } catch (e: CancellationException) {
+            null
+        }
+    }
+
+    // Returns the speculatively retrieved data for a document if it is still valid for what's
+    // being requested now.
+    private fun takeSpeculativeDocument(
+        credentialName: String,
+        issuerSignedEntriesToRequest: Map<String, Collection<String>>,
+        readerAuth: ByteArray?
+    ): SpeculativeDocument? {
+        val document = awaitSpeculativeResponse()?.get(credentialName) ?: return null
+        val requested = issuerSignedEntriesToRequest.mapValues { (_, names) -> names.toSet() }
+        if (document.issuerSignedEntriesToRequest != requested ||
+            !Arrays.equals(document.readerAuth, readerAuth)
+        ) {
+            log("Selection changed, discarding speculative data for $credentialName")
+            return null
+        }
+        return document
+    }
+
+    private fun buildCredentialDataRequest(
+        issuerSignedEntriesToRequest: Map<String, Collection<String>>,
+        readerAuth: ByteArray?,
+        requestMessage: ByteArray?
+    ): CredentialDataRequest {
+        val credentialDataRequestBuilder = CredentialDataRequest.Builder()
+            .setIssuerSignedEntriesToRequest(issuerSignedEntriesToRequest)
+            .setAllowUsingExhaustedKeys(true)
+            .setAllowUsingExpiredKeys(true)
+        if (readerAuth != null && requestMessage != null) {
+            credentialDataRequestBuilder.setReaderSignature(readerAuth)
+            credentialDataRequestBuilder.setRequestMessage(requestMessage)
+        }
+        return credentialDataRequestBuilder.build()
+    }
+
     @Throws(IllegalStateException::class)
     fun addDocumentToResponse(
         credentialName: String,
@@ -169,19 +480,21 @@ class TransferManager private constructor(private val context: Context) {
         readerAuth: ByteArray?,
         requestMessage: ByteArray?
     ): Boolean {
+        val speculativeDocument =
+            takeSpeculativeDocument(credentialName, issuerSignedEntriesToRequest, readerAuth)
+        // With speculatively retrieved issuer-signed data the session only has to check reader
+        // authentication and produce the device authentication.
+        val entriesToRequest =
+            if (speculativeDocument != null) emptyMap() else issuerSignedEntriesToRequest
         session?.let {
-            val credentialDataRequestBuilder = CredentialDataRequest.Builder()
-                .setIssuerSignedEntriesToRequest(issuerSignedEntriesToRequest)
-                .setAllowUsingExhaustedKeys(true)
-                .setAllowUsingExpiredKeys(true)
-            if (readerAuth != null && requestMessage != null) {
-                credentialDataRequestBuilder.setReaderSignature(readerAuth)
-                credentialDataRequestBuilder.setRequestMessage(requestMessage)
-            }
             try {
                 it.getCredentialData(
                     credentialName,
-                    credentialDataRequestBuilder.build()
+                    buildCredentialDataRequest(
+                        entriesToRequest,
+                        readerAuth,
+                        requestMessage
+                    )
                 )?.let { c ->
                     try {
                         if (c.deviceSignedEntries.isUserAuthenticationNeeded ||
@@ -190,16 +503,27 @@ class TransferManager private constructor(private val context: Context) {
                             return true
                         }
                         val staticAuthData: ByteArray = c.staticAuthenticationData
-                        val (first1, second1) = Utility.decodeStaticAuthData(staticAuthData)
 
                         log("StaticAuthData " + FormatUtil.encodeToString(staticAuthData))
-                        response.addDocument(
-                            docType,
-                            c,
-                            first1,
-                            null,
-                            second1
-                        )
+                        if (speculativeDocument != null) {
+                            log("Using speculatively retrieved data for $credentialName")
+                            val decoded = Utility.decodeStaticAuthData(staticAuthData)
+                            response.addDocument(
+                                docType,
+                                c.deviceNameSpaces,
+                                c.deviceSignature,
+                                c.deviceMac,
+                                Utility.mergeIssuerSigned(
+                                    decoded.first,
+                                    speculativeDocument.issuerSignedEntries
+                                ),
+                                null,
+                                decoded.second
+                            )
+                        } else {
+                            // Decoded static auth data is cached by the library
+                            response.addDocument(docType, c, null)
+                        }
                     } catch (e: IllegalArgumentException) {
                         e.printStackTrace()
                     } catch (e: NoAuthenticationKeyAvailableException) {
@@ -239,13 +563,18 @@ class TransferManager private constructor(private val context: Context) {
     }
 
     fun destroy() {
+        discardSpeculativeResponse()
         qrCommunicationSetup = null
+        qrCodeBitmap = null
         reversedQrCommunicationSetup = null
         session = null
         hasStarted = false
+        // The previous engagement has been used, get a fresh one ready
+        prewarmQrEngagement()
     }
 
     fun getCryptoObject(): BiometricPrompt.CryptoObject? {
+        awaitSpeculativeResponse()
         try {
             return session?.cryptoObject
         } catch (e: RuntimeException) {
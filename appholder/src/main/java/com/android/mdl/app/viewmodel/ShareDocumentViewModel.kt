@@ -44,4 +44,12 @@ class ShareDocumentViewModel(val app: Application) : AndroidViewModel(app) {
     fun triggerQrEngagement() {
         transferManager.startQrEngagement()
     }
+
+    fun startPrewarmingQrEngagement() {
+        transferManager.startPrewarmingQrEngagement()
+    }
+
+    fun stopPrewarmingQrEngagement(keepForQrEngagement: Boolean = false) {
+        transferManager.stopPrewarmingQrEngagement(keepForQrEngagement)
+    }
 }
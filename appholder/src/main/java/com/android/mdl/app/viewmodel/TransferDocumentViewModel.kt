@@ -93,6 +93,8 @@ class TransferDocumentViewModel(val app: Application) : AndroidViewModel(app) {
             }
         }
         requestedElements.addAll(result)
+        // Get the response ready while the user is looking at the confirmation sheet
+        transferManager.startSpeculativeResponse(result)
     }
 
     fun sendResponseForSelection(): Boolean {
@@ -148,6 +150,7 @@ class TransferDocumentViewModel(val app: Application) : AndroidViewModel(app) {
     }
 
     private fun cleanUp() {
+        transferManager.discardSpeculativeResponse()
         requestedElements.clear()
         signedElements.clear()
         selectedDocuments.clear()
@@ -31,6 +31,7 @@ class SelectDocumentFragment : Fragment() {
     private val viewModel: ShareDocumentViewModel by activityViewModels()
     private val timeInterval = 2000 // # milliseconds passed between two back presses
     private var mBackPressed: Long = 0
+    private var isOpeningQrCode = false
 
     private val appPermissions: Array<String> =
         if (android.os.Build.VERSION.SDK_INT >= 31) {
@@ -113,6 +114,22 @@ class SelectDocumentFragment : Fragment() {
         }
     }
 
+    override fun onResume() {
+        super.onResume()
+        isOpeningQrCode = false
+        // Get a QR engagement ready so it shows up immediately when the user asks for it
+        if (binding.btShowQr.visibility == View.VISIBLE) {
+            viewModel.startPrewarmingQrEngagement()
+        }
+    }
+
+    override fun onPause() {
+        super.onPause()
+        // Don't keep advertising while in the background or on other screens, except for
+        // handing the engagement over to the QR code screen.
+        viewModel.stopPrewarmingQrEngagement(keepForQrEngagement = isOpeningQrCode)
+    }
+
     override fun onDestroyView() {
         super.onDestroyView()
         _binding = null
@@ -162,6 +179,7 @@ class SelectDocumentFragment : Fragment() {
     }
 
     private fun displayQRCode() {
+        isOpeningQrCode = true
         val destination = SelectDocumentFragmentDirections.toShowQR()
         findNavController().navigate(destination)
     }
@@ -0,0 +1,157 @@
+package com.android.mdl.app.provisioning
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+class ProvisioningPipelineTest {
+
+    private class RecordingListener : ProvisioningPipeline.Listener {
+        val finished = mutableListOf<Pair<String, String?>>()
+        val allErrors = mutableListOf<Map<String, String>>()
+        val allFinished = CountDownLatch(1)
+
+        @Synchronized
+        override fun onJobFinished(name: String, error: String?) {
+            finished.add(name to error)
+        }
+
+        @Synchronized
+        override fun onAllJobsFinished(errors: Map<String, String>) {
+            allErrors.add(errors)
+            allFinished.countDown()
+        }
+    }
+
+    // A job which finishes when the test tells it to.
+    private class PendingJob : ProvisioningPipeline.Job {
+        var callback: ProvisioningPipeline.Callback? = null
+
+        override fun start(callback: ProvisioningPipeline.Callback) {
+            this.callback = callback
+        }
+    }
+
+    @Test
+    fun runsAtMostMaxConcurrentJobs() {
+        val listener = RecordingListener()
+        val pipeline = ProvisioningPipeline(3, listener)
+        val jobs = List(10) { PendingJob() }
+        jobs.forEachIndexed { n, job -> pipeline.addJob("credential$n", job) }
+
+        pipeline.start()
+        assertThat(jobs.count { it.callback != null }).isEqualTo(3)
+
+        // Finishing a job starts the next one, in the order they were added.
+        jobs[1].callback!!.onSuccess()
+        assertThat(jobs.count { it.callback != null }).isEqualTo(4)
+        assertThat(jobs[3].callback).isNotNull()
+        assertThat(jobs[4].callback).isNull()
+
+        for (job in jobs) {
+            job.callback!!.onSuccess()
+        }
+        assertThat(listener.finished).hasSize(10)
+        assertThat(listener.allErrors).containsExactly(emptyMap<String, String>())
+    }
+
+    @Test
+    fun failureIsIsolatedToItsCredential() {
+        val listener = RecordingListener()
+        val pipeline = ProvisioningPipeline(2, listener)
+        pipeline.addJob("ok1") { it.onSuccess() }
+        pipeline.addJob("error") { it.onError("Server said no") }
+        pipeline.addJob("throws") { throw IllegalStateException("Broken credential") }
+        pipeline.addJob("ok2") { it.onSuccess() }
+
+        pipeline.start()
+        assertThat(listener.finished).containsExactly(
+            "ok1" to null,
+            "error" to "Server said no",
+            "throws" to "Broken credential",
+            "ok2" to null
+        ).inOrder()
+        assertThat(listener.allErrors).containsExactly(
+            mapOf("error" to "Server said no", "throws" to "Broken credential")
+        )
+    }
+
+    @Test
+    fun onlyFirstResultCounts() {
+        val listener = RecordingListener()
+        val pipeline = ProvisioningPipeline(1, listener)
+        val first = PendingJob()
+        val second = PendingJob()
+        pipeline.addJob("first", first)
+        pipeline.addJob("second", second)
+
+        pipeline.start()
+        first.callback!!.onError("Session ended")
+        first.callback!!.onSuccess()
+        first.callback!!.onError("Late error")
+        assertThat(listener.finished).containsExactly("first" to "Session ended")
+
+        second.callback!!.onSuccess()
+        assertThat(listener.allErrors).containsExactly(mapOf("first" to "Session ended"))
+    }
+
+    @Test
+    fun noJobs() {
+        val listener = RecordingListener()
+        ProvisioningPipeline(4, listener).start()
+        assertThat(listener.finished).isEmpty()
+        assertThat(listener.allErrors).containsExactly(emptyMap<String, String>())
+    }
+
+    @Test
+    fun invalidUse() {
+        val listener = RecordingListener()
+        assertThrows(IllegalArgumentException::class.java) {
+            ProvisioningPipeline(0, listener)
+        }
+        val pipeline = ProvisioningPipeline(1, listener)
+        pipeline.addJob("credential") { it.onSuccess() }
+        assertThrows(IllegalArgumentException::class.java) {
+            pipeline.addJob("credential") { it.onSuccess() }
+        }
+        pipeline.start()
+        assertThrows(IllegalStateException::class.java) {
+            pipeline.addJob("other") { it.onSuccess() }
+        }
+        assertThrows(IllegalStateException::class.java) { pipeline.start() }
+    }
+
+    @Test
+    fun jobsFinishingOnOtherThreads() {
+        val listener = RecordingListener()
+        val pipeline =
+            ProvisioningPipeline(ProvisioningRequestQueue.MAX_PARALLEL_REQUESTS, listener)
+        val executor = Executors.newFixedThreadPool(8)
+        val running = AtomicInteger()
+        val maxRunning = AtomicInteger()
+        for (n in 0 until 50) {
+            pipeline.addJob("credential$n") { callback ->
+                maxRunning.accumulateAndGet(running.incrementAndGet()) { a, b -> maxOf(a, b) }
+                executor.execute {
+                    Thread.sleep(1)
+                    running.decrementAndGet()
+                    if (n % 7 == 0) callback.onError("error $n") else callback.onSuccess()
+                }
+            }
+        }
+
+        pipeline.start()
+        assertThat(listener.allFinished.await(10, TimeUnit.SECONDS)).isTrue()
+        executor.shutdown()
+        assertThat(maxRunning.get()).isAtMost(ProvisioningRequestQueue.MAX_PARALLEL_REQUESTS)
+        assertThat(listener.finished).hasSize(50)
+        assertThat(listener.allErrors).hasSize(1)
+        assertThat(listener.allErrors[0].keys).containsExactlyElementsIn(
+            (0 until 50 step 7).map { "credential$it" }
+        )
+    }
+}
@@ -1,12 +1,14 @@
 package com.android.mdl.appreader
 
 import android.app.Application
+import com.android.identity.Logger
 import com.google.android.material.color.DynamicColors
 
 class VerifierApp : Application() {
 
     override fun onCreate() {
         super.onCreate()
+        Logger.setDebugEnabled(BuildConfig.DEBUG)
         DynamicColors.applyToActivitiesIfAvailable(this)
     }
 }
\ No newline at end of file
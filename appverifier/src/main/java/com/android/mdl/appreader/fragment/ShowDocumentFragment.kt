@@ -21,7 +21,6 @@ import androidx.navigation.fragment.findNavController
 import com.android.identity.DeviceResponseParser
 import com.android.mdl.appreader.R
 import com.android.mdl.appreader.databinding.FragmentShowDocumentBinding
-import com.android.mdl.appreader.issuerauth.SimpleIssuerTrustStore
 import com.android.mdl.appreader.transfer.TransferManager
 import com.android.mdl.appreader.util.FormatUtil
 import com.android.mdl.appreader.util.KeysAndCertificates
@@ -160,8 +159,7 @@ class ShowDocumentFragment : Fragment() {
     private fun formatTextResult(documents: Collection<DeviceResponseParser.Document>): String {
         // Create the trustManager to validate the DS Certificate against the list of known
         // certificates in the app
-        val simpleIssuerTrustStore =
-            SimpleIssuerTrustStore(KeysAndCertificates.getTrustedIssuerCertificates(requireContext()))
+        val simpleIssuerTrustStore = KeysAndCertificates.getIssuerTrustStore(requireContext())
 
         val sb = StringBuffer()
         sb.append("Number of documents returned: <b>${documents.size}</b><br>")
@@ -2,6 +2,7 @@ package com.android.mdl.appreader.issuerauth;
 
 import org.bouncycastle.asn1.x500.X500Name;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
@@ -10,6 +11,8 @@ import java.security.SignatureException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -29,6 +32,11 @@ public class SimpleIssuerTrustStore implements IssuerTrustStore {
 
 	private Map<X500Name, X509Certificate> trustedCertMap = new HashMap<>();
 
+	// results for chains seen before, so that repeat verifications skip the lookups and
+	// signature checks
+	private final TrustPathCache<List<X509Certificate>> trustPathCache = new TrustPathCache<>();
+	private final TrustPathCache<Boolean> validatedTrustPathCache = new TrustPathCache<>();
+
 	/**
 	 * Accepts any key store with trusted certificates.
 	 *
@@ -76,6 +84,21 @@ public class SimpleIssuerTrustStore implements IssuerTrustStore {
 
 	@Override
 	public List<X509Certificate> createCertificationTrustPath(List<X509Certificate> chain) {
+		ByteBuffer key = TrustPathCache.computeKey(chain);
+		List<X509Certificate> cachedTrustPath = trustPathCache.get(key);
+		if (cachedTrustPath != null) {
+			// callers may modify the returned list
+			return new LinkedList<>(cachedTrustPath);
+		}
+		List<X509Certificate> certificationTrustPath = findCertificationTrustPath(chain);
+		if (certificationTrustPath != null) {
+			trustPathCache.put(key, certificationTrustPath,
+					Collections.unmodifiableList(new ArrayList<>(certificationTrustPath)));
+		}
+		return certificationTrustPath;
+	}
+
+	private List<X509Certificate> findCertificationTrustPath(List<X509Certificate> chain) {
 		List<X509Certificate> certificationTrustPath = new LinkedList<>();
 		// iterate backwards over list to find certificate in trust store
 		Iterator<X509Certificate> certIterator = chain.listIterator();
@@ -135,6 +158,20 @@ public class SimpleIssuerTrustStore implements IssuerTrustStore {
 			return false;
 		}
 
+		// only successful validations are cached; they stay valid until the first certificate
+		// in the path expires, which is when the cache entry expires too
+		ByteBuffer key = TrustPathCache.computeKey(certificationTrustPath);
+		if (validatedTrustPathCache.get(key) != null) {
+			return true;
+		}
+		boolean valid = checkCertificationTrustPath(certificationTrustPath);
+		if (valid) {
+			validatedTrustPathCache.put(key, certificationTrustPath, Boolean.TRUE);
+		}
+		return valid;
+	}
+
+	private boolean checkCertificationTrustPath(List<X509Certificate> certificationTrustPath) {
 		Iterator<X509Certificate> certIterator = (Iterator<X509Certificate>) certificationTrustPath.iterator();
 
 		X509Certificate leafCert = certIterator.next();
@@ -2,6 +2,7 @@ package com.android.mdl.appreader.util
 
 import android.content.Context
 import com.android.mdl.appreader.R
+import com.android.mdl.appreader.issuerauth.SimpleIssuerTrustStore
 import java.io.InputStream
 import java.nio.charset.StandardCharsets
 import java.security.KeyFactory
@@ -88,4 +89,13 @@ object KeysAndCertificates {
             getCertificate(context, R.raw.ul_micov_testset),
         )
 
-}
\ No newline at end of file
+    @Volatile
+    private var issuerTrustStore: SimpleIssuerTrustStore? = null
+
+    // Shared so that the chains it has verified stay cached across sessions.
+    fun getIssuerTrustStore(context: Context): SimpleIssuerTrustStore =
+        issuerTrustStore ?: synchronized(this) {
+            issuerTrustStore ?: SimpleIssuerTrustStore(getTrustedIssuerCertificates(context))
+                .also { issuerTrustStore = it }
+        }
+}
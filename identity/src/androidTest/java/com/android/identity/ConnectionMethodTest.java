@@ -282,6 +282,25 @@ public class ConnectionMethodTest {
                 "]", Util.cborPrettyPrint(cm.toDeviceEngagement()));
     }
 
+    @Test
+    @SmallTest
+    public void testConnectionMethodTcp() {
+        ConnectionMethodTcp cm = new ConnectionMethodTcp("192.168.1.42", 18013);
+        ConnectionMethodTcp decoded = (ConnectionMethodTcp) ConnectionMethod.fromDeviceEngagement(
+                cm.toDeviceEngagement());
+        Assert.assertNotNull(decoded);
+        Assert.assertEquals("192.168.1.42", decoded.getHost());
+        Assert.assertEquals(18013, decoded.getPort());
+        Assert.assertEquals("[\n" +
+                "  32767,\n" +
+                "  1,\n" +
+                "  {\n" +
+                "    0 : '192.168.1.42',\n" +
+                "    1 : 18013\n" +
+                "  }\n" +
+                "]", Util.cborPrettyPrint(cm.toDeviceEngagement()));
+    }
+
     @Test
     @SmallTest
     public void testConnectionMethodRestApi() {
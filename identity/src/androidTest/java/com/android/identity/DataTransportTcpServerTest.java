@@ -0,0 +1,177 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.filters.SmallTest;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+@SuppressWarnings("deprecation")
+@RunWith(AndroidJUnit4.class)
+public class DataTransportTcpServerTest {
+
+    // Listener which echoes every message back with an extra 0xff byte appended.
+    static class EchoListener implements DataTransport.Listener {
+        private final DataTransport mTransport;
+
+        EchoListener(@NonNull DataTransport transport) {
+            mTransport = transport;
+        }
+
+        @Override
+        public void onConnectionMethodReady() {
+        }
+
+        @Override
+        public void onConnecting() {
+        }
+
+        @Override
+        public void onConnected() {
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+
+        @Override
+        public void onTransportSpecificSessionTermination() {
+            Assert.fail();
+        }
+
+        @Override
+        public void onError(@NonNull Throwable error) {
+            throw new AssertionError(error);
+        }
+
+        @Override
+        public void onMessageReceived() {
+            byte[] message = mTransport.getMessage();
+            byte[] reply = Arrays.copyOf(message, message.length + 1);
+            reply[message.length] = (byte) 0xff;
+            mTransport.sendMessage(reply);
+        }
+    }
+
+    @Test
+    @SmallTest
+    public void multipleSessions() throws IOException, InterruptedException {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        Executor executor = Executors.newSingleThreadExecutor();
+        final int numSessions = 20;
+        ConnectionMethod[] sessionConnectionMethods = new ConnectionMethod[1];
+
+        DataTransportTcpServer server = new DataTransportTcpServer(appContext,
+                DataTransport.ROLE_MDOC,
+                new DataTransportOptions.Builder().build(),
+                new DataTransportTcpServer.Listener() {
+                    @Override
+                    public void onSessionAccepted(@NonNull DataTransport transport) {
+                        sessionConnectionMethods[0] = transport.getConnectionMethod();
+                        transport.setListener(new EchoListener(transport), executor);
+                        transport.connect();
+                    }
+
+                    @Override
+                    public void onError(@NonNull Throwable error) {
+                        throw new AssertionError(error);
+                    }
+                },
+                executor);
+        server.start(0);
+
+        CountDownLatch repliesReceived = new CountDownLatch(numSessions);
+        DataTransportTcp[] verifiers = new DataTransportTcp[numSessions];
+        byte[][] replies = new byte[numSessions][];
+        for (int n = 0; n < numSessions; n++) {
+            final int index = n;
+            DataTransportTcp verifier = new DataTransportTcp(appContext,
+                    DataTransport.ROLE_MDOC_READER,
+                    new DataTransportOptions.Builder().build());
+            verifier.setListener(new DataTransport.Listener() {
+                @Override
+                public void onConnectionMethodReady() {
+                }
+
+                @Override
+                public void onConnecting() {
+                }
+
+                @Override
+                public void onConnected() {
+                    // Every other session sends a message spanning many reads.
+                    byte[] message = new byte[index % 2 == 0 ? 1 : 200 * 1024];
+                    message[0] = (byte) index;
+                    verifier.sendMessage(message);
+                }
+
+                @Override
+                public void onDisconnected() {
+                }
+
+                @Override
+                public void onTransportSpecificSessionTermination() {
+                    Assert.fail();
+                }
+
+                @Override
+                public void onError(@NonNull Throwable error) {
+                    Assert.fail();
+                }
+
+                @Override
+                public void onMessageReceived() {
+                    replies[index] = verifier.getMessage();
+                    repliesReceived.countDown();
+                }
+            }, executor);
+            verifier.setHostAndPort("127.0.0.1", server.getPort());
+            verifier.connect();
+            verifiers[n] = verifier;
+        }
+
+        Assert.assertTrue(repliesReceived.await(10, TimeUnit.SECONDS));
+        // All sessions are on the server's port.
+        ConnectionMethodTcp cm = (ConnectionMethodTcp) sessionConnectionMethods[0];
+        Assert.assertEquals("127.0.0.1", cm.getHost());
+        Assert.assertEquals(server.getPort(), cm.getPort());
+        for (int n = 0; n < numSessions; n++) {
+            int expectedLength = (n % 2 == 0 ? 1 : 200 * 1024) + 1;
+            Assert.assertEquals(expectedLength, replies[n].length);
+            Assert.assertEquals((byte) n, replies[n][0]);
+            Assert.assertEquals((byte) 0xff, replies[n][expectedLength - 1]);
+        }
+
+        for (DataTransportTcp verifier : verifiers) {
+            verifier.close();
+        }
+        server.stop();
+    }
+}
@@ -227,4 +227,56 @@ public class MultiDocumentPresentationTest {
                 readerEphemeralKeyPair.getPrivate(), sessionTranscript);
         assertArrayEquals(new int[]{1, 0, 0, 0, 0}, getAuthKeyUsageCount(store, "credential1"));
     }
+
+    @Test
+    public void issuerSignedDataBeforeConsent() throws Exception {
+        Context appContext = androidx.test.InstrumentationRegistry.getTargetContext();
+        IdentityCredentialStore store = Util.getIdentityCredentialStore(appContext);
+        assumeTrue(store.getFeatureVersion() >= IdentityCredentialStore.FEATURE_VERSION_202201);
+
+        store.deleteCredentialByName("credential1");
+        ProvisioningTest.createCredential(store, "credential1");
+        createAuthKeys(store, "credential1");
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0}, getAuthKeyUsageCount(store, "credential1"));
+
+        // The session the reader is talking to...
+        PresentationSession session = store.createPresentationSession(
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        KeyPair ephemeralKeyPair = session.getEphemeralKeyPair();
+        KeyPair readerEphemeralKeyPair = Util.createEphemeralKeyPair();
+        session.setReaderEphemeralPublicKey(readerEphemeralKeyPair.getPublic());
+        session.setSessionTranscript(Util.buildSessionTranscript(ephemeralKeyPair));
+
+        // ... and a separate one without a SessionTranscript, used to get issuer-signed data
+        // ready while the user hasn't consented yet.
+        PresentationSession speculativeSession = store.createPresentationSession(
+                IdentityCredentialStore.CIPHERSUITE_ECDHE_HKDF_ECDSA_WITH_AES_256_GCM_SHA256);
+        Map<String, Collection<String>> isEntriesToRequest = new LinkedHashMap<>();
+        isEntriesToRequest.put("org.iso.18013-5.2019", Arrays.asList("First name", "Last name"));
+        CredentialDataResult rd = speculativeSession.getCredentialData(
+                "credential1",
+                new CredentialDataRequest.Builder()
+                        .setIssuerSignedEntriesToRequest(isEntriesToRequest)
+                        .setRequestMessage(Util.createItemsRequest(isEntriesToRequest, null))
+                        .setIncrementUseCount(false)
+                        .build());
+        assertEquals("Alan", rd.getIssuerSignedEntries().getEntryString(
+                "org.iso.18013-5.2019", "First name"));
+        assertEquals("Turing", rd.getIssuerSignedEntries().getEntryString(
+                "org.iso.18013-5.2019", "Last name"));
+        assertNull(rd.getDeviceMac());
+        assertNull(rd.getDeviceSignature());
+
+        // The user declines, so the reader's session is never used. No auth key was used.
+        assertArrayEquals(new int[]{0, 0, 0, 0, 0}, getAuthKeyUsageCount(store, "credential1"));
+
+        // Had they consented, device authentication would have used exactly one.
+        rd = session.getCredentialData(
+                "credential1",
+                new CredentialDataRequest.Builder()
+                        .setRequestMessage(Util.createItemsRequest(isEntriesToRequest, null))
+                        .build());
+        assertTrue(rd.getDeviceMac() != null || rd.getDeviceSignature() != null);
+        assertArrayEquals(new int[]{1, 0, 0, 0, 0}, getAuthKeyUsageCount(store, "credential1"));
+    }
 }
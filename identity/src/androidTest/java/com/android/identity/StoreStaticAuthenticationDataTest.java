@@ -26,7 +26,9 @@ import androidx.core.util.Preconditions;
 import androidx.test.filters.LargeTest;
 import androidx.test.filters.MediumTest;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 import java.util.Random;
 
@@ -69,6 +71,39 @@ public class StoreStaticAuthenticationDataTest {
     checkStaticAuthData(100, 10000);
   }
 
+  /**
+   * Tests storing static authentication data for several auth keys in one call.
+   */
+  @MediumTest
+  @Test
+  public void storeStaticAuthenticationDataBatch() throws IdentityCredentialException {
+    mStore.deleteCredentialByName(CREDENTIAL_NAME);
+    ProvisioningTest.createCredential(mStore, CREDENTIAL_NAME);
+    try {
+      IdentityCredential credential = Preconditions.checkNotNull(
+              mStore.getCredentialByName(CREDENTIAL_NAME, CIPHER_SUITE));
+      credential.setAvailableAuthenticationKeys(5, 3);
+      List<X509Certificate> authKeys =
+              new ArrayList<>(credential.getAuthKeysNeedingCertification());
+      assertEquals(5, authKeys.size());
+
+      List<AuthenticationKeyCertification> certifications = new ArrayList<>();
+      for (int n = 0; n < 3; n++) {
+        certifications.add(new AuthenticationKeyCertification(authKeys.get(n), null,
+                new byte[]{(byte) n}));
+      }
+      credential.storeStaticAuthenticationData(certifications);
+      assertEquals(2, credential.getAuthKeysNeedingCertification().size());
+
+      // The stored data survives loading the credential again.
+      credential = Preconditions.checkNotNull(
+              mStore.getCredentialByName(CREDENTIAL_NAME, CIPHER_SUITE));
+      assertEquals(2, credential.getAuthKeysNeedingCertification().size());
+    } finally {
+      mStore.deleteCredentialByName(CREDENTIAL_NAME);
+    }
+  }
+
   private void checkStaticAuthData(int numAuthKeys, int staticAuthDataSizeBytes)
           throws IdentityCredentialException {
     final int usesPerKey = 3;
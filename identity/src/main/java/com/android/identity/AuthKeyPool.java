@@ -0,0 +1,324 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+ * An index over the dynamic authentication keys of a credential.
+ *
+ * <p>Keys are identified by their index, the same as in {@link CredentialData}. The pool only
+ * knows the state needed for picking a key: whether it's certified, its use count, when its
+ * static authentication data expires and whether a replacement is pending certification.
+ *
+ * <p>Certified keys are kept in two min-heaps ordered by use count, one for keys which haven't
+ * expired yet and one for keys known to have expired. A third heap orders the unexpired keys by
+ * expiration date so keys can be moved to the expired heap as time passes without looking at
+ * every key. Since exhausted keys have the highest use counts, this orders keys by
+ * (expired, exhausted, use count) and selecting a key is O(log n).
+ *
+ * <p>The indices of keys needing certification are kept in a sorted set which is updated as
+ * keys change state, so they can be enumerated in O(k) for k keys.
+ *
+ * <p>This class is not thread-safe.
+ */
+final class AuthKeyPool {
+    /** Expiration date used for keys which don't expire. */
+    static final long NO_EXPIRATION = Long.MAX_VALUE;
+
+    private final int mMaxUsesPerKey;
+    private final boolean[] mCertified;
+    private final int[] mUseCounts;
+    private final long[] mExpirationMillis;
+    private final boolean[] mPending;
+
+    private final IndexedHeap mAvailable;
+    private final IndexedHeap mExpired;
+    private final IndexedHeap mExpiring;
+    private final TreeSet<Integer> mNeedingCertification = new TreeSet<>();
+
+    /**
+     * Creates a pool where no key is certified yet.
+     *
+     * @param keyCount the number of keys.
+     * @param maxUsesPerKey the number of times a key can be used before it's exhausted.
+     */
+    AuthKeyPool(int keyCount, int maxUsesPerKey) {
+        mMaxUsesPerKey = maxUsesPerKey;
+        mCertified = new boolean[keyCount];
+        mUseCounts = new int[keyCount];
+        mExpirationMillis = new long[keyCount];
+        mPending = new boolean[keyCount];
+        Arrays.fill(mExpirationMillis, NO_EXPIRATION);
+
+        IndexedHeap.Comparator byUseCount = (a, b) -> {
+            int result = Integer.compare(mUseCounts[a], mUseCounts[b]);
+            return result != 0 ? result : Integer.compare(a, b);
+        };
+        mAvailable = new IndexedHeap(keyCount, byUseCount);
+        mExpired = new IndexedHeap(keyCount, byUseCount);
+        mExpiring = new IndexedHeap(keyCount, (a, b) -> {
+            int result = Long.compare(mExpirationMillis[a], mExpirationMillis[b]);
+            return result != 0 ? result : Integer.compare(a, b);
+        });
+        for (int n = 0; n < keyCount; n++) {
+            mNeedingCertification.add(n);
+        }
+    }
+
+    /**
+     * Gets the number of keys in the pool.
+     */
+    int getKeyCount() {
+        return mUseCounts.length;
+    }
+
+    /**
+     * Sets the state of a key.
+     *
+     * @param index the index of the key.
+     * @param certified whether the key has been certified.
+     * @param useCount the number of times the key has been used.
+     * @param expirationMillis when the static authentication data for the key expires, in
+     *   milliseconds since the epoch, or {@link #NO_EXPIRATION}.
+     * @param pending whether a replacement key is pending certification.
+     */
+    void setKey(int index, boolean certified, int useCount, long expirationMillis,
+            boolean pending) {
+        mAvailable.remove(index);
+        mExpired.remove(index);
+        mExpiring.remove(index);
+
+        mCertified[index] = certified;
+        mUseCounts[index] = useCount;
+        mExpirationMillis[index] = expirationMillis;
+        mPending[index] = pending;
+
+        // Whether the key has expired is found out lazily by moveExpiredKeys().
+        if (certified) {
+            mAvailable.add(index);
+            if (expirationMillis != NO_EXPIRATION) {
+                mExpiring.add(index);
+            }
+        }
+        updateNeedingCertification(index);
+    }
+
+    /**
+     * Increases the use count of a key by one.
+     *
+     * @param index the index of the key.
+     */
+    void incrementUseCount(int index) {
+        mUseCounts[index] += 1;
+        mAvailable.update(index);
+        mExpired.update(index);
+        updateNeedingCertification(index);
+    }
+
+    /**
+     * Gets the use count for every key.
+     *
+     * @return a newly allocated array with the use counts, indexed by key.
+     */
+    @NonNull int[] getUseCounts() {
+        return mUseCounts.clone();
+    }
+
+    /**
+     * Picks the certified key with the lowest use count.
+     *
+     * <p>Unexpired keys are always preferred over expired ones.
+     *
+     * @param nowMillis the current time, in milliseconds since the epoch.
+     * @param allowUsingExhaustedKeys whether a key which use count has been exceeded may be
+     *   returned if there is no other key.
+     * @param allowUsingExpiredKeys whether an expired key may be returned if there is no
+     *   unexpired key.
+     * @return the index of the key or -1 if no key could be found.
+     */
+    int selectKey(long nowMillis, boolean allowUsingExhaustedKeys,
+            boolean allowUsingExpiredKeys) {
+        moveExpiredKeys(nowMillis);
+
+        int candidate = mAvailable.peek();
+        if (candidate >= 0 && (allowUsingExhaustedKeys || !isExhausted(candidate))) {
+            return candidate;
+        }
+        if (!allowUsingExpiredKeys) {
+            return -1;
+        }
+
+        int expiredCandidate = mExpired.peek();
+        if (candidate < 0 || (expiredCandidate >= 0
+                && mAvailable.mComparator.compare(expiredCandidate, candidate) < 0)) {
+            candidate = expiredCandidate;
+        }
+        if (candidate < 0 || (!allowUsingExhaustedKeys && isExhausted(candidate))) {
+            return -1;
+        }
+        return candidate;
+    }
+
+    /**
+     * Gets the keys which are pending certification or need to be replaced because they're
+     * not certified, exhausted or expired.
+     *
+     * @param nowMillis the current time, in milliseconds since the epoch.
+     * @return the indices of the keys, in increasing order.
+     */
+    @NonNull int[] getKeysNeedingCertification(long nowMillis) {
+        moveExpiredKeys(nowMillis);
+        int[] result = new int[mNeedingCertification.size()];
+        int n = 0;
+        for (int index : mNeedingCertification) {
+            result[n++] = index;
+        }
+        return result;
+    }
+
+    private boolean isExhausted(int index) {
+        return mUseCounts[index] >= mMaxUsesPerKey;
+    }
+
+    private void moveExpiredKeys(long nowMillis) {
+        while (true) {
+            int index = mExpiring.peek();
+            if (index < 0 || mExpirationMillis[index] >= nowMillis) {
+                break;
+            }
+            mExpiring.remove(index);
+            mAvailable.remove(index);
+            mExpired.add(index);
+            updateNeedingCertification(index);
+        }
+    }
+
+    private void updateNeedingCertification(int index) {
+        if (mPending[index]
+                || !mCertified[index]
+                || isExhausted(index)
+                || mExpired.contains(index)) {
+            mNeedingCertification.add(index);
+        } else {
+            mNeedingCertification.remove(index);
+        }
+    }
+
+    // A binary min-heap of key indices which also tracks the position of each key so keys
+    // can be removed or re-ordered in O(log n).
+    private static final class IndexedHeap {
+        interface Comparator {
+            int compare(int a, int b);
+        }
+
+        final Comparator mComparator;
+        private final int[] mHeap;
+        private final int[] mPositions;
+        private int mSize;
+
+        IndexedHeap(int capacity, Comparator comparator) {
+            mComparator = comparator;
+            mHeap = new int[capacity];
+            mPositions = new int[capacity];
+            Arrays.fill(mPositions, -1);
+        }
+
+        boolean contains(int index) {
+            return mPositions[index] >= 0;
+        }
+
+        int peek() {
+            return mSize > 0 ? mHeap[0] : -1;
+        }
+
+        void add(int index) {
+            if (contains(index)) {
+                return;
+            }
+            mHeap[mSize] = index;
+            mPositions[index] = mSize;
+            mSize++;
+            siftUp(mSize - 1);
+        }
+
+        void remove(int index) {
+            int position = mPositions[index];
+            if (position < 0) {
+                return;
+            }
+            mSize--;
+            mPositions[index] = -1;
+            if (position == mSize) {
+                return;
+            }
+            mHeap[position] = mHeap[mSize];
+            mPositions[mHeap[position]] = position;
+            siftDown(siftUp(position));
+        }
+
+        // Restores the heap order after the key for an element changed.
+        void update(int index) {
+            int position = mPositions[index];
+            if (position >= 0) {
+                siftDown(siftUp(position));
+            }
+        }
+
+        private int siftUp(int position) {
+            while (position > 0) {
+                int parent = (position - 1) / 2;
+                if (mComparator.compare(mHeap[position], mHeap[parent]) >= 0) {
+                    break;
+                }
+                swap(position, parent);
+                position = parent;
+            }
+            return position;
+        }
+
+        private void siftDown(int position) {
+            while (true) {
+                int smallest = position;
+                int left = 2 * position + 1;
+                int right = left + 1;
+                if (left < mSize && mComparator.compare(mHeap[left], mHeap[smallest]) < 0) {
+                    smallest = left;
+                }
+                if (right < mSize && mComparator.compare(mHeap[right], mHeap[smallest]) < 0) {
+                    smallest = right;
+                }
+                if (smallest == position) {
+                    return;
+                }
+                swap(position, smallest);
+                position = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            int tmp = mHeap[a];
+            mHeap[a] = mHeap[b];
+            mHeap[b] = tmp;
+            mPositions[mHeap[a]] = a;
+            mPositions[mHeap[b]] = b;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Incremental framer for a stream of concatenated CBOR data items.
+ *
+ * <p>Transports such as L2CAP don't have message boundaries so the receiver must find them
+ * by looking at the CBOR itself. This class does that by scanning only the initial bytes and
+ * argument of each data item as data arrives, keeping track of the current nesting depth and
+ * how many bytes or items remain at each level. Data items are never decoded and bytes
+ * already scanned are not looked at again, so framing a message of size N is O(N) no matter
+ * how many reads it arrives in.
+ *
+ * <p>Data is accumulated in a single buffer which is reused across messages. Bytes belonging
+ * to a data item are only copied once, when the complete item is returned from {@link #next()}.
+ *
+ * <p>This class is not thread-safe.
+ */
+class CborFramer {
+    private static final int DEFAULT_INITIAL_CAPACITY = 4096;
+
+    // Data items nested deeper than this are rejected to bound the state kept.
+    private static final int MAX_NESTING_DEPTH = 64;
+
+    // Marker in mRemaining for an indefinite-length array, map or string.
+    private static final long INDEFINITE = -1;
+
+    private byte[] mBuffer;
+    // Start of the data item currently being scanned.
+    private int mItemStart = 0;
+    // Next byte to scan.
+    private int mScanOffset = 0;
+    // End of valid data in mBuffer.
+    private int mEnd = 0;
+
+    // Number of string payload bytes still to skip before the next header.
+    private long mBytesToSkip = 0;
+    // For each open array, map or indefinite-length string, the number of data items
+    // remaining or INDEFINITE if terminated by a break.
+    private final long[] mRemaining = new long[MAX_NESTING_DEPTH];
+    private int mDepth = 0;
+    // Length of the complete top-level data item starting at mItemStart or -1 if not
+    // yet complete.
+    private int mCompleteItemLength = -1;
+
+    CborFramer() {
+        this(DEFAULT_INITIAL_CAPACITY);
+    }
+
+    CborFramer(int initialCapacity) {
+        mBuffer = new byte[initialCapacity];
+    }
+
+    /**
+     * Appends data received from the transport.
+     *
+     * @param data the buffer holding the data.
+     * @param offset the offset of the data in the buffer.
+     * @param length the number of bytes to append.
+     */
+    void write(@NonNull byte[] data, int offset, int length) {
+        ensureSpace(length);
+        System.arraycopy(data, offset, mBuffer, mEnd, length);
+        mEnd += length;
+    }
+
+    /**
+     * Reads data from an input stream directly into the framer's buffer.
+     *
+     * <p>This blocks until at least one byte is available, like {@link InputStream#read()}.
+     *
+     * @param inputStream the stream to read from.
+     * @param maxLength the maximum number of bytes to read.
+     * @return the number of bytes read or -1 if the end of the stream has been reached.
+     * @throws IOException if reading from the stream fails.
+     */
+    int readFrom(@NonNull InputStream inputStream, int maxLength) throws IOException {
+        ensureSpace(maxLength);
+        int numBytesRead = inputStream.read(mBuffer, mEnd, maxLength);
+        if (numBytesRead > 0) {
+            mEnd += numBytesRead;
+        }
+        return numBytesRead;
+    }
+
+    /**
+     * Gets the next complete top-level data item, if available.
+     *
+     * <p>This should be called repeatedly after new data has been appended since a single
+     * read may complete more than one data item.
+     *
+     * @return the encoded bytes of the next data item or {@code null} if more data is needed.
+     * @throws IllegalArgumentException if the data isn't well-formed CBOR.
+     */
+    @Nullable
+    byte[] next() {
+        if (mCompleteItemLength < 0) {
+            mCompleteItemLength = scan();
+            if (mCompleteItemLength < 0) {
+                return null;
+            }
+        }
+        byte[] dataItemBytes = new byte[mCompleteItemLength];
+        System.arraycopy(mBuffer, mItemStart, dataItemBytes, 0, mCompleteItemLength);
+        mItemStart += mCompleteItemLength;
+        mCompleteItemLength = -1;
+        if (mItemStart == mEnd) {
+            // Nothing pending, rewind so the buffer doesn't need compacting.
+            mItemStart = 0;
+            mScanOffset = 0;
+            mEnd = 0;
+        }
+        return dataItemBytes;
+    }
+
+    /**
+     * Gets the number of bytes received but not yet returned by {@link #next()}.
+     *
+     * @return the number of pending bytes.
+     */
+    int getPendingLength() {
+        return mEnd - mItemStart;
+    }
+
+    /**
+     * Gets the bytes received but not yet returned by {@link #next()}.
+     *
+     * @return a copy of the pending bytes.
+     */
+    @NonNull
+    byte[] getPendingData() {
+        byte[] pendingData = new byte[mEnd - mItemStart];
+        System.arraycopy(mBuffer, mItemStart, pendingData, 0, pendingData.length);
+        return pendingData;
+    }
+
+    /**
+     * Discards all pending data.
+     */
+    void reset() {
+        mItemStart = 0;
+        mScanOffset = 0;
+        mEnd = 0;
+        mBytesToSkip = 0;
+        mDepth = 0;
+        mCompleteItemLength = -1;
+    }
+
+    /**
+     * Determines the length of the first CBOR data item in a buffer.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the data item in the buffer.
+     * @param length the number of valid bytes in the buffer starting at {@code offset}.
+     * @return the length of the data item or -1 if it's incomplete.
+     * @throws IllegalArgumentException if the data isn't well-formed CBOR.
+     */
+    static int getDataItemLength(@NonNull byte[] data, int offset, int length) {
+        CborFramer framer = new CborFramer(0);
+        framer.mBuffer = data;
+        framer.mItemStart = offset;
+        framer.mScanOffset = offset;
+        framer.mEnd = offset + length;
+        return framer.scan();
+    }
+
+    private void ensureSpace(int length) {
+        if (mBuffer.length - mEnd >= length) {
+            return;
+        }
+        int pendingLength = mEnd - mItemStart;
+        if (mBuffer.length - pendingLength >= length && mItemStart >= mBuffer.length / 2) {
+            // Enough space if the pending bytes are moved to the front. Only do this when at
+            // least half of the buffer is reclaimed so the copying stays amortized O(1).
+            System.arraycopy(mBuffer, mItemStart, mBuffer, 0, pendingLength);
+        } else {
+            int newCapacity = Math.max(mBuffer.length * 2, pendingLength + length);
+            byte[] newBuffer = new byte[newCapacity];
+            System.arraycopy(mBuffer, mItemStart, newBuffer, 0, pendingLength);
+            mBuffer = newBuffer;
+        }
+        mScanOffset -= mItemStart;
+        mEnd = pendingLength;
+        mItemStart = 0;
+    }
+
+    // Continues scanning from mScanOffset. Returns the length of the top-level data item
+    // starting at mItemStart if complete, -1 otherwise.
+    private int scan() {
+        while (true) {
+            if (mBytesToSkip > 0) {
+                long available = mEnd - mScanOffset;
+                if (available < mBytesToSkip) {
+                    mScanOffset = mEnd;
+                    mBytesToSkip -= available;
+                    return -1;
+                }
+                mScanOffset += (int) mBytesToSkip;
+                mBytesToSkip = 0;
+                if (dataItemDone()) {
+                    return mScanOffset - mItemStart;
+                }
+                continue;
+            }
+
+            if (mScanOffset >= mEnd) {
+                return -1;
+            }
+            int initialByte = mBuffer[mScanOffset] & 0xff;
+            int majorType = initialByte >> 5;
+            int additionalInfo = initialByte & 0x1f;
+            int argumentLength;
+            if (additionalInfo < 24) {
+                argumentLength = 0;
+            } else if (additionalInfo == 24) {
+                argumentLength = 1;
+            } else if (additionalInfo == 25) {
+                argumentLength = 2;
+            } else if (additionalInfo == 26) {
+                argumentLength = 4;
+            } else if (additionalInfo == 27) {
+                argumentLength = 8;
+            } else if (additionalInfo == 31) {
+                argumentLength = 0;
+            } else {
+                throw new IllegalArgumentException(
+                        "Reserved additional information " + additionalInfo);
+            }
+            if (mEnd - mScanOffset < 1 + argumentLength) {
+                // Header is split across reads, wait for the rest.
+                return -1;
+            }
+            long argument = additionalInfo < 24 ? additionalInfo : 0;
+            for (int n = 0; n < argumentLength; n++) {
+                argument = (argument << 8) | (mBuffer[mScanOffset + 1 + n] & 0xff);
+            }
+            mScanOffset += 1 + argumentLength;
+            boolean indefinite = (additionalInfo == 31);
+
+            boolean done;
+            switch (majorType) {
+                case 0: // unsigned integer
+                case 1: // negative integer
+                    if (indefinite) {
+                        throw new IllegalArgumentException("Indefinite length integer");
+                    }
+                    done = dataItemDone();
+                    break;
+                case 2: // byte string
+                case 3: // text string
+                    if (indefinite) {
+                        push(INDEFINITE);
+                        done = false;
+                    } else if (argument < 0) {
+                        throw new IllegalArgumentException("String too long");
+                    } else if (argument > 0) {
+                        mBytesToSkip = argument;
+                        done = false;
+                    } else {
+                        done = dataItemDone();
+                    }
+                    break;
+                case 4: // array
+                case 5: // map
+                    if (indefinite) {
+                        push(INDEFINITE);
+                        done = false;
+                    } else if (argument < 0 || (majorType == 5 && argument > Long.MAX_VALUE / 2)) {
+                        throw new IllegalArgumentException("Container too large");
+                    } else if (argument > 0) {
+                        push(majorType == 5 ? argument * 2 : argument);
+                        done = false;
+                    } else {
+                        done = dataItemDone();
+                    }
+                    break;
+                case 6: // tag, the tagged data item follows
+                    if (indefinite) {
+                        throw new IllegalArgumentException("Indefinite length tag");
+                    }
+                    done = false;
+                    break;
+                default: // 7: simple values, floats and break
+                    if (indefinite) {
+                        if (mDepth == 0 || mRemaining[mDepth - 1] != INDEFINITE) {
+                            throw new IllegalArgumentException("Unexpected break");
+                        }
+                        mDepth -= 1;
+                    }
+                    done = dataItemDone();
+                    break;
+            }
+            if (done) {
+                return mScanOffset - mItemStart;
+            }
+        }
+    }
+
+    private void push(long remaining) {
+        if (mDepth == MAX_NESTING_DEPTH) {
+            throw new IllegalArgumentException("Maximum nesting depth exceeded");
+        }
+        mRemaining[mDepth++] = remaining;
+    }
+
+    // Called when a data item has been completely scanned. Returns true if this completes
+    // the top-level data item.
+    private boolean dataItemDone() {
+        while (mDepth > 0) {
+            long remaining = mRemaining[mDepth - 1];
+            if (remaining == INDEFINITE) {
+                return false;
+            }
+            remaining -= 1;
+            if (remaining > 0) {
+                mRemaining[mDepth - 1] = remaining;
+                return false;
+            }
+            // Container complete, which in turn completes an item in the enclosing one.
+            mDepth -= 1;
+        }
+        return true;
+    }
+}
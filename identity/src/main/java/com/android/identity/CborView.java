@@ -0,0 +1,374 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * Helpers for navigating encoded CBOR in place.
+ *
+ * <p>Data items are identified by their offset into a buffer holding the encoded CBOR. Nothing
+ * is decoded until asked for, so large values such as portraits can be skipped over, hashed or
+ * copied out without ever building {@link co.nstant.in.cbor.model.DataItem} trees for them.
+ *
+ * <p>All methods throw {@link IllegalArgumentException} if the data isn't well-formed or not
+ * of the expected type.
+ */
+final class CborView {
+    static final int MAJOR_TYPE_UNSIGNED_INTEGER = 0;
+    static final int MAJOR_TYPE_BYTE_STRING = 2;
+    static final int MAJOR_TYPE_TEXT_STRING = 3;
+    static final int MAJOR_TYPE_ARRAY = 4;
+    static final int MAJOR_TYPE_MAP = 5;
+    static final int MAJOR_TYPE_TAG = 6;
+    private static final int ADDITIONAL_INFO_INDEFINITE = 31;
+    private static final int BREAK = 0xff;
+
+    private CborView() {
+    }
+
+    /**
+     * Gets the offset just past the data item at the given offset.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the data item.
+     * @param end the end of valid data in the buffer.
+     * @return the offset of the first byte after the data item.
+     */
+    static int skip(@NonNull byte[] data, int offset, int end) {
+        int length = CborFramer.getDataItemLength(data, offset, end - offset);
+        if (length < 0) {
+            throw new IllegalArgumentException("Truncated CBOR at offset " + offset);
+        }
+        return offset + length;
+    }
+
+    /**
+     * Gets the major type of the data item at the given offset.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the data item.
+     * @param end the end of valid data in the buffer.
+     * @return the major type, e.g. {@link #MAJOR_TYPE_TEXT_STRING}.
+     */
+    static int getMajorType(@NonNull byte[] data, int offset, int end) {
+        if (offset >= end) {
+            throw new IllegalArgumentException("Truncated CBOR at offset " + offset);
+        }
+        return (data[offset] & 0xff) >> 5;
+    }
+
+    private static boolean isIndefinite(@NonNull byte[] data, int offset) {
+        return (data[offset] & 0x1f) == ADDITIONAL_INFO_INDEFINITE;
+    }
+
+    private static int getHeaderLength(@NonNull byte[] data, int offset) {
+        int additionalInfo = data[offset] & 0x1f;
+        if (additionalInfo < 24 || additionalInfo == ADDITIONAL_INFO_INDEFINITE) {
+            return 1;
+        } else if (additionalInfo <= 27) {
+            return 1 + (1 << (additionalInfo - 24));
+        }
+        throw new IllegalArgumentException("Reserved additional information " + additionalInfo);
+    }
+
+    private static long getArgument(@NonNull byte[] data, int offset, int end) {
+        int headerLength = getHeaderLength(data, offset);
+        if (offset + headerLength > end) {
+            throw new IllegalArgumentException("Truncated CBOR at offset " + offset);
+        }
+        int additionalInfo = data[offset] & 0x1f;
+        if (additionalInfo < 24) {
+            return additionalInfo;
+        }
+        long argument = 0;
+        for (int n = 1; n < headerLength; n++) {
+            argument = (argument << 8) | (data[offset + n] & 0xff);
+        }
+        return argument;
+    }
+
+    // Gets the length of a definite-length string and checks it fits in the buffer.
+    private static int getStringLength(@NonNull byte[] data, int offset, int end) {
+        long length = getArgument(data, offset, end);
+        if (length < 0 || length > end - offset - getHeaderLength(data, offset)) {
+            throw new IllegalArgumentException("Truncated CBOR at offset " + offset);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Gets the offsets of the elements of an array or the keys and values of a map.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the array or map.
+     * @param end the end of valid data in the buffer.
+     * @return the offsets of the array elements or, for a map, alternating offsets of keys and
+     *   values.
+     */
+    static @NonNull int[] getChildOffsets(@NonNull byte[] data, int offset, int end) {
+        int majorType = getMajorType(data, offset, end);
+        if (majorType != MAJOR_TYPE_ARRAY && majorType != MAJOR_TYPE_MAP) {
+            throw new IllegalArgumentException("Expected array or map at offset " + offset);
+        }
+        int childOffset = offset + getHeaderLength(data, offset);
+        if (isIndefinite(data, offset)) {
+            int[] childOffsets = new int[8];
+            int numChildren = 0;
+            while (true) {
+                if (childOffset >= end) {
+                    throw new IllegalArgumentException("Truncated CBOR at offset " + offset);
+                }
+                if ((data[childOffset] & 0xff) == BREAK) {
+                    break;
+                }
+                if (numChildren == childOffsets.length) {
+                    childOffsets = Arrays.copyOf(childOffsets, numChildren * 2);
+                }
+                childOffsets[numChildren++] = childOffset;
+                childOffset = skip(data, childOffset, end);
+            }
+            if (majorType == MAJOR_TYPE_MAP && (numChildren % 2) != 0) {
+                throw new IllegalArgumentException("Map with odd number of items at offset "
+                        + offset);
+            }
+            return Arrays.copyOf(childOffsets, numChildren);
+        }
+        long count = getArgument(data, offset, end);
+        if (majorType == MAJOR_TYPE_MAP) {
+            count *= 2;
+        }
+        // Every child takes at least one byte, this also guards against overflow.
+        if (count < 0 || count > end - childOffset) {
+            throw new IllegalArgumentException("Truncated CBOR at offset " + offset);
+        }
+        int[] childOffsets = new int[(int) count];
+        for (int n = 0; n < count; n++) {
+            childOffsets[n] = childOffset;
+            childOffset = skip(data, childOffset, end);
+        }
+        return childOffsets;
+    }
+
+    /**
+     * Looks up the value for a text string key in a map.
+     *
+     * <p>Keys are compared in order and the scan stops at the first match, so only the keys
+     * and values before the match are skipped over. When looking up several keys in the same
+     * map, get the offsets of its keys and values once with
+     * {@link #getChildOffsets(byte[], int, int)} and use
+     * {@link #findMapValue(byte[], int[], int, String)} instead.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the map.
+     * @param end the end of valid data in the buffer.
+     * @param key the key to look for.
+     * @return the offset of the value or -1 if the key isn't in the map.
+     */
+    static int findMapValue(@NonNull byte[] data, int offset, int end, @NonNull String key) {
+        if (getMajorType(data, offset, end) != MAJOR_TYPE_MAP) {
+            throw new IllegalArgumentException("Expected map at offset " + offset);
+        }
+        byte[] encodedKey = key.getBytes(UTF_8);
+        boolean indefinite = isIndefinite(data, offset);
+        long numEntries = indefinite ? Long.MAX_VALUE : getArgument(data, offset, end);
+        int childOffset = offset + getHeaderLength(data, offset);
+        for (long n = 0; n < numEntries; n++) {
+            if (childOffset >= end) {
+                throw new IllegalArgumentException("Truncated CBOR at offset " + offset);
+            }
+            if (indefinite && (data[childOffset] & 0xff) == BREAK) {
+                break;
+            }
+            int valueOffset = skip(data, childOffset, end);
+            if (valueOffset >= end) {
+                throw new IllegalArgumentException("Truncated CBOR at offset " + offset);
+            }
+            if (indefinite && (data[valueOffset] & 0xff) == BREAK) {
+                throw new IllegalArgumentException("Map with odd number of items at offset "
+                        + offset);
+            }
+            if (textStringEquals(data, childOffset, end, encodedKey)) {
+                return valueOffset;
+            }
+            childOffset = skip(data, valueOffset, end);
+        }
+        return -1;
+    }
+
+    /**
+     * Looks up the value for a text string key in a map for which the offsets of the keys and
+     * values are already known.
+     *
+     * @param data the buffer.
+     * @param childOffsets the offsets of the keys and values of the map, as returned by
+     *   {@link #getChildOffsets(byte[], int, int)}.
+     * @param end the end of valid data in the buffer.
+     * @param key the key to look for.
+     * @return the offset of the value or -1 if the key isn't in the map.
+     */
+    static int findMapValue(@NonNull byte[] data, @NonNull int[] childOffsets, int end,
+                            @NonNull String key) {
+        byte[] encodedKey = key.getBytes(UTF_8);
+        for (int n = 0; n + 1 < childOffsets.length; n += 2) {
+            if (textStringEquals(data, childOffsets[n], end, encodedKey)) {
+                return childOffsets[n + 1];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Like {@link #findMapValue(byte[], int, int, String)} but throws if the key is missing.
+     */
+    static int getMapValue(@NonNull byte[] data, int offset, int end, @NonNull String key) {
+        return checkFound(findMapValue(data, offset, end, key), key);
+    }
+
+    /**
+     * Like {@link #findMapValue(byte[], int[], int, String)} but throws if the key is missing.
+     */
+    static int getMapValue(@NonNull byte[] data, @NonNull int[] childOffsets, int end,
+                           @NonNull String key) {
+        return checkFound(findMapValue(data, childOffsets, end, key), key);
+    }
+
+    /**
+     * Like {@link #getChildOffsets(byte[], int, int)} but checks that the data item is a map.
+     */
+    static @NonNull int[] getMapChildOffsets(@NonNull byte[] data, int offset, int end) {
+        if (getMajorType(data, offset, end) != MAJOR_TYPE_MAP) {
+            throw new IllegalArgumentException("Expected map at offset " + offset);
+        }
+        return getChildOffsets(data, offset, end);
+    }
+
+    private static int checkFound(int valueOffset, @NonNull String key) {
+        if (valueOffset < 0) {
+            throw new IllegalArgumentException("Expected item '" + key + "' in map");
+        }
+        return valueOffset;
+    }
+
+    private static boolean textStringEquals(@NonNull byte[] data, int offset, int end,
+                                            @NonNull byte[] encodedString) {
+        if (getMajorType(data, offset, end) != MAJOR_TYPE_TEXT_STRING
+                || isIndefinite(data, offset)) {
+            return false;
+        }
+        int length = getStringLength(data, offset, end);
+        if (length != encodedString.length) {
+            return false;
+        }
+        int contentOffset = offset + getHeaderLength(data, offset);
+        for (int n = 0; n < length; n++) {
+            if (data[contentOffset + n] != encodedString[n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Decodes a text string.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the text string.
+     * @param end the end of valid data in the buffer.
+     * @return the decoded string.
+     */
+    static @NonNull String readTextString(@NonNull byte[] data, int offset, int end) {
+        if (getMajorType(data, offset, end) != MAJOR_TYPE_TEXT_STRING) {
+            throw new IllegalArgumentException("Expected text string at offset " + offset);
+        }
+        if (isIndefinite(data, offset)) {
+            return Util.cborDecodeString(
+                    Arrays.copyOfRange(data, offset, skip(data, offset, end)));
+        }
+        int length = getStringLength(data, offset, end);
+        return new String(data, offset + getHeaderLength(data, offset), length, UTF_8);
+    }
+
+    /**
+     * Decodes a byte string.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the byte string.
+     * @param end the end of valid data in the buffer.
+     * @return a copy of the bytes in the byte string.
+     */
+    static @NonNull byte[] readByteString(@NonNull byte[] data, int offset, int end) {
+        if (getMajorType(data, offset, end) != MAJOR_TYPE_BYTE_STRING) {
+            throw new IllegalArgumentException("Expected byte string at offset " + offset);
+        }
+        if (isIndefinite(data, offset)) {
+            return Util.cborDecodeByteString(
+                    Arrays.copyOfRange(data, offset, skip(data, offset, end)));
+        }
+        int length = getStringLength(data, offset, end);
+        int contentOffset = offset + getHeaderLength(data, offset);
+        return Arrays.copyOfRange(data, contentOffset, contentOffset + length);
+    }
+
+    /**
+     * Decodes an unsigned integer.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the unsigned integer.
+     * @param end the end of valid data in the buffer.
+     * @return the value.
+     */
+    static long readUnsignedInteger(@NonNull byte[] data, int offset, int end) {
+        if (getMajorType(data, offset, end) != MAJOR_TYPE_UNSIGNED_INTEGER) {
+            throw new IllegalArgumentException("Expected unsigned integer at offset " + offset);
+        }
+        long value = getArgument(data, offset, end);
+        if (value < 0) {
+            throw new IllegalArgumentException("Unsigned integer out of range at offset "
+                    + offset);
+        }
+        return value;
+    }
+
+    /**
+     * Gets the offset of the content of a definite-length byte string tagged with
+     * {@code #6.24} as used for embedded CBOR, e.g. <code>IssuerSignedItemBytes</code>.
+     *
+     * @param data the buffer.
+     * @param offset the offset of the tagged byte string.
+     * @param end the end of valid data in the buffer.
+     * @return the offset of the embedded CBOR.
+     */
+    static int getTaggedEncodedCborOffset(@NonNull byte[] data, int offset, int end) {
+        if (getMajorType(data, offset, end) != MAJOR_TYPE_TAG
+                || getArgument(data, offset, end) != 24) {
+            throw new IllegalArgumentException("Expected tag 24 at offset " + offset);
+        }
+        int byteStringOffset = offset + getHeaderLength(data, offset);
+        if (getMajorType(data, byteStringOffset, end) != MAJOR_TYPE_BYTE_STRING
+                || isIndefinite(data, byteStringOffset)) {
+            throw new IllegalArgumentException("Expected tagged byte string at offset "
+                    + offset);
+        }
+        getStringLength(data, byteStringOffset, end);
+        return byteStringOffset + getHeaderLength(data, byteStringOffset);
+    }
+}
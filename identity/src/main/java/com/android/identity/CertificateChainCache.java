@@ -0,0 +1,161 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache for results derived from a certificate chain, keyed by the SHA-256
+ * fingerprint of the encoded chain.
+ *
+ * <p>In practice the same handful of issuer chains show up in almost every response so the
+ * work of parsing them only needs to be done once. Entries expire at a caller-supplied time,
+ * typically the earliest {@code notAfter} of the certificates in the chain, and the least
+ * recently used entry is evicted when the cache is full.
+ *
+ * <p>This class is thread-safe.
+ *
+ * @param <V> the type of the cached values.
+ */
+class CertificateChainCache<V> {
+    private final int mMaxEntries;
+    private final Map<ByteBuffer, Entry<V>> mEntries;
+
+    private static class Entry<V> {
+        final V mValue;
+        final long mExpiresAtMillis;
+
+        Entry(V value, long expiresAtMillis) {
+            mValue = value;
+            mExpiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries the maximum number of entries to keep.
+     */
+    CertificateChainCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<ByteBuffer, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry<V>> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Computes the fingerprint of a certificate chain.
+     *
+     * <p>Each certificate is prefixed by its length so different splits of the same bytes
+     * don't collide.
+     *
+     * @param encodedCertificates the DER encoding of each certificate in the chain.
+     * @return the SHA-256 fingerprint.
+     */
+    static @NonNull byte[] computeFingerprint(@NonNull List<byte[]> encodedCertificates) {
+        MessageDigest digester;
+        try {
+            digester = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed creating digester", e);
+        }
+        for (byte[] encodedCertificate : encodedCertificates) {
+            int length = encodedCertificate.length;
+            digester.update(new byte[]{
+                    (byte) (length >> 24), (byte) (length >> 16), (byte) (length >> 8),
+                    (byte) length});
+            digester.update(encodedCertificate);
+        }
+        return digester.digest();
+    }
+
+    /**
+     * Computes when an entry derived from a certificate chain should expire.
+     *
+     * @param chain the certificate chain.
+     * @param maxExpiresAtMillis the latest expiration time to return.
+     * @return the earliest {@code notAfter} in the chain or {@code maxExpiresAtMillis} if
+     *   that's earlier.
+     */
+    static long getExpiresAtMillis(@NonNull List<X509Certificate> chain,
+                                   long maxExpiresAtMillis) {
+        long expiresAtMillis = maxExpiresAtMillis;
+        for (X509Certificate certificate : chain) {
+            expiresAtMillis = Math.min(expiresAtMillis, certificate.getNotAfter().getTime());
+        }
+        return expiresAtMillis;
+    }
+
+    /**
+     * Looks up an entry.
+     *
+     * @param fingerprint the fingerprint of the chain.
+     * @param nowMillis the current time.
+     * @return the cached value or {@code null} if not in the cache or expired.
+     */
+    synchronized @Nullable V get(@NonNull byte[] fingerprint, long nowMillis) {
+        ByteBuffer key = ByteBuffer.wrap(fingerprint);
+        Entry<V> entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (nowMillis >= entry.mExpiresAtMillis) {
+            mEntries.remove(key);
+            return null;
+        }
+        return entry.mValue;
+    }
+
+    /**
+     * Adds or replaces an entry.
+     *
+     * @param fingerprint the fingerprint of the chain.
+     * @param value the value to cache.
+     * @param expiresAtMillis when the entry expires.
+     */
+    synchronized void put(@NonNull byte[] fingerprint, @NonNull V value, long expiresAtMillis) {
+        mEntries.put(ByteBuffer.wrap(fingerprint.clone()), new Entry<>(value, expiresAtMillis));
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Gets the number of entries, including expired ones not yet removed.
+     *
+     * @return the number of entries.
+     */
+    synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -57,6 +57,8 @@ public abstract class ConnectionMethod {
                 return ConnectionMethodWifiAware.fromDeviceEngagement(cmDataItem);
             case ConnectionMethodHttp.METHOD_TYPE:
                 return ConnectionMethodHttp.fromDeviceEngagement(cmDataItem);
+            case ConnectionMethodTcp.METHOD_TYPE:
+                return ConnectionMethodTcp.fromDeviceEngagement(cmDataItem);
         }
         Log.w(TAG, "Unsupported type " + type);
         return null;
@@ -0,0 +1,136 @@
+package com.android.identity;
+
+import android.content.Context;
+import android.nfc.NdefRecord;
+import android.util.Log;
+import android.util.Pair;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.List;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.builder.MapBuilder;
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.Number;
+
+/**
+ * Connection method for TCP connections.
+ *
+ * <p>This is not a connection method defined in ISO/IEC 18013-5 and is mainly useful for
+ * testing and for readers talking to several holders on the same network.
+ */
+public class ConnectionMethodTcp extends ConnectionMethod {
+    private static final String TAG = "ConnectionMethodTcp";
+    private final String mHost;
+    private final int mPort;
+
+    // Not assigned in ISO/IEC 18013-5, other implementations will ignore it.
+    static final int METHOD_TYPE = 0x7fff;
+    static final int METHOD_MAX_VERSION = 1;
+    private static final int OPTION_KEY_HOST = 0;
+    private static final int OPTION_KEY_PORT = 1;
+
+    /**
+     * Creates a new connection method for TCP.
+     *
+     * @param host the host name or IP address.
+     * @param port the port.
+     */
+    public ConnectionMethodTcp(@NonNull String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Gets the host.
+     *
+     * @return the host name or IP address.
+     */
+    public @NonNull
+    String getHost() {
+        return mHost;
+    }
+
+    /**
+     * Gets the port.
+     *
+     * @return the port.
+     */
+    public int getPort() {
+        return mPort;
+    }
+
+    public @Override
+    @NonNull
+    DataTransport createDataTransport(@NonNull Context context,
+                                      @DataTransport.Role int role,
+                                      @NonNull DataTransportOptions options) {
+        DataTransportTcp transport = new DataTransportTcp(context, role, options);
+        // The mdoc listens on a port of its own choosing, the mdoc reader connects to it.
+        if (role == DataTransport.ROLE_MDOC_READER) {
+            transport.setHostAndPort(mHost, mPort);
+        }
+        return transport;
+    }
+
+    @Override
+    public @NonNull
+    String toString() {
+        return "tcp:host=" + mHost + ":port=" + mPort;
+    }
+
+    @Nullable
+    static ConnectionMethodTcp fromDeviceEngagement(@NonNull DataItem cmDataItem) {
+        if (!(cmDataItem instanceof co.nstant.in.cbor.model.Array)) {
+            throw new IllegalArgumentException("Top-level CBOR is not an array");
+        }
+        List<DataItem> items = ((Array) cmDataItem).getDataItems();
+        if (items.size() != 3) {
+            throw new IllegalArgumentException("Expected array with 3 elements, got " + items.size());
+        }
+        if (!(items.get(0) instanceof Number) || !(items.get(1) instanceof Number)) {
+            throw new IllegalArgumentException("First two items are not numbers");
+        }
+        long type = ((Number) items.get(0)).getValue().longValue();
+        long version = ((Number) items.get(1)).getValue().longValue();
+        if (!(items.get(2) instanceof co.nstant.in.cbor.model.Map)) {
+            throw new IllegalArgumentException("Third item is not a map");
+        }
+        DataItem options = (Map) items.get(2);
+        if (type != METHOD_TYPE) {
+            Log.w(TAG, "Unexpected method type " + type);
+            return null;
+        }
+        if (version > METHOD_MAX_VERSION) {
+            Log.w(TAG, "Unsupported options version " + version);
+            return null;
+        }
+        return new ConnectionMethodTcp(
+                Util.cborMapExtractString(options, OPTION_KEY_HOST),
+                (int) Util.cborMapExtractNumber(options, OPTION_KEY_PORT));
+    }
+
+    @NonNull
+    @Override
+    DataItem toDeviceEngagement() {
+        MapBuilder<CborBuilder> builder = new CborBuilder().addMap();
+        builder.put(OPTION_KEY_HOST, mHost);
+        builder.put(OPTION_KEY_PORT, mPort);
+        return new CborBuilder()
+                .addArray()
+                .add(METHOD_TYPE)
+                .add(METHOD_MAX_VERSION)
+                .add(builder.end().build().get(0))
+                .end()
+                .build().get(0);
+    }
+
+    @Override @Nullable
+    Pair<NdefRecord, byte[]> toNdefRecord(@NonNull List<String> auxiliaryReferences, boolean isForHandoverSelect) {
+        return null;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECFieldFp;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPrivateKeySpec;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.EllipticCurve;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.InvalidParameterSpecException;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Map;
+import co.nstant.in.cbor.model.NegativeInteger;
+import co.nstant.in.cbor.model.SimpleValue;
+import co.nstant.in.cbor.model.SimpleValueType;
+
+/**
+ * Encodes and decodes EC2 COSE_Key structures as specified in RFC 8152 section 13.1.1.
+ *
+ * <p>The curves P-256, P-384 and P-521 are supported and the Y coordinate may be given
+ * either in full or as a sign bit, that is, as a compressed point. Curve parameters are
+ * looked up once and shared, since {@link ECParameterSpec} is immutable, and each thread
+ * gets its own {@link KeyFactory} from {@link CryptoProvider} since those aren't thread-safe.
+ */
+final class CoseKeyCodec {
+    private static final String TAG = "CoseKeyCodec";
+
+    private static final long COSE_KEY_KTY = 1;
+    private static final long COSE_KEY_TYPE_EC2 = 2;
+    private static final long COSE_KEY_EC2_CRV = -1;
+    private static final long COSE_KEY_EC2_X = -2;
+    private static final long COSE_KEY_EC2_Y = -3;
+
+    private static final DataItem COSE_KEY_EC2_Y_LABEL = new NegativeInteger(COSE_KEY_EC2_Y);
+
+    private static final BigInteger THREE = BigInteger.valueOf(3);
+    private static final BigInteger FOUR = BigInteger.valueOf(4);
+
+    /**
+     * A curve which can be used in a COSE_Key.
+     */
+    static final class Curve {
+        static final Curve P256 = new Curve(1, "secp256r1", 32);
+        static final Curve P384 = new Curve(2, "secp384r1", 48);
+        static final Curve P521 = new Curve(3, "secp521r1", 66);
+
+        private static final Curve[] ALL = {P256, P384, P521};
+
+        private final long mCoseCurve;
+        private final String mStdName;
+        private final int mCoordinateSize;
+        private volatile ECParameterSpec mParameterSpec;
+
+        private Curve(long coseCurve, @NonNull String stdName, int coordinateSize) {
+            mCoseCurve = coseCurve;
+            mStdName = stdName;
+            mCoordinateSize = coordinateSize;
+        }
+
+        /**
+         * Gets the identifier of the curve in the COSE Elliptic Curves registry.
+         *
+         * @return the identifier.
+         */
+        long getCoseCurve() {
+            return mCoseCurve;
+        }
+
+        /**
+         * Gets the size of an encoded coordinate, that is the size of the field rounded up to
+         * the nearest byte.
+         *
+         * @return the size in bytes.
+         */
+        int getCoordinateSize() {
+            return mCoordinateSize;
+        }
+
+        /**
+         * Gets the parameters of the curve, looking them up the first time.
+         *
+         * @return the parameters.
+         */
+        @NonNull ECParameterSpec getParameterSpec() {
+            ECParameterSpec spec = mParameterSpec;
+            if (spec == null) {
+                // Racing threads compute the same value so there's no need to lock.
+                try {
+                    AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
+                    params.init(new ECGenParameterSpec(mStdName));
+                    spec = params.getParameterSpec(ECParameterSpec.class);
+                } catch (NoSuchAlgorithmException | InvalidParameterSpecException e) {
+                    throw new IllegalStateException("Error getting parameters for " + mStdName, e);
+                }
+                mParameterSpec = spec;
+            }
+            return spec;
+        }
+
+        /**
+         * Gets the curve with the given COSE identifier.
+         *
+         * @param coseCurve the identifier in the COSE Elliptic Curves registry.
+         * @return the curve.
+         * @throws IllegalArgumentException if the curve isn't supported.
+         */
+        static @NonNull Curve fromCoseCurve(long coseCurve) {
+            for (Curve curve : ALL) {
+                if (curve.mCoseCurve == coseCurve) {
+                    return curve;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported COSE curve " + coseCurve);
+        }
+
+        /**
+         * Gets the curve with the given parameters.
+         *
+         * @param params the parameters of the curve, e.g. from a key.
+         * @return the curve.
+         * @throws IllegalArgumentException if the curve isn't supported.
+         */
+        static @NonNull Curve fromParameterSpec(@NonNull ECParameterSpec params) {
+            int fieldSize = params.getCurve().getField().getFieldSize();
+            for (Curve curve : ALL) {
+                // Other curves of the same size, e.g. brainpool, have a different order.
+                if ((fieldSize + 7) / 8 == curve.mCoordinateSize
+                        && params.getOrder().equals(curve.getParameterSpec().getOrder())) {
+                    return curve;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported curve with field size " + fieldSize);
+        }
+    }
+
+    private CoseKeyCodec() {}
+
+    /**
+     * Encodes a public key as a COSE_Key.
+     *
+     * @param key the key to encode.
+     * @param compressPoint whether to encode only the sign bit of the Y coordinate.
+     * @return the COSE_Key.
+     * @throws IllegalArgumentException if the key isn't on a supported curve.
+     */
+    static @NonNull DataItem encode(@NonNull PublicKey key, boolean compressPoint) {
+        ECPublicKey ecKey = (ECPublicKey) key;
+        Curve curve = Curve.fromParameterSpec(ecKey.getParams());
+        ECPoint w = ecKey.getW();
+        int size = curve.getCoordinateSize();
+        byte[] x = new byte[size];
+        encodeFieldElement(w.getAffineX(), x, 0, size);
+        CborBuilder builder = new CborBuilder();
+        if (compressPoint) {
+            builder.addMap()
+                    .put(COSE_KEY_KTY, COSE_KEY_TYPE_EC2)
+                    .put(COSE_KEY_EC2_CRV, curve.getCoseCurve())
+                    .put(COSE_KEY_EC2_X, x)
+                    .put(COSE_KEY_EC2_Y, w.getAffineY().testBit(0))
+                    .end();
+        } else {
+            byte[] y = new byte[size];
+            encodeFieldElement(w.getAffineY(), y, 0, size);
+            builder.addMap()
+                    .put(COSE_KEY_KTY, COSE_KEY_TYPE_EC2)
+                    .put(COSE_KEY_EC2_CRV, curve.getCoseCurve())
+                    .put(COSE_KEY_EC2_X, x)
+                    .put(COSE_KEY_EC2_Y, y)
+                    .end();
+        }
+        return builder.build().get(0);
+    }
+
+    /**
+     * Decodes a COSE_Key holding an EC public key.
+     *
+     * @param coseKey the COSE_Key.
+     * @return the public key.
+     * @throws IllegalArgumentException if the COSE_Key is malformed, isn't an EC2 key, is on
+     *                                  an unsupported curve or holds a compressed point which
+     *                                  isn't on the curve.
+     */
+    static @NonNull PublicKey decode(@NonNull DataItem coseKey) {
+        long kty = Util.cborMapExtractNumber(coseKey, COSE_KEY_KTY);
+        if (kty != COSE_KEY_TYPE_EC2) {
+            throw new IllegalArgumentException("Expected COSE_KEY_TYPE_EC2, got " + kty);
+        }
+        Curve curve = Curve.fromCoseCurve(Util.cborMapExtractNumber(coseKey, COSE_KEY_EC2_CRV));
+        int size = curve.getCoordinateSize();
+        byte[] encodedX = Util.cborMapExtractByteString(coseKey, COSE_KEY_EC2_X);
+        if (encodedX.length != size) {
+            Logger.w(TAG, "Expected " + size + " bytes for X in COSE_Key, found "
+                    + encodedX.length);
+        }
+        BigInteger x = new BigInteger(1, encodedX);
+
+        DataItem yItem = Util.castTo(Map.class, coseKey).get(COSE_KEY_EC2_Y_LABEL);
+        BigInteger y;
+        if (yItem instanceof SimpleValue) {
+            SimpleValueType type = ((SimpleValue) yItem).getSimpleValueType();
+            if (type != SimpleValueType.TRUE && type != SimpleValueType.FALSE) {
+                throw new IllegalArgumentException("Expected sign bit for Y, got " + type);
+            }
+            y = decompressY(curve.getParameterSpec().getCurve(), x,
+                    type == SimpleValueType.TRUE);
+        } else if (yItem instanceof ByteString) {
+            byte[] encodedY = ((ByteString) yItem).getBytes();
+            if (encodedY.length != size) {
+                Logger.w(TAG, "Expected " + size + " bytes for Y in COSE_Key, found "
+                        + encodedY.length);
+            }
+            y = new BigInteger(1, encodedY);
+        } else {
+            throw new IllegalArgumentException("Expected bstr or bool for Y");
+        }
+        return publicKeyFromAffine(curve, x, y);
+    }
+
+    /**
+     * Creates a public key from the affine coordinates of a point.
+     *
+     * @param curve the curve.
+     * @param x the X coordinate.
+     * @param y the Y coordinate.
+     * @return the public key.
+     */
+    static @NonNull PublicKey publicKeyFromAffine(@NonNull Curve curve,
+                                                  @NonNull BigInteger x,
+                                                  @NonNull BigInteger y) {
+        ECPublicKeySpec keySpec = new ECPublicKeySpec(new ECPoint(x, y),
+                curve.getParameterSpec());
+        try {
+            return CryptoProvider.getDefault().getKeyFactory("EC").generatePublic(keySpec);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException("Unexpected error", e);
+        }
+    }
+
+    /**
+     * Creates a private key from its scalar.
+     *
+     * @param curve the curve.
+     * @param s the private scalar.
+     * @return the private key.
+     */
+    static @NonNull PrivateKey privateKeyFromScalar(@NonNull Curve curve,
+                                                    @NonNull BigInteger s) {
+        ECPrivateKeySpec keySpec = new ECPrivateKeySpec(s, curve.getParameterSpec());
+        try {
+            return CryptoProvider.getDefault().getKeyFactory("EC").generatePrivate(keySpec);
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes a non-negative integer as a big-endian octet string of fixed size, as specified
+     * in section 2.3.5 Field-Element-to-Octet-String Conversion of SEC 1: Elliptic Curve
+     * Cryptography (https://www.secg.org/sec1-v2.pdf).
+     *
+     * @param value the value to encode.
+     * @param dest where to write the value.
+     * @param offset the offset in {@code dest}.
+     * @param size the number of bytes to write.
+     * @throws IllegalArgumentException if the value is negative or doesn't fit.
+     */
+    static void encodeFieldElement(@NonNull BigInteger value, @NonNull byte[] dest, int offset,
+                                   int size) {
+        if (value.signum() < 0 || value.bitLength() > size * 8) {
+            throw new IllegalArgumentException("Value doesn't fit in " + size + " bytes");
+        }
+        // Write 64 bits at a time starting with the least significant ones, going backwards
+        // from the end of the destination.
+        int end = offset + size;
+        for (int shift = 0; shift < size * 8; shift += 64) {
+            long chunk = value.shiftRight(shift).longValue();
+            int chunkEnd = end - shift / 8;
+            int chunkStart = Math.max(chunkEnd - 8, offset);
+            for (int n = chunkEnd - 1; n >= chunkStart; n--) {
+                dest[n] = (byte) chunk;
+                chunk >>>= 8;
+            }
+        }
+    }
+
+    // Computes the Y coordinate of the point with the given X coordinate and sign bit, as in
+    // section 2.3.4 Octet-String-to-Elliptic-Curve-Point Conversion of SEC 1.
+    private static @NonNull BigInteger decompressY(@NonNull EllipticCurve curve,
+                                                   @NonNull BigInteger x, boolean signBit) {
+        BigInteger p = ((ECFieldFp) curve.getField()).getP();
+        if (x.compareTo(p) >= 0) {
+            throw new IllegalArgumentException("X is not a field element");
+        }
+        // y^2 = x^3 + ax + b
+        BigInteger alpha = x.pow(3).add(curve.getA().multiply(x)).add(curve.getB()).mod(p);
+        BigInteger y = squareRoot(alpha, p);
+        if (y == null) {
+            throw new IllegalArgumentException("Compressed point is not on the curve");
+        }
+        if (y.testBit(0) != signBit) {
+            if (y.signum() == 0) {
+                throw new IllegalArgumentException("Invalid sign bit for Y");
+            }
+            y = p.subtract(y);
+        }
+        return y;
+    }
+
+    // Square root modulo p, only for p = 3 mod 4 which is the case for all supported curves.
+    // Returns null if there's no square root.
+    private static @Nullable BigInteger squareRoot(@NonNull BigInteger value,
+                                                   @NonNull BigInteger p) {
+        if (!p.mod(FOUR).equals(THREE)) {
+            throw new IllegalStateException("Unsupported field");
+        }
+        BigInteger root = value.modPow(p.add(BigInteger.ONE).shiftRight(2), p);
+        if (!root.multiply(root).mod(p).equals(value)) {
+            return null;
+        }
+        return root;
+    }
+}
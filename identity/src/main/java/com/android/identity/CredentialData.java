@@ -26,7 +26,6 @@ import android.os.Build;
 import android.security.keystore.KeyGenParameterSpec;
 import android.security.keystore.KeyProperties;
 import android.security.keystore.UserNotAuthenticatedException;
-import android.util.AtomicFile;
 import android.util.Log;
 import android.util.Pair;
 
@@ -45,8 +44,6 @@ import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
@@ -74,6 +71,8 @@ import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -130,11 +129,46 @@ class CredentialData {
     // The data for each authentication key, this is always mAuthKeyCount items.
     private AbstractList<AuthKeyData> mAuthKeyDatas = new ArrayList<>();
 
+    // Index over mAuthKeyDatas used for selecting keys, see getAuthKeyPool(). This is null
+    // if it needs to be rebuilt, e.g. after loading from disk or adding or removing keys.
+    private AuthKeyPool mAuthKeyPool = null;
+
+    // Credential data is persisted as a number of separately encrypted segments, see
+    // saveToDisk() for details. The fields below are used for keeping track of the auth-key
+    // segment and the journal of incremental auth-key updates appended to between compactions.
+    //
+    // All file I/O happens while holding mPersistLock since journal compaction happens on
+    // a background thread.
+    private final Object mPersistLock = new Object();
+    private final CredentialDataFiles mFiles;
+    // Incremented for every change to auth-key state. Each journal record and the auth-key
+    // segment is tagged with this so stale records can be skipped at load time.
+    private long mAuthKeysSequence = 0;
+    // The sequence number of the auth-key segment currently on disk.
+    private long mAuthKeysSegmentSequence = 0;
+    // The number of records in the journal on disk.
+    private int mJournalRecordCount = 0;
+    private boolean mJournalCompactionScheduled = false;
+    // Set when this object is no longer backing the credential, e.g. after replacement.
+    private boolean mDiscarded = false;
+    private SecretKey mDataSecretKey = null;
+
+    // The number of journal records which triggers a compaction into the auth-key segment.
+    static final int JOURNAL_COMPACTION_THRESHOLD = 32;
+
+    private static final ExecutorService sJournalCompactionExecutor =
+            Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "CredentialDataJournalCompaction");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     private CredentialData(@NonNull Context context, @NonNull File storageDirectory,
                            @NonNull String credentialName) {
         mContext = context;
         mStorageDirectory = storageDirectory;
         mCredentialName = credentialName;
+        mFiles = new CredentialDataFiles(storageDirectory, credentialName);
     }
 
     static DataItem namespaceDataToCbor(PersonalizationData.NamespaceData entryNamespace) {
@@ -316,6 +350,12 @@ class CredentialData {
      * except for CredentialKey).
      */
     void deleteKeysForReplacement() {
+        // The replacement will be written with a new data encryption key so make sure a
+        // pending journal compaction doesn't clobber it.
+        synchronized (mPersistLock) {
+            mDiscarded = true;
+        }
+
         KeyStore ks;
         try {
             ks = KeyStore.getInstance("AndroidKeyStore");
@@ -403,14 +443,7 @@ class CredentialData {
     static boolean credentialAlreadyExists(@NonNull Context context,
                                            @NonNull File storageDirectory,
                                            @NonNull String credentialName) {
-        String filename = getFilenameForCredentialData(credentialName);
-        AtomicFile file = new AtomicFile(new File(storageDirectory, filename));
-        try {
-            file.openRead();
-        } catch (FileNotFoundException e) {
-            return false;
-        }
-        return true;
+        return new CredentialDataFiles(storageDirectory, credentialName).exists();
     }
 
     @SuppressWarnings("deprecation")  // setUserAuthenticationValidityDurationSeconds()
@@ -593,21 +626,21 @@ class CredentialData {
 
     static byte[] delete(@NonNull Context context, @NonNull File storageDirectory,
                          @NonNull String credentialName, @NonNull byte[] challenge) {
-        String filename = getFilenameForCredentialData(credentialName);
-        AtomicFile file = new AtomicFile(new File(storageDirectory, filename));
-        try {
-            file.openRead();
-        } catch (FileNotFoundException e) {
+        CredentialData data = new CredentialData(context, storageDirectory, credentialName);
+        if (!data.mFiles.exists()) {
             return null;
         }
 
-        CredentialData data = new CredentialData(context, storageDirectory, credentialName);
         String dataKeyAlias = getDataKeyAliasFromCredentialName(credentialName);
         try {
-            data.loadFromDisk(dataKeyAlias);
+            if (!data.loadFromDisk(dataKeyAlias)) {
+                Log.e(TAG, "Incomplete data on disk. Deleting anyway.");
+                data.mFiles.deleteAll();
+                return null;
+            }
         } catch (RuntimeException e) {
             Log.e(TAG, "Error parsing file on disk (old version?). Deleting anyway.");
-            file.delete();
+            data.mFiles.deleteAll();
             return null;
         }
 
@@ -628,7 +661,7 @@ class CredentialData {
         byte[] signature = buildProofOfDeletionSignature(data.mDocType,
                 ((KeyStore.PrivateKeyEntry) entry).getPrivateKey(), challenge);
 
-        file.delete();
+        data.mFiles.deleteAll();
 
         // Nuke all keys.
         try {
@@ -678,31 +711,177 @@ class CredentialData {
     }
 
     private void saveToDisk() {
+        // Credential data is stored in several separately encrypted segments so that
+        // frequent small changes don't require re-encrypting and rewriting everything:
+        //
+        //  - the "data" segment with basic info and namespace data, written only when the
+        //    credential is created or updated.
+        //  - the "acps" segment with access control profiles and their key aliases, also
+        //    written only when the credential is created or updated.
+        //  - the "authkeys" segment with state for all authentication keys. This is written
+        //    when keys are added, removed or certified.
+        //  - the "journal" which is an append-only sequence of encrypted records for
+        //    changes to a single authentication key, e.g. its use count or a pending key.
+        //    When enough records have been appended the journal is compacted into the
+        //    "authkeys" segment on a background thread.
+        //
+        // All three segments are written here as a new generation which replaces the
+        // previous one in a single step, see CredentialDataFiles, so a crash never leaves
+        // a mix of old and new segments behind.
+        //
+        CborBuilder dataBuilder = new CborBuilder();
+        MapBuilder<CborBuilder> dataMap = dataBuilder.addMap();
+        saveToDiskBasic(dataMap);
+        saveToDiskNamespaceDatas(dataMap);
+
+        CborBuilder acpsBuilder = new CborBuilder();
+        MapBuilder<CborBuilder> acpsMap = acpsBuilder.addMap();
+        saveToDiskACPs(acpsMap);
+        saveToDiskAcpKeyAliases(acpsMap);
+
+        Map<String, byte[]> segments = new HashMap<>();
+        segments.put(CredentialDataFiles.SEGMENT_DATA,
+                saveToDiskEncrypt(saveToDiskEncode(dataBuilder)));
+        segments.put(CredentialDataFiles.SEGMENT_ACPS,
+                saveToDiskEncrypt(saveToDiskEncode(acpsBuilder)));
+        synchronized (mPersistLock) {
+            mAuthKeysSequence += 1;
+            long sequence = mAuthKeysSequence;
+            segments.put(CredentialDataFiles.SEGMENT_AUTH_KEYS,
+                    saveToDiskEncrypt(saveToDiskEncodeAuthKeys(sequence)));
+            // This also deletes the journal, all of its records are in the new segment.
+            mFiles.commit(segments);
+            mAuthKeysSegmentSequence = sequence;
+            mJournalRecordCount = 0;
+        }
+    }
+
+    private byte[] saveToDiskEncodeAuthKeys(long sequence) {
         CborBuilder builder = new CborBuilder();
         MapBuilder<CborBuilder> map = builder.addMap();
-
-        saveToDiskBasic(map);
+        map.put("sequence", sequence);
         saveToDiskAuthDatas(map);
-        saveToDiskACPs(map);
-        saveToDiskNamespaceDatas(map);
-        saveToDiskAuthKeys(map);
+        return saveToDiskEncode(builder);
+    }
 
-        byte[] cleartextDataToSaveBytes = saveToDiskEncode(builder);
+    // Synchronously writes the auth-key segment, making the journal obsolete.
+    private void saveAuthKeysToDisk() {
+        synchronized (mPersistLock) {
+            mAuthKeysSequence += 1;
+            long sequence = mAuthKeysSequence;
+            byte[] dataToSaveBytes = saveToDiskEncrypt(saveToDiskEncodeAuthKeys(sequence));
+            saveAuthKeysSegmentToDiskLocked(dataToSaveBytes, sequence);
+        }
+    }
+
+    private void saveAuthKeysSegmentToDiskLocked(byte[] dataToSaveBytes, long sequence) {
+        if (sequence <= mAuthKeysSegmentSequence) {
+            // A newer snapshot has already been written.
+            return;
+        }
+        mFiles.replaceSegment(CredentialDataFiles.SEGMENT_AUTH_KEYS, dataToSaveBytes);
+        mAuthKeysSegmentSequence = sequence;
+
+        // If no records were appended since the snapshot was taken, the journal is no
+        // longer needed. Otherwise leave it, records already in the segment are skipped
+        // at load time.
+        if (sequence == mAuthKeysSequence) {
+            mFiles.deleteJournal();
+            mJournalRecordCount = 0;
+        }
+    }
+
+    // Appends a record for a single auth key to the journal. The record contains the use
+    // count and, if requested, the pending alias and certificate.
+    private void appendAuthKeyJournalRecord(int index, boolean includePending) {
+        AuthKeyData data = mAuthKeyDatas.get(index);
+        synchronized (mPersistLock) {
+            mAuthKeysSequence += 1;
+
+            CborBuilder builder = new CborBuilder();
+            MapBuilder<CborBuilder> map = builder.addMap();
+            map.put("sequence", mAuthKeysSequence);
+            map.put("index", index);
+            map.put("useCount", data.mUseCount);
+            if (includePending) {
+                map.put("pendingAlias", data.mPendingAlias);
+                map.put("pendingCertificate", data.mPendingCertificate);
+            }
+            mFiles.appendJournalRecord(encryptJournalRecord(saveToDiskEncode(builder)));
+            mJournalRecordCount += 1;
 
-        byte[] dataToSaveBytes = saveToDiskEncrypt(cleartextDataToSaveBytes);
+            if (mJournalRecordCount >= JOURNAL_COMPACTION_THRESHOLD) {
+                scheduleJournalCompactionLocked();
+            }
+        }
+    }
+
+    private void scheduleJournalCompactionLocked() {
+        if (mJournalCompactionScheduled) {
+            return;
+        }
+        mJournalCompactionScheduled = true;
+
+        // Take the snapshot on the calling thread since auth-key state isn't thread-safe,
+        // only the expensive encryption and write happens in the background.
+        final long sequence = mAuthKeysSequence;
+        final byte[] cleartextDataToSaveBytes = saveToDiskEncodeAuthKeys(sequence);
+        sJournalCompactionExecutor.execute(() -> {
+            try {
+                byte[] dataToSaveBytes = saveToDiskEncrypt(cleartextDataToSaveBytes);
+                synchronized (mPersistLock) {
+                    if (!mDiscarded && mFiles.isCurrent()) {
+                        saveAuthKeysSegmentToDiskLocked(dataToSaveBytes, sequence);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error compacting journal", e);
+            } finally {
+                synchronized (mPersistLock) {
+                    mJournalCompactionScheduled = false;
+                }
+            }
+        });
+    }
 
-        String filename = getFilenameForCredentialData(mCredentialName);
-        AtomicFile file = new AtomicFile(new File(mStorageDirectory, filename));
-        FileOutputStream outputStream = null;
+    private byte[] encryptJournalRecord(byte[] cleartext) {
         try {
-            outputStream = file.startWrite();
-            outputStream.write(dataToSaveBytes);
-            file.finishWrite(outputStream);
-        } catch (IOException e) {
-            if (outputStream != null) {
-                file.failWrite(outputStream);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, getDataSecretKey());
+            // Produced cipherText includes auth tag
+            byte[] cipherText = cipher.doFinal(cleartext);
+            byte[] iv = cipher.getIV();
+            byte[] result = new byte[iv.length + cipherText.length];
+            System.arraycopy(iv, 0, result, 0, iv.length);
+            System.arraycopy(cipherText, 0, result, iv.length, cipherText.length);
+            return result;
+        } catch (NoSuchPaddingException
+                | BadPaddingException
+                | NoSuchAlgorithmException
+                | InvalidKeyException
+                | IllegalBlockSizeException e) {
+            throw new RuntimeException("Error encrypting journal record", e);
+        }
+    }
+
+    private SecretKey getDataSecretKey() {
+        synchronized (mPersistLock) {
+            if (mDataSecretKey == null) {
+                try {
+                    KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
+                    ks.load(null);
+                    String dataKeyAlias = getDataKeyAliasFromCredentialName(mCredentialName);
+                    KeyStore.Entry entry = ks.getEntry(dataKeyAlias, null);
+                    mDataSecretKey = ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+                } catch (CertificateException
+                        | IOException
+                        | NoSuchAlgorithmException
+                        | UnrecoverableEntryException
+                        | KeyStoreException e) {
+                    throw new RuntimeException("Error loading data encryption key", e);
+                }
             }
-            throw new RuntimeException("Error writing data", e);
+            return mDataSecretKey;
         }
     }
 
@@ -740,12 +919,7 @@ class CredentialData {
         ArrayBuilder<ArrayBuilder<CborBuilder>> innerArrayBuilder = arrayBuilder.addArray();
 
         try {
-            KeyStore ks = KeyStore.getInstance("AndroidKeyStore");
-            ks.load(null);
-            String dataKeyAlias = getDataKeyAliasFromCredentialName(mCredentialName);
-
-            KeyStore.Entry entry = ks.getEntry(dataKeyAlias, null);
-            SecretKey secretKey = ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+            SecretKey secretKey = getDataSecretKey();
 
             int offset = 0;
             boolean lastChunk = false;
@@ -776,18 +950,15 @@ class CredentialData {
         } catch (NoSuchPaddingException
                 | BadPaddingException
                 | NoSuchAlgorithmException
-                | CertificateException
                 | InvalidKeyException
-                | UnrecoverableEntryException
                 | IOException
-                | IllegalBlockSizeException
-                | KeyStoreException e) {
+                | IllegalBlockSizeException e) {
             throw new RuntimeException("Error encrypting CBOR for saving to disk", e);
         }
         return Util.cborEncode(builder.build().get(0));
     }
 
-    private void saveToDiskAuthKeys(MapBuilder<CborBuilder> map) {
+    private void saveToDiskAcpKeyAliases(MapBuilder<CborBuilder> map) {
         map.put("perReaderSessionKeyAlias", mPerReaderSessionKeyAlias);
         MapBuilder<MapBuilder<CborBuilder>> acpTimeoutKeyMapBuilder = map.putMap(
                 "acpTimeoutKeyMap");
@@ -817,6 +988,8 @@ class CredentialData {
     }
 
     private void saveToDiskAuthDatas(MapBuilder<CborBuilder> map) {
+        map.put("authKeyCount", mAuthKeyCount);
+        map.put("authKeyMaxUses", mAuthMaxUsesPerKey);
         ArrayBuilder<MapBuilder<CborBuilder>> authKeyDataArrayBuilder = map.putArray(
                 "authKeyDatas");
         for (AuthKeyData data : mAuthKeyDatas) {
@@ -849,20 +1022,61 @@ class CredentialData {
             }
         }
         map.put("proofOfProvisioningSha256", mProofOfProvisioningSha256);
-        map.put("authKeyCount", mAuthKeyCount);
-        map.put("authKeyMaxUses", mAuthMaxUsesPerKey);
     }
 
     private boolean loadFromDisk(String dataKeyAlias) {
-        String filename = getFilenameForCredentialData(mCredentialName);
-        byte[] encryptedFileData = new byte[0];
-        try {
-            AtomicFile file = new AtomicFile(new File(mStorageDirectory, filename));
-            encryptedFileData = file.readFully();
-        } catch (IOException e) {
+        Map<String, byte[]> segments = mFiles.readCommitted();
+        if (segments != null) {
+            loadSegments(dataKeyAlias, segments);
+            return true;
+        }
+
+        // Older versions of the library stored everything in a single file. This is also
+        // what's left if migrating from it didn't finish, or if segments have gone missing
+        // since. Load it and rewrite in the segmented format.
+        byte[] legacyData = mFiles.readLegacy();
+        if (legacyData == null) {
             return false;
         }
+        co.nstant.in.cbor.model.Map map = decodeSegment(dataKeyAlias, legacyData);
+        loadBasic(map);
+        loadCredentialKeyCertChain(map);
+        loadProofOfProvisioningSha256(map);
+        loadNamespaceDatas(map);
+        loadAccessControlProfiles(map);
+        loadAcpKeyAliases(map);
+        loadAuthKeyDatas(map);
+        saveToDisk();
+        return true;
+    }
+
+    private void loadSegments(String dataKeyAlias, Map<String, byte[]> segments) {
+        co.nstant.in.cbor.model.Map map = decodeSegment(dataKeyAlias,
+                segments.get(CredentialDataFiles.SEGMENT_DATA));
+        loadBasic(map);
+        loadCredentialKeyCertChain(map);
+        loadProofOfProvisioningSha256(map);
+        loadNamespaceDatas(map);
+
+        co.nstant.in.cbor.model.Map acpsMap = decodeSegment(dataKeyAlias,
+                segments.get(CredentialDataFiles.SEGMENT_ACPS));
+        loadAccessControlProfiles(acpsMap);
+        loadAcpKeyAliases(acpsMap);
+
+        co.nstant.in.cbor.model.Map authKeysMap = decodeSegment(dataKeyAlias,
+                segments.get(CredentialDataFiles.SEGMENT_AUTH_KEYS));
+        loadAuthKeyDatas(authKeysMap);
+        DataItem sequenceItem = authKeysMap.get(new UnicodeString("sequence"));
+        if (!(sequenceItem instanceof Number)) {
+            throw new RuntimeException("sequence not found or not number");
+        }
+        mAuthKeysSegmentSequence = Util.checkedLongValue(sequenceItem);
+        mAuthKeysSequence = mAuthKeysSegmentSequence;
+        loadAuthKeyJournal();
+    }
 
+    private co.nstant.in.cbor.model.Map decodeSegment(String dataKeyAlias,
+                                                      byte[] encryptedFileData) {
         byte[] fileData = loadFromDiskDecrypt(dataKeyAlias, encryptedFileData);
 
         try {
@@ -874,19 +1088,75 @@ class CredentialData {
             if (!(dataItems.get(0) instanceof co.nstant.in.cbor.model.Map)) {
                 throw new RuntimeException("Item is not a map");
             }
-            co.nstant.in.cbor.model.Map map = (co.nstant.in.cbor.model.Map) dataItems.get(0);
-
-            loadBasic(map);
-            loadCredentialKeyCertChain(map);
-            loadProofOfProvisioningSha256(map);
-            loadAccessControlProfiles(map);
-            loadNamespaceDatas(map);
-            loadAuthKey(map);
-
+            return (co.nstant.in.cbor.model.Map) dataItems.get(0);
         } catch (CborException e) {
             throw new RuntimeException("Error decoding data", e);
         }
-        return true;
+    }
+
+    private void loadAuthKeyJournal() {
+        // Records are appended one at a time so a crash may leave a partially written
+        // record at the end. If so, stop there and rewrite the auth-key segment so new
+        // records aren't appended after it.
+        CredentialDataFiles.Journal journal = mFiles.readJournal();
+        boolean journalIntact = journal.isIntact();
+        for (byte[] encryptedRecord : journal.getRecords()) {
+            co.nstant.in.cbor.model.Map record;
+            try {
+                record = (co.nstant.in.cbor.model.Map) Util.cborDecode(
+                        decryptJournalRecord(encryptedRecord));
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Ignoring corrupt journal record", e);
+                journalIntact = false;
+                break;
+            }
+            mJournalRecordCount += 1;
+
+            long sequence = Util.checkedLongValue(record.get(new UnicodeString("sequence")));
+            if (sequence <= mAuthKeysSegmentSequence) {
+                // Already included in the auth-key segment.
+                continue;
+            }
+            mAuthKeysSequence = sequence;
+
+            int index = ((Number) record.get(new UnicodeString("index"))).getValue().intValue();
+            if (index < 0 || index >= mAuthKeyDatas.size()) {
+                throw new RuntimeException("Journal record for unknown auth key " + index);
+            }
+            AuthKeyData data = mAuthKeyDatas.get(index);
+            data.mUseCount = ((Number) record.get(
+                    new UnicodeString("useCount"))).getValue().intValue();
+            DataItem pendingAliasItem = record.get(new UnicodeString("pendingAlias"));
+            if (pendingAliasItem != null) {
+                data.mPendingAlias = ((UnicodeString) pendingAliasItem).getString();
+                data.mPendingCertificate = ((ByteString) record.get(
+                        new UnicodeString("pendingCertificate"))).getBytes();
+            }
+            updateAuthKeyPool(index);
+        }
+
+        if (!journalIntact) {
+            saveAuthKeysToDisk();
+        }
+    }
+
+    private byte[] decryptJournalRecord(byte[] encryptedRecord) {
+        if (encryptedRecord.length < 12) {
+            throw new RuntimeException("Journal record is too small");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, getDataSecretKey(),
+                    new GCMParameterSpec(128, encryptedRecord, 0, 12));
+            return cipher.doFinal(encryptedRecord, 12, encryptedRecord.length - 12);
+        } catch (InvalidAlgorithmParameterException
+                | NoSuchPaddingException
+                | BadPaddingException
+                | NoSuchAlgorithmException
+                | InvalidKeyException
+                | IllegalBlockSizeException e) {
+            throw new RuntimeException("Error decrypting journal record", e);
+        }
     }
 
     private byte[] loadFromDiskDecryptChunkedEncrypted(String dataKeyAlias, byte[] encryptedFileData) {
@@ -1012,7 +1282,7 @@ class CredentialData {
                 new UnicodeString("credentialKeyAlias"))).getString();
     }
 
-    private void loadAuthKey(co.nstant.in.cbor.model.Map map) {
+    private void loadAcpKeyAliases(co.nstant.in.cbor.model.Map map) {
         mPerReaderSessionKeyAlias = ((UnicodeString) map.get(
                 new UnicodeString("perReaderSessionKeyAlias"))).getString();
 
@@ -1035,7 +1305,9 @@ class CredentialData {
             String acpAlias = ((UnicodeString) item).getString();
             mAcpTimeoutKeyAliases.put(profileId, acpAlias);
         }
+    }
 
+    private void loadAuthKeyDatas(co.nstant.in.cbor.model.Map map) {
         mAuthKeyCount = ((Number) map.get(
                 new UnicodeString("authKeyCount"))).getValue().intValue();
         mAuthMaxUsesPerKey = ((Number) map.get(
@@ -1046,6 +1318,7 @@ class CredentialData {
             throw new RuntimeException("authKeyDatas not found or not array");
         }
         mAuthKeyDatas = new ArrayList<AuthKeyData>();
+        mAuthKeyPool = null;
         for (DataItem item : ((Array) authKeyDatas).getDataItems()) {
             AuthKeyData data = new AuthKeyData();
 
@@ -1173,12 +1446,33 @@ class CredentialData {
     }
 
     int[] getAuthKeyUseCounts() {
-        int[] result = new int[mAuthKeyCount];
-        int n = 0;
-        for (AuthKeyData data : mAuthKeyDatas) {
-            result[n++] = data.mUseCount;
+        return getAuthKeyPool().getUseCounts();
+    }
+
+    // Gets the index over mAuthKeyDatas, building it if needed.
+    private AuthKeyPool getAuthKeyPool() {
+        if (mAuthKeyPool == null) {
+            mAuthKeyPool = new AuthKeyPool(mAuthKeyCount, mAuthMaxUsesPerKey);
+            for (int n = 0; n < mAuthKeyCount; n++) {
+                updateAuthKeyPool(n);
+            }
         }
-        return result;
+        return mAuthKeyPool;
+    }
+
+    // Must be called whenever the AuthKeyData at the given index changes, except for use count
+    // increments which go through AuthKeyPool.incrementUseCount().
+    private void updateAuthKeyPool(int index) {
+        if (mAuthKeyPool == null) {
+            return;
+        }
+        AuthKeyData data = mAuthKeyDatas.get(index);
+        long expirationMillis = AuthKeyPool.NO_EXPIRATION;
+        if (data.mExpirationDate != null) {
+            expirationMillis = data.mExpirationDate.getTimeInMillis();
+        }
+        mAuthKeyPool.setKey(index, !data.mAlias.isEmpty(), data.mUseCount, expirationMillis,
+                !data.mPendingAlias.isEmpty());
     }
 
     void setAvailableAuthenticationKeys(int keyCount, int maxUsesPerKey) {
@@ -1233,7 +1527,8 @@ class CredentialData {
                 mAuthKeyDatas.remove(0);
             }
         }
-        saveToDisk();
+        mAuthKeyPool = null;
+        saveAuthKeysToDisk();
     }
 
     Collection<X509Certificate> getAuthKeysNeedingCertification() {
@@ -1250,23 +1545,15 @@ class CredentialData {
 
         ArrayList<X509Certificate> certificates = new ArrayList<X509Certificate>();
 
-        Calendar now = Calendar.getInstance();
-
         // Determine which keys need certification (or re-certification) and generate
-        // keys and X.509 certs for these and mark them as pending.
-        for (int n = 0; n < mAuthKeyCount; n++) {
+        // keys and X.509 certs for these and mark them as pending. The pool only returns
+        // keys which are pending or need a new key.
+        int[] indices = getAuthKeyPool().getKeysNeedingCertification(System.currentTimeMillis());
+        for (int n : indices) {
             AuthKeyData data = mAuthKeyDatas.get(n);
-
-            boolean keyExceededUseCount = (data.mUseCount >= mAuthMaxUsesPerKey);
-            boolean keyBeyondExpirationDate = false;
-            if (data.mExpirationDate != null) {
-                keyBeyondExpirationDate = now.after(data.mExpirationDate);
-            }
-            boolean newKeyNeeded =
-                    data.mAlias.isEmpty() || keyExceededUseCount || keyBeyondExpirationDate;
             boolean certificationPending = !data.mPendingAlias.isEmpty();
 
-            if (newKeyNeeded && !certificationPending) {
+            if (!certificationPending) {
                 try {
                     // Calculate name to use and be careful to avoid collisions when
                     // re-certifying an already populated slot.
@@ -1300,6 +1587,8 @@ class CredentialData {
                     data.mPendingAlias = aliasForAuthKey;
                     data.mPendingCertificate = certificate.getEncoded();
                     certificationPending = true;
+                    appendAuthKeyJournalRecord(n, true);
+                    updateAuthKeyPool(n);
                 } catch (InvalidAlgorithmParameterException
                         | NoSuchAlgorithmException
                         | NoSuchProviderException
@@ -1320,8 +1609,6 @@ class CredentialData {
             }
         }
 
-        saveToDisk();
-
         return certificates;
     }
 
@@ -1329,35 +1616,54 @@ class CredentialData {
             Calendar expirationDate,
             byte[] staticAuthData)
             throws UnknownAuthenticationKeyException {
-        AuthKeyData dataForAuthKey = null;
-        CertificateFactory cf = null;
-        try {
-            cf = CertificateFactory.getInstance("X.509");
+        List<AuthenticationKeyCertification> certifications = new ArrayList<>();
+        certifications.add(new AuthenticationKeyCertification(authenticationKey, expirationDate,
+                staticAuthData));
+        storeStaticAuthenticationData(certifications);
+    }
 
-            for (AuthKeyData data : mAuthKeyDatas) {
-                if (data.mPendingCertificate.length > 0) {
-                    ByteArrayInputStream bais = new ByteArrayInputStream(data.mPendingCertificate);
-                    X509Certificate certificate = (X509Certificate) cf.generateCertificate(bais);
-                    if (certificate.equals(authenticationKey)) {
-                        dataForAuthKey = data;
-                        break;
-                    }
-                }
+    void storeStaticAuthenticationData(List<AuthenticationKeyCertification> certifications)
+            throws UnknownAuthenticationKeyException {
+        // Index pending keys by their encoded certificate once instead of decoding every
+        // pending certificate for every key being certified. X509Certificate.equals() compares
+        // the encoded form so this gives the same result.
+        Map<ByteBuffer, Integer> pendingKeys = new HashMap<>();
+        for (int n = 0; n < mAuthKeyDatas.size(); n++) {
+            AuthKeyData data = mAuthKeyDatas.get(n);
+            if (data.mPendingCertificate.length > 0) {
+                pendingKeys.put(ByteBuffer.wrap(data.mPendingCertificate), n);
             }
-        } catch (CertificateException e) {
-            throw new RuntimeException("Error encoding certificate", e);
         }
 
-        if (dataForAuthKey == null) {
-            throw new UnknownAuthenticationKeyException("No such authentication key");
+        // Resolve all keys before changing anything so an unknown key leaves the credential
+        // as it was.
+        List<Integer> indices = new ArrayList<>();
+        for (AuthenticationKeyCertification certification : certifications) {
+            Integer index;
+            try {
+                index = pendingKeys.remove(
+                        ByteBuffer.wrap(certification.getAuthenticationKey().getEncoded()));
+            } catch (CertificateEncodingException e) {
+                throw new RuntimeException("Error encoding certificate", e);
+            }
+            if (index == null) {
+                throw new UnknownAuthenticationKeyException("No such authentication key");
+            }
+            indices.add(index);
         }
 
-        // Delete old key, if set.
-        if (!dataForAuthKey.mAlias.isEmpty()) {
-            KeyStore ks = null;
+        // Delete old keys, if set.
+        KeyStore ks = null;
+        for (int index : indices) {
+            AuthKeyData dataForAuthKey = mAuthKeyDatas.get(index);
+            if (dataForAuthKey.mAlias.isEmpty()) {
+                continue;
+            }
             try {
-                ks = KeyStore.getInstance("AndroidKeyStore");
-                ks.load(null);
+                if (ks == null) {
+                    ks = KeyStore.getInstance("AndroidKeyStore");
+                    ks.load(null);
+                }
                 if (ks.containsAlias(dataForAuthKey.mAlias)) {
                     ks.deleteEntry(dataForAuthKey.mAlias);
                 }
@@ -1368,14 +1674,22 @@ class CredentialData {
                 throw new RuntimeException("Error deleting old authentication key", e);
             }
         }
-        dataForAuthKey.mAlias = dataForAuthKey.mPendingAlias;
-        dataForAuthKey.mCertificate = dataForAuthKey.mPendingCertificate;
-        dataForAuthKey.mStaticAuthenticationData = staticAuthData;
-        dataForAuthKey.mUseCount = 0;
-        dataForAuthKey.mPendingAlias = "";
-        dataForAuthKey.mPendingCertificate = new byte[0];
-        dataForAuthKey.mExpirationDate = expirationDate;
-        saveToDisk();
+
+        for (int n = 0; n < indices.size(); n++) {
+            AuthKeyData dataForAuthKey = mAuthKeyDatas.get(indices.get(n));
+            AuthenticationKeyCertification certification = certifications.get(n);
+            dataForAuthKey.mAlias = dataForAuthKey.mPendingAlias;
+            dataForAuthKey.mCertificate = dataForAuthKey.mPendingCertificate;
+            // The old data can't be used for presentations anymore, no need to keep it cached.
+            StaticAuthDataCache.getDefault().remove(dataForAuthKey.mStaticAuthenticationData);
+            dataForAuthKey.mStaticAuthenticationData = certification.getStaticAuthData();
+            dataForAuthKey.mUseCount = 0;
+            dataForAuthKey.mPendingAlias = "";
+            dataForAuthKey.mPendingCertificate = new byte[0];
+            dataForAuthKey.mExpirationDate = certification.getExpirationDate();
+            updateAuthKeyPool(indices.get(n));
+        }
+        saveAuthKeysToDisk();
     }
 
     /**
@@ -1399,56 +1713,14 @@ class CredentialData {
     Pair<PrivateKey, byte[]> selectAuthenticationKey(boolean allowUsingExhaustedKeys,
             boolean allowUsingExpiredKeys,
             boolean incrementKeyUsageCount) {
-
-        // First try to find a un-expired key..
-        Pair<PrivateKey, byte[]> keyAndStaticData =
-                selectAuthenticationKeyHelper(allowUsingExhaustedKeys, false,
-                        incrementKeyUsageCount);
-        if (keyAndStaticData != null) {
-            return keyAndStaticData;
-        }
-        // Nope, try to see if there's an expired key (if allowed)
-        if (!allowUsingExpiredKeys) {
-            return null;
-        }
-        return selectAuthenticationKeyHelper(allowUsingExhaustedKeys, true,
-                incrementKeyUsageCount);
-    }
-
-    Pair<PrivateKey, byte[]> selectAuthenticationKeyHelper(boolean allowUsingExhaustedKeys,
-            boolean allowUsingExpiredKeys,
-            boolean incrementKeyUsageCount) {
-        AuthKeyData candidate = null;
-
-        Calendar now = Calendar.getInstance();
-
-        for (int n = 0; n < mAuthKeyCount; n++) {
-            AuthKeyData data = mAuthKeyDatas.get(n);
-            if (!data.mAlias.isEmpty()) {
-                if (data.mExpirationDate != null) {
-                    if (now.after(data.mExpirationDate)) {
-                        // expired...
-                        if (!allowUsingExpiredKeys) {
-                            continue;
-                        }
-                    }
-                }
-
-                if (candidate == null || data.mUseCount < candidate.mUseCount) {
-                    candidate = data;
-                }
-            }
-        }
-
-        if (candidate == null) {
-            return null;
-        }
-
-        // We've found the key with lowest use count... so if this is beyond maximum uses
-        // so are all the other ones. So fail if we're not allowed to use exhausted keys.
-        if (candidate.mUseCount >= mAuthMaxUsesPerKey && !allowUsingExhaustedKeys) {
+        // The pool prefers un-expired keys and only falls back to expired keys if allowed.
+        AuthKeyPool pool = getAuthKeyPool();
+        int candidateIndex = pool.selectKey(System.currentTimeMillis(),
+                allowUsingExhaustedKeys, allowUsingExpiredKeys);
+        if (candidateIndex < 0) {
             return null;
         }
+        AuthKeyData candidate = mAuthKeyDatas.get(candidateIndex);
 
         KeyStore.Entry entry = null;
         try {
@@ -1469,7 +1741,8 @@ class CredentialData {
 
         if (incrementKeyUsageCount) {
             candidate.mUseCount += 1;
-            saveToDisk();
+            pool.incrementUseCount(candidateIndex);
+            appendAuthKeyJournalRecord(candidateIndex, false);
         }
 
         return result;
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.CborDecoder;
+import co.nstant.in.cbor.CborException;
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Number;
+
+/**
+ * The files backing a {@link CredentialData}.
+ *
+ * <p>Credential data is stored as a number of segments, see saveToDisk() in
+ * {@link CredentialData} for what goes in each. A full set of segments is written as a new
+ * generation next to the current one and only takes effect once the manifest, which names the
+ * current generation, is replaced.
+ * Files are replaced by writing and syncing a temporary file and renaming it over the old one,
+ * so a crash at any point leaves either the previous or the new generation in place. A single
+ * segment of the current generation can be replaced the same way.
+ *
+ * <p>Small changes are appended to a journal instead, as a sequence of CBOR byte strings. A
+ * crash while appending can leave a truncated record at the end, which is reported by
+ * {@link #readJournal()}.
+ *
+ * <p>Older versions of the library stored everything in a single file. This file is only
+ * read, and deleted once a generation has been committed.
+ *
+ * <p>The contents of all files are opaque to this class, encryption is up to the caller. This
+ * class isn't thread-safe.
+ */
+class CredentialDataFiles {
+    private static final String TAG = "CredentialDataFiles";
+
+    /** The segment with basic information and namespace data. */
+    static final String SEGMENT_DATA = "data";
+    /** The segment with access control profiles and their key aliases. */
+    static final String SEGMENT_ACPS = "acps";
+    /** The segment with the state of all authentication keys. */
+    static final String SEGMENT_AUTH_KEYS = "authkeys";
+
+    private static final String[] SEGMENTS = {SEGMENT_DATA, SEGMENT_ACPS, SEGMENT_AUTH_KEYS};
+
+    private final File mStorageDirectory;
+    private final String mCredentialName;
+    // The generation last read or committed by this object, 0 if none.
+    private long mGeneration;
+
+    /**
+     * A list of journal records.
+     */
+    static class Journal {
+        final @NonNull List<byte[]> mRecords;
+        final boolean mIntact;
+
+        Journal(@NonNull List<byte[]> records, boolean intact) {
+            mRecords = records;
+            mIntact = intact;
+        }
+
+        /**
+         * Gets the records, in the order they were appended.
+         *
+         * @return the records which could be read.
+         */
+        @NonNull List<byte[]> getRecords() {
+            return mRecords;
+        }
+
+        /**
+         * Gets whether the whole journal could be read.
+         *
+         * @return {@code false} if reading stopped at a truncated or corrupt record.
+         */
+        boolean isIntact() {
+            return mIntact;
+        }
+    }
+
+    CredentialDataFiles(@NonNull File storageDirectory, @NonNull String credentialName) {
+        mStorageDirectory = storageDirectory;
+        mCredentialName = credentialName;
+    }
+
+    /**
+     * Checks whether there's anything stored for the credential.
+     *
+     * @return {@code true} if there is a manifest or a file in the old format.
+     */
+    boolean exists() {
+        return getManifestFile().exists()
+                || getLegacyFile().exists()
+                || getLegacyBackupFile().exists();
+    }
+
+    /**
+     * Checks whether the generation last read or committed by this object is still current.
+     *
+     * @return {@code true} if it is, {@code false} if the credential has been deleted or a
+     *     newer generation has been committed since.
+     */
+    boolean isCurrent() {
+        return mGeneration != 0 && readManifest() == mGeneration;
+    }
+
+    /**
+     * Reads all segments of the current generation.
+     *
+     * @return a map from segment names to their contents, or {@code null} if no generation
+     *     has been committed or one of its segments is missing.
+     */
+    @Nullable Map<String, byte[]> readCommitted() {
+        long generation = readManifest();
+        if (generation == 0) {
+            return null;
+        }
+        Map<String, byte[]> segments = new HashMap<>();
+        for (String segment : SEGMENTS) {
+            File file = getSegmentFile(segment, generation);
+            if (!file.exists()) {
+                Logger.w(TAG, "Segment " + segment + " of generation " + generation
+                        + " of " + mCredentialName + " is missing");
+                return null;
+            }
+            segments.put(segment, readFile(file));
+        }
+        mGeneration = generation;
+        return segments;
+    }
+
+    /**
+     * Writes all segments as a new generation and makes it the current one.
+     *
+     * <p>Once committed, the segments of the previous generation, the journal and the file in
+     * the old format are deleted.
+     *
+     * @param segments a map from segment names to their contents, with all segments.
+     * @throws IllegalArgumentException if a segment is missing.
+     * @throws IllegalStateException if writing fails, in which case the previous generation
+     *     is still the current one.
+     */
+    void commit(@NonNull Map<String, byte[]> segments) {
+        long previousGeneration = readManifest();
+        long generation = previousGeneration + 1;
+        writeGeneration(generation, segments);
+
+        CborBuilder builder = new CborBuilder();
+        builder.addMap().put("generation", generation);
+        writeFileAtomically(getManifestFile(), Util.cborEncode(builder.build().get(0)));
+        mGeneration = generation;
+
+        if (previousGeneration != 0) {
+            for (String segment : SEGMENTS) {
+                getSegmentFile(segment, previousGeneration).delete();
+            }
+        }
+        deleteJournal();
+        getLegacyFile().delete();
+        getLegacyBackupFile().delete();
+    }
+
+    // Writes all segments of a generation without making it the current one.
+    void writeGeneration(long generation, @NonNull Map<String, byte[]> segments) {
+        for (String segment : SEGMENTS) {
+            if (!segments.containsKey(segment)) {
+                throw new IllegalArgumentException("No contents for segment " + segment);
+            }
+        }
+        for (String segment : SEGMENTS) {
+            writeFileAtomically(getSegmentFile(segment, generation), segments.get(segment));
+        }
+    }
+
+    /**
+     * Replaces a single segment of the generation last read or committed by this object.
+     *
+     * @param segment the name of the segment.
+     * @param contents the new contents.
+     * @throws IllegalStateException if nothing has been read or committed, or writing fails.
+     */
+    void replaceSegment(@NonNull String segment, @NonNull byte[] contents) {
+        if (mGeneration == 0) {
+            throw new IllegalStateException("No generation to replace segment " + segment + " in");
+        }
+        writeFileAtomically(getSegmentFile(segment, mGeneration), contents);
+    }
+
+    /**
+     * Appends a record to the journal and syncs it to disk.
+     *
+     * @param record the record to append.
+     * @throws IllegalStateException if writing fails.
+     */
+    void appendJournalRecord(@NonNull byte[] record) {
+        try (FileOutputStream outputStream = new FileOutputStream(getJournalFile(), true)) {
+            outputStream.write(Util.cborEncode(new ByteString(record)));
+            outputStream.getFD().sync();
+        } catch (IOException e) {
+            throw new IllegalStateException("Error appending to journal", e);
+        }
+    }
+
+    /**
+     * Reads all records in the journal.
+     *
+     * @return the records, empty if there's no journal.
+     */
+    @NonNull Journal readJournal() {
+        File file = getJournalFile();
+        if (!file.exists()) {
+            return new Journal(Collections.emptyList(), true);
+        }
+        List<byte[]> records = new ArrayList<>();
+        CborDecoder decoder = new CborDecoder(new ByteArrayInputStream(readFile(file)));
+        while (true) {
+            DataItem item;
+            try {
+                item = decoder.decodeNext();
+            } catch (CborException e) {
+                Logger.w(TAG, "Truncated journal record for " + mCredentialName, e);
+                return new Journal(records, false);
+            }
+            if (item == null) {
+                return new Journal(records, true);
+            }
+            if (!(item instanceof ByteString)) {
+                Logger.w(TAG, "Corrupt journal record for " + mCredentialName);
+                return new Journal(records, false);
+            }
+            records.add(((ByteString) item).getBytes());
+        }
+    }
+
+    /**
+     * Deletes the journal.
+     */
+    void deleteJournal() {
+        getJournalFile().delete();
+    }
+
+    /**
+     * Reads the file in the format used by older versions of the library.
+     *
+     * @return the contents of the file, or {@code null} if there is none.
+     */
+    @Nullable byte[] readLegacy() {
+        // This was written using android.util.AtomicFile, where a backup file means that the
+        // write of the file itself didn't finish.
+        File backupFile = getLegacyBackupFile();
+        if (backupFile.exists()) {
+            return readFile(backupFile);
+        }
+        File file = getLegacyFile();
+        if (!file.exists()) {
+            return null;
+        }
+        return readFile(file);
+    }
+
+    /**
+     * Deletes all files for the credential, including ones left by unfinished writes.
+     */
+    void deleteAll() {
+        // Only the generation after the current one is ever written, and the previous one is
+        // deleted right after committing, so there can't be files for any other generations.
+        long generation = readManifest();
+        for (long n = Math.max(generation - 1, 1); n <= generation + 1; n++) {
+            for (String segment : SEGMENTS) {
+                File file = getSegmentFile(segment, n);
+                new File(file.getPath() + ".tmp").delete();
+                file.delete();
+            }
+        }
+        new File(getManifestFile().getPath() + ".tmp").delete();
+        getManifestFile().delete();
+        deleteJournal();
+        getLegacyFile().delete();
+        getLegacyBackupFile().delete();
+        mGeneration = 0;
+    }
+
+    // Returns the current generation, 0 if none has been committed.
+    private long readManifest() {
+        File file = getManifestFile();
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            DataItem item = Util.cborMapExtract(Util.cborDecode(readFile(file)), "generation");
+            if (!(item instanceof Number)) {
+                throw new IllegalArgumentException("generation is not a number");
+            }
+            return Util.checkedLongValue(item);
+        } catch (IllegalArgumentException e) {
+            Logger.w(TAG, "Ignoring corrupt manifest for " + mCredentialName, e);
+            return 0;
+        }
+    }
+
+    private static @NonNull byte[] readFile(@NonNull File file) {
+        byte[] data = new byte[(int) file.length()];
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            int offset = 0;
+            while (offset < data.length) {
+                int numRead = inputStream.read(data, offset, data.length - offset);
+                if (numRead == -1) {
+                    throw new IOException("Unexpected end of file");
+                }
+                offset += numRead;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error reading " + file.getName(), e);
+        }
+        return data;
+    }
+
+    private static void writeFileAtomically(@NonNull File file, @NonNull byte[] contents) {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+            outputStream.write(contents);
+            outputStream.getFD().sync();
+        } catch (IOException e) {
+            tempFile.delete();
+            throw new IllegalStateException("Error writing " + file.getName(), e);
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IllegalStateException("Error renaming " + tempFile.getName());
+        }
+    }
+
+    private @NonNull File getSegmentFile(@NonNull String segment, long generation) {
+        // The segment names are followed by '.' here and by '_' everywhere else, so these
+        // can't clash with the names of other files.
+        return new File(mStorageDirectory, CredentialData.escapeCredentialName(
+                segment + "." + generation, mCredentialName));
+    }
+
+    private @NonNull File getManifestFile() {
+        return new File(mStorageDirectory,
+                CredentialData.escapeCredentialName("manifest", mCredentialName));
+    }
+
+    private @NonNull File getJournalFile() {
+        return new File(mStorageDirectory,
+                CredentialData.escapeCredentialName("journal", mCredentialName));
+    }
+
+    private @NonNull File getLegacyFile() {
+        return new File(mStorageDirectory,
+                CredentialData.getFilenameForCredentialData(mCredentialName));
+    }
+
+    private @NonNull File getLegacyBackupFile() {
+        return new File(getLegacyFile().getPath() + ".bak");
+    }
+}
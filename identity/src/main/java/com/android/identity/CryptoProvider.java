@@ -0,0 +1,415 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.Security;
+import java.security.Signature;
+import java.util.EnumMap;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Chooses the JCA provider used for each kind of cryptographic operation on software keys
+ * and caches the resulting engine instances per thread.
+ *
+ * <p>Unless configured otherwise, the highest priority provider supporting the algorithm is
+ * used, just like with the plain {@code getInstance()} methods. Use a {@link Builder} to pick
+ * a provider such as {@link #BOUNCY_CASTLE} or {@link #CONSCRYPT} for some or all operations
+ * and {@link #setDefault(CryptoProvider)} to make this library use it.
+ *
+ * <p>Keys stored in Android Keystore can only be used with the Android Keystore provider so
+ * operations on such keys, for example on credential data and authentication keys, don't go
+ * through this class.
+ *
+ * <p>Engines returned by the {@code get} methods are shared by all callers on the same
+ * thread. They must be initialized before each use, shouldn't be held on to and the caller
+ * must be done with one before asking for another one for the same algorithm. Engines which
+ * choose their provider when initialized with a key, that is {@link Signature},
+ * {@link KeyAgreement}, {@link Mac} and {@link Cipher}, are only cached if a provider has
+ * been set for the operation, since the provider picked for one key may not support the
+ * next.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class CryptoProvider {
+    private static final String TAG = "CryptoProvider";
+
+    /**
+     * The kinds of operations for which a provider can be chosen.
+     */
+    public enum Operation {
+        /** {@link Signature}, for example for verifying issuer and reader signatures. */
+        SIGNATURE,
+        /** {@link KeyAgreement}, for ECDH when establishing a session. */
+        KEY_AGREEMENT,
+        /** {@link Mac}, for HKDF and MACed device authentication. */
+        MAC,
+        /** {@link Cipher}, for session encryption. */
+        CIPHER,
+        /** {@link MessageDigest}, for example for value digests in the MSO. */
+        MESSAGE_DIGEST,
+        /** {@link KeyFactory}, for decoding keys. */
+        KEY_FACTORY
+    }
+
+    /** The name of the BouncyCastle provider. */
+    public static final String BOUNCY_CASTLE = "BC";
+
+    /** The name of the SunEC provider, available on JVMs but not on Android. */
+    public static final String SUN_EC = "SunEC";
+
+    /** The name of the Conscrypt provider. On Android it's also found as "AndroidOpenSSL". */
+    public static final String CONSCRYPT = "Conscrypt";
+
+    private static final String ANDROID_OPENSSL = "AndroidOpenSSL";
+
+    private static CryptoProvider sDefault;
+    private static Provider sBouncyCastleProvider;
+    private static Provider sConscryptProvider;
+
+    private final EnumMap<Operation, Provider> mProviders;
+    private final ThreadLocal<EnumMap<Operation, HashMap<String, Object>>> mInstances =
+            new ThreadLocal<EnumMap<Operation, HashMap<String, Object>>>() {
+                @Override
+                protected EnumMap<Operation, HashMap<String, Object>> initialValue() {
+                    return new EnumMap<>(Operation.class);
+                }
+            };
+
+    private CryptoProvider(@NonNull EnumMap<Operation, Provider> providers) {
+        mProviders = providers;
+    }
+
+    /**
+     * Gets the instance used by this library.
+     *
+     * <p>Unless replaced with {@link #setDefault(CryptoProvider)}, this uses the highest
+     * priority provider for every operation.
+     *
+     * @return the default instance.
+     */
+    public static synchronized @NonNull CryptoProvider getDefault() {
+        if (sDefault == null) {
+            sDefault = new Builder().build();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the instance used by this library.
+     *
+     * @param cryptoProvider the instance to use.
+     */
+    public static synchronized void setDefault(@NonNull CryptoProvider cryptoProvider) {
+        sDefault = cryptoProvider;
+    }
+
+    /**
+     * Looks up a provider by name.
+     *
+     * <p>Besides the providers installed in {@link Security}, {@link #BOUNCY_CASTLE} is always
+     * available and {@link #CONSCRYPT} is available if it's on the classpath. Providers which
+     * aren't installed are instantiated only once.
+     *
+     * @param name the name of the provider, for example {@link #BOUNCY_CASTLE}.
+     * @return the provider or {@code null} if it's not available.
+     */
+    public static synchronized @Nullable Provider findProvider(@NonNull String name) {
+        Provider provider = Security.getProvider(name);
+        if (provider != null) {
+            return provider;
+        }
+        if (name.equals(BOUNCY_CASTLE)) {
+            if (sBouncyCastleProvider == null) {
+                sBouncyCastleProvider = new BouncyCastleProvider();
+            }
+            return sBouncyCastleProvider;
+        }
+        if (name.equals(CONSCRYPT)) {
+            provider = Security.getProvider(ANDROID_OPENSSL);
+            if (provider != null) {
+                return provider;
+            }
+            if (sConscryptProvider == null) {
+                try {
+                    sConscryptProvider = (Provider) Class.forName("org.conscrypt.Conscrypt")
+                            .getMethod("newProvider").invoke(null);
+                } catch (ReflectiveOperationException | LinkageError e) {
+                    Logger.d(TAG, "Conscrypt is not available", e);
+                    return null;
+                }
+            }
+            return sConscryptProvider;
+        }
+        return null;
+    }
+
+    /**
+     * Gets the provider used for an operation.
+     *
+     * @param operation the operation.
+     * @return the provider or {@code null} if the highest priority provider is used.
+     */
+    public @Nullable Provider getProvider(@NonNull Operation operation) {
+        return mProviders.get(operation);
+    }
+
+    /**
+     * Gets a {@link Signature} for the given algorithm.
+     *
+     * @param algorithm the algorithm, e.g. "SHA256withECDSA".
+     * @return a signature engine which must be initialized before use.
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported.
+     */
+    public @NonNull Signature getSignature(@NonNull String algorithm)
+            throws NoSuchAlgorithmException {
+        Provider provider = mProviders.get(Operation.SIGNATURE);
+        if (provider == null) {
+            return Signature.getInstance(algorithm);
+        }
+        Signature signature = (Signature) getCached(Operation.SIGNATURE, algorithm);
+        if (signature == null) {
+            signature = Signature.getInstance(algorithm, provider);
+            putCached(Operation.SIGNATURE, algorithm, signature);
+        }
+        return signature;
+    }
+
+    /**
+     * Gets a {@link KeyAgreement} for the given algorithm.
+     *
+     * @param algorithm the algorithm, e.g. "ECDH".
+     * @return a key agreement engine which must be initialized before use.
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported.
+     */
+    public @NonNull KeyAgreement getKeyAgreement(@NonNull String algorithm)
+            throws NoSuchAlgorithmException {
+        Provider provider = mProviders.get(Operation.KEY_AGREEMENT);
+        if (provider == null) {
+            return KeyAgreement.getInstance(algorithm);
+        }
+        KeyAgreement keyAgreement = (KeyAgreement) getCached(Operation.KEY_AGREEMENT, algorithm);
+        if (keyAgreement == null) {
+            keyAgreement = KeyAgreement.getInstance(algorithm, provider);
+            putCached(Operation.KEY_AGREEMENT, algorithm, keyAgreement);
+        }
+        return keyAgreement;
+    }
+
+    /**
+     * Gets a {@link Mac} for the given algorithm.
+     *
+     * @param algorithm the algorithm, e.g. "HmacSHA256".
+     * @return a MAC engine which must be initialized before use.
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported.
+     */
+    public @NonNull Mac getMac(@NonNull String algorithm) throws NoSuchAlgorithmException {
+        Provider provider = mProviders.get(Operation.MAC);
+        if (provider == null) {
+            return Mac.getInstance(algorithm);
+        }
+        Mac mac = (Mac) getCached(Operation.MAC, algorithm);
+        if (mac == null) {
+            mac = Mac.getInstance(algorithm, provider);
+            putCached(Operation.MAC, algorithm, mac);
+        }
+        return mac;
+    }
+
+    /**
+     * Gets a {@link Cipher} for the given transformation.
+     *
+     * @param transformation the transformation, e.g. "AES/GCM/NoPadding".
+     * @return a cipher which must be initialized before use.
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported.
+     * @throws NoSuchPaddingException if the padding isn't supported.
+     */
+    public @NonNull Cipher getCipher(@NonNull String transformation)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Provider provider = mProviders.get(Operation.CIPHER);
+        if (provider == null) {
+            return Cipher.getInstance(transformation);
+        }
+        Cipher cipher = (Cipher) getCached(Operation.CIPHER, transformation);
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation, provider);
+            putCached(Operation.CIPHER, transformation, cipher);
+        }
+        return cipher;
+    }
+
+    /**
+     * Creates a new {@link Cipher} for the given transformation, for callers which need to
+     * keep it around.
+     *
+     * @param transformation the transformation, e.g. "AES/GCM/NoPadding".
+     * @return a new cipher.
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported.
+     * @throws NoSuchPaddingException if the padding isn't supported.
+     */
+    public @NonNull Cipher newCipher(@NonNull String transformation)
+            throws NoSuchAlgorithmException, NoSuchPaddingException {
+        Provider provider = mProviders.get(Operation.CIPHER);
+        if (provider == null) {
+            return Cipher.getInstance(transformation);
+        }
+        return Cipher.getInstance(transformation, provider);
+    }
+
+    /**
+     * Gets a {@link MessageDigest} for the given algorithm.
+     *
+     * @param algorithm the algorithm, e.g. "SHA-256".
+     * @return a message digest which is ready to use.
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported.
+     */
+    public @NonNull MessageDigest getMessageDigest(@NonNull String algorithm)
+            throws NoSuchAlgorithmException {
+        MessageDigest digest = (MessageDigest) getCached(Operation.MESSAGE_DIGEST, algorithm);
+        if (digest == null) {
+            Provider provider = mProviders.get(Operation.MESSAGE_DIGEST);
+            digest = (provider == null)
+                    ? MessageDigest.getInstance(algorithm)
+                    : MessageDigest.getInstance(algorithm, provider);
+            putCached(Operation.MESSAGE_DIGEST, algorithm, digest);
+        } else {
+            // In case a previous caller didn't finish.
+            digest.reset();
+        }
+        return digest;
+    }
+
+    /**
+     * Gets a {@link KeyFactory} for the given algorithm.
+     *
+     * @param algorithm the algorithm, e.g. "EC".
+     * @return a key factory.
+     * @throws NoSuchAlgorithmException if the algorithm isn't supported.
+     */
+    public @NonNull KeyFactory getKeyFactory(@NonNull String algorithm)
+            throws NoSuchAlgorithmException {
+        KeyFactory keyFactory = (KeyFactory) getCached(Operation.KEY_FACTORY, algorithm);
+        if (keyFactory == null) {
+            Provider provider = mProviders.get(Operation.KEY_FACTORY);
+            keyFactory = (provider == null)
+                    ? KeyFactory.getInstance(algorithm)
+                    : KeyFactory.getInstance(algorithm, provider);
+            putCached(Operation.KEY_FACTORY, algorithm, keyFactory);
+        }
+        return keyFactory;
+    }
+
+    private @Nullable Object getCached(@NonNull Operation operation,
+                                       @NonNull String algorithm) {
+        HashMap<String, Object> instances = mInstances.get().get(operation);
+        return (instances == null) ? null : instances.get(algorithm);
+    }
+
+    private void putCached(@NonNull Operation operation, @NonNull String algorithm,
+                           @NonNull Object instance) {
+        EnumMap<Operation, HashMap<String, Object>> instancesByOperation = mInstances.get();
+        HashMap<String, Object> instances = instancesByOperation.get(operation);
+        if (instances == null) {
+            instances = new HashMap<>();
+            instancesByOperation.put(operation, instances);
+        }
+        instances.put(algorithm, instance);
+    }
+
+    /**
+     * A builder for {@link CryptoProvider}.
+     */
+    public static final class Builder {
+        private final EnumMap<Operation, Provider> mProviders = new EnumMap<>(Operation.class);
+
+        /**
+         * Creates a new builder which uses the highest priority provider for every operation.
+         */
+        public Builder() {
+        }
+
+        /**
+         * Sets the provider to use for an operation.
+         *
+         * @param operation the operation.
+         * @param provider the provider or {@code null} to use the highest priority provider.
+         * @return the builder.
+         */
+        public @NonNull Builder setProvider(@NonNull Operation operation,
+                                            @Nullable Provider provider) {
+            if (provider == null) {
+                mProviders.remove(operation);
+            } else {
+                mProviders.put(operation, provider);
+            }
+            return this;
+        }
+
+        /**
+         * Sets the provider to use for an operation, by name.
+         *
+         * @param operation the operation.
+         * @param providerName the name of the provider, see {@link #findProvider(String)}.
+         * @return the builder.
+         * @throws IllegalArgumentException if the provider isn't available.
+         */
+        public @NonNull Builder setProvider(@NonNull Operation operation,
+                                            @NonNull String providerName) {
+            Provider provider = findProvider(providerName);
+            if (provider == null) {
+                throw new IllegalArgumentException("Provider " + providerName
+                        + " is not available");
+            }
+            return setProvider(operation, provider);
+        }
+
+        /**
+         * Sets the provider to use for all operations.
+         *
+         * @param provider the provider or {@code null} to use the highest priority provider.
+         * @return the builder.
+         */
+        public @NonNull Builder setProviderForAllOperations(@Nullable Provider provider) {
+            for (Operation operation : Operation.values()) {
+                setProvider(operation, provider);
+            }
+            return this;
+        }
+
+        /**
+         * Builds the {@link CryptoProvider}.
+         *
+         * @return a new instance.
+         */
+        public @NonNull CryptoProvider build() {
+            return new CryptoProvider(new EnumMap<>(mProviders));
+        }
+    }
+}
@@ -25,6 +25,8 @@ import androidx.annotation.Nullable;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.Executor;
 
@@ -70,6 +72,10 @@ public abstract class DataTransport {
     private @Nullable
     Executor mProgressListenerExecutor;
     private Queue<byte[]> mMessageReceivedQueue = new ArrayDeque<>();
+    private DataTransportIoEngine mIoEngine;
+    private TransactionMetrics mMetrics;
+    private final Queue<TransactionMetrics.Span> mSendSpans = new ArrayDeque<>();
+    private TransactionMetrics.Span mReceiveSpan;
 
     DataTransport(@NonNull Context context,
                   @Role int role,
@@ -183,6 +189,62 @@ public abstract class DataTransport {
         mListenerExecutor = executor;
     }
 
+    /**
+     * Sets the engine used to run blocking I/O work for this transport.
+     *
+     * <p>If not set, {@link DataTransportIoEngine#getDefault()} is used. This must be called
+     * before {@link #connect()}.
+     *
+     * @param ioEngine the engine to use.
+     */
+    void setIoEngine(@NonNull DataTransportIoEngine ioEngine) {
+        mIoEngine = ioEngine;
+    }
+
+    /**
+     * Gets the engine used to run blocking I/O work for this transport.
+     *
+     * @return the engine.
+     */
+    @NonNull DataTransportIoEngine getIoEngine() {
+        if (mIoEngine == null) {
+            mIoEngine = DataTransportIoEngine.getDefault();
+        }
+        return mIoEngine;
+    }
+
+    /**
+     * Sets the object this transport reports metrics to.
+     *
+     * <p>If not set, {@link TransactionMetrics#getDefault()} is used.
+     *
+     * @param metrics the object to report metrics to.
+     */
+    void setMetrics(@NonNull TransactionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Gets the object this transport reports metrics to.
+     *
+     * @return the object.
+     */
+    @NonNull TransactionMetrics getMetrics() {
+        if (mMetrics == null) {
+            mMetrics = TransactionMetrics.getDefault();
+        }
+        return mMetrics;
+    }
+
+    /**
+     * Gets the name of the transport used when reporting metrics.
+     *
+     * @return the name.
+     */
+    @NonNull String getMetricsName() {
+        return getClass().getSimpleName();
+    }
+
     /**
      * Returns the next message received, if any.
      *
@@ -233,7 +295,63 @@ public abstract class DataTransport {
         }
     }
 
+    // The reportMessageSend*(), reportChunk*() and reportMessageSent() methods are used to
+    // report metrics for the transport. Messages are assumed to be sent in the order
+    // sendMessage() was called. Transports which cannot tell when a message has been sent
+    // should not call reportMessageSendStarted().
+
+    protected void reportMessageSendStarted(int numBytes) {
+        TransactionMetrics.Span span = getMetrics().startSpan(
+                TransactionMetrics.PHASE_TRANSPORT_SEND, getMetricsName());
+        span.addBytes(numBytes);
+        synchronized (mSendSpans) {
+            mSendSpans.add(span);
+        }
+    }
+
+    protected void reportChunkSent() {
+        synchronized (mSendSpans) {
+            TransactionMetrics.Span span = mSendSpans.peek();
+            if (span != null) {
+                span.addChunk();
+            }
+        }
+    }
+
+    protected void reportMessageSent() {
+        TransactionMetrics.Span span;
+        synchronized (mSendSpans) {
+            span = mSendSpans.poll();
+        }
+        if (span != null) {
+            span.end();
+        }
+    }
+
+    protected void reportChunkReceived(int numBytes) {
+        synchronized (mSendSpans) {
+            if (mReceiveSpan == null) {
+                mReceiveSpan = getMetrics().startSpan(
+                        TransactionMetrics.PHASE_TRANSPORT_RECEIVE, getMetricsName());
+            }
+            mReceiveSpan.addBytes(numBytes).addChunk();
+        }
+    }
+
     protected void reportMessageReceived(@NonNull byte[] data) {
+        TransactionMetrics.Span receiveSpan;
+        synchronized (mSendSpans) {
+            receiveSpan = mReceiveSpan;
+            mReceiveSpan = null;
+        }
+        if (receiveSpan == null) {
+            // The transport doesn't report chunks, all we know is the size.
+            receiveSpan = getMetrics().startSpan(
+                    TransactionMetrics.PHASE_TRANSPORT_RECEIVE, getMetricsName())
+                    .addBytes(data.length);
+        }
+        receiveSpan.end();
+
         mMessageReceivedQueue.add(data);
         final Listener listener = mListener;
         final Executor executor = mListenerExecutor;
@@ -250,6 +368,16 @@ public abstract class DataTransport {
         }
     }
 
+    protected void reportMessageThroughput(long numBytes, long numRoundTrips,
+                                           long elapsedMillis) {
+        final TransmissionProgressListener listener = mProgressListener;
+        final Executor executor = mProgressListenerExecutor;
+        if (!mInhibitCallbacks && listener != null && executor != null) {
+            executor.execute(() -> listener.onThroughputUpdate(numBytes, numRoundTrips,
+                    elapsedMillis));
+        }
+    }
+
     protected void reportTransportSpecificSessionTermination() {
         final Listener listener = mListener;
         final Executor executor = mListenerExecutor;
@@ -259,6 +387,19 @@ public abstract class DataTransport {
     }
 
     protected void reportError(@NonNull Throwable error) {
+        List<TransactionMetrics.Span> failedSpans;
+        synchronized (mSendSpans) {
+            failedSpans = new ArrayList<>(mSendSpans);
+            mSendSpans.clear();
+            if (mReceiveSpan != null) {
+                failedSpans.add(mReceiveSpan);
+                mReceiveSpan = null;
+            }
+        }
+        for (TransactionMetrics.Span span : failedSpans) {
+            span.endWithError(error.getClass().getSimpleName());
+        }
+
         final Listener listener = mListener;
         final Executor executor = mListenerExecutor;
         if (!mInhibitCallbacks && listener != null && executor != null) {
@@ -98,7 +98,7 @@ class DataTransportBleCentralClientMode extends DataTransportBle {
 
                 @Override
                 public void onMessageSendProgress(final long progress, final long max) {
-                    reportMessageProgress(progress, max);
+                    reportBleMessageSendProgress(progress, max);
                 }
 
                 @Override
@@ -249,7 +249,7 @@ class DataTransportBleCentralClientMode extends DataTransportBle {
 
             @Override
             public void onMessageSendProgress(final long progress, final long max) {
-                reportMessageProgress(progress, max);
+                reportBleMessageSendProgress(progress, max);
             }
 
 
@@ -332,12 +332,26 @@ class DataTransportBleCentralClientMode extends DataTransportBle {
     @Override
     public void sendMessage(@NonNull byte[] data) {
         if (mGattServer != null) {
+            reportMessageSendStarted(data.length);
             mGattServer.sendMessage(data);
         } else if (mGattClient != null) {
+            reportMessageSendStarted(data.length);
             mGattClient.sendMessage(data);
         }
     }
 
+    // Every progress update with non-zero progress is for a GATT notification or
+    // characteristic write, or for the whole message when using L2CAP.
+    private void reportBleMessageSendProgress(long progress, long max) {
+        if (progress > 0) {
+            reportChunkSent();
+        }
+        if (progress == max) {
+            reportMessageSent();
+        }
+        reportMessageProgress(progress, max);
+    }
+
 
     @Override
     public void sendTransportSpecificTerminationMessage() {
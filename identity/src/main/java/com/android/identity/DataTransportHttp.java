@@ -320,6 +320,7 @@ public class DataTransportHttp extends DataTransport {
                                     + "\r\n").getBytes(UTF_8));
                         }
                         os.write(messageToSend);
+                        reportMessageSent();
                         reportMessageProgress(messageToSend.length, messageToSend.length);
 
                     } catch (IOException e) {
@@ -368,6 +369,7 @@ public class DataTransportHttp extends DataTransport {
         if (mRole == ROLE_MDOC) {
             sendMessageAsMdoc(data);
         } else {
+            reportMessageSendStarted(data.length);
             mWriterQueue.add(data);
         }
     }
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the blocking I/O work of data transports, such as accepting connections, reading from
+ * sockets and feeding writer queues.
+ *
+ * <p>Instead of every transport starting its own platform threads, tasks are submitted to a
+ * bounded pool whose threads are reused across sessions and reclaimed when idle. A process
+ * running many concurrent sessions therefore only pays for the threads actually busy at any
+ * given time, and never more than the configured maximum.
+ *
+ * <p>A transport uses the engine returned by {@link #getDefault()} unless another one is set
+ * using {@link DataTransport#setIoEngine(DataTransportIoEngine)}.
+ */
+class DataTransportIoEngine {
+    private static final String TAG = "DataTransportIoEngine";
+
+    // Upper bound for the default engine. Each session typically keeps one or two tasks
+    // blocked on I/O so this allows a few hundred concurrent sessions.
+    static final int DEFAULT_MAX_THREADS = 512;
+
+    // How long an idle thread is kept around before being reclaimed.
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static DataTransportIoEngine sDefault;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * Creates a new engine.
+     *
+     * @param name the prefix to use for thread names.
+     * @param maxThreads the maximum number of tasks which can run at the same time.
+     */
+    DataTransportIoEngine(@NonNull String name, int maxThreads) {
+        AtomicInteger threadCount = new AtomicInteger();
+        // A SynchronousQueue is used because tasks block for the lifetime of a connection:
+        // queueing a task behind another one would stall it indefinitely, so a task either
+        // gets a thread right away or is rejected.
+        mExecutor = new ThreadPoolExecutor(0, maxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                runnable -> {
+                    Thread thread = new Thread(runnable,
+                            name + "-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    /**
+     * Gets the engine shared by all transports in the process.
+     *
+     * @return the default engine.
+     */
+    static synchronized @NonNull DataTransportIoEngine getDefault() {
+        if (sDefault == null) {
+            sDefault = new DataTransportIoEngine("DataTransportIo", DEFAULT_MAX_THREADS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Runs a task on a pooled thread.
+     *
+     * @param task the task to run.
+     * @return a {@link Future} which completes when the task has finished.
+     * @throws RejectedExecutionException if the maximum number of threads are busy or the
+     *                                    engine has been shut down.
+     */
+    @NonNull Future<?> submit(@NonNull Runnable task) {
+        return mExecutor.submit(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Transports report errors through their listener so this is a bug, but it
+                // shouldn't go unnoticed just because the Future is never inspected.
+                Logger.e(TAG, "Uncaught exception in I/O task", e);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Gets the number of threads currently running tasks.
+     *
+     * @return the number of busy threads.
+     */
+    int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * Stops accepting new tasks. Running tasks are not interrupted.
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+}
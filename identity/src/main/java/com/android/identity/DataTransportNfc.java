@@ -23,7 +23,6 @@ import android.nfc.tech.IsoDep;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.ArrayList;
@@ -33,6 +32,7 @@ import java.util.Locale;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedTransferQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -40,16 +40,25 @@ import java.util.concurrent.TimeUnit;
  */
 public class DataTransportNfc extends DataTransport {
     private static final String TAG = "DataTransportNfc";
+    // Queued by close() to wake up and stop the writer, compared by identity.
+    private static final byte[] WRITER_QUEUE_STOP = new byte[0];
+    // How often the mdoc reader checks that the IsoDep is still connected while idle.
+    private static final long ISO_DEP_CHECK_INTERVAL_MILLIS = 1000;
+    // Tag, plus the longest length encoding we support.
+    private static final int DO53_MAX_HEADER_SIZE = 5;
     private final ConnectionMethodNfc mConnectionMethod;
     IsoDep mIsoDep;
-    ArrayList<byte[]> mListenerRemainingChunks;
-    int mListenerTotalChunks;
-    int mListenerRemainingBytesAvailable;
+    // The message being sent as the mdoc, sliced into response APDUs as the reader asks for
+    // them.
+    NfcResponseStream mListenerResponseStream;
+    final NfcResponseApduPool mListenerResponseApduPool = new NfcResponseApduPool();
     boolean mEndTransceiverThread;
     int mListenerLeReceived = -1;
     BlockingQueue<byte[]> mWriterQueue = new LinkedTransferQueue<>();
     boolean mListenerStillActive;
-    ByteArrayOutputStream mIncomingMessage = new ByteArrayOutputStream();
+    // Holds the incoming message with its DO53 header stripped, once the header is known.
+    final NfcReassemblyBuffer mIncomingMessage = new NfcReassemblyBuffer();
+    int mIncomingMessageLength = -1;
     int numChunksReceived = 0;
     private boolean mDataTransferAidSelected;
     private HostApduService mHostApduService;
@@ -83,68 +92,45 @@ public class DataTransportNfc extends DataTransport {
     }
 
     void setupListenerWritingThread() {
-        Thread transceiverThread = new Thread() {
+        Runnable transceiverTask = new Runnable() {
             @Override
             public void run() {
                 while (mListenerStillActive) {
-                    byte[] messageToSend = null;
+                    byte[] messageToSend;
                     try {
-                        messageToSend = mWriterQueue.poll(1000, TimeUnit.MILLISECONDS);
+                        messageToSend = mWriterQueue.take();
                     } catch (InterruptedException e) {
                         continue;
                     }
-                    if (messageToSend == null) {
-                        continue;
+                    if (messageToSend == WRITER_QUEUE_STOP) {
+                        break;
                     }
                     Logger.dHex(TAG, "Sending message", messageToSend);
 
-                    if (mListenerLeReceived == -1) {
+                    if (mListenerLeReceived <= 0) {
                         reportError(new Error("ListenerLeReceived not set"));
                         return;
                     }
 
                     // First message we send will be a response to the reader's
                     // ENVELOPE command.. further messages will be in response
-                    // the GET RESPONSE commands. So we chop up this data in chunks
-                    // so it's easy to hand off responses...
-
-                    ArrayList<byte[]> chunks = new ArrayList<>();
-                    byte[] data = encapsulateInDo53(messageToSend);
-                    int offset = 0;
-                    int maxChunkSize = mListenerLeReceived;
-                    do {
-                        int size = data.length - offset;
-                        if (size > maxChunkSize) {
-                            size = maxChunkSize;
-                        }
-                        byte[] chunk = new byte[size];
-                        System.arraycopy(data, offset, chunk, 0, size);
-                        chunks.add(chunk);
-                        offset += size;
-                    } while (offset < data.length);
-
-                    Logger.d(TAG, "Have " + chunks.size() + " chunks..");
-                    mListenerRemainingChunks = chunks;
-                    mListenerRemainingBytesAvailable = data.length;
-                    mListenerTotalChunks = chunks.size();
-                    sendNextChunk(false);
+                    // the GET RESPONSE commands. Each response carries as much
+                    // of the message as the Le of the command allows.
+
+                    mListenerResponseStream = new NfcResponseStream(messageToSend,
+                            mListenerLeReceived);
+                    Logger.d(TAG, String.format(Locale.US,
+                            "Sending %d bytes with Le %d",
+                            mListenerResponseStream.getTotalLength(), mListenerLeReceived));
+                    sendNextResponse(mListenerLeReceived);
                 }
             }
         };
-        reportMessageProgress(0, mListenerTotalChunks);
-        transceiverThread.start();
-    }
-
-    byte[] buildApduResponse(@NonNull byte[] data, int sw1, int sw2) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
-            baos.write(data);
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+            getIoEngine().submit(transceiverTask);
+        } catch (RejectedExecutionException e) {
+            reportError(e);
         }
-        baos.write(sw1);
-        baos.write(sw2);
-        return baos.toByteArray();
     }
 
     /**
@@ -247,39 +233,25 @@ public class DataTransportNfc extends DataTransport {
         return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
     }
 
-    void sendNextChunk(boolean isForGetResponse) {
-        byte[] chunk = mListenerRemainingChunks.remove(0);
-        mListenerRemainingBytesAvailable -= chunk.length;
-
-        boolean isLastChunk = (mListenerRemainingChunks.size() == 0);
+    void sendNextResponse(int le) {
+        NfcResponseStream stream = mListenerResponseStream;
+        byte[] response = stream.nextResponse(le, mListenerResponseApduPool);
+        reportChunkSent();
+        boolean isLastChunk = stream.isComplete();
         if (isLastChunk) {
-            /* If Le ≥ the number of available bytes, the mdoc shall include all
-             * available bytes in the response and set the status words to ’90 00’.
-             */
-            mHostApduService.sendResponseApdu(buildApduResponse(chunk, 0x90, 0x00));
-        } else {
-            if (mListenerRemainingBytesAvailable <= mListenerLeReceived + 255) {
-                /* If Le < the number of available bytes ≤ Le + 255, the mdoc shall
-                 * include as many bytes in the response as indicated by Le and shall
-                 * set the status words to ’61 XX’, where XX is the number of available
-                 * bytes remaining. The mdoc reader shall respond with a GET RESPONSE
-                 * command where Le is set to XX.
-                 */
-                int numBytesRemaining = mListenerRemainingBytesAvailable - mListenerLeReceived;
-                mHostApduService.sendResponseApdu(
-                        buildApduResponse(chunk, 0x61, numBytesRemaining & 0xff));
-            } else {
-                /* If the number of available bytes > Le + 255, the mdoc shall include
-                 * as many bytes in the response as indicated by Le and shall set the
-                 * status words to ’61 00’. The mdoc readershall respond with a GET
-                 * RESPONSE command where Le is set to the maximum length of the
-                 * response data field that is supported by both the mdoc and the mdoc
-                 * reader.
-                 */
-                mHostApduService.sendResponseApdu(buildApduResponse(chunk, 0x61, 0x00));
-            }
+            mListenerResponseStream = null;
         }
-        reportMessageProgress(mListenerRemainingChunks.size(), mListenerTotalChunks);
+        mHostApduService.sendResponseApdu(response);
+        if (isLastChunk) {
+            reportMessageSent();
+            Logger.d(TAG, String.format(Locale.US,
+                    "Sent %d bytes in %d response(s) in %d ms",
+                    stream.getTotalLength(), stream.getNumResponses(),
+                    stream.getElapsedMillis()));
+        }
+        reportMessageProgress(stream.getPosition(), stream.getTotalLength());
+        reportMessageThroughput(stream.getPosition(), stream.getNumResponses(),
+                stream.getElapsedMillis());
     }
 
 
@@ -300,22 +272,21 @@ public class DataTransportNfc extends DataTransport {
                     "Unexpected value 0x%02x in CLA of APDU", cla)));
             return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
         }
-        byte[] data = apduGetData(apdu);
-        if (data == null) {
+        int dataOffset = ((apdu[4] == 0x00) ? 7 : 5);
+        int dataLength = apduGetDataLength(apdu);
+        if (apdu.length < dataOffset + dataLength) {
             reportError(new Error("Malformed APDU"));
             return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
         }
-        if (data.length == 0) {
+        if (dataLength == 0) {
             reportError(new Error("Received ENVELOPE with no data"));
             return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
         }
         int le = apduGetLe(apdu);
 
-        try {
-            mIncomingMessage.write(data);
-            numChunksReceived += 1;
-        } catch (IOException e) {
-            reportError(e);
+        if (!appendIncomingChunk(apdu, dataOffset, dataLength)) {
+            resetIncomingMessage();
+            reportError(new Error("Error extracting message from DO53 encoding"));
             return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
         }
 
@@ -339,12 +310,7 @@ public class DataTransportNfc extends DataTransport {
             mListenerLeReceived = le;
         }
 
-        byte[] encapsulatedMessage = mIncomingMessage.toByteArray();
-        Logger.d(TAG, String.format(Locale.US, "Received %d bytes in %d chunk(s)",
-                encapsulatedMessage.length, numChunksReceived));
-        mIncomingMessage.reset();
-        numChunksReceived = 0;
-        byte[] message = extractFromDo53(encapsulatedMessage);
+        byte[] message = takeIncomingMessage();
         if (message == null) {
             reportError(new Error("Error extracting message from DO53 encoding"));
             return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
@@ -356,14 +322,66 @@ public class DataTransportNfc extends DataTransport {
         return null;
     }
 
+    // Copies a chunk of an incoming message straight into a buffer which is sized for the
+    // whole message once the DO53 header has been received. Returns false if the header is
+    // malformed.
+    private boolean appendIncomingChunk(@NonNull byte[] src, int offset, int length) {
+        mIncomingMessage.append(src, offset, length);
+        numChunksReceived += 1;
+        reportChunkReceived(length);
+        return mIncomingMessageLength >= 0 || unwrapIncomingDo53Header();
+    }
+
+    // Gets the incoming message once all chunks have been received, or null if it doesn't
+    // match the length in the DO53 header. Either way, gets ready for the next message.
+    private @Nullable byte[] takeIncomingMessage() {
+        Logger.d(TAG, String.format(Locale.US, "Received %d bytes in %d chunk(s)",
+                mIncomingMessage.size(), numChunksReceived));
+        byte[] message = null;
+        if (mIncomingMessage.size() != mIncomingMessageLength) {
+            Logger.w(TAG, String.format(Locale.US,
+                    "Malformed BER-TLV encoding, expected %d bytes but got %d",
+                    mIncomingMessageLength, mIncomingMessage.size()));
+        } else {
+            message = mIncomingMessage.take();
+        }
+        resetIncomingMessage();
+        return message;
+    }
+
+    // Once enough of the incoming message has been received to parse its DO53 header, strips
+    // the header and sizes the buffer for the encapsulated data. Returns false if the header
+    // is malformed.
+    private boolean unwrapIncomingDo53Header() {
+        byte[] header = new byte[Math.min(mIncomingMessage.size(), DO53_MAX_HEADER_SIZE)];
+        for (int n = 0; n < header.length; n++) {
+            header[n] = (byte) mIncomingMessage.get(n);
+        }
+        int headerSize = do53HeaderSize(header, header.length);
+        if (headerSize <= 0) {
+            // Wait for more data, unless the header is malformed.
+            return headerSize == 0;
+        }
+        mIncomingMessageLength = do53Length(header, headerSize);
+        mIncomingMessage.discard(headerSize);
+        mIncomingMessage.presize(mIncomingMessageLength);
+        return true;
+    }
+
+    private void resetIncomingMessage() {
+        mIncomingMessage.reset();
+        mIncomingMessageLength = -1;
+        numChunksReceived = 0;
+    }
+
     private @Nullable
     byte[] handleResponse(@NonNull byte[] apdu) {
         Logger.d(TAG, "in handleResponse");
-        if (mListenerRemainingChunks == null || mListenerRemainingChunks.size() == 0) {
+        if (mListenerResponseStream == null) {
             reportError(new Error("GET RESPONSE but we have no outstanding chunks"));
             return null;
         }
-        sendNextChunk(true);
+        sendNextResponse(apduGetLeWithoutData(apdu));
         return null;
     }
 
@@ -413,6 +431,28 @@ public class DataTransportNfc extends DataTransport {
         return 0;
     }
 
+    // Gets Le from a command without a data field, such as GET RESPONSE. Returns 0 if absent.
+    static int apduGetLeWithoutData(@NonNull byte[] apdu) {
+        int offset;
+        if (apdu.length == 5) {
+            int le = apdu[4] & 0xff;
+            return (le == 0) ? 0x100 : le;
+        } else if (apdu.length == 7 && apdu[4] == 0x00) {
+            offset = 5;
+        } else if (apdu.length == 8 && apdu[4] == 0x00 && apdu[5] == 0x00) {
+            // Older versions of this library sent an empty Lc before an extended Le...
+            offset = 6;
+        } else if (apdu.length == 6 && apdu[4] == 0x00) {
+            // ... or a short one.
+            int le = apdu[5] & 0xff;
+            return (le == 0) ? 0x100 : le;
+        } else {
+            return 0;
+        }
+        int le = (apdu[offset] & 0xff) * 0x100 + (apdu[offset + 1] & 0xff);
+        return (le == 0) ? 0x10000 : le;
+    }
+
     int apduGetDataLength(@NonNull byte[] apdu) {
         int length = apdu[4] & 0xff;
         if (length == 0x00) {
@@ -434,120 +474,130 @@ public class DataTransportNfc extends DataTransport {
     }
 
     byte[] buildApdu(int cla, int ins, int p1, int p2, @Nullable byte[] data, int le) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(cla);
-        baos.write(ins);
-        baos.write(p1);
-        baos.write(p2);
-        boolean hasExtendedLc = false;
-        if (data == null) {
-            baos.write(0);
-        } else if (data.length < 256) {
-            baos.write(data.length);
-        } else {
-            hasExtendedLc = true;
-            baos.write(0x00);
-            baos.write(data.length / 0x100);
-            baos.write(data.length & 0xff);
-        }
-        if (data != null && data.length > 0) {
-            try {
-                baos.write(data);
-            } catch (IOException e) {
-                throw new IllegalStateException(e);
-            }
-        }
+        return buildApdu(cla, ins, p1, p2, data, 0, (data == null) ? 0 : data.length, le);
+    }
+
+    // Builds a command APDU with the data field copied straight from a slice of the given
+    // array. Lc is omitted if there's no data and Le if it's 0.
+    byte[] buildApdu(int cla, int ins, int p1, int p2, @Nullable byte[] data, int dataOffset,
+                     int dataLength, int le) {
+        // Lc and Le are either both short or both extended.
+        boolean extendedLength = (dataLength >= 256 || le > 256);
+        int lcSize = (dataLength == 0) ? 0 : (extendedLength ? 3 : 1);
+        int leSize = 0;
         if (le > 0) {
-            if (le == 256) {
-                baos.write(0x00);
-            } else if (le < 256) {
-                baos.write(le);
+            if (!extendedLength) {
+                leSize = 1;
             } else {
-                if (!hasExtendedLc) {
-                    baos.write(0x00);
-                }
-                if (le == 65536) {
-                    baos.write(0x00);
-                    baos.write(0x00);
-                } else {
-                    baos.write(le / 0x100);
-                    baos.write(le & 0xff);
-                }
+                // The leading 0x00 is only there if there's no Lc.
+                leSize = (lcSize == 0) ? 3 : 2;
+            }
+        }
+        byte[] apdu = new byte[4 + lcSize + dataLength + leSize];
+        apdu[0] = (byte) cla;
+        apdu[1] = (byte) ins;
+        apdu[2] = (byte) p1;
+        apdu[3] = (byte) p2;
+        int pos = 4;
+        if (lcSize == 1) {
+            apdu[pos++] = (byte) dataLength;
+        } else if (lcSize == 3) {
+            apdu[pos++] = 0x00;
+            apdu[pos++] = (byte) (dataLength / 0x100);
+            apdu[pos++] = (byte) (dataLength & 0xff);
+        }
+        if (dataLength > 0) {
+            System.arraycopy(data, dataOffset, apdu, pos, dataLength);
+            pos += dataLength;
+        }
+        if (leSize == 1) {
+            // 0x00 means 256
+            apdu[pos] = (byte) (le & 0xff);
+        } else if (leSize > 1) {
+            if (leSize == 3) {
+                apdu[pos++] = 0x00;
             }
+            // 0x00 0x00 means 65536
+            apdu[pos++] = (byte) ((le / 0x100) & 0xff);
+            apdu[pos] = (byte) (le & 0xff);
         }
+        return apdu;
+    }
 
-        return baos.toByteArray();
+    // Encodes the tag and length of a DO53 data object holding the given number of bytes.
+    static @NonNull byte[] encodeDo53Header(int length) {
+        if (length < 0x80) {
+            return new byte[]{0x53, (byte) length};
+        } else if (length < 0x100) {
+            return new byte[]{0x53, (byte) 0x81, (byte) length};
+        } else if (length < 0x10000) {
+            return new byte[]{0x53, (byte) 0x82, (byte) (length / 0x100), (byte) (length & 0xff)};
+        } else if (length < 0x1000000) {
+            return new byte[]{0x53, (byte) 0x83, (byte) (length / 0x10000),
+                    (byte) ((length / 0x100) & 0xff), (byte) (length & 0xff)};
+        }
+        throw new IllegalStateException("Data length cannot be bigger than 0x1000000");
     }
 
     byte[] encapsulateInDo53(byte[] data) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        baos.write(0x53);
-        if (data.length < 0x80) {
-            baos.write(data.length);
-        } else if (data.length < 0x100) {
-            baos.write(0x81);
-            baos.write(data.length);
-        } else if (data.length < 0x10000) {
-            baos.write(0x82);
-            baos.write(data.length / 0x100);
-            baos.write(data.length & 0xff);
-        } else if (data.length < 0x1000000) {
-            baos.write(0x83);
-            baos.write(data.length / 0x10000);
-            baos.write((data.length / 0x100) & 0xff);
-            baos.write(data.length & 0xff);
-        } else {
-            throw new IllegalStateException("Data length cannot be bigger than 0x1000000");
-        }
-        try {
-            baos.write(data);
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
-        return baos.toByteArray();
+        byte[] header = encodeDo53Header(data.length);
+        byte[] encapsulatedData = Arrays.copyOf(header, header.length + data.length);
+        System.arraycopy(data, 0, encapsulatedData, header.length, data.length);
+        return encapsulatedData;
     }
 
-    byte[] extractFromDo53(byte[] encapsulatedData) {
-        if (encapsulatedData.length < 2) {
-            Logger.w(TAG, String.format(Locale.US, "DO53 length %d, expected at least 2",
-                    encapsulatedData.length));
-            return null;
+    // Returns the number of bytes used by the tag and length at the start of DO53-encapsulated
+    // data, 0 if more bytes are needed to tell, or -1 if they are malformed.
+    static int do53HeaderSize(@NonNull byte[] encapsulatedData, int size) {
+        if (size < 2) {
+            return 0;
         }
         int tag = encapsulatedData[0] & 0xff;
         if (tag != 0x53) {
             Logger.w(TAG, String.format(Locale.US, "DO53 first byte is 0x%02x, expected 0x53", tag));
-            return null;
+            return -1;
         }
         int length = encapsulatedData[1] & 0xff;
         if (length > 0x83) {
             Logger.w(TAG, String.format(Locale.US, "DO53 first byte of length is 0x%02x", length));
-            return null;
+            return -1;
         }
-        int offset = 2;
         if (length == 0x80) {
             Logger.w(TAG, "DO53 first byte of length is 0x80");
+            return -1;
+        }
+        int headerSize = (length < 0x80) ? 2 : 2 + (length - 0x80);
+        return (size < headerSize) ? 0 : headerSize;
+    }
+
+    // Returns the length of DO53-encapsulated data given a complete tag and length.
+    static int do53Length(@NonNull byte[] encapsulatedData, int headerSize) {
+        if (headerSize == 2) {
+            return encapsulatedData[1] & 0xff;
+        }
+        int length = 0;
+        for (int n = 2; n < headerSize; n++) {
+            length = length * 0x100 + (encapsulatedData[n] & 0xff);
+        }
+        return length;
+    }
+
+    byte[] extractFromDo53(byte[] encapsulatedData) {
+        int offset = do53HeaderSize(encapsulatedData, encapsulatedData.length);
+        if (offset == 0) {
+            Logger.w(TAG, String.format(Locale.US, "DO53 length %d, header is incomplete",
+                    encapsulatedData.length));
+            return null;
+        } else if (offset < 0) {
             return null;
-        } else if (length == 0x81) {
-            length = encapsulatedData[2] & 0xff;
-            offset = 3;
-        } else if (length == 0x82) {
-            length = (encapsulatedData[2] & 0xff) * 0x100;
-            length += (encapsulatedData[3] & 0xff);
-            offset = 4;
-        } else if (length == 0x83) {
-            length = (encapsulatedData[2] & 0xff) * 0x10000;
-            length += (encapsulatedData[3] & 0xff) * 0x100;
-            length += (encapsulatedData[4] & 0xff);
-            offset = 5;
         }
+        int length = do53Length(encapsulatedData, offset);
         if (encapsulatedData.length != offset + length) {
             Logger.w(TAG, String.format(Locale.US, "Malformed BER-TLV encoding, %d %d %d",
                     encapsulatedData.length, offset, length));
             return null;
         }
-        byte[] data = new byte[length];
-        System.arraycopy(encapsulatedData, offset, data, 0, length);
-        return data;
+        return Arrays.copyOfRange(encapsulatedData, offset, encapsulatedData.length);
     }
 
     @Override
@@ -560,15 +610,51 @@ public class DataTransportNfc extends DataTransport {
         reportConnectionMethodReady();
     }
 
+    // Gets the largest command data field, less 7 for the APDU header and 3 for Le, or 6 with
+    // short APDUs which are also limited to 255 bytes of data.
+    static int getMaxCommandDataLength(int maxTransceiveLength,
+                                       boolean extendedLengthApduSupported) {
+        if (extendedLengthApduSupported) {
+            return Math.min(maxTransceiveLength - 10, 0xffff);
+        }
+        return Math.min(maxTransceiveLength - 6, 0xff);
+    }
+
+    // Gets the largest Le to ask for, leaving room for the status word in the response.
+    static int getMaxResponseDataLength(int maxTransceiveLength,
+                                        boolean extendedLengthApduSupported) {
+        if (extendedLengthApduSupported) {
+            return Math.min(maxTransceiveLength - 2, 0x10000);
+        }
+        return Math.min(maxTransceiveLength - 2, 0x100);
+    }
+
+    private static void logTransceiveThroughput(long durationMillis, int commandLength,
+                                                int responseLength) {
+        double durationSec = durationMillis / 1000.0;
+        int bitsPerSec = (int) ((commandLength + responseLength) * 8 / durationSec);
+        Logger.d(TAG, String.format(Locale.US,
+                "transceive() took %.2f sec for %d + %d bytes => %d bits/sec",
+                durationSec, commandLength, responseLength, bitsPerSec));
+    }
+
     private void connectAsMdocReader() {
         if (mIsoDep == null) {
             reportError(new Error("NFC IsoDep not set"));
             return;
         }
         int maxTransceiveLength = mIsoDep.getMaxTransceiveLength();
+        boolean extendedLengthApduSupported = mIsoDep.isExtendedLengthApduSupported();
         Logger.d(TAG, "maxTransceiveLength: " + maxTransceiveLength);
-        Logger.d(TAG, "isExtendedLengthApduSupported: " + mIsoDep.isExtendedLengthApduSupported());
-        Thread transceiverThread = new Thread() {
+        Logger.d(TAG, "isExtendedLengthApduSupported: " + extendedLengthApduSupported);
+        int maxCommandDataLength =
+                getMaxCommandDataLength(maxTransceiveLength, extendedLengthApduSupported);
+        int maxResponseDataLength =
+                getMaxResponseDataLength(maxTransceiveLength, extendedLengthApduSupported);
+        Logger.d(TAG, String.format(Locale.US,
+                "Using command data length %d and Le %d",
+                maxCommandDataLength, maxResponseDataLength));
+        Runnable transceiverTask = new Runnable() {
             @Override
             public void run() {
                 try {
@@ -587,62 +673,61 @@ public class DataTransportNfc extends DataTransport {
                     }
 
                     while (!mEndTransceiverThread && mIsoDep.isConnected()) {
+                        // Messages are picked up as soon as they're queued and close() wakes
+                        // us up right away, the timeout is only to notice the tag going away.
                         byte[] messageToSend = null;
                         try {
-                            messageToSend = mWriterQueue.poll(1000, TimeUnit.MILLISECONDS);
+                            messageToSend = mWriterQueue.poll(ISO_DEP_CHECK_INTERVAL_MILLIS,
+                                    TimeUnit.MILLISECONDS);
                             if (messageToSend == null) {
                                 continue;
                             }
                         } catch (InterruptedException e) {
                             continue;
                         }
+                        if (messageToSend == WRITER_QUEUE_STOP) {
+                            break;
+                        }
                         Logger.dHex(TAG, "Sending message", messageToSend);
 
                         byte[] data = encapsulateInDo53(messageToSend);
 
-                        // Less 7 for the APDU header and 3 for LE
-                        //
-                        int maxChunkSize = maxTransceiveLength - 10;
                         int offset = 0;
+                        int numRoundTrips = 0;
+                        long sendStartMillis = System.currentTimeMillis();
                         byte[] lastEnvelopeResponse = null;
                         do {
-                            boolean moreChunksComing = (offset + maxChunkSize < data.length);
+                            boolean moreChunksComing =
+                                    (offset + maxCommandDataLength < data.length);
                             int size = data.length - offset;
-                            if (size > maxChunkSize) {
-                                size = maxChunkSize;
+                            if (size > maxCommandDataLength) {
+                                size = maxCommandDataLength;
                             }
 
-                            byte[] chunk = new byte[size];
-                            System.arraycopy(data, offset, chunk, 0, size);
-
                             int le = 0;
                             if (!moreChunksComing) {
-                                le = maxTransceiveLength;
+                                le = maxResponseDataLength;
                             }
 
                             byte[] envelopeCommand = buildApdu(moreChunksComing ? 0x10 : 0x00,
-                                    0xc3, 0x00, 0x00, chunk, le);
+                                    0xc3, 0x00, 0x00, data, offset, size, le);
 
                             Logger.dHex(TAG, "envelopeCommand", envelopeCommand);
 
                             long t0 = System.currentTimeMillis();
                             byte[] envelopeResponse = mIsoDep.transceive(envelopeCommand);
                             long t1 = System.currentTimeMillis();
-
-                            double durationSec = (t1 - t0)/1000.0;
-                            int bitsPerSec = (int) ((envelopeCommand.length + envelopeResponse.length)* 8/durationSec);
-                            Logger.d(TAG, String.format(
-                                    Locale.US,
-                                    "transceive() took %.2f sec for %d + %d bytes => %d bits/sec",
-                                    durationSec,
-                                    envelopeCommand.length,
-                                    envelopeResponse.length,
-                                    bitsPerSec));
-
+                            logTransceiveThroughput(t1 - t0, envelopeCommand.length,
+                                    envelopeResponse.length);
 
                             Logger.dHex(TAG, "Received", envelopeResponse);
+                            reportChunkSent();
 
                             offset += size;
+                            numRoundTrips += 1;
+                            reportMessageProgress(offset, data.length);
+                            reportMessageThroughput(offset, numRoundTrips,
+                                    t1 - sendStartMillis);
 
                             if (moreChunksComing) {
                                 // Don't care about response.
@@ -652,6 +737,7 @@ public class DataTransportNfc extends DataTransport {
                             }
 
                         } while (offset < data.length);
+                        reportMessageSent();
 
                         int erl = lastEnvelopeResponse.length;
                         if (erl < 2) {
@@ -659,22 +745,22 @@ public class DataTransportNfc extends DataTransport {
                             return;
                         }
 
-                        byte[] encapsulatedMessage;
                         int status = (lastEnvelopeResponse[erl - 2] & 0xff) * 0x100
                                 + (lastEnvelopeResponse[erl - 1] & 0xff);
-                        if (status == 0x9000) {
-                            // Woot, entire response fit in the response APDU
-                            //
-                            encapsulatedMessage = new byte[erl - 2];
-                            System.arraycopy(lastEnvelopeResponse, 0, encapsulatedMessage, 0,
-                                    erl - 2);
-                        } else if ((status & 0xff00) == 0x6100) {
+                        if (status != 0x9000 && (status & 0xff00) != 0x6100) {
+                            reportError(new Error(
+                                    String.format(Locale.US, "Expected APDU status 0x%04x", status)));
+                            return;
+                        }
+                        if (!appendIncomingChunk(lastEnvelopeResponse, 0, erl - 2)) {
+                            resetIncomingMessage();
+                            reportError(new Error("Error extracting message from DO53 encoding"));
+                            return;
+                        }
+                        if ((status & 0xff00) == 0x6100) {
                             // More bytes are coming, have to use GET RESPONSE
                             //
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            baos.write(lastEnvelopeResponse, 0, erl - 2);
-
-                            int leForGetResponse = maxTransceiveLength - 10;
+                            int leForGetResponse = maxResponseDataLength;
                             if ((status & 0xff) != 0) {
                                 leForGetResponse = status & 0xff;
                             }
@@ -682,19 +768,11 @@ public class DataTransportNfc extends DataTransport {
                                 byte[] grCommand = buildApdu(0x00,
                                         0xc0, 0x00, 0x00, null, leForGetResponse);
 
-
                                 long t0 = System.currentTimeMillis();
                                 byte[] grResponse = mIsoDep.transceive(grCommand);
                                 long t1 = System.currentTimeMillis();
-
-                                double durationSec = (t1 - t0) / 1000.0;
-                                int bitsPerSec = (int) ((grCommand.length + grResponse.length)*8/durationSec);
-                                Logger.d(TAG, String.format(Locale.US,
-                                        "transceive() took %.2f sec for %d + %d bytes => %d bits/sec",
-                                        durationSec,
-                                        grCommand.length,
-                                        grResponse.length,
-                                        bitsPerSec));
+                                logTransceiveThroughput(t1 - t0, grCommand.length,
+                                        grResponse.length);
 
                                 int grrl = grResponse.length;
                                 if (grrl < 2) {
@@ -703,9 +781,12 @@ public class DataTransportNfc extends DataTransport {
                                 }
 
                                 int grrStatus = (grResponse[grrl - 2] & 0xff) * 0x100 + (grResponse[grrl - 1] & 0xff);
-                                baos.write(grResponse, 0, grrl - 2);
+                                if (!appendIncomingChunk(grResponse, 0, grrl - 2)) {
+                                    resetIncomingMessage();
+                                    reportError(new Error("Error extracting message from DO53 encoding"));
+                                    return;
+                                }
 
-                                // TODO: add runaway check
                                 if (grrStatus == 0x9000) {
                                     /* If Le ≥ the number of available bytes, the mdoc shall include
                                      * all available bytes in the response and set the status words
@@ -720,7 +801,7 @@ public class DataTransportNfc extends DataTransport {
                                      * maximum length of the response data field that is supported
                                      * by both the mdoc and the mdoc reader.
                                      */
-                                    leForGetResponse = maxTransceiveLength - 10;
+                                    leForGetResponse = maxResponseDataLength;
                                 } else if ((grrStatus & 0xff00) == 0x6100) {
                                     /* If Le < the number of available bytes ≤ Le + 255, the
                                      * mdoc shall include as many bytes in the response as
@@ -731,20 +812,17 @@ public class DataTransportNfc extends DataTransport {
                                      */
                                     leForGetResponse = grrStatus & 0xff;
                                 } else {
+                                    resetIncomingMessage();
                                     reportError(new Error(
                                             String.format(Locale.US,
                                                     "Expected GetResponse APDU status 0x%04x",
-                                                    status)));
+                                                    grrStatus)));
+                                    return;
                                 }
                             }
-                            encapsulatedMessage = baos.toByteArray();
-                        } else {
-                            reportError(new Error(
-                                    String.format(Locale.US, "Expected APDU status 0x%04x", status)));
-                            return;
                         }
 
-                        byte[] message = extractFromDo53(encapsulatedMessage);
+                        byte[] message = takeIncomingMessage();
                         if (message == null) {
                             reportError(new Error("Error extracting message from DO53 encoding"));
                             return;
@@ -760,7 +838,11 @@ public class DataTransportNfc extends DataTransport {
                 mIsoDep = null;
             }
         };
-        transceiverThread.start();
+        try {
+            getIoEngine().submit(transceiverTask);
+        } catch (RejectedExecutionException e) {
+            reportError(e);
+        }
 
     }
 
@@ -772,10 +854,12 @@ public class DataTransportNfc extends DataTransport {
         inhibitCallbacks();
         mEndTransceiverThread = true;
         mListenerStillActive = false;
+        mWriterQueue.add(WRITER_QUEUE_STOP);
     }
 
     @Override
     public void sendMessage(@NonNull byte[] data) {
+        reportMessageSendStarted(data.length);
         mWriterQueue.add(data);
     }
 
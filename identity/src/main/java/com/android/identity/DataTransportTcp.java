@@ -35,8 +35,10 @@ import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedTransferQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * TCP data transport.
@@ -46,11 +48,11 @@ import java.util.concurrent.TimeUnit;
 class DataTransportTcp extends DataTransport {
     private static final String TAG = "DataTransportTcp";
     // The maximum message size we support.
-    private static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+    static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
     Socket mSocket;
     BlockingQueue<byte[]> mWriterQueue = new LinkedTransferQueue<>();
     ServerSocket mServerSocket = null;
-    Thread mSocketWriterThread;
+    Future<?> mSocketWriterFuture;
     private String mHost;
     private int mPort;
     private MessageRewriter mMessageRewriter;
@@ -81,9 +83,8 @@ class DataTransportTcp extends DataTransport {
             return;
         }
         int port = mServerSocket.getLocalPort();
-        Thread socketServerThread = new Thread() {
-            @Override
-            public void run() {
+        try {
+            getIoEngine().submit(() -> {
                 try {
                     // We only accept a single client with this server socket...
                     //
@@ -95,6 +96,8 @@ class DataTransportTcp extends DataTransport {
                     reportConnected();
 
                     Throwable e = processMessagesFromSocket();
+                    // The connection is gone so stop the writer and give back its pooled thread.
+                    mWriterQueue.add(new byte[0]);
                     if (e != null) {
                         reportError(e);
                     } else {
@@ -104,9 +107,11 @@ class DataTransportTcp extends DataTransport {
                 } catch (Exception e) {
                     reportError(e);
                 }
-            }
-        };
-        socketServerThread.start();
+            });
+        } catch (RejectedExecutionException e) {
+            reportError(e);
+            return;
+        }
         mHost = address;
         mPort = port;
     }
@@ -177,9 +182,8 @@ class DataTransportTcp extends DataTransport {
 
     private void connectAsMdocReader() {
         mSocket = new Socket();
-        Thread socketReaderThread = new Thread() {
-            @Override
-            public void run() {
+        try {
+            getIoEngine().submit(() -> {
                 SocketAddress endpoint = new InetSocketAddress(mHost, mPort);
                 try {
                     mSocket.connect(endpoint);
@@ -190,17 +194,25 @@ class DataTransportTcp extends DataTransport {
 
                 reportConnected();
 
-                setupWritingThread();
+                try {
+                    setupWritingThread();
+                } catch (RejectedExecutionException e) {
+                    reportError(e);
+                    return;
+                }
 
                 Throwable e = processMessagesFromSocket();
+                // The connection is gone so stop the writer and give back its pooled thread.
+                mWriterQueue.add(new byte[0]);
                 if (e != null) {
                     reportError(e);
                 } else {
                     reportDisconnected();
                 }
-            }
-        };
-        socketReaderThread.start();
+            });
+        } catch (RejectedExecutionException e) {
+            reportError(e);
+        }
     }
 
     @Override
@@ -213,48 +225,47 @@ class DataTransportTcp extends DataTransport {
         reportConnectionMethodReady();
     }
 
+    // Starts the task writing messages from mWriterQueue to the socket.
+    //
+    // The task blocks on the queue rather than polling it so messages are written as soon as
+    // they're queued and an empty message stops it right away.
+    //
     void setupWritingThread() {
-        mSocketWriterThread = new Thread() {
-            @Override
-            public void run() {
-                while (mSocket.isConnected()) {
-                    byte[] messageToSend = null;
-                    try {
-                        messageToSend = mWriterQueue.poll(1000, TimeUnit.MILLISECONDS);
-                        if (messageToSend == null) {
-                            continue;
-                        }
-                        // An empty message is used to convey that the writing thread should be
-                        // shut down.
-                        if (messageToSend.length == 0) {
-                            Logger.d(TAG, "Empty message, shutting down writer");
-                            break;
-                        }
-                    } catch (InterruptedException e) {
-                        continue;
-                    }
+        mSocketWriterFuture = getIoEngine().submit(() -> {
+            while (mSocket.isConnected()) {
+                byte[] messageToSend;
+                try {
+                    messageToSend = mWriterQueue.take();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                // An empty message is used to convey that the writing thread should be
+                // shut down.
+                if (messageToSend.length == 0) {
+                    Logger.d(TAG, "Empty message, shutting down writer");
+                    break;
+                }
 
-                    try {
-                        mSocket.getOutputStream().write(messageToSend);
-                        reportMessageProgress(messageToSend.length, messageToSend.length);
-                    } catch (IOException e) {
-                        reportError(e);
-                        break;
-                    }
+                try {
+                    mSocket.getOutputStream().write(messageToSend);
+                    reportMessageSent();
+                    reportMessageProgress(messageToSend.length, messageToSend.length);
+                } catch (IOException e) {
+                    reportError(e);
+                    break;
                 }
             }
-        };
-        mSocketWriterThread.start();
+        });
     }
 
     @Override
     void close() {
         inhibitCallbacks();
-        if (mSocketWriterThread != null) {
+        if (mSocketWriterFuture != null) {
             mWriterQueue.add(new byte[0]);
             try {
-                mSocketWriterThread.join();
-            } catch (InterruptedException e) {
+                mSocketWriterFuture.get();
+            } catch (InterruptedException | ExecutionException e) {
                 Log.e(TAG, "Caught exception while joining writing thread: " + e);
             }
         }
@@ -274,13 +285,19 @@ class DataTransportTcp extends DataTransport {
         }
     }
 
-    @Override
-    void sendMessage(@NonNull byte[] data) {
+    // Prepends the 'GmDL' header and the big-endian length to a message.
+    static @NonNull byte[] encodeMessage(@NonNull byte[] data) {
         ByteBuffer bb = ByteBuffer.allocate(8 + data.length);
         bb.put("GmDL".getBytes(UTF_8));
         bb.putInt(data.length);
         bb.put(data);
-        mWriterQueue.add(bb.array());
+        return bb.array();
+    }
+
+    @Override
+    void sendMessage(@NonNull byte[] data) {
+        reportMessageSendStarted(data.length);
+        mWriterQueue.add(encodeMessage(data));
     }
 
     @Override
@@ -295,7 +312,7 @@ class DataTransportTcp extends DataTransport {
 
     @Override
     public @NonNull ConnectionMethod getConnectionMethod() {
-        return null;
+        return new ConnectionMethodTcp(mHost, mPort);
     }
 
     // Function to rewrite incoming messages, used only for testing to inject errors
@@ -0,0 +1,427 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Server accepting any number of connections using the TCP data transport.
+ *
+ * <p>Unlike {@link DataTransportTcp}, which accepts a single peer and uses blocking I/O, this
+ * multiplexes all connections on a single selector thread. Each accepted connection is handed
+ * to the application as its own {@link DataTransport} through
+ * {@link Listener#onSessionAccepted(DataTransport)} and is used like any other transport:
+ * set a listener, call {@link DataTransport#connect()} to start receiving messages and
+ * {@link DataTransport#close()} when done.
+ *
+ * <p>All reads go through a single direct buffer owned by the selector thread so an idle
+ * connection only costs its small framing state, and bytes are copied once into the message
+ * delivered to the session.
+ *
+ * <p>This is a private non-standardized data transport. It is only here for testing purposes,
+ * for example to drive a large number of simulated peers from one process.
+ */
+class DataTransportTcpServer {
+    private static final String TAG = "DataTransportTcpServer";
+
+    // Size of the buffer shared by all reads.
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Context mContext;
+    private final @DataTransport.Role int mRole;
+    private final DataTransportOptions mOptions;
+    private final Listener mListener;
+    private final Executor mListenerExecutor;
+    private DataTransportIoEngine mIoEngine = DataTransportIoEngine.getDefault();
+
+    // Work which must be done on the selector thread, e.g. changing interest sets.
+    private final Queue<Runnable> mPendingTasks = new ConcurrentLinkedQueue<>();
+    // Only used on the selector thread.
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private Selector mSelector;
+    private ServerSocketChannel mServerChannel;
+    private Future<?> mSelectorFuture;
+    private volatile boolean mStopped;
+
+    /**
+     * Creates a new server.
+     *
+     * @param context application context.
+     * @param role the role of the sessions created for accepted connections.
+     * @param options options used for the sessions.
+     * @param listener listener for new sessions and errors.
+     * @param executor a {@link Executor} to do the listener calls in.
+     */
+    DataTransportTcpServer(@NonNull Context context,
+                           @DataTransport.Role int role,
+                           @NonNull DataTransportOptions options,
+                           @NonNull Listener listener,
+                           @NonNull Executor executor) {
+        mContext = context;
+        mRole = role;
+        mOptions = options;
+        mListener = listener;
+        mListenerExecutor = executor;
+    }
+
+    /**
+     * Sets the engine the selector loop is run on.
+     *
+     * <p>This must be called before {@link #start(int)}.
+     *
+     * @param ioEngine the engine to use.
+     */
+    void setIoEngine(@NonNull DataTransportIoEngine ioEngine) {
+        mIoEngine = ioEngine;
+    }
+
+    /**
+     * Starts listening for connections.
+     *
+     * @param port the port to listen on or 0 to pick any free port.
+     * @throws IOException if the server socket could not be set up.
+     * @throws IllegalStateException if the server has already been started.
+     */
+    void start(int port) throws IOException {
+        if (mSelector != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        mSelector = Selector.open();
+        try {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.configureBlocking(false);
+            mServerChannel.bind(new InetSocketAddress(port));
+            mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+            mSelectorFuture = mIoEngine.submit(this::runSelectorLoop);
+        } catch (IOException | RuntimeException e) {
+            if (mServerChannel != null) {
+                mServerChannel.close();
+            }
+            mSelector.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the port the server is listening on.
+     *
+     * @return the port.
+     * @throws IllegalStateException if the server hasn't been started.
+     */
+    int getPort() {
+        if (mServerChannel == null) {
+            throw new IllegalStateException("Server not started");
+        }
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops the server.
+     *
+     * <p>This closes the server socket and all connections. Sessions which haven't been closed
+     * by the application will report {@link DataTransport.Listener#onDisconnected()}.
+     */
+    void stop() {
+        if (mSelector == null || mStopped) {
+            return;
+        }
+        mStopped = true;
+        mSelector.wakeup();
+        try {
+            mSelectorFuture.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Logger.e(TAG, "Caught exception while stopping selector loop", e);
+        }
+    }
+
+    private void runOnSelectorThread(@NonNull Runnable task) {
+        mPendingTasks.add(task);
+        mSelector.wakeup();
+    }
+
+    private void runSelectorLoop() {
+        try {
+            while (!mStopped) {
+                mSelector.select();
+                Runnable task;
+                while ((task = mPendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> iterator = mSelector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        acceptConnection();
+                        continue;
+                    }
+                    Session session = (Session) key.attachment();
+                    if (key.isReadable()) {
+                        session.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.onWritable();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            if (!mStopped) {
+                mListenerExecutor.execute(() -> mListener.onError(e));
+            }
+        } finally {
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.isValid() && key.attachment() instanceof Session) {
+                    Session session = (Session) key.attachment();
+                    session.closeChannel();
+                    session.reportDisconnected();
+                }
+            }
+            try {
+                mServerChannel.close();
+                mSelector.close();
+            } catch (IOException e) {
+                Logger.e(TAG, "Caught exception while shutting down", e);
+            }
+        }
+    }
+
+    private void acceptConnection() throws IOException {
+        SocketChannel channel = mServerChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Session session = new Session(channel);
+        // Nothing is read until the application has set up the session and called connect().
+        session.mKey = channel.register(mSelector, 0, session);
+        mListenerExecutor.execute(() -> mListener.onSessionAccepted(session));
+    }
+
+    /**
+     * Interface for listener.
+     */
+    interface Listener {
+
+        /**
+         * Called when a connection has been accepted.
+         *
+         * <p>The application should set a listener on the transport and then call
+         * {@link DataTransport#connect()} to start receiving messages.
+         *
+         * @param transport the transport for the connection.
+         */
+        void onSessionAccepted(@NonNull DataTransport transport);
+
+        /**
+         * Called if the server failed and stopped accepting connections.
+         *
+         * @param error the error.
+         */
+        void onError(@NonNull Throwable error);
+    }
+
+    // A single accepted connection. Except for sendMessage(), connect() and close() which
+    // post work to the selector thread, everything happens on the selector thread.
+    private class Session extends DataTransport {
+        private final SocketChannel mChannel;
+        private SelectionKey mKey;
+        private final Queue<ByteBuffer> mOutgoingMessages = new ConcurrentLinkedQueue<>();
+
+        // Framing state for the incoming message. While mMessage is null we're reading
+        // the header.
+        private final ByteBuffer mHeader = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+        private byte[] mMessage;
+        private int mMessageOffset;
+
+        Session(@NonNull SocketChannel channel) {
+            super(DataTransportTcpServer.this.mContext, DataTransportTcpServer.this.mRole,
+                    DataTransportTcpServer.this.mOptions);
+            mChannel = channel;
+        }
+
+        @Override
+        void setEDeviceKeyBytes(@NonNull byte[] encodedEDeviceKeyBytes) {
+            // Not used.
+        }
+
+        @Override
+        void connect() {
+            reportConnectionMethodReady();
+            reportConnected();
+            runOnSelectorThread(() -> {
+                if (mKey.isValid()) {
+                    mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+                }
+            });
+        }
+
+        @Override
+        void close() {
+            inhibitCallbacks();
+            runOnSelectorThread(this::closeChannel);
+        }
+
+        @Override
+        void sendMessage(@NonNull byte[] data) {
+            reportMessageSendStarted(data.length);
+            mOutgoingMessages.add(ByteBuffer.wrap(DataTransportTcp.encodeMessage(data)));
+            runOnSelectorThread(() -> {
+                if (mKey.isValid()) {
+                    mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+        }
+
+        @Override
+        void sendTransportSpecificTerminationMessage() {
+            reportError(new Error("Transport-specific termination message not supported"));
+        }
+
+        @Override
+        @NonNull String getMetricsName() {
+            return DataTransportTcpServer.class.getSimpleName();
+        }
+
+        @Override
+        boolean supportsTransportSpecificTerminationMessage() {
+            return false;
+        }
+
+        @Override
+        public @NonNull ConnectionMethod getConnectionMethod() {
+            Socket socket = mChannel.socket();
+            return new ConnectionMethodTcp(socket.getLocalAddress().getHostAddress(),
+                    socket.getLocalPort());
+        }
+
+        void closeChannel() {
+            mKey.cancel();
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Logger.e(TAG, "Caught exception while closing channel", e);
+            }
+        }
+
+        void onReadable() {
+            mReadBuffer.clear();
+            int numBytesRead;
+            try {
+                numBytesRead = mChannel.read(mReadBuffer);
+            } catch (IOException e) {
+                closeChannel();
+                reportError(e);
+                return;
+            }
+            if (numBytesRead == -1) {
+                closeChannel();
+                if (mMessage != null || mHeader.position() > 0) {
+                    reportError(new Error("End of stream in the middle of a message"));
+                } else {
+                    reportDisconnected();
+                }
+                return;
+            }
+            mReadBuffer.flip();
+            while (mReadBuffer.hasRemaining()) {
+                if (mMessage == null) {
+                    copyFromReadBuffer(mHeader);
+                    if (mHeader.hasRemaining()) {
+                        return;
+                    }
+                    if (!(mHeader.get(0) == 'G'
+                            && mHeader.get(1) == 'm'
+                            && mHeader.get(2) == 'D'
+                            && mHeader.get(3) == 'L')) {
+                        closeChannel();
+                        reportError(new Error("Unexpected header"));
+                        return;
+                    }
+                    int dataLen = mHeader.getInt(4);
+                    mHeader.clear();
+                    if (dataLen < 0 || dataLen > DataTransportTcp.MAX_MESSAGE_SIZE) {
+                        closeChannel();
+                        reportError(new Error("Maximum message size exceeded"));
+                        return;
+                    }
+                    mMessage = new byte[dataLen];
+                    mMessageOffset = 0;
+                }
+                int numBytes = Math.min(mReadBuffer.remaining(), mMessage.length - mMessageOffset);
+                mReadBuffer.get(mMessage, mMessageOffset, numBytes);
+                mMessageOffset += numBytes;
+                if (mMessageOffset == mMessage.length) {
+                    byte[] message = mMessage;
+                    mMessage = null;
+                    reportMessageReceived(message);
+                }
+            }
+        }
+
+        // Copies as much as fits from mReadBuffer into the given buffer.
+        private void copyFromReadBuffer(@NonNull ByteBuffer destination) {
+            int limit = mReadBuffer.limit();
+            mReadBuffer.limit(mReadBuffer.position()
+                    + Math.min(mReadBuffer.remaining(), destination.remaining()));
+            destination.put(mReadBuffer);
+            mReadBuffer.limit(limit);
+        }
+
+        void onWritable() {
+            ByteBuffer message;
+            while ((message = mOutgoingMessages.peek()) != null) {
+                try {
+                    mChannel.write(message);
+                } catch (IOException e) {
+                    closeChannel();
+                    reportError(e);
+                    return;
+                }
+                if (message.hasRemaining()) {
+                    // Socket buffer is full, continue when it's writable again.
+                    return;
+                }
+                mOutgoingMessages.poll();
+                reportMessageSent();
+                reportMessageProgress(message.capacity(), message.capacity());
+            }
+            mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+}
@@ -496,6 +496,7 @@ class DataTransportWifiAware extends DataTransport {
 
     @Override
     public void sendMessage(@NonNull byte[] data) {
+        reportMessageSendStarted(data.length);
         mWriterQueue.add(data);
     }
 
@@ -540,6 +541,7 @@ class DataTransportWifiAware extends DataTransport {
                 }
                 pros.write(messageToSend);
                 pros.flush();
+                reportMessageSent();
 
             } catch (IOException e) {
                 Log.d(TAG, "Caught exception while writing isListener=" + isListener);
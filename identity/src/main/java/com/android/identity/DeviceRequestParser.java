@@ -125,9 +125,18 @@ public final class DeviceRequestParser {
         if (mEncodedSessionTranscript == null) {
             throw new IllegalStateException("sessionTranscript has not been set");
         }
+        TransactionMetrics.Span span = TransactionMetrics.getDefault().startSpan(
+                TransactionMetrics.PHASE_PARSE_REQUEST, null);
+        span.addBytes(mEncodedDeviceRequest.length);
         DataItem sessionTranscript = Util.cborDecode(mEncodedSessionTranscript);
         DeviceRequestParser.DeviceRequest request = new DeviceRequestParser.DeviceRequest();
-        request.parse(mEncodedDeviceRequest, sessionTranscript, mSkipReaderAuthParseAndCheck);
+        try {
+            request.parse(mEncodedDeviceRequest, sessionTranscript, mSkipReaderAuthParseAndCheck);
+        } catch (RuntimeException e) {
+            span.endWithError(e.getClass().getSimpleName());
+            throw e;
+        }
+        span.end();
         return request;
     }
 
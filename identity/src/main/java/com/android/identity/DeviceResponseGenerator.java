@@ -36,6 +36,9 @@ public final class DeviceResponseGenerator {
 
     private final ArrayBuilder<CborBuilder> mDocumentsBuilder;
     @Constants.DeviceResponseStatus private final long mStatusCode;
+    private final long mStartNanos;
+    // Time spent building documents, reported together with generate() as one phase.
+    private long mBuildNanos;
 
     /**
      * Creates a new {@link DeviceResponseGenerator}.
@@ -49,6 +52,7 @@ public final class DeviceResponseGenerator {
     public DeviceResponseGenerator(@Constants.DeviceResponseStatus long statusCode) {
         mStatusCode = statusCode;
         mDocumentsBuilder = new CborBuilder().addArray();
+        mStartNanos = System.nanoTime();
     }
 
     /**
@@ -101,6 +105,7 @@ public final class DeviceResponseGenerator {
             @NonNull Map<String, List<byte[]>> issuerSignedData,
             @Nullable Map<String, Map<String, Long>> errors,
             @NonNull byte[] encodedIssuerAuth) {
+        long startNanos = System.nanoTime();
 
         CborBuilder issuerNameSpacesBuilder = new CborBuilder();
         MapBuilder<CborBuilder> insOuter = issuerNameSpacesBuilder.addMap();
@@ -165,6 +170,7 @@ public final class DeviceResponseGenerator {
             mapBuilder.put(new UnicodeString("errors"), errorsBuilder.build().get(0));
         }
         mDocumentsBuilder.add(builder.build().get(0));
+        mBuildNanos += System.nanoTime() - startNanos;
         return this;
     }
 
@@ -207,6 +213,43 @@ public final class DeviceResponseGenerator {
         return this;
     }
 
+    /**
+     * Like {@link #addDocument(String, CredentialDataResult, Map, Map, byte[])} but gets the
+     * issuer-signed mapping and issuerAuth from the static authentication data in the given
+     * {@link CredentialDataResult}.
+     *
+     * <p>The static authentication data must be in the format specified by
+     * {@link Utility#encodeStaticAuthData(Map, byte[])}. Decoded static authentication data
+     * is cached so this is faster than decoding it using
+     * {@link Utility#decodeStaticAuthData(byte[])} for every presentation.
+     *
+     * @param docType              The type of the document to send.
+     * @param credentialDataResult The device- and issuer-signed data elements to include.
+     * @param errors               A map with the errors for each requested data element.
+     * @return                     the generator.
+     * @throws IllegalArgumentException if the static authentication data is not in the
+     *                                  expected format.
+     */
+    public @NonNull DeviceResponseGenerator addDocument(@NonNull String docType,
+            @NonNull CredentialDataResult credentialDataResult,
+            @Nullable Map<String, Map<String, Long>> errors) {
+
+        StaticAuthDataCache.Entry staticAuthData = StaticAuthDataCache.getDefault().get(
+                credentialDataResult.getStaticAuthenticationData());
+        Map<String, List<byte[]>> issuerSignedMappingWithData =
+                staticAuthData.mergeIssuerSigned(credentialDataResult.getIssuerSignedEntries());
+
+        addDocument(docType,
+                credentialDataResult.getDeviceNameSpaces(),
+                credentialDataResult.getDeviceSignature(),
+                credentialDataResult.getDeviceMac(),
+                issuerSignedMappingWithData,
+                errors,
+                staticAuthData.getEncodedIssuerAuth());
+
+        return this;
+    }
+
 
     /**
      * Builds the <code>DeviceResponse</code> CBOR.
@@ -214,6 +257,7 @@ public final class DeviceResponseGenerator {
      * @return the bytes of <code>DeviceResponse</code> CBOR.
      */
     public @NonNull byte[] generate() {
+        long startNanos = System.nanoTime();
         CborBuilder deviceResponseBuilder = new CborBuilder();
         MapBuilder<CborBuilder> mapBuilder = deviceResponseBuilder.addMap();
         mapBuilder.put("version", "1.0");
@@ -225,6 +269,11 @@ public final class DeviceResponseGenerator {
         mapBuilder.put("status", mStatusCode);
         mapBuilder.end();
 
-        return Util.cborEncode(deviceResponseBuilder.build().get(0));
+        byte[] encodedDeviceResponse = Util.cborEncode(deviceResponseBuilder.build().get(0));
+        TransactionMetrics.getDefault().report(new TransactionMetrics.Event(
+                TransactionMetrics.PHASE_GENERATE_RESPONSE, null, mStartNanos,
+                mBuildNanos + System.nanoTime() - startNanos, encodedDeviceResponse.length, 0,
+                null));
+        return encodedDeviceResponse;
     }
 }
@@ -32,6 +32,9 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
 
 import javax.crypto.SecretKey;
 
@@ -50,6 +53,7 @@ public final class DeviceResponseParser {
     private byte[] mEncodedDeviceResponse;
     private byte[] mEncodedSessionTranscript;
     private PrivateKey mEReaderKey;
+    private Executor mExecutor;
 
     /**
      * Constructs a {@link DeviceResponseParser}.
@@ -60,6 +64,9 @@ public final class DeviceResponseParser {
     /**
      * Sets the bytes of the <code>DeviceResponse</code> CBOR.
      *
+     * <p>The parsed {@link Document} objects refer to the given array rather than a copy of it
+     * so it must not be modified afterwards.
+     *
      * @param encodedDeviceResponse the bytes of <code>DeviceResponse</code>.
      * @return the <code>DeviceResponseParser</code>.
      */
@@ -95,6 +102,23 @@ public final class DeviceResponseParser {
         return this;
     }
 
+    /**
+     * Sets an {@link Executor} to verify documents on.
+     *
+     * <p>By default documents are verified one after the other on the calling thread. If an
+     * executor is set, the issuer signature check and the remaining checks for each
+     * document (MSO digests and device authentication) are run as independent tasks on the
+     * executor and {@link #parse()} waits for all of them to complete. This speeds up
+     * verification of responses containing several documents on multi-core devices.
+     *
+     * @param executor the executor to use or {@code null} to verify on the calling thread.
+     * @return the <code>DeviceResponseParser</code>.
+     */
+    public @NonNull DeviceResponseParser setExecutor(@Nullable Executor executor) {
+        mExecutor = executor;
+        return this;
+    }
+
     /**
      * Parses the device response.
      *
@@ -127,7 +151,8 @@ public final class DeviceResponseParser {
         // mEReaderKey may be omitted if the response is using ECDSA instead of MAC
         // for device authentiation.
         DeviceResponse response = new DeviceResponse();
-        response.parse(mEncodedDeviceResponse, mEncodedSessionTranscript, mEReaderKey);
+        response.parse(mEncodedDeviceResponse, mEncodedSessionTranscript, mEReaderKey,
+                mExecutor);
         return response;
     }
 
@@ -189,23 +214,11 @@ public final class DeviceResponseParser {
             }
         }
 
-        // Returns the DeviceKey from the MSO
+        // Checks the issuer signature, this doesn't depend on anything else in the document
+        // so it can be done in parallel with parseIssuerSigned().
         //
         private @NonNull
-        PublicKey parseIssuerSigned(
-                String expectedDocType,
-                DataItem issuerSigned,
-                Document.Builder builder) {
-
-            MessageDigest digester;
-            try {
-                digester = MessageDigest.getInstance("SHA-256");
-            } catch (NoSuchAlgorithmException e) {
-                throw new IllegalStateException("Failed creating digester");
-            }
-
-            DataItem issuerAuthDataItem = Util.cborMapExtract(issuerSigned, "issuerAuth");
-
+        Pair<List<X509Certificate>, Boolean> checkIssuerSignature(DataItem issuerAuthDataItem) {
             List<X509Certificate> issuerAuthorityCertChain = Util.coseSign1GetX5Chain(
                     issuerAuthDataItem);
             if (issuerAuthorityCertChain.size() < 1) {
@@ -217,8 +230,39 @@ public final class DeviceResponseParser {
             boolean issuerSignedAuthenticated = Util.coseSign1CheckSignature(
                     issuerAuthDataItem, null, issuerAuthorityKey);
             Logger.d(TAG, "issuerSignedAuthenticated: " + issuerSignedAuthenticated);
-            builder.setIssuerSignedAuthenticated(issuerSignedAuthenticated);
-            builder.setIssuerCertificateChain(issuerAuthorityCertChain);
+            return Pair.create(issuerAuthorityCertChain, issuerSignedAuthenticated);
+        }
+
+        // Decodes the data item at the given offset. Only used for the small parts of the
+        // response which are needed in their entirety, e.g. issuerAuth and deviceSigned.
+        //
+        private static @NonNull
+        DataItem decodeAt(byte[] data, int offset, int end) {
+            return Util.cborDecode(Arrays.copyOfRange(data, offset,
+                    CborView.skip(data, offset, end)));
+        }
+
+        // Returns the DeviceKey from the MSO
+        //
+        // The IssuerSignedItems are never decoded into DataItem trees. Digests are computed
+        // over the exact bytes of each IssuerSignedItemBytes in the response and element values
+        // are handed to the builder as slices of the response, to be decoded on demand.
+        //
+        private @NonNull
+        PublicKey parseIssuerSigned(
+                String expectedDocType,
+                DataItem issuerAuthDataItem,
+                byte[] data,
+                int issuerSignedOffset,
+                int end,
+                Document.Builder builder) {
+
+            MessageDigest digester;
+            try {
+                digester = CryptoProvider.getDefault().getMessageDigest("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("Failed creating digester");
+            }
 
             DataItem mobileSecurityObjectBytes = Util.cborDecode(
                     Util.coseSign1GetData(issuerAuthDataItem));
@@ -232,32 +276,52 @@ public final class DeviceResponseParser {
 
             parseValidityInfo(mobileSecurityObject, builder);
 
-            DataItem nameSpaces = Util.cborMapExtractMap(issuerSigned, "nameSpaces");
-            Collection<String> nameSpacesKeys = Util.cborMapExtractMapStringKeys(nameSpaces);
-            for (String nameSpace : nameSpacesKeys) {
+            int nameSpacesOffset = CborView.getMapValue(data, issuerSignedOffset, end,
+                    "nameSpaces");
+            int[] nameSpacesOffsets = CborView.getChildOffsets(data, nameSpacesOffset, end);
+            for (int n = 0; n < nameSpacesOffsets.length; n += 2) {
+                String nameSpace = CborView.readTextString(data, nameSpacesOffsets[n], end);
                 Map<Long, byte[]> innerDigestMapping = digestMapping.get(nameSpace);
                 if (innerDigestMapping == null) {
                     throw new IllegalArgumentException("No digestID MSO entry for namespace "
                             + nameSpace);
                 }
-                List<DataItem> elems = Util.cborMapExtractArray(nameSpaces, nameSpace);
-                for (DataItem elem : elems) {
-                    if (!(elem.hasTag() && elem.getTag().getValue() == 24
-                            && (elem instanceof ByteString))) {
+                int elemsOffset = nameSpacesOffsets[n + 1];
+                if (CborView.getMajorType(data, elemsOffset, end) != CborView.MAJOR_TYPE_ARRAY) {
+                    throw new IllegalArgumentException("Expected array for namespace "
+                            + nameSpace);
+                }
+                for (int elemOffset : CborView.getChildOffsets(data, elemsOffset, end)) {
+                    int elemEnd = CborView.skip(data, elemOffset, end);
+                    int itemOffset;
+                    try {
+                        itemOffset = CborView.getTaggedEncodedCborOffset(data, elemOffset,
+                                elemEnd);
+                    } catch (IllegalArgumentException e) {
+                        throw new IllegalArgumentException(
+                                "issuerSignedItemBytes is not a tagged ByteString", e);
+                    }
+                    // The embedded IssuerSignedItem ends where the tagged bstr ends.
+                    if (CborView.skip(data, itemOffset, elemEnd) != elemEnd) {
                         throw new IllegalArgumentException(
-                                "issuerSignedItemBytes is not a tagged ByteString");
+                                "Trailing data in issuerSignedItemBytes");
                     }
-                    // We need the encoded representation with the tag.
-                    byte[] encodedIssuerSignedItem = ((ByteString) elem).getBytes();
-                    byte[] encodedIssuerSignedItemBytes = Util.cborEncode(
-                            Util.cborBuildTaggedByteString(encodedIssuerSignedItem));
-                    byte[] expectedDigest = digester.digest(encodedIssuerSignedItemBytes);
-
-                    DataItem issuerSignedItem = Util.cborExtractTaggedAndEncodedCbor(elem);
-                    String elementName = Util.cborMapExtractString(issuerSignedItem,
-                            "elementIdentifier");
-                    DataItem elementValue = Util.cborMapExtract(issuerSignedItem, "elementValue");
-                    long digestId = Util.cborMapExtractNumber(issuerSignedItem, "digestID");
+                    digester.update(data, elemOffset, elemEnd - elemOffset);
+                    byte[] expectedDigest = digester.digest();
+
+                    // Find the offsets of the keys and values once for all three lookups.
+                    int[] itemChildOffsets = CborView.getMapChildOffsets(data, itemOffset,
+                            elemEnd);
+                    String elementName = CborView.readTextString(data,
+                            CborView.getMapValue(data, itemChildOffsets, elemEnd,
+                                    "elementIdentifier"),
+                            elemEnd);
+                    int elementValueOffset = CborView.getMapValue(data, itemChildOffsets,
+                            elemEnd, "elementValue");
+                    int elementValueEnd = CborView.skip(data, elementValueOffset, elemEnd);
+                    long digestId = CborView.readUnsignedInteger(data,
+                            CborView.getMapValue(data, itemChildOffsets, elemEnd, "digestID"),
+                            elemEnd);
 
                     byte[] digest = innerDigestMapping.get(digestId);
                     if (digest == null) {
@@ -266,7 +330,7 @@ public final class DeviceResponseParser {
                     }
                     boolean digestMatch = Arrays.equals(expectedDigest, digest);
                     builder.addIssuerEntry(nameSpace, elementName,
-                            Util.cborEncode(elementValue),
+                            data, elementValueOffset, elementValueEnd - elementValueOffset,
                             digestMatch);
                 }
             }
@@ -352,43 +416,140 @@ public final class DeviceResponseParser {
             }
         }
 
+        // Parses everything in a document except for the issuer signature.
+        //
+        private @NonNull
+        Document.Builder parseDocument(byte[] data,
+                                       int documentOffset,
+                                       int end,
+                                       DataItem issuerAuthDataItem,
+                                       byte[] encodedSessionTranscript,
+                                       PrivateKey eReaderKey) {
+            int[] documentChildOffsets = CborView.getMapChildOffsets(data, documentOffset, end);
+            String docType = CborView.readTextString(data,
+                    CborView.getMapValue(data, documentChildOffsets, end, "docType"), end);
+            Document.Builder builder = new Document.Builder(docType);
+
+            int issuerSignedOffset = CborView.getMapValue(data, documentChildOffsets, end,
+                    "issuerSigned");
+            PublicKey deviceKey = parseIssuerSigned(docType, issuerAuthDataItem,
+                    data, issuerSignedOffset, end, builder);
+            builder.setDeviceKey(deviceKey);
+
+            DataItem deviceSigned = decodeAt(data,
+                    CborView.getMapValue(data, documentChildOffsets, end, "deviceSigned"),
+                    end);
+            parseDeviceSigned(deviceSigned, docType, encodedSessionTranscript, deviceKey,
+                    eReaderKey, builder);
+            return builder;
+        }
+
+        // Decodes issuerAuth from a document, this is small compared to the data elements.
+        //
+        private static @NonNull
+        DataItem getIssuerAuth(byte[] data, int documentOffset, int end) {
+            int issuerSignedOffset = CborView.getMapValue(data, documentOffset, end,
+                    "issuerSigned");
+            return decodeAt(data,
+                    CborView.getMapValue(data, issuerSignedOffset, end, "issuerAuth"), end);
+        }
+
+        private static @NonNull
+        Document buildDocument(Document.Builder builder,
+                               Pair<List<X509Certificate>, Boolean> issuerSignatureResult) {
+            builder.setIssuerCertificateChain(issuerSignatureResult.first);
+            builder.setIssuerSignedAuthenticated(issuerSignatureResult.second);
+            return builder.build();
+        }
+
+        // Waits for a task and rethrows whatever it threw.
+        //
+        private static <T> T getTaskResult(FutureTask<T> task) {
+            try {
+                return task.get();
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("Error verifying document", cause);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while verifying document", e);
+            }
+        }
+
         void parse(byte[] encodedDeviceResponse,
                 byte[] encodedSessionTranscript,
-                PrivateKey eReaderKey) {
+                PrivateKey eReaderKey,
+                @Nullable Executor executor) {
             mResultDocuments = null;
 
-            DataItem deviceResponse = Util.cborDecode(encodedDeviceResponse);
+            // Navigate the response in place rather than decoding it in full, only the parts
+            // needed as a whole are decoded. See parseIssuerSigned().
+            byte[] data = encodedDeviceResponse;
+            int end = data.length;
+            if (CborView.skip(data, 0, end) != end) {
+                throw new IllegalArgumentException("Unexpected data after DeviceResponse");
+            }
 
             ArrayList<Document> documents = new ArrayList<>();
 
-            mVersion = Util.cborMapExtractString(deviceResponse, "version");
+            int[] responseChildOffsets = CborView.getMapChildOffsets(data, 0, end);
+            mVersion = CborView.readTextString(data,
+                    CborView.getMapValue(data, responseChildOffsets, end, "version"), end);
             if (mVersion.compareTo("1.0") < 0) {
                 throw new IllegalArgumentException("Given version '" + mVersion + "' not >= '1.0'");
             }
 
-            if (Util.cborMapHasKey(deviceResponse, "documents")) {
-                List<DataItem> documentsDataItem = Util.cborMapExtractArray(deviceResponse,
-                        "documents");
-                for (DataItem documentDataItem : documentsDataItem) {
-                    String docType = Util.cborMapExtractString(documentDataItem, "docType");
-                    Document.Builder builder = new Document.Builder(
-                            docType);
-
-                    DataItem issuerSigned = Util.cborMapExtractMap(documentDataItem,
-                            "issuerSigned");
-                    PublicKey deviceKey = parseIssuerSigned(docType, issuerSigned, builder);
-                    builder.setDeviceKey(deviceKey);
-
-                    DataItem deviceSigned = Util.cborMapExtractMap(documentDataItem,
-                            "deviceSigned");
-                    parseDeviceSigned(deviceSigned, docType, encodedSessionTranscript, deviceKey,
-                            eReaderKey, builder);
-
-                    documents.add(builder.build());
+            int documentsOffset = CborView.findMapValue(data, responseChildOffsets, end,
+                    "documents");
+            if (documentsOffset >= 0) {
+                if (CborView.getMajorType(data, documentsOffset, end)
+                        != CborView.MAJOR_TYPE_ARRAY) {
+                    throw new IllegalArgumentException("Expected array for documents");
+                }
+                int[] documentOffsets = CborView.getChildOffsets(data, documentsOffset, end);
+                if (executor == null) {
+                    for (int documentOffset : documentOffsets) {
+                        DataItem issuerAuth = getIssuerAuth(data, documentOffset, end);
+                        Pair<List<X509Certificate>, Boolean> issuerSignatureResult =
+                                checkIssuerSignature(issuerAuth);
+                        Document.Builder builder = parseDocument(data, documentOffset, end,
+                                issuerAuth, encodedSessionTranscript, eReaderKey);
+                        documents.add(buildDocument(builder, issuerSignatureResult));
+                    }
+                } else {
+                    // Start all tasks before waiting for any of them. Only this thread
+                    // blocks so this works with executors of any size, including direct ones.
+                    List<FutureTask<Pair<List<X509Certificate>, Boolean>>> signatureTasks =
+                            new ArrayList<>();
+                    List<FutureTask<Document.Builder>> documentTasks = new ArrayList<>();
+                    for (int documentOffset : documentOffsets) {
+                        DataItem issuerAuth = getIssuerAuth(data, documentOffset, end);
+                        FutureTask<Pair<List<X509Certificate>, Boolean>> signatureTask =
+                                new FutureTask<>(() -> checkIssuerSignature(issuerAuth));
+                        FutureTask<Document.Builder> documentTask =
+                                new FutureTask<>(() -> parseDocument(data, documentOffset, end,
+                                        issuerAuth, encodedSessionTranscript, eReaderKey));
+                        signatureTasks.add(signatureTask);
+                        documentTasks.add(documentTask);
+                        executor.execute(signatureTask);
+                        executor.execute(documentTask);
+                    }
+                    for (int n = 0; n < documentTasks.size(); n++) {
+                        Pair<List<X509Certificate>, Boolean> issuerSignatureResult =
+                                getTaskResult(signatureTasks.get(n));
+                        Document.Builder builder = getTaskResult(documentTasks.get(n));
+                        documents.add(buildDocument(builder, issuerSignatureResult));
+                    }
                 }
             }
 
-            mResultStatus = Util.cborMapExtractNumber(deviceResponse, "status");
+            mResultStatus = CborView.readUnsignedInteger(data,
+                    CborView.getMapValue(data, responseChildOffsets, end, "status"), end);
 
             // TODO: maybe also parse + convey "documentErrors" and "errors" keys in
             //  DeviceResponse map.
@@ -446,14 +607,51 @@ public final class DeviceResponseParser {
     public static class Document {
         static final String TAG = "Document";
 
+        // The encoded value of a data element. For issuer-signed data elements this is a
+        // slice of the DeviceResponse which is only copied out when asked for.
         static class EntryData {
-            byte[] mValue;
+            private final byte[] mSource;
+            private final int mOffset;
+            private final int mLength;
+            private byte[] mValue;
             boolean mDigestMatch;
 
             EntryData(byte[] value, boolean digestMatch) {
+                this(value, 0, value.length, digestMatch);
                 this.mValue = value;
+            }
+
+            EntryData(byte[] source, int offset, int length, boolean digestMatch) {
+                this.mSource = source;
+                this.mOffset = offset;
+                this.mLength = length;
                 this.mDigestMatch = digestMatch;
             }
+
+            synchronized byte[] getValue() {
+                if (mValue == null) {
+                    mValue = Arrays.copyOfRange(mSource, mOffset, mOffset + mLength);
+                }
+                return mValue;
+            }
+
+            // Untagged strings are decoded straight from the source, anything else goes
+            // through the DataItem decoder.
+            String getString() {
+                if (CborView.getMajorType(mSource, mOffset, mOffset + mLength)
+                        == CborView.MAJOR_TYPE_TEXT_STRING) {
+                    return CborView.readTextString(mSource, mOffset, mOffset + mLength);
+                }
+                return Util.cborDecodeString(getValue());
+            }
+
+            byte[] getByteString() {
+                if (CborView.getMajorType(mSource, mOffset, mOffset + mLength)
+                        == CborView.MAJOR_TYPE_BYTE_STRING) {
+                    return CborView.readByteString(mSource, mOffset, mOffset + mLength);
+                }
+                return Util.cborDecodeByteString(getValue());
+            }
         }
 
         String mDocType;
@@ -594,7 +792,7 @@ public final class DeviceResponseParser {
                 throw new IllegalArgumentException("Namespace not in data");
             }
             EntryData entryData = innerMap.get(name);
-            if (entryData == null || entryData.mValue == null) {
+            if (entryData == null) {
                 throw new IllegalArgumentException("Entry not in data");
             }
             return entryData.mDigestMatch;
@@ -614,6 +812,13 @@ public final class DeviceResponseParser {
          * Gets the raw CBOR data for the value of given data element in a given namespace in
          * issuer-signed data.
          *
+         * <p>The returned bytes are exactly as they appear in the <code>IssuerSignedItem</code>
+         * in the response, i.e. the bytes covered by the digest in the MSO. Earlier versions
+         * returned the value decoded and encoded again, which is the same except for values
+         * that weren't in preferred serialization in the response, for example integers or
+         * lengths not encoded in the shortest form or indefinite-length strings. Callers needing
+         * that can decode and encode the returned value again.
+         *
          * @param namespaceName the name of the namespace to get a data element value from.
          * @param name the name of the data element in the given namespace.
          * @return the encoded CBOR data for the data element
@@ -621,15 +826,20 @@ public final class DeviceResponseParser {
          */
         public @NonNull byte[] getIssuerEntryData(@NonNull String namespaceName,
                 @NonNull String name) {
+            return getIssuerEntry(namespaceName, name).getValue();
+        }
+
+        private @NonNull EntryData getIssuerEntry(@NonNull String namespaceName,
+                @NonNull String name) {
             Map<String, EntryData> innerMap = mIssuerData.get(namespaceName);
             if (innerMap == null) {
                 throw new IllegalArgumentException("Namespace not in data");
             }
             EntryData entryData = innerMap.get(name);
-            if (entryData == null || entryData.mValue == null) {
+            if (entryData == null) {
                 throw new IllegalArgumentException("Entry not in data");
             }
-            return entryData.mValue;
+            return entryData;
         }
 
         /**
@@ -643,8 +853,7 @@ public final class DeviceResponseParser {
          */
         public @NonNull String getIssuerEntryString(@NonNull String namespaceName,
                 @NonNull String name) {
-            byte[] value = getIssuerEntryData(namespaceName, name);
-            return Util.cborDecodeString(value);
+            return getIssuerEntry(namespaceName, name).getString();
         }
 
         /**
@@ -658,8 +867,7 @@ public final class DeviceResponseParser {
          */
         public @NonNull byte[] getIssuerEntryByteString(@NonNull String namespaceName,
                 @NonNull String name) {
-            byte[] value = getIssuerEntryData(namespaceName, name);
-            return Util.cborDecodeByteString(value);
+            return getIssuerEntry(namespaceName, name).getByteString();
         }
 
         /**
@@ -771,11 +979,11 @@ public final class DeviceResponseParser {
             if (innerMap == null) {
                 throw new IllegalArgumentException("Namespace not in data");
             }
-            byte[] value = innerMap.get(name).mValue;
-            if (value == null) {
+            EntryData entryData = innerMap.get(name);
+            if (entryData == null) {
                 throw new IllegalArgumentException("Entry not in data");
             }
-            return value;
+            return entryData.getValue();
         }
 
         /**
@@ -860,14 +1068,15 @@ public final class DeviceResponseParser {
                 this.mResult.mDocType = docType;
             }
 
-            Builder addIssuerEntry(String namespaceName, String name, byte[] value,
-                    boolean digestMatch) {
+            // The value is the given slice of source which is referenced, not copied.
+            Builder addIssuerEntry(String namespaceName, String name, byte[] source, int offset,
+                    int length, boolean digestMatch) {
                 Map<String, EntryData> innerMap = mResult.mIssuerData.get(namespaceName);
                 if (innerMap == null) {
                     innerMap = new LinkedHashMap<>();
                     mResult.mIssuerData.put(namespaceName, innerMap);
                 }
-                innerMap.put(name, new EntryData(value, digestMatch));
+                innerMap.put(name, new EntryData(source, offset, length, digestMatch));
                 if (!digestMatch) {
                     mResult.mNumIssuerEntryDigestMatchFailures += 1;
                 }
@@ -82,6 +82,8 @@ public class DeviceRetrievalHelper {
     Listener mListener;
     Executor mListenerExecutor;
     DataTransport mTransport;
+    TransactionMetrics mMetrics;
+    private TransactionMetrics.Span mConnectSpan;
 
     boolean mReceivedSessionTerminated;
 
@@ -151,6 +153,9 @@ public class DeviceRetrievalHelper {
             @Override
             public void onConnected() {
                 Logger.d(TAG, "onConnected");
+                if (mConnectSpan != null) {
+                    mConnectSpan.end();
+                }
                 if (mReverseEngagementReaderEngagement != null) {
                     Logger.d(TAG, "onConnected for reverse engagement");
 
@@ -181,6 +186,9 @@ public class DeviceRetrievalHelper {
 
             @Override
             public void onError(@NonNull Throwable error) {
+                if (mConnectSpan != null) {
+                    mConnectSpan.endWithError(error.getClass().getSimpleName());
+                }
                 mTransport.close();
                 reportError(error);
             }
@@ -220,6 +228,8 @@ public class DeviceRetrievalHelper {
             byte[] encodedEDeviceKeyBytes = Util.cborEncode(Util.cborBuildTaggedByteString(
                     Util.cborEncode(Util.cborBuildCoseKey(mEphemeralKeyPair.getPublic()))));
             mTransport.setEDeviceKeyBytes(encodedEDeviceKeyBytes);
+            mConnectSpan = mMetrics.startSpan(TransactionMetrics.PHASE_TRANSPORT_CONNECT,
+                    mTransport.getMetricsName());
             mTransport.connect();
         }
 
@@ -230,6 +240,9 @@ public class DeviceRetrievalHelper {
             return;
         }
 
+        TransactionMetrics.Span span =
+                mMetrics.startSpan(TransactionMetrics.PHASE_SESSION_ESTABLISHMENT, null);
+
         // For reverse engagement, we get EReaderKeyBytes via Reverse Engagement...
         byte[] encodedEReaderKey = null;
         if (mReverseEngagementEncodedEReaderKey != null) {
@@ -257,6 +270,7 @@ public class DeviceRetrievalHelper {
         mSessionEncryption = new SessionEncryptionDevice(mEphemeralKeyPair.getPrivate(),
                 mEReaderKey,
                 mEncodedSessionTranscript);
+        mSessionEncryption.setMetrics(mMetrics);
 
         if (mAlternateDeviceEngagement != null && mAlternateHandover != null) {
             mEncodedAlternateSessionTranscript = Util.cborEncode(new CborBuilder()
@@ -269,7 +283,9 @@ public class DeviceRetrievalHelper {
             mAlternateSessionEncryption = new SessionEncryptionDevice(mEphemeralKeyPair.getPrivate(),
                     mEReaderKey,
                     mEncodedAlternateSessionTranscript);
+            mAlternateSessionEncryption.setMetrics(mMetrics);
         }
+        span.addBytes(data.length).end();
     }
 
     private void processMessageReceived(@NonNull byte[] data) {
@@ -649,6 +665,19 @@ public class DeviceRetrievalHelper {
             return this;
         }
 
+        /**
+         * Sets the object to report transaction metrics to.
+         *
+         * <p>If not set, {@link TransactionMetrics#getDefault()} is used.
+         *
+         * @param metrics the object to report metrics to.
+         * @return the builder.
+         */
+        public @NonNull Builder setMetrics(@NonNull TransactionMetrics metrics) {
+            mHelper.mMetrics = metrics;
+            return this;
+        }
+
         /**
          * Builds the {@link DeviceRetrievalHelper} and starts presentation.
          *
@@ -659,6 +688,10 @@ public class DeviceRetrievalHelper {
             if (mHelper.mTransport == null) {
                 throw new IllegalStateException("Neither forward nor reverse engagement configured");
             }
+            if (mHelper.mMetrics == null) {
+                mHelper.mMetrics = TransactionMetrics.getDefault();
+            }
+            mHelper.mTransport.setMetrics(mHelper.mMetrics);
             mHelper.start();
             return mHelper;
         }
@@ -38,9 +38,27 @@ public class HardwarePresentationSession extends PresentationSession {
         mSession.setSessionTranscript(sessionTranscript);
     }
 
-    @Nullable
     @Override
-    public CredentialDataResult getCredentialData(@NonNull String credentialName, @NonNull CredentialDataRequest request) throws NoAuthenticationKeyAvailableException, InvalidReaderSignatureException, InvalidRequestMessageException, EphemeralPublicKeyNotFoundException {
+    public @Nullable CredentialDataResult getCredentialData(@NonNull String credentialName,
+                                                            @NonNull CredentialDataRequest request)
+            throws NoAuthenticationKeyAvailableException, InvalidReaderSignatureException,
+            InvalidRequestMessageException, EphemeralPublicKeyNotFoundException {
+        TransactionMetrics.Span span = TransactionMetrics.getDefault().startSpan(
+                TransactionMetrics.PHASE_GET_CREDENTIAL_DATA, null);
+        try {
+            CredentialDataResult result = getCredentialDataInternal(credentialName, request);
+            span.end();
+            return result;
+        } catch (IdentityCredentialException | RuntimeException e) {
+            span.endWithError(e.getClass().getSimpleName());
+            throw e;
+        }
+    }
+
+    private @Nullable CredentialDataResult getCredentialDataInternal(
+            @NonNull String credentialName, @NonNull CredentialDataRequest request)
+            throws NoAuthenticationKeyAvailableException, InvalidReaderSignatureException,
+            InvalidRequestMessageException, EphemeralPublicKeyNotFoundException {
 
         android.security.identity.CredentialDataRequest platformRequest =
                 request.getAsPlatformRequest();
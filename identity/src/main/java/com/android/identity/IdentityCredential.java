@@ -27,6 +27,7 @@ import java.security.KeyPair;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -442,6 +443,39 @@ public abstract class IdentityCredential {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Store authentication data for several dynamic authentication keys at once.
+     *
+     * <p>This is equivalent to calling
+     * {@link #storeStaticAuthenticationData(X509Certificate, Calendar, byte[])} for each
+     * given certification, or the deprecated variant without expiration date for those where
+     * {@link AuthenticationKeyCertification#getExpirationDate()} is {@code null}, but
+     * implementations may do it more efficiently. For example, credentials not backed by
+     * Identity Credential hardware look up all keys in a single pass and persist the
+     * credential only once. They also check that all keys are known before storing
+     * anything.
+     *
+     * @param certifications the certifications for keys returned by
+     *                       {@link #getAuthKeysNeedingCertification()}.
+     * @throws UnknownAuthenticationKeyException If one of the authentication keys is not
+     *                                           recognized.
+     */
+    @SuppressWarnings("deprecation")
+    public void storeStaticAuthenticationData(
+            @NonNull List<AuthenticationKeyCertification> certifications)
+            throws UnknownAuthenticationKeyException {
+        for (AuthenticationKeyCertification certification : certifications) {
+            if (certification.getExpirationDate() == null) {
+                storeStaticAuthenticationData(certification.getAuthenticationKey(),
+                        certification.getStaticAuthData());
+            } else {
+                storeStaticAuthenticationData(certification.getAuthenticationKey(),
+                        certification.getExpirationDate(),
+                        certification.getStaticAuthData());
+            }
+        }
+    }
+
     /**
      * Get the number of times the dynamic authentication keys have been used.
      *
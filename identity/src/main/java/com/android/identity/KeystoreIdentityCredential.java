@@ -18,7 +18,6 @@ package com.android.identity;
 
 import android.content.Context;
 import android.icu.util.Calendar;
-import android.security.keystore.KeyProperties;
 import android.util.Log;
 import android.util.Pair;
 
@@ -34,7 +33,6 @@ import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.MessageDigest;
@@ -46,7 +44,6 @@ import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.ECPublicKey;
-import java.security.spec.ECGenParameterSpec;
 import java.security.spec.ECPoint;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -196,15 +193,7 @@ class KeystoreIdentityCredential extends IdentityCredential {
     @Override
     public @NonNull KeyPair createEphemeralKeyPair() {
         if (mEphemeralKeyPair == null) {
-            try {
-                KeyPairGenerator kpg = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC);
-                ECGenParameterSpec ecSpec = new ECGenParameterSpec("prime256v1");
-                kpg.initialize(ecSpec);
-                mEphemeralKeyPair = kpg.generateKeyPair();
-            } catch (NoSuchAlgorithmException
-                    | InvalidAlgorithmParameterException e) {
-                throw new RuntimeException("Error generating ephemeral key", e);
-            }
+            mEphemeralKeyPair = EphemeralKeyPairPool.getDefault().take();
         }
         return mEphemeralKeyPair;
     }
@@ -752,6 +741,13 @@ class KeystoreIdentityCredential extends IdentityCredential {
         mData.storeStaticAuthenticationData(authenticationKey, expirationDate, staticAuthData);
     }
 
+    @Override
+    public void storeStaticAuthenticationData(
+            @NonNull List<AuthenticationKeyCertification> certifications)
+            throws UnknownAuthenticationKeyException {
+        mData.storeStaticAuthenticationData(certifications);
+    }
+
 
     @Override
     public @NonNull
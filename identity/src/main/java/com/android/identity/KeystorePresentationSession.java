@@ -31,7 +31,6 @@ import java.io.IOException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -39,7 +38,6 @@ import java.security.NoSuchProviderException;
 import java.security.PublicKey;
 import java.security.UnrecoverableEntryException;
 import java.security.cert.CertificateException;
-import java.security.spec.ECGenParameterSpec;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
@@ -74,15 +72,7 @@ class KeystorePresentationSession extends PresentationSession {
     @Override
     public @NonNull KeyPair getEphemeralKeyPair() {
         if (mEphemeralDeviceKeyPair == null) {
-            try {
-                KeyPairGenerator kpg = KeyPairGenerator.getInstance(KeyProperties.KEY_ALGORITHM_EC);
-                ECGenParameterSpec ecSpec = new ECGenParameterSpec("prime256v1");
-                kpg.initialize(ecSpec);
-                mEphemeralDeviceKeyPair = kpg.generateKeyPair();
-            } catch (NoSuchAlgorithmException
-                    | InvalidAlgorithmParameterException e) {
-                throw new IllegalStateException("Error generating ephemeral key", e);
-            }
+            mEphemeralDeviceKeyPair = EphemeralKeyPairPool.getDefault().take();
         }
         return mEphemeralDeviceKeyPair;
     }
@@ -104,12 +94,28 @@ class KeystorePresentationSession extends PresentationSession {
         mSessionTranscript = sessionTranscript.clone();
     }
 
-    @SuppressWarnings("deprecation")
     @Override
     public @Nullable CredentialDataResult getCredentialData(@NonNull String credentialName,
                                                             @NonNull CredentialDataRequest request)
             throws NoAuthenticationKeyAvailableException, InvalidReaderSignatureException,
             InvalidRequestMessageException, EphemeralPublicKeyNotFoundException {
+        TransactionMetrics.Span span = TransactionMetrics.getDefault().startSpan(
+                TransactionMetrics.PHASE_GET_CREDENTIAL_DATA, null);
+        try {
+            CredentialDataResult result = getCredentialDataInternal(credentialName, request);
+            span.end();
+            return result;
+        } catch (IdentityCredentialException | RuntimeException e) {
+            span.endWithError(e.getClass().getSimpleName());
+            throw e;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private @Nullable CredentialDataResult getCredentialDataInternal(
+            @NonNull String credentialName, @NonNull CredentialDataRequest request)
+            throws NoAuthenticationKeyAvailableException, InvalidReaderSignatureException,
+            InvalidRequestMessageException, EphemeralPublicKeyNotFoundException {
         try {
             // Cache the IdentityCredential to satisfy the property that AuthKey usage counts are
             // incremented on only the _first_ getCredentialData() call.
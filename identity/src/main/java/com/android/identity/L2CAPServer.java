@@ -26,7 +26,6 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -170,7 +169,7 @@ class L2CAPServer {
 
     private void readFromSocket() {
         Logger.d(TAG, "Start reading socket input");
-        ByteArrayOutputStream pendingDataBaos = new ByteArrayOutputStream();
+        CborFramer framer = new CborFramer();
 
         // Keep listening to the InputStream until an exception occurs.
         InputStream inputStream = null;
@@ -181,26 +180,27 @@ class L2CAPServer {
             return;
         }
         while (true) {
-            byte[] buf = new byte[DataTransportBle.L2CAP_BUF_SIZE];
             try {
-                int numBytesRead = inputStream.read(buf);
+                int numBytesRead = framer.readFrom(inputStream, DataTransportBle.L2CAP_BUF_SIZE);
                 if (numBytesRead == -1) {
                     Logger.d(TAG, "End of stream reading from socket");
                     reportPeerDisconnected();
                     break;
                 }
-                pendingDataBaos.write(buf, 0, numBytesRead);
 
-                byte[] dataItemBytes = Util.cborExtractFirstDataItem(pendingDataBaos);
-                if (dataItemBytes == null) {
-                    continue;
+                // A single read may complete more than one data item.
+                byte[] dataItemBytes;
+                while ((dataItemBytes = framer.next()) != null) {
+                    Logger.d(TAG, String.format(Locale.US,
+                            "Received CBOR data item of size %d bytes", dataItemBytes.length));
+                    reportMessageReceived(dataItemBytes);
                 }
-                Logger.d(TAG, String.format(Locale.US, "Received CBOR data item of size %d bytes",
-                        dataItemBytes.length));
-                reportMessageReceived(dataItemBytes);
             } catch (IOException e) {
                 reportError(new Error("Error on listening input stream from socket L2CAP", e));
                 break;
+            } catch (IllegalArgumentException e) {
+                reportError(new Error("Malformed CBOR received on L2CAP socket", e));
+                break;
             }
         }
     }
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Asynchronous backend for {@link Logger}.
+ *
+ * <p>Messages are put in a fixed-size ring buffer by the calling thread and written out by a
+ * single background thread, so logging from BLE and NFC callbacks costs no more than copying
+ * a few references. Lazily built messages are only built on the writer thread. If the buffer
+ * fills up the oldest messages are dropped and the number of dropped messages is logged once
+ * the writer catches up.
+ *
+ * <p>When logging to a file, output is buffered and flushed once per batch of messages, and
+ * the file is rotated once it grows past a configurable size.
+ */
+final class LogWriter {
+    private static final String TAG = "Logger";
+
+    static final int DEFAULT_CAPACITY = 1024;
+    static final long DEFAULT_MAX_FILE_SIZE = 4 * 1024 * 1024;
+    static final int DEFAULT_MAX_ROTATED_FILES = 1;
+
+    private static final class Entry {
+        long mTimeMillis;
+        int mLevel;
+        String mTag;
+        Object mMessage;    // Either String or Logger.MessageSupplier
+        Throwable mThrowable;
+    }
+
+    private final boolean mLogToConsole;
+    private final Object mLock = new Object();
+    private final Entry[] mRing;
+    private int mHead = 0;
+    private int mCount = 0;
+    private long mNumDropped = 0;
+    private boolean mWriting = false;
+    private Thread mThread = null;
+
+    // Only used on the writer thread.
+    private final SimpleDateFormat mTimestampFormat =
+            new SimpleDateFormat("yyyy-MM-dd HH.mm.ss.SSS", Locale.US);
+    private final Date mDate = new Date();
+
+    private final Object mFileLock = new Object();
+    private Writer mFileWriter = null;
+    private File mFile = null;
+    private long mFileSize = 0;
+    private long mMaxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private int mMaxRotatedFiles = DEFAULT_MAX_ROTATED_FILES;
+
+    /**
+     * Creates a new writer. The writer thread is started the first time a message is
+     * logged or {@link #flush()} is called.
+     *
+     * @param capacity the maximum number of messages waiting to be written.
+     * @param logToConsole whether messages should go to {@link android.util.Log} or standard
+     *                     output in addition to the log file, if any.
+     */
+    LogWriter(int capacity, boolean logToConsole) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        mRing = new Entry[capacity];
+        for (int n = 0; n < capacity; n++) {
+            mRing[n] = new Entry();
+        }
+        mLogToConsole = logToConsole;
+    }
+
+    /**
+     * Queues a message for writing.
+     *
+     * @param level the log level, one of the {@code Logger.LEVEL_*} constants.
+     * @param tag the log tag.
+     * @param message a {@link String} or a {@link Logger.MessageSupplier}.
+     * @param throwable an exception to include with the message or {@code null}.
+     */
+    void enqueue(int level, @NonNull String tag, @NonNull Object message,
+                 @Nullable Throwable throwable) {
+        long timeMillis = System.currentTimeMillis();
+        synchronized (mLock) {
+            if (mCount == mRing.length) {
+                mHead = (mHead + 1) % mRing.length;
+                mCount--;
+                mNumDropped++;
+            }
+            Entry entry = mRing[(mHead + mCount) % mRing.length];
+            entry.mTimeMillis = timeMillis;
+            entry.mLevel = level;
+            entry.mTag = tag;
+            entry.mMessage = message;
+            entry.mThrowable = throwable;
+            mCount++;
+            startIfNeededLocked();
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Blocks until all messages queued so far have been written out.
+     */
+    void flush() {
+        synchronized (mLock) {
+            if (Thread.currentThread() == mThread) {
+                return;
+            }
+            startIfNeededLocked();
+            while (mCount > 0 || mWriting) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Starts writing messages to a file, replacing the file currently being written to.
+     *
+     * @param file the file to write to. It's truncated if it already exists.
+     * @param maxFileSize approximate size in bytes at which the file is rotated.
+     * @param maxRotatedFiles number of rotated files to keep, named by appending
+     *                        {@code .1}, {@code .2}, and so on to the file name.
+     * @throws IOException if the file cannot be opened.
+     */
+    void startFile(@NonNull File file, long maxFileSize, int maxRotatedFiles)
+            throws IOException {
+        Writer writer = new BufferedWriter(new FileWriter(file, false));
+        synchronized (mFileLock) {
+            closeFileLocked();
+            mFileWriter = writer;
+            mFile = file;
+            mFileSize = 0;
+            mMaxFileSize = maxFileSize;
+            mMaxRotatedFiles = maxRotatedFiles;
+        }
+    }
+
+    /**
+     * Writes out pending messages and stops writing to the current file, if any.
+     *
+     * @return {@code false} if no file was being written to, {@code true} otherwise.
+     * @throws IOException if closing the file failed.
+     */
+    boolean stopFile() throws IOException {
+        flush();
+        synchronized (mFileLock) {
+            if (mFileWriter == null) {
+                return false;
+            }
+            Writer writer = mFileWriter;
+            mFileWriter = null;
+            mFile = null;
+            writer.close();
+            return true;
+        }
+    }
+
+    private void startIfNeededLocked() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(this::run, "LogWriter");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    private void run() {
+        Entry[] batch = new Entry[mRing.length];
+        for (int n = 0; n < batch.length; n++) {
+            batch[n] = new Entry();
+        }
+        while (true) {
+            int batchSize;
+            long numDropped;
+            synchronized (mLock) {
+                while (mCount == 0) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        // Keep going, there's no way to restart the writer.
+                    }
+                }
+                // Copy the pending messages so the ring buffer can be refilled while we write.
+                batchSize = mCount;
+                for (int n = 0; n < batchSize; n++) {
+                    Entry from = mRing[(mHead + n) % mRing.length];
+                    Entry to = batch[n];
+                    to.mTimeMillis = from.mTimeMillis;
+                    to.mLevel = from.mLevel;
+                    to.mTag = from.mTag;
+                    to.mMessage = from.mMessage;
+                    to.mThrowable = from.mThrowable;
+                    from.mTag = null;
+                    from.mMessage = null;
+                    from.mThrowable = null;
+                }
+                mHead = (mHead + batchSize) % mRing.length;
+                mCount = 0;
+                numDropped = mNumDropped;
+                mNumDropped = 0;
+                mWriting = true;
+            }
+
+            try {
+                synchronized (mFileLock) {
+                    if (numDropped > 0) {
+                        write(System.currentTimeMillis(), Logger.LEVEL_W, TAG,
+                                "Dropped " + numDropped + " log messages", null);
+                    }
+                    for (int n = 0; n < batchSize; n++) {
+                        Entry entry = batch[n];
+                        write(entry.mTimeMillis, entry.mLevel, entry.mTag,
+                                resolveMessage(entry.mMessage), entry.mThrowable);
+                        entry.mTag = null;
+                        entry.mMessage = null;
+                        entry.mThrowable = null;
+                    }
+                    flushFileLocked();
+                }
+            } finally {
+                synchronized (mLock) {
+                    mWriting = false;
+                    mLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    private static @NonNull String resolveMessage(@NonNull Object message) {
+        if (message instanceof Logger.MessageSupplier) {
+            try {
+                return ((Logger.MessageSupplier) message).get();
+            } catch (RuntimeException e) {
+                return "Error building log message: " + e;
+            }
+        }
+        return (String) message;
+    }
+
+    private void write(long timeMillis, int level, @NonNull String tag, @NonNull String msg,
+                       @Nullable Throwable throwable) {
+        String logLine = null;
+        if (mLogToConsole) {
+            if (Build.VERSION.SDK_INT > 0) {
+                printToAndroidLog(level, tag, msg, throwable);
+            } else {
+                logLine = prepareLine(timeMillis, level, tag, msg, throwable);
+                System.out.println(logLine);
+            }
+        }
+        if (mFileWriter != null) {
+            if (logLine == null) {
+                logLine = prepareLine(timeMillis, level, tag, msg, throwable);
+            }
+            try {
+                mFileWriter.write(logLine);
+                mFileWriter.write('\n');
+                mFileSize += logLine.length() + 1;
+                if (mFileSize >= mMaxFileSize) {
+                    rotateFileLocked();
+                }
+            } catch (IOException e) {
+                reportFileError(e);
+            }
+        }
+    }
+
+    private static void printToAndroidLog(int level, @NonNull String tag, @NonNull String msg,
+                                          @Nullable Throwable throwable) {
+        switch (level) {
+            case Logger.LEVEL_D:
+                android.util.Log.d(tag, msg, throwable);
+                break;
+            case Logger.LEVEL_I:
+                android.util.Log.i(tag, msg, throwable);
+                break;
+            case Logger.LEVEL_W:
+                android.util.Log.w(tag, msg, throwable);
+                break;
+            case Logger.LEVEL_E:
+                android.util.Log.e(tag, msg, throwable);
+                break;
+        }
+    }
+
+    private @NonNull String prepareLine(long timeMillis, int level, @NonNull String tag,
+                                        @NonNull String msg, @Nullable Throwable throwable) {
+        StringBuilder sb = new StringBuilder();
+        mDate.setTime(timeMillis);
+        sb.append(mTimestampFormat.format(mDate));
+        sb.append(": ");
+        switch (level) {
+            case Logger.LEVEL_D:
+                sb.append("DEBUG");
+                break;
+            case Logger.LEVEL_I:
+                sb.append("INFO");
+                break;
+            case Logger.LEVEL_W:
+                sb.append("WARNING");
+                break;
+            case Logger.LEVEL_E:
+                sb.append("ERROR");
+                break;
+        }
+        sb.append(": ");
+        sb.append(tag);
+        sb.append(": ");
+        sb.append(msg);
+        if (throwable != null) {
+            sb.append("\nEXCEPTION: ");
+            sb.append(throwable.toString());
+        }
+        return sb.toString();
+    }
+
+    private void flushFileLocked() {
+        if (mFileWriter == null) {
+            return;
+        }
+        try {
+            mFileWriter.flush();
+        } catch (IOException e) {
+            reportFileError(e);
+        }
+    }
+
+    private void rotateFileLocked() throws IOException {
+        mFileWriter.close();
+        mFileWriter = null;
+        String path = mFile.getAbsolutePath();
+        if (mMaxRotatedFiles > 0) {
+            new File(path + "." + mMaxRotatedFiles).delete();
+            for (int n = mMaxRotatedFiles - 1; n >= 1; n--) {
+                File from = new File(path + "." + n);
+                if (from.exists()) {
+                    from.renameTo(new File(path + "." + (n + 1)));
+                }
+            }
+            mFile.renameTo(new File(path + ".1"));
+        }
+        mFileWriter = new BufferedWriter(new FileWriter(mFile, false));
+        mFileSize = 0;
+    }
+
+    private void closeFileLocked() throws IOException {
+        if (mFileWriter != null) {
+            Writer writer = mFileWriter;
+            mFileWriter = null;
+            mFile = null;
+            writer.close();
+        }
+    }
+
+    private static void reportFileError(@NonNull IOException e) {
+        if (Build.VERSION.SDK_INT > 0) {
+            android.util.Log.e(TAG, "Error writing log message to file", e);
+        } else {
+            System.out.println("Error writing log message to file: " + e);
+        }
+    }
+}
@@ -16,148 +16,154 @@
 
 package com.android.identity;
 
-import android.os.Build;
-
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class used for logging.
  *
  * <p>By default debug messages are suppressed. The application can control this using the
- * {@link #setDebugEnabled(boolean)} method.
+ * {@link #setDebugEnabled(boolean)} method, and can set the minimum level logged for
+ * individual tags using {@link #setTagLevel(String, int)}.
  *
  * <p>On Android it uses the underlying {@link android.util.Log} primitives and on non-Android
  * environments it prints the message on standard output.
+ *
+ * <p>Messages are written out asynchronously by a background thread, so logging doesn't
+ * slow down time-critical callers such as BLE and NFC callbacks. Use {@link #flush()} to
+ * wait for all messages logged so far to be written out. Messages which are expensive to
+ * build can be passed as a {@link MessageSupplier}, which is only invoked if the message
+ * is actually logged.
  */
 public class Logger {
     private static final String TAG = "Logger";
-    private static final int LEVEL_D = 0;
-    private static final int LEVEL_I = 1;
-    private static final int LEVEL_W = 2;
-    private static final int LEVEL_E = 3;
 
-    private static boolean mDebugEnabled = true;   // TODO: make false by default
-    private static FileWriter mFileWriter = null;
+    /** Log level for debug messages. */
+    public static final int LEVEL_D = 0;
+    /** Log level for informational messages. */
+    public static final int LEVEL_I = 1;
+    /** Log level for warnings. */
+    public static final int LEVEL_W = 2;
+    /** Log level for errors. */
+    public static final int LEVEL_E = 3;
+
+    private static volatile boolean mDebugEnabled = false;
+    private static final Map<String, Integer> mTagLevels = new ConcurrentHashMap<>();
+    private static final LogWriter mWriter = new LogWriter(LogWriter.DEFAULT_CAPACITY, true);
     private static String mFileWriterPath = null;
 
+    /**
+     * Builds a log message on demand.
+     *
+     * <p>This is invoked on the logging thread, so it must not depend on state which can be
+     * changed by the caller after the message has been logged.
+     */
+    public interface MessageSupplier {
+        /**
+         * Builds the message.
+         *
+         * @return the log message.
+         */
+        @NonNull String get();
+    }
+
     public static void startLoggingToFile(File logFile) throws IOException {
-        if (mFileWriter != null) {
+        startLoggingToFile(logFile, LogWriter.DEFAULT_MAX_FILE_SIZE,
+                LogWriter.DEFAULT_MAX_ROTATED_FILES);
+    }
+
+    /**
+     * Starts logging to a file in addition to the usual log output.
+     *
+     * <p>When the file grows past {@code maxFileSize} bytes it's renamed by appending
+     * {@code .1} to its name and a new file is started. Up to {@code maxRotatedFiles} such
+     * files are kept, with higher numbers for older files.
+     *
+     * @param logFile the file to log to. It's truncated if it already exists.
+     * @param maxFileSize the approximate size in bytes at which to rotate the file.
+     * @param maxRotatedFiles the number of rotated files to keep.
+     * @throws IOException if the file cannot be opened.
+     */
+    public static synchronized void startLoggingToFile(@NonNull File logFile, long maxFileSize,
+                                                       int maxRotatedFiles) throws IOException {
+        if (mFileWriterPath != null) {
             Logger.w(TAG, "startLoggingToFile: Already logging to file " + mFileWriterPath);
-            mFileWriter.close();
-            mFileWriter = null;
+            mWriter.stopFile();
             mFileWriterPath = null;
         }
         mFileWriterPath = logFile.getAbsolutePath();
         Logger.d(TAG, "Starting logging to file " + mFileWriterPath);
-        mFileWriter = new FileWriter(logFile, false);
+        mWriter.flush();
+        mWriter.startFile(logFile, maxFileSize, maxRotatedFiles);
     }
 
-    public static void stopLoggingToFile() throws IOException {
-        if (mFileWriter == null) {
-            Logger.w(TAG, "startLoggingToFile: Not logging to file");
+    public static synchronized void stopLoggingToFile() throws IOException {
+        if (mFileWriterPath == null) {
+            Logger.w(TAG, "stopLoggingToFile: Not logging to file");
             return;
         }
-        mFileWriter.close();
-        mFileWriter = null;
+        mWriter.stopFile();
         Logger.d(TAG, "Stopped logging to file " + mFileWriterPath);
         mFileWriterPath = null;
     }
 
+    /**
+     * Blocks until all messages logged so far have been written out.
+     */
+    public static void flush() {
+        mWriter.flush();
+    }
+
     // TODO: make it possible for application to supply its own logging method.
 
-    private static String prepareLine(int level, @NonNull String tag, @NonNull String msg, @Nullable Throwable throwable) {
-        StringBuilder sb = new StringBuilder();
-        String timeStamp = new SimpleDateFormat("yyyy-MM-dd HH.mm.ss.SSS", Locale.US)
-                .format(new java.util.Date());
-        sb.append(timeStamp);
-        sb.append(": ");
-        switch (level) {
-            case LEVEL_D:
-                sb.append("DEBUG");
-                break;
-            case LEVEL_I:
-                sb.append("INFO");
-                break;
-            case LEVEL_W:
-                sb.append("WARNING");
-                break;
-            case LEVEL_E:
-                sb.append("ERROR");
-                break;
-        }
-        sb.append(": ");
-        sb.append(tag);
-        sb.append(": ");
-        sb.append(msg);
-        if (throwable != null) {
-            sb.append("\nEXCEPTION: ");
-            sb.append(throwable.toString());
-        }
-        return sb.toString();
-    }
-
-    private static void println(int level, @NonNull String tag, @NonNull String msg, @Nullable Throwable throwable) {
-        String logLine = null;
-
-        if (Build.VERSION.SDK_INT > 0) {
-            switch (level) {
-                case LEVEL_D:
-                    if (throwable != null) {
-                        android.util.Log.d(tag, msg);
-                    } else {
-                        android.util.Log.d(tag, msg, throwable);
-                    }
-                    break;
-                case LEVEL_I:
-                    if (throwable != null) {
-                        android.util.Log.i(tag, msg);
-                    } else {
-                        android.util.Log.i(tag, msg, throwable);
-                    }
-                    break;
-                case LEVEL_W:
-                    if (throwable != null) {
-                        android.util.Log.w(tag, msg);
-                    } else {
-                        android.util.Log.w(tag, msg, throwable);
-                    }
-                    break;
-                case LEVEL_E:
-                    if (throwable != null) {
-                        android.util.Log.e(tag, msg);
-                    } else {
-                        android.util.Log.e(tag, msg, throwable);
-                    }
-                    break;
-            }
-        } else {
-            logLine = prepareLine(level, tag, msg, throwable);
-            System.out.println(logLine);
-        }
+    private static void println(int level, @NonNull String tag, @NonNull Object msg,
+                                @Nullable Throwable throwable) {
+        mWriter.enqueue(level, tag, msg, throwable);
+    }
 
-        if (mFileWriter != null) {
-            if (logLine == null) {
-                logLine = prepareLine(level, tag, msg, throwable);
-            }
-            try {
-                mFileWriter.write(logLine);
-                mFileWriter.write('\n');
-            } catch (IOException e) {
-                if (Build.VERSION.SDK_INT > 0) {
-                    android.util.Log.e(tag, "Error writing log message to file", e);
-                } else {
-                    System.out.println("Error writing log message to file: " + e);
-                }
-                e.printStackTrace();
-            }
+    /**
+     * Sets the minimum level of messages logged for a tag.
+     *
+     * <p>This overrides {@link #setDebugEnabled(boolean)} for the given tag, both to enable
+     * debug messages for a single tag and to silence a chatty one.
+     *
+     * @param tag the tag.
+     * @param minLevel the minimum level, one of {@link #LEVEL_D}, {@link #LEVEL_I},
+     *                 {@link #LEVEL_W}, and {@link #LEVEL_E}.
+     */
+    public static void setTagLevel(@NonNull String tag, int minLevel) {
+        mTagLevels.put(tag, minLevel);
+    }
+
+    /**
+     * Removes the minimum level set for a tag using {@link #setTagLevel(String, int)}.
+     *
+     * @param tag the tag.
+     */
+    public static void clearTagLevel(@NonNull String tag) {
+        mTagLevels.remove(tag);
+    }
+
+    /**
+     * Checks whether messages of a given level and tag will be logged.
+     *
+     * @param tag the tag.
+     * @param level the level, one of {@link #LEVEL_D}, {@link #LEVEL_I}, {@link #LEVEL_W},
+     *              and {@link #LEVEL_E}.
+     * @return {@code true} if the message will be logged, {@code false} otherwise.
+     */
+    public static boolean isLoggable(@NonNull String tag, int level) {
+        Integer minLevel = mTagLevels.get(tag);
+        if (minLevel != null) {
+            return level >= minLevel;
         }
+        return level > LEVEL_D || mDebugEnabled;
     }
 
     public static boolean isDebugEnabled() {
@@ -169,50 +175,80 @@ public class Logger {
     }
 
     public static void d(@NonNull String tag, @NonNull String msg) {
-        if (isDebugEnabled()) {
+        if (isLoggable(tag, LEVEL_D)) {
             println(LEVEL_D, tag, msg, null);
         }
     }
 
     public static void d(@NonNull String tag, @NonNull String msg, @NonNull Throwable throwable) {
-        if (isDebugEnabled()) {
+        if (isLoggable(tag, LEVEL_D)) {
             println(LEVEL_D, tag, msg, throwable);
         }
     }
 
+    /**
+     * Logs a debug message which is only built if debug messages for the tag are enabled.
+     *
+     * @param tag the tag.
+     * @param msg builds the message, on the logging thread.
+     */
+    public static void d(@NonNull String tag, @NonNull MessageSupplier msg) {
+        if (isLoggable(tag, LEVEL_D)) {
+            println(LEVEL_D, tag, msg, null);
+        }
+    }
+
+    public static void i(@NonNull String tag, @NonNull String msg) {
+        if (isLoggable(tag, LEVEL_I)) {
+            println(LEVEL_I, tag, msg, null);
+        }
+    }
+
     public static void w(@NonNull String tag, @NonNull String msg) {
-        println(LEVEL_W, tag, msg, null);
+        if (isLoggable(tag, LEVEL_W)) {
+            println(LEVEL_W, tag, msg, null);
+        }
     }
 
     public static void w(@NonNull String tag, @NonNull String msg, @NonNull Throwable throwable) {
-        println(LEVEL_W, tag, msg, throwable);
+        if (isLoggable(tag, LEVEL_W)) {
+            println(LEVEL_W, tag, msg, throwable);
+        }
     }
 
     public static void e(@NonNull String tag, @NonNull String msg) {
-        println(LEVEL_E, tag, msg, null);
+        if (isLoggable(tag, LEVEL_E)) {
+            println(LEVEL_E, tag, msg, null);
+        }
     }
 
     public static void e(@NonNull String tag, @NonNull String msg, @NonNull Throwable throwable) {
-        println(LEVEL_E, tag, msg, throwable);
+        if (isLoggable(tag, LEVEL_E)) {
+            println(LEVEL_E, tag, msg, throwable);
+        }
     }
 
+    // The data is copied so the caller can reuse its buffer, and only formatted on the logging
+    // thread.
     private static void hex(int level, @NonNull String tag, @NonNull String message, @NonNull byte[] data) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(message).append(String.format(Locale.US, ": %d bytes of data: ", data.length));
-        sb.append(Util.toHex(data));
-        println(level, tag, sb.toString(), null);
+        if (!isLoggable(tag, level)) {
+            return;
+        }
+        final byte[] dataCopy = data.clone();
+        println(level, tag, (MessageSupplier) () -> {
+            StringBuilder sb = new StringBuilder();
+            sb.append(message).append(String.format(Locale.US, ": %d bytes of data: ", dataCopy.length));
+            sb.append(Util.toHex(dataCopy));
+            return sb.toString();
+        }, null);
     }
 
     public static void dHex(@NonNull String tag, @NonNull String message, @NonNull byte[] data) {
-        if (isDebugEnabled()) {
-            hex(LEVEL_D, tag, message, data);
-        }
+        hex(LEVEL_D, tag, message, data);
     }
 
     public static void iHex(@NonNull String tag, @NonNull String message, @NonNull byte[] data) {
-        if (isDebugEnabled()) {
-            hex(LEVEL_I, tag, message, data);
-        }
+        hex(LEVEL_I, tag, message, data);
     }
 
     public static void wHex(@NonNull String tag, @NonNull String message, @NonNull byte[] data) {
@@ -224,20 +260,24 @@ public class Logger {
     }
 
     private static void cbor(int level, @NonNull String tag, @NonNull String message, @NonNull byte[] encodedCbor) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(message).append(String.format(Locale.US, ": %d bytes of CBOR: ", encodedCbor.length));
-        sb.append(Util.toHex(encodedCbor));
-        sb.append("\n");
-        sb.append("In diagnostic notation:\n");
-        sb.append(CborUtil.toDiagnostics(encodedCbor,
-                CborUtil.DIAGNOSTICS_FLAG_PRETTY_PRINT | CborUtil.DIAGNOSTICS_FLAG_EMBEDDED_CBOR));
-        println(level, tag, sb.toString(), null);
+        if (!isLoggable(tag, level)) {
+            return;
+        }
+        final byte[] encodedCborCopy = encodedCbor.clone();
+        println(level, tag, (MessageSupplier) () -> {
+            StringBuilder sb = new StringBuilder();
+            sb.append(message).append(String.format(Locale.US, ": %d bytes of CBOR: ", encodedCborCopy.length));
+            sb.append(Util.toHex(encodedCborCopy));
+            sb.append("\n");
+            sb.append("In diagnostic notation:\n");
+            sb.append(CborUtil.toDiagnostics(encodedCborCopy,
+                    CborUtil.DIAGNOSTICS_FLAG_PRETTY_PRINT | CborUtil.DIAGNOSTICS_FLAG_EMBEDDED_CBOR));
+            return sb.toString();
+        }, null);
     }
 
     public static void dCbor(@NonNull String tag, @NonNull String message, @NonNull byte[] encodedCbor) {
-        if (isDebugEnabled()) {
-            cbor(LEVEL_D, tag, message, encodedCbor);
-        }
+        cbor(LEVEL_D, tag, message, encodedCbor);
     }
 
     public static void iCbor(@NonNull String tag, @NonNull String message, @NonNull byte[] encodedCbor) {
@@ -73,6 +73,7 @@ public class NfcEngagementHelper {
     private long mTimeStartedSettingUpTransports;
     private boolean mTransportsAreSettingUp;
     private boolean mTestingDoNotStartTransports = false;
+    private TransactionMetrics.Span mEngagementSpan;
 
     NfcEngagementHelper(@NonNull Context context,
                         @NonNull PresentationSession presentationSession,
@@ -294,6 +295,10 @@ public class NfcEngagementHelper {
         }
         if (Arrays.equals(Arrays.copyOfRange(apdu, 5, 12), NfcUtil.AID_FOR_TYPE_4_TAG_NDEF_APPLICATION)) {
             Logger.d(TAG, "handleSelectByAid: NDEF application selected");
+            if (mEngagementSpan == null) {
+                mEngagementSpan = TransactionMetrics.getDefault().startSpan(
+                        TransactionMetrics.PHASE_ENGAGEMENT, "nfc");
+            }
             mUpdateBinaryData = null;
             return NfcUtil.STATUS_WORD_OK;
         }
@@ -416,6 +421,7 @@ public class NfcEngagementHelper {
                         .build().get(0));
                 Logger.dCbor(TAG, "NFC static DeviceEngagement", mEncodedDeviceEngagement);
                 Logger.dCbor(TAG, "NFC static Handover", mEncodedHandover);
+                endEngagementSpan();
 
                 // Technically we should ensure the transports are up until sending the response...
                 setupTransports(mStaticHandoverConnectionMethods);
@@ -464,9 +470,10 @@ public class NfcEngagementHelper {
             return NfcUtil.STATUS_WORD_END_OF_FILE_REACHED;
         }
 
-        byte[] response = new byte[size + NfcUtil.STATUS_WORD_OK.length];
+        // The reader usually reads the file in blocks of the same size, reuse the buffer.
+        byte[] response = mReadBinaryResponsePool.obtain(size,
+                NfcUtil.STATUS_WORD_OK[0], NfcUtil.STATUS_WORD_OK[1]);
         System.arraycopy(contents, offset, response, 0, size);
-        System.arraycopy(NfcUtil.STATUS_WORD_OK, 0, response, size, NfcUtil.STATUS_WORD_OK.length);
         Logger.d(TAG, String.format(Locale.US,
                 "handleReadBinary: returning %d bytes from offset %d (file size %d)",
                 size, offset, contents.length));
@@ -474,7 +481,10 @@ public class NfcEngagementHelper {
     }
 
 
-    private byte[] mUpdateBinaryData = null;
+    private final NfcResponseApduPool mReadBinaryResponsePool = new NfcResponseApduPool();
+
+    // The NDEF message being written by the reader, null if no write is in progress.
+    private NfcReassemblyBuffer mUpdateBinaryData = null;
 
     private @NonNull
     byte[] handleUpdateBinary(@NonNull byte[] apdu) {
@@ -498,10 +508,9 @@ public class NfcEngagementHelper {
         //
         //  Type 4 Tag Technical Specification Version 1.2 section 7.5.5 NDEF Write Procedure
 
-        byte[] payload = new byte[dataSize];
-        System.arraycopy(apdu, 5, payload, 0, dataSize);
-        Logger.dHex(TAG,"handleUpdateBinary: payload", payload);
         if (offset == 0) {
+            byte[] payload = Arrays.copyOfRange(apdu, 5, apdu.length);
+            Logger.dHex(TAG,"handleUpdateBinary: payload", payload);
             if (payload.length == 2) {
                 if (payload[0] == 0x00 && payload[1] == 0x00) {
                     Logger.d(TAG, "handleUpdateBinary: Reset length message");
@@ -509,7 +518,7 @@ public class NfcEngagementHelper {
                         Logger.w(TAG, "Got reset but we are already active");
                         return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
                     }
-                    mUpdateBinaryData = new byte[0];
+                    mUpdateBinaryData = new NfcReassemblyBuffer();
                     return NfcUtil.STATUS_WORD_OK;
                 } else {
                     int length = (apdu[5] & 0xff) * 256 + (apdu[6] & 0xff);
@@ -521,15 +530,15 @@ public class NfcEngagementHelper {
                         return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
                     }
 
-                    if (length != mUpdateBinaryData.length) {
+                    if (length != mUpdateBinaryData.size()) {
                         Logger.w(TAG, String.format(Locale.US,
                                 "Length %d doesn't match received data of %d bytes",
-                                length, mUpdateBinaryData.length));
+                                length, mUpdateBinaryData.size()));
                         return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
                     }
 
                     // At this point we got the whole NDEF message that the reader wanted to send.
-                    byte[] ndefMessage = mUpdateBinaryData;
+                    byte[] ndefMessage = mUpdateBinaryData.take();
                     mUpdateBinaryData = null;
                     return handleUpdateBinaryNdefMessage(ndefMessage);
                 }
@@ -555,14 +564,18 @@ public class NfcEngagementHelper {
                 return NfcUtil.STATUS_WORD_FILE_NOT_FOUND;
             }
 
-            Logger.dHex(TAG, String.format(Locale.US,
-                    "handleUpdateBinary: Data message offset %d with payload: ", offset), payload);
+            if (Logger.isLoggable(TAG, Logger.LEVEL_D)) {
+                Logger.dHex(TAG, String.format(Locale.US,
+                        "handleUpdateBinary: Data message offset %d with payload: ", offset),
+                        Arrays.copyOfRange(apdu, 5, apdu.length));
+            }
 
-            int newLength = offset - 2 + payload.length;
-            if (mUpdateBinaryData.length < newLength) {
-                mUpdateBinaryData = Arrays.copyOf(mUpdateBinaryData, newLength);
+            if (offset == 2 && mUpdateBinaryData.size() == 0) {
+                // The NDEF message length is only written once all the data has been, but
+                // the record headers at the start of the message give a good estimate.
+                mUpdateBinaryData.presize(NfcUtil.estimateNdefMessageSize(apdu, 5, dataSize));
             }
-            System.arraycopy(payload, 0, mUpdateBinaryData, offset - 2, payload.length);
+            mUpdateBinaryData.write(offset - 2, apdu, 5, dataSize);
 
             return NfcUtil.STATUS_WORD_OK;
         }
@@ -718,6 +731,7 @@ public class NfcEngagementHelper {
                 .build().get(0));
         Logger.dCbor(TAG, "NFC negotiated DeviceEngagement", mEncodedDeviceEngagement);
         Logger.dCbor(TAG, "NFC negotiated Handover", mEncodedHandover);
+        endEngagementSpan();
 
         // Technically we should ensure the transports are up until sending the response...
         setupTransports(listWithSelectedConnectionMethod);
@@ -736,6 +750,12 @@ public class NfcEngagementHelper {
         return message.toByteArray();
     }
 
+    private void endEngagementSpan() {
+        if (mEngagementSpan != null) {
+            mEngagementSpan.end();
+        }
+    }
+
     void peerIsConnecting(@NonNull DataTransport transport) {
         if (!mReportedDeviceConnecting) {
             mReportedDeviceConnecting = true;
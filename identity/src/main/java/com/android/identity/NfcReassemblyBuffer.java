@@ -0,0 +1,159 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+import java.util.Arrays;
+
+/**
+ * A buffer for reassembling a message received in chunks over NFC.
+ *
+ * <p>Chunks are copied straight into a backing array which grows geometrically, so the cost
+ * of reassembling a message is linear in its size no matter how small the chunks are. If the
+ * length of the message is announced up front the backing array can be sized for it using
+ * {@link #presize(int)}, in which case {@link #take()} hands it over without copying.
+ *
+ * <p>This class is not thread-safe.
+ */
+final class NfcReassemblyBuffer {
+
+    // Declared lengths come from the other side, so don't allocate more than this based on
+    // them. Bigger messages still work, the buffer just grows as data arrives.
+    static final int MAX_PRESIZE = 0x10000;
+
+    private static final int MIN_CAPACITY = 256;
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] mData = EMPTY;
+    private int mSize;
+
+    /**
+     * Gets the number of bytes in the buffer.
+     *
+     * @return the number of bytes.
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Gets a byte in the buffer.
+     *
+     * @param index the index of the byte, must be less than {@link #size()}.
+     * @return the byte, as an unsigned value.
+     */
+    int get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " size " + mSize);
+        }
+        return mData[index] & 0xff;
+    }
+
+    /**
+     * Makes room for a message of the given length.
+     *
+     * <p>If the buffer ends up holding exactly this many bytes, {@link #take()} won't need to
+     * copy them. Sizes larger than {@link #MAX_PRESIZE} are clamped.
+     *
+     * @param expectedSize the expected total number of bytes in the buffer.
+     */
+    void presize(int expectedSize) {
+        int capacity = Math.min(expectedSize, MAX_PRESIZE);
+        if (capacity > mData.length) {
+            mData = Arrays.copyOf(mData, capacity);
+        }
+    }
+
+    /**
+     * Appends data to the buffer.
+     *
+     * @param src the array holding the data.
+     * @param offset the offset of the data in {@code src}.
+     * @param length the number of bytes to append.
+     */
+    void append(@NonNull byte[] src, int offset, int length) {
+        write(mSize, src, offset, length);
+    }
+
+    /**
+     * Writes data at the given position, growing the buffer if needed.
+     *
+     * <p>Bytes between the previous end of the buffer and {@code position} are zero.
+     *
+     * @param position where in the buffer to write the data.
+     * @param src the array holding the data.
+     * @param offset the offset of the data in {@code src}.
+     * @param length the number of bytes to write.
+     */
+    void write(int position, @NonNull byte[] src, int offset, int length) {
+        if (position < 0 || offset < 0 || length < 0 || offset + length > src.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        int newSize = Math.max(mSize, position + length);
+        if (newSize > mData.length) {
+            mData = Arrays.copyOf(mData,
+                    Math.max(newSize, Math.max(MIN_CAPACITY, mData.length * 2)));
+        }
+        if (position > mSize) {
+            // Might be stale data from a previous message.
+            Arrays.fill(mData, mSize, position, (byte) 0);
+        }
+        System.arraycopy(src, offset, mData, position, length);
+        mSize = newSize;
+    }
+
+    /**
+     * Removes bytes from the start of the buffer, in place.
+     *
+     * @param count the number of bytes to remove.
+     */
+    void discard(int count) {
+        if (count < 0 || count > mSize) {
+            throw new IndexOutOfBoundsException("Count " + count + " size " + mSize);
+        }
+        System.arraycopy(mData, count, mData, 0, mSize - count);
+        mSize -= count;
+    }
+
+    /**
+     * Gets the contents of the buffer and empties it.
+     *
+     * <p>If the backing array is full it's returned as is and the buffer allocates a new one
+     * for the next message, otherwise the contents are copied and the backing array is kept.
+     *
+     * @return the bytes in the buffer.
+     */
+    @NonNull byte[] take() {
+        byte[] result;
+        if (mSize == mData.length) {
+            result = mData;
+            mData = EMPTY;
+        } else {
+            result = Arrays.copyOf(mData, mSize);
+        }
+        mSize = 0;
+        return result;
+    }
+
+    /**
+     * Empties the buffer.
+     */
+    void reset() {
+        mSize = 0;
+    }
+}
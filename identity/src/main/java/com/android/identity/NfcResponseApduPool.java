@@ -0,0 +1,64 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Recycles buffers for response APDUs sent from a {@link android.nfc.cardemulation.HostApduService}.
+ *
+ * <p>A response APDU must be exactly as long as the data it carries, but when a message is sent
+ * in chunks or a file is read in blocks almost all responses have the same length. The
+ * platform is done with a response once the reader has received it, so by the time the next
+ * command APDU arrives the buffer used for the previous response can be handed out again.
+ *
+ * <p>Only call {@link #obtain(int, int, int)} when responding to a new command APDU. This
+ * class is not thread-safe.
+ */
+final class NfcResponseApduPool {
+
+    private byte[] mLastResponse;
+
+    /**
+     * Gets a buffer for a response APDU with the given status word.
+     *
+     * <p>The buffer may be one previously returned by this method and the caller is expected
+     * to fill in the first {@code dataLength} bytes.
+     *
+     * @param dataLength the number of bytes of data in the response.
+     * @param sw1 the first byte of the status word.
+     * @param sw2 the second byte of the status word.
+     * @return a buffer of {@code dataLength + 2} bytes ending with the status word.
+     */
+    @NonNull byte[] obtain(int dataLength, int sw1, int sw2) {
+        byte[] response = mLastResponse;
+        if (response == null || response.length != dataLength + 2) {
+            response = new byte[dataLength + 2];
+            mLastResponse = response;
+        }
+        response[dataLength] = (byte) sw1;
+        response[dataLength + 1] = (byte) sw2;
+        return response;
+    }
+
+    /**
+     * Forgets the most recently handed out buffer.
+     */
+    void clear() {
+        mLastResponse = null;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Streams a message from the mdoc to the mdoc reader in response APDUs, using GET RESPONSE
+ * chaining as specified in ISO 18013-5 section 8.3.3.1.2.
+ *
+ * <p>The message is encapsulated in a DO53 data object on the fly and each response is copied
+ * straight out of the message into a buffer from a {@link NfcResponseApduPool}, so no other
+ * copies of the message are made. Every response is as large as the Le of the command it
+ * answers allows, up to the limit negotiated with the reader.
+ *
+ * <p>This class is not thread-safe.
+ */
+final class NfcResponseStream {
+
+    private final byte[] mHeader;
+    private final byte[] mMessage;
+    private final int mMaxLe;
+    private final long mStartNanos;
+    private int mPosition;
+    private int mNumResponses;
+
+    /**
+     * Creates a new stream.
+     *
+     * @param message the message to send, without DO53 encapsulation.
+     * @param maxLe the maximum length of the response data field supported by both the mdoc
+     *              and the mdoc reader, that is the Le of the last ENVELOPE command.
+     * @throws IllegalArgumentException if {@code maxLe} isn't positive.
+     */
+    NfcResponseStream(@NonNull byte[] message, int maxLe) {
+        if (maxLe <= 0) {
+            throw new IllegalArgumentException("maxLe must be positive, got " + maxLe);
+        }
+        mHeader = DataTransportNfc.encodeDo53Header(message.length);
+        mMessage = message;
+        mMaxLe = maxLe;
+        mStartNanos = System.nanoTime();
+    }
+
+    /**
+     * Gets the total number of bytes to send, including the DO53 header.
+     *
+     * @return the number of bytes.
+     */
+    int getTotalLength() {
+        return mHeader.length + mMessage.length;
+    }
+
+    /**
+     * Gets the number of bytes sent so far.
+     *
+     * @return the number of bytes.
+     */
+    int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Gets the number of responses built so far, each of which is a round-trip with the reader.
+     *
+     * @return the number of responses.
+     */
+    int getNumResponses() {
+        return mNumResponses;
+    }
+
+    /**
+     * Gets the time elapsed since the stream was created.
+     *
+     * @return the time in milliseconds.
+     */
+    long getElapsedMillis() {
+        return (System.nanoTime() - mStartNanos) / 1000000;
+    }
+
+    /**
+     * Returns whether all data has been sent.
+     *
+     * @return {@code true} if there's nothing left to send.
+     */
+    boolean isComplete() {
+        return mPosition == getTotalLength();
+    }
+
+    /**
+     * Builds the next response APDU.
+     *
+     * <p>The status word is '90 00' for the last response. Otherwise it's '61 XX' if at most
+     * 255 bytes remain, where XX is the number of bytes remaining, or '61 00' if more remain.
+     *
+     * @param le the Le of the command being responded to, or 0 if absent in which case the
+     *           negotiated maximum is used.
+     * @param pool the pool to get the response buffer from.
+     * @return the response APDU, only valid until the next call to this method.
+     * @throws IllegalStateException if all data has already been sent.
+     */
+    @NonNull byte[] nextResponse(int le, @NonNull NfcResponseApduPool pool) {
+        if (isComplete()) {
+            throw new IllegalStateException("No data left to send");
+        }
+        int remaining = getTotalLength() - mPosition;
+        int size = Math.min(remaining, (le <= 0) ? mMaxLe : Math.min(le, mMaxLe));
+        int remainingAfter = remaining - size;
+        byte[] response;
+        if (remainingAfter == 0) {
+            response = pool.obtain(size, 0x90, 0x00);
+        } else if (remainingAfter <= 0xff) {
+            response = pool.obtain(size, 0x61, remainingAfter);
+        } else {
+            response = pool.obtain(size, 0x61, 0x00);
+        }
+        copy(mPosition, response, size);
+        mPosition += size;
+        mNumResponses += 1;
+        return response;
+    }
+
+    // Copies the DO53-encapsulated data starting at the given position.
+    private void copy(int position, @NonNull byte[] dest, int length) {
+        int destOffset = 0;
+        if (position < mHeader.length) {
+            int n = Math.min(mHeader.length - position, length);
+            System.arraycopy(mHeader, position, dest, 0, n);
+            destOffset = n;
+            position += n;
+            length -= n;
+        }
+        System.arraycopy(mMessage, position - mHeader.length, dest, destOffset, length);
+    }
+}
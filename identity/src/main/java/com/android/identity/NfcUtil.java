@@ -129,6 +129,40 @@ class NfcUtil {
         return baos.toByteArray();
     }
 
+    // Estimates the size of an NDEF message from its first bytes, using the lengths declared in
+    // the headers of the records starting in those bytes. The message is at least this big.
+    static int estimateNdefMessageSize(@NonNull byte[] data, int offset, int length) {
+        int end = offset + length;
+        long size = 0;
+        while (offset + size < end) {
+            int pos = (int) (offset + size);
+            int flags = data[pos] & 0xff;
+            boolean shortRecord = (flags & 0x10) != 0;
+            boolean haveIdLength = (flags & 0x08) != 0;
+            int headerSize = 2 + (shortRecord ? 1 : 4) + (haveIdLength ? 1 : 0);
+            if (pos + headerSize > end) {
+                break;
+            }
+            int typeLength = data[pos + 1] & 0xff;
+            long payloadLength;
+            if (shortRecord) {
+                payloadLength = data[pos + 2] & 0xff;
+            } else {
+                payloadLength = ((data[pos + 2] & 0xffL) << 24)
+                        | ((data[pos + 3] & 0xffL) << 16)
+                        | ((data[pos + 4] & 0xffL) << 8)
+                        | (data[pos + 5] & 0xffL);
+            }
+            int idLength = haveIdLength ? (data[pos + headerSize - 1] & 0xff) : 0;
+            size += headerSize + typeLength + idLength + payloadLength;
+            if ((flags & 0x40) != 0) {
+                // Message End
+                break;
+            }
+        }
+        return (int) Math.min(Math.max(size, length), Integer.MAX_VALUE);
+    }
+
     static byte[] createNdefMessageServiceSelect(String serviceName) {
         // [TNEP] section 4.2.2 Service Select Record
         byte[] payload = (" " + serviceName).getBytes(UTF_8);
@@ -28,6 +28,7 @@ public class QrEngagementHelper {
     private int mNumTransportsStillSettingUp;
     private byte[] mEncodedDeviceEngagement;
     private byte[] mEncodedHandover;
+    private String mDeviceEngagementUriEncoded;
     private boolean mReportedDeviceConnecting;
 
     public QrEngagementHelper(@NonNull Context context,
@@ -169,8 +170,27 @@ public class QrEngagementHelper {
         reportDeviceEngagementReady();
     }
 
-    public @NonNull
+    /**
+     * Returns whether DeviceEngagement has been generated, that is, whether
+     * {@link Listener#onDeviceEngagementReady()} has been called.
+     *
+     * <p>Applications can use this to set up engagement ahead of time, for example before the
+     * user asks to show a QR code, and then show the QR code immediately.
+     *
+     * @return {@code true} if DeviceEngagement is available, {@code false} otherwise.
+     */
+    public synchronized boolean isDeviceEngagementReady() {
+        return mEncodedDeviceEngagement != null;
+    }
+
+    public synchronized @NonNull
     String getDeviceEngagementUriEncoded() {
+        if (mEncodedDeviceEngagement == null) {
+            throw new IllegalStateException("DeviceEngagement not ready");
+        }
+        if (mDeviceEngagementUriEncoded != null) {
+            return mDeviceEngagementUriEncoded;
+        }
         String base64EncodedDeviceEngagement =
                 Base64.encodeToString(mEncodedDeviceEngagement,
                         Base64.URL_SAFE | Base64.NO_PADDING | Base64.NO_WRAP);
@@ -178,9 +198,9 @@ public class QrEngagementHelper {
                 .scheme("mdoc")
                 .encodedOpaquePart(base64EncodedDeviceEngagement)
                 .build();
-        String uriString = uri.toString();
-        Logger.d(TAG, "qrCode URI: " + uriString);
-        return uriString;
+        mDeviceEngagementUriEncoded = uri.toString();
+        Logger.d(TAG, "qrCode URI: " + mDeviceEngagementUriEncoded);
+        return mDeviceEngagementUriEncoded;
     }
 
     public @NonNull
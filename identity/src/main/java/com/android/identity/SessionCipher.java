@@ -0,0 +1,405 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.util.OptionalLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM session encryption for one direction of an ISO 18013-5 session.
+ *
+ * <p>The {@link Cipher} instance and IV buffer are created once and reused for every
+ * message. Instead of going through a CBOR builder, the <code>SessionData</code> envelope is
+ * produced by writing the CBOR headers directly around the ciphertext in a single output
+ * buffer which may be supplied by the caller. Similarly incoming <code>SessionData</code> is
+ * decrypted straight from the received bytes without decoding it into a CBOR tree.
+ *
+ * <p>This class is not thread-safe.
+ */
+final class SessionCipher {
+    private static final int TAG_LENGTH_BITS = 128;
+    static final int TAG_LENGTH = TAG_LENGTH_BITS / 8;
+
+    // Encoded map keys for SessionData and SessionEstablishment.
+    private static final byte[] KEY_DATA = Util.cborEncodeString("data");
+    private static final byte[] KEY_STATUS = Util.cborEncodeString("status");
+    private static final byte[] KEY_E_READER_KEY = Util.cborEncodeString("eReaderKey");
+
+    private final SecretKeySpec mKey;
+    private final int mMode;
+    private final Cipher mCipher;
+    // The IV is specified in ISO/IEC 18013-5:2021 clause 9.1.1.5. Bytes 4 to 7 is the
+    // identifier, 0 for messages from the reader and 1 for messages from the mdoc. The last
+    // four bytes is the message counter.
+    private final byte[] mIv = new byte[12];
+    private int mCounter = 1;
+
+    /**
+     * Creates a new {@link SessionCipher}.
+     *
+     * @param key the session key, either <code>SKReader</code> or <code>SKDevice</code>.
+     * @param identifier the identifier to use in the IV, 0 for <code>SKReader</code> and 1
+     *                   for <code>SKDevice</code>.
+     * @param mode either {@link Cipher#ENCRYPT_MODE} or {@link Cipher#DECRYPT_MODE}.
+     */
+    SessionCipher(@NonNull SecretKeySpec key, int identifier, int mode) {
+        mKey = key;
+        mMode = mode;
+        mIv[4] = (byte) (identifier >> 24);
+        mIv[5] = (byte) (identifier >> 16);
+        mIv[6] = (byte) (identifier >> 8);
+        mIv[7] = (byte) identifier;
+        try {
+            mCipher = CryptoProvider.getDefault().newCipher("AES/GCM/NoPadding");
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new IllegalStateException("Error creating cipher", e);
+        }
+    }
+
+    /**
+     * Gets the number of messages encrypted or decrypted so far.
+     *
+     * @return the number of messages.
+     */
+    int getNumMessages() {
+        return mCounter - 1;
+    }
+
+    private GCMParameterSpec nextParameterSpec() {
+        mIv[8] = (byte) (mCounter >> 24);
+        mIv[9] = (byte) (mCounter >> 16);
+        mIv[10] = (byte) (mCounter >> 8);
+        mIv[11] = (byte) mCounter;
+        return new GCMParameterSpec(TAG_LENGTH_BITS, mIv);
+    }
+
+    /**
+     * Calculates the size of the <code>SessionData</code> or <code>SessionEstablishment</code>
+     * produced by {@link #encryptToSessionData(byte[], OptionalLong, byte[], byte[], int)}.
+     *
+     * @param plaintextLength the length of the message to encrypt or -1 if there is none.
+     * @param statusCode the status code, if any.
+     * @param encodedEReaderKeyBytes the encoded <code>EReaderKeyBytes</code>, if any.
+     * @return the size in bytes.
+     */
+    static int getSessionDataSize(int plaintextLength,
+                                  @NonNull OptionalLong statusCode,
+                                  @Nullable byte[] encodedEReaderKeyBytes) {
+        int size = 1;
+        if (plaintextLength >= 0) {
+            int ciphertextLength = plaintextLength + TAG_LENGTH;
+            size += KEY_DATA.length + getHeaderSize(ciphertextLength) + ciphertextLength;
+        }
+        if (statusCode.isPresent()) {
+            long status = statusCode.getAsLong();
+            size += KEY_STATUS.length + getHeaderSize(status >= 0 ? status : -1 - status);
+        }
+        if (encodedEReaderKeyBytes != null) {
+            size += KEY_E_READER_KEY.length + encodedEReaderKeyBytes.length;
+        }
+        return size;
+    }
+
+    /**
+     * Encrypts a message and writes it as <code>SessionData</code> CBOR.
+     *
+     * <p>If <code>encodedEReaderKeyBytes</code> is set, <code>SessionEstablishment</code> is
+     * written instead. Map entries are written in the order <code>eReaderKey</code>,
+     * <code>data</code>, <code>status</code>.
+     *
+     * @param messagePlaintext the message to encrypt or <code>null</code>.
+     * @param statusCode the status code, if any.
+     * @param encodedEReaderKeyBytes the encoded <code>EReaderKeyBytes</code> or
+     *                               <code>null</code>.
+     * @param output the buffer to write to, must have room for at least
+     *               {@link #getSessionDataSize(int, OptionalLong, byte[])} bytes.
+     * @param offset the offset in <code>output</code> to start writing at.
+     * @return the number of bytes written.
+     * @exception IllegalStateException if encryption fails.
+     */
+    int encryptToSessionData(@Nullable byte[] messagePlaintext,
+                             @NonNull OptionalLong statusCode,
+                             @Nullable byte[] encodedEReaderKeyBytes,
+                             @NonNull byte[] output,
+                             int offset) {
+        if (mMode != Cipher.ENCRYPT_MODE) {
+            throw new IllegalStateException("Cipher not configured for encryption");
+        }
+        int numEntries = (messagePlaintext != null ? 1 : 0)
+                + (statusCode.isPresent() ? 1 : 0)
+                + (encodedEReaderKeyBytes != null ? 1 : 0);
+        int pos = offset;
+        pos = writeHeader(output, pos, 5, numEntries);
+
+        // Util.cborEncode() keeps map keys in insertion order, so write them in the order the
+        // rest of the library and the ISO/IEC 18013-5 Annex D examples use.
+        if (encodedEReaderKeyBytes != null) {
+            System.arraycopy(KEY_E_READER_KEY, 0, output, pos, KEY_E_READER_KEY.length);
+            pos += KEY_E_READER_KEY.length;
+            System.arraycopy(encodedEReaderKeyBytes, 0, output, pos,
+                    encodedEReaderKeyBytes.length);
+            pos += encodedEReaderKeyBytes.length;
+        }
+        if (messagePlaintext != null) {
+            System.arraycopy(KEY_DATA, 0, output, pos, KEY_DATA.length);
+            pos += KEY_DATA.length;
+            pos = writeHeader(output, pos, 2, messagePlaintext.length + TAG_LENGTH);
+            try {
+                mCipher.init(Cipher.ENCRYPT_MODE, mKey, nextParameterSpec());
+                // This includes the auth tag
+                pos += mCipher.doFinal(messagePlaintext, 0, messagePlaintext.length, output, pos);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Error encrypting message", e);
+            }
+            mCounter += 1;
+        }
+        if (statusCode.isPresent()) {
+            System.arraycopy(KEY_STATUS, 0, output, pos, KEY_STATUS.length);
+            pos += KEY_STATUS.length;
+            long status = statusCode.getAsLong();
+            if (status >= 0) {
+                pos = writeHeader(output, pos, 0, status);
+            } else {
+                pos = writeHeader(output, pos, 1, -1 - status);
+            }
+        }
+        return pos - offset;
+    }
+
+    /**
+     * Like {@link #encryptToSessionData(byte[], OptionalLong, byte[], byte[], int)} but
+     * allocates an output buffer of the exact size needed.
+     *
+     * @param messagePlaintext the message to encrypt or <code>null</code>.
+     * @param statusCode the status code, if any.
+     * @param encodedEReaderKeyBytes the encoded <code>EReaderKeyBytes</code> or
+     *                               <code>null</code>.
+     * @return the bytes of the <code>SessionData</code> or <code>SessionEstablishment</code>.
+     */
+    @NonNull byte[] encryptToSessionData(@Nullable byte[] messagePlaintext,
+                                         @NonNull OptionalLong statusCode,
+                                         @Nullable byte[] encodedEReaderKeyBytes) {
+        byte[] output = new byte[getSessionDataSize(
+                messagePlaintext != null ? messagePlaintext.length : -1,
+                statusCode,
+                encodedEReaderKeyBytes)];
+        encryptToSessionData(messagePlaintext, statusCode, encodedEReaderKeyBytes, output, 0);
+        return output;
+    }
+
+    /**
+     * Decrypts the ciphertext of a parsed <code>SessionData</code> message.
+     *
+     * @param messageData the bytes of the <code>SessionData</code> message.
+     * @param sessionData the result of {@link #parseSessionData(byte[])}.
+     * @return the decrypted data or <code>null</code> if the message has no data.
+     * @throws GeneralSecurityException if decryption fails.
+     */
+    @Nullable byte[] decrypt(@NonNull byte[] messageData, @NonNull ParsedSessionData sessionData)
+            throws GeneralSecurityException {
+        if (mMode != Cipher.DECRYPT_MODE) {
+            throw new IllegalStateException("Cipher not configured for decryption");
+        }
+        if (sessionData.mDataOffset < 0) {
+            return null;
+        }
+        mCipher.init(Cipher.DECRYPT_MODE, mKey, nextParameterSpec());
+        byte[] plainText = mCipher.doFinal(messageData, sessionData.mDataOffset,
+                sessionData.mDataLength);
+        mCounter += 1;
+        return plainText;
+    }
+
+    /**
+     * The location of the ciphertext and the status of a <code>SessionData</code> or
+     * <code>SessionEstablishment</code> message.
+     */
+    static final class ParsedSessionData {
+        // Offset and length of the "data" bstr payload or -1 if not present.
+        int mDataOffset = -1;
+        int mDataLength = -1;
+        OptionalLong mStatus = OptionalLong.empty();
+
+        OptionalLong getStatus() {
+            return mStatus;
+        }
+    }
+
+    /**
+     * Locates the ciphertext and status in <code>SessionData</code> or
+     * <code>SessionEstablishment</code> CBOR without decoding it.
+     *
+     * <p>Map entries other than <code>data</code> and <code>status</code> are skipped.
+     *
+     * @param messageData the bytes of the message.
+     * @return the location of the ciphertext and the status.
+     * @exception IllegalArgumentException if the data does not conform to the CDDL.
+     */
+    static @NonNull ParsedSessionData parseSessionData(@NonNull byte[] messageData) {
+        ParsedSessionData result = new ParsedSessionData();
+        int[] pos = new int[]{0};
+        long[] argument = new long[1];
+
+        int majorType = readHeader(messageData, pos, argument);
+        if (majorType != 5) {
+            throw new IllegalArgumentException("Item is not a map");
+        }
+        boolean indefinite = (argument[0] == -1);
+        long numEntries = argument[0];
+        for (long n = 0; indefinite || n < numEntries; n++) {
+            if (indefinite && pos[0] < messageData.length
+                    && (messageData[pos[0]] & 0xff) == 0xff) {
+                pos[0] += 1;
+                break;
+            }
+            int keyStart = pos[0];
+            int keyLength = getDataItemLength(messageData, keyStart);
+            pos[0] += keyLength;
+            if (rangeEquals(messageData, keyStart, keyLength, KEY_DATA)) {
+                if (readHeader(messageData, pos, argument) != 2 || argument[0] < 0) {
+                    throw new IllegalArgumentException("data is not a bstr");
+                }
+                if (argument[0] > messageData.length - pos[0]) {
+                    throw new IllegalArgumentException("Data is not valid CBOR");
+                }
+                result.mDataOffset = pos[0];
+                result.mDataLength = (int) argument[0];
+                pos[0] += result.mDataLength;
+            } else if (rangeEquals(messageData, keyStart, keyLength, KEY_STATUS)) {
+                int statusType = readHeader(messageData, pos, argument);
+                if (statusType == 0 && argument[0] >= 0) {
+                    result.mStatus = OptionalLong.of(argument[0]);
+                } else if (statusType == 1 && argument[0] >= 0) {
+                    result.mStatus = OptionalLong.of(-1 - argument[0]);
+                } else {
+                    throw new IllegalArgumentException("status is not a number");
+                }
+            } else {
+                pos[0] += getDataItemLength(messageData, pos[0]);
+            }
+        }
+        if (pos[0] != messageData.length) {
+            throw new IllegalArgumentException("Expected 1 item, found trailing data");
+        }
+        return result;
+    }
+
+    private static int getDataItemLength(byte[] data, int offset) {
+        int length = CborFramer.getDataItemLength(data, offset, data.length - offset);
+        if (length < 0) {
+            throw new IllegalArgumentException("Data is not valid CBOR");
+        }
+        return length;
+    }
+
+    private static boolean rangeEquals(byte[] data, int offset, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+        for (int n = 0; n < length; n++) {
+            if (data[offset + n] != expected[n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads a CBOR header at pos[0], advancing it. Stores the argument in argument[0],
+    // -1 for indefinite length. Returns the major type.
+    private static int readHeader(byte[] data, int[] pos, long[] argument) {
+        if (pos[0] >= data.length) {
+            throw new IllegalArgumentException("Data is not valid CBOR");
+        }
+        int initialByte = data[pos[0]] & 0xff;
+        int additionalInfo = initialByte & 0x1f;
+        int argumentLength;
+        if (additionalInfo < 24) {
+            argumentLength = 0;
+        } else if (additionalInfo <= 27) {
+            argumentLength = 1 << (additionalInfo - 24);
+        } else if (additionalInfo == 31) {
+            argumentLength = 0;
+        } else {
+            throw new IllegalArgumentException("Data is not valid CBOR");
+        }
+        if (data.length - pos[0] < 1 + argumentLength) {
+            throw new IllegalArgumentException("Data is not valid CBOR");
+        }
+        long value = additionalInfo < 24 ? additionalInfo : 0;
+        for (int n = 0; n < argumentLength; n++) {
+            value = (value << 8) | (data[pos[0] + 1 + n] & 0xff);
+        }
+        if (additionalInfo == 31) {
+            value = -1;
+        } else if (value < 0) {
+            // Doesn't fit in a long, certainly not a valid length or status.
+            value = Long.MIN_VALUE;
+        }
+        argument[0] = value;
+        pos[0] += 1 + argumentLength;
+        return initialByte >> 5;
+    }
+
+    private static int getHeaderSize(long value) {
+        if (value < 24) {
+            return 1;
+        } else if (value < 0x100) {
+            return 2;
+        } else if (value < 0x10000) {
+            return 3;
+        } else if (value < 0x100000000L) {
+            return 5;
+        }
+        return 9;
+    }
+
+    private static int writeHeader(byte[] output, int offset, int majorType, long value) {
+        int headerSize = getHeaderSize(value);
+        int initialByte = majorType << 5;
+        switch (headerSize) {
+            case 1:
+                output[offset] = (byte) (initialByte | value);
+                return offset + 1;
+            case 2:
+                output[offset] = (byte) (initialByte | 24);
+                break;
+            case 3:
+                output[offset] = (byte) (initialByte | 25);
+                break;
+            case 5:
+                output[offset] = (byte) (initialByte | 26);
+                break;
+            default:
+                output[offset] = (byte) (initialByte | 27);
+                break;
+        }
+        for (int n = headerSize - 1; n >= 1; n--) {
+            output[offset + n] = (byte) value;
+            value >>>= 8;
+        }
+        return offset + headerSize;
+    }
+}
@@ -23,34 +23,17 @@ import androidx.core.util.Pair;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayInputStream;
-import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.util.List;
 import java.util.OptionalLong;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyAgreement;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.CborDecoder;
-import co.nstant.in.cbor.CborException;
-import co.nstant.in.cbor.builder.MapBuilder;
-import co.nstant.in.cbor.model.ByteString;
-import co.nstant.in.cbor.model.DataItem;
-import co.nstant.in.cbor.model.Map;
-import co.nstant.in.cbor.model.UnicodeString;
-
 /**
  * A helper class for encrypting and decrypting messages exchanged with a remote
  * mDL reader, conforming to ISO 18013-5 9.1.1 Session encryption.
@@ -64,10 +47,10 @@ final class SessionEncryptionDevice {
 
     private final PrivateKey mEDeviceKeyPrivate;
 
-    private SecretKeySpec mSKDevice;
-    private SecretKeySpec mSKReader;
-    private int mSKDeviceCounter = 1;
-    private int mSKReaderCounter = 1;
+    private final SessionCipher mSKDeviceCipher;
+    private final SessionCipher mSKReaderCipher;
+
+    private TransactionMetrics mMetrics = TransactionMetrics.getDefault();
 
     /**
      * Creates a new {@link SessionEncryptionDevice} object.
@@ -86,28 +69,43 @@ final class SessionEncryptionDevice {
         mEReaderKeyPub = eReaderKeyPublic;
 
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            KeyAgreement ka = CryptoProvider.getDefault().getKeyAgreement("ECDH");
             ka.init(mEDeviceKeyPrivate);
             ka.doPhase(mEReaderKeyPub, true);
             byte[] sharedSecret = ka.generateSecret();
 
             byte[] sessionTranscriptBytes = Util.cborEncode(
                     Util.cborBuildTaggedByteString(encodedSessionTranscript));
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoProvider.getDefault().getMessageDigest("SHA-256")
+                    .digest(sessionTranscriptBytes);
 
             byte[] info = "SKDevice".getBytes(UTF_8);
             byte[] derivedKey = Util.computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
 
-            mSKDevice = new SecretKeySpec(derivedKey, "AES");
+            // The identifiers for the IV are specified in ISO/IEC 18013-5:2021 clause 9.1.1.5.
+            mSKDeviceCipher = new SessionCipher(new SecretKeySpec(derivedKey, "AES"), 1,
+                    Cipher.ENCRYPT_MODE);
 
             info = "SKReader".getBytes(UTF_8);
             derivedKey = Util.computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
-            mSKReader = new SecretKeySpec(derivedKey, "AES");
+            mSKReaderCipher = new SessionCipher(new SecretKeySpec(derivedKey, "AES"), 0,
+                    Cipher.DECRYPT_MODE);
         } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             throw new IllegalStateException("Error deriving keys", e);
         }
     }
 
+    /**
+     * Sets the object metrics for encryption and decryption are reported to.
+     *
+     * <p>If not set, {@link TransactionMetrics#getDefault()} is used.
+     *
+     * @param metrics the object to report metrics to.
+     */
+    void setMetrics(@NonNull TransactionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     /**
      * Encrypts a message to the remote mDL reader.
      *
@@ -123,39 +121,12 @@ final class SessionEncryptionDevice {
      */
     public @NonNull byte[] encryptMessageToReader(@Nullable byte[] messagePlaintext,
             @NonNull OptionalLong statusCode) {
-        byte[] messageCiphertextAndAuthTag = null;
-        if (messagePlaintext != null) {
-            try {
-                // The IV and these constants are specified in ISO/IEC 18013-5:2021 clause 9.1.1.5.
-                ByteBuffer iv = ByteBuffer.allocate(12);
-                iv.putInt(0, 0x00000000);
-                iv.putInt(4, 0x00000001);
-                iv.putInt(8, mSKDeviceCounter);
-                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                GCMParameterSpec encryptionParameterSpec = new GCMParameterSpec(128, iv.array());
-                cipher.init(Cipher.ENCRYPT_MODE, mSKDevice, encryptionParameterSpec);
-                messageCiphertextAndAuthTag = cipher.doFinal(messagePlaintext);
-            } catch (BadPaddingException
-                    | IllegalBlockSizeException
-                    | NoSuchPaddingException
-                    | InvalidKeyException
-                    | NoSuchAlgorithmException
-                    | InvalidAlgorithmParameterException e) {
-                throw new IllegalStateException("Error encrypting message", e);
-            }
-            mSKDeviceCounter += 1;
-        }
-
-        CborBuilder builder = new CborBuilder();
-        MapBuilder<CborBuilder> mapBuilder = builder.addMap();
-        if (messageCiphertextAndAuthTag != null) {
-            mapBuilder.put("data", messageCiphertextAndAuthTag);
-        }
-        if (statusCode.isPresent()) {
-            mapBuilder.put("status", statusCode.getAsLong());
-        }
-        mapBuilder.end();
-        return Util.cborEncode(builder.build().get(0));
+        TransactionMetrics.Span span =
+                mMetrics.startSpan(TransactionMetrics.PHASE_ENCRYPT, null);
+        byte[] messageData =
+                mSKDeviceCipher.encryptToSessionData(messagePlaintext, statusCode, null);
+        span.addBytes(messageData.length).end();
+        return messageData;
     }
 
     /**
@@ -174,59 +145,19 @@ final class SessionEncryptionDevice {
      */
     public @Nullable Pair<byte[], OptionalLong> decryptMessageFromReader(
             @NonNull byte[] messageData) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(messageData);
-        List<DataItem> dataItems = null;
+        TransactionMetrics.Span span = mMetrics.startSpan(TransactionMetrics.PHASE_DECRYPT, null)
+                .addBytes(messageData.length);
+        SessionCipher.ParsedSessionData sessionData =
+                SessionCipher.parseSessionData(messageData);
+        byte[] plainText;
         try {
-            dataItems = new CborDecoder(bais).decode();
-        } catch (CborException e) {
-            throw new IllegalArgumentException("Data is not valid CBOR", e);
-        }
-        if (dataItems.size() != 1) {
-            throw new IllegalArgumentException("Expected 1 item, found " + dataItems.size());
-        }
-        if (!(dataItems.get(0) instanceof Map)) {
-            throw new IllegalArgumentException("Item is not a map");
-        }
-        Map map = (Map) dataItems.get(0);
-
-        DataItem dataItemData = map.get(new UnicodeString("data"));
-        byte[] messageCiphertext = null;
-        if (dataItemData != null) {
-            if (!(dataItemData instanceof ByteString)) {
-                throw new IllegalArgumentException("data is not a bstr");
-            }
-            messageCiphertext = ((ByteString) dataItemData).getBytes();
+            plainText = mSKReaderCipher.decrypt(messageData, sessionData);
+        } catch (GeneralSecurityException e) {
+            span.endWithError(e.getClass().getSimpleName());
+            return null;
         }
-
-        OptionalLong status = OptionalLong.empty();
-        DataItem dataItemStatus = map.get(new UnicodeString("status"));
-        if (dataItemStatus != null) {
-            status = OptionalLong.of(Util.checkedLongValue(dataItemStatus));
-        }
-
-        byte[] plainText = null;
-        if (messageCiphertext != null) {
-            ByteBuffer iv = ByteBuffer.allocate(12);
-            iv.putInt(0, 0x00000000);
-            iv.putInt(4, 0x00000000);
-            iv.putInt(8, mSKReaderCounter);
-            try {
-                final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                cipher.init(Cipher.DECRYPT_MODE, mSKReader, new GCMParameterSpec(128,
-                        iv.array()));
-                plainText = cipher.doFinal(messageCiphertext);
-            } catch (BadPaddingException
-                    | IllegalBlockSizeException
-                    | InvalidAlgorithmParameterException
-                    | InvalidKeyException
-                    | NoSuchAlgorithmException
-                    | NoSuchPaddingException e) {
-                return null;
-            }
-            mSKReaderCounter += 1;
-        }
-
-        return new Pair<>(plainText, status);
+        span.end();
+        return new Pair<>(plainText, sessionData.getStatus());
     }
 
     /**
@@ -236,7 +167,7 @@ final class SessionEncryptionDevice {
      * @return Number of messages encrypted.
      */
     public int getNumMessagesEncrypted() {
-        return mSKDeviceCounter - 1;
+        return mSKDeviceCipher.getNumMessages();
     }
 
     /**
@@ -245,6 +176,6 @@ final class SessionEncryptionDevice {
      * @return Number of messages decrypted.
      */
     public int getNumMessagesDecrypted() {
-        return mSKReaderCounter - 1;
+        return mSKReaderCipher.getNumMessages();
     }
 }
@@ -23,34 +23,18 @@ import androidx.core.util.Pair;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.ByteArrayInputStream;
-import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.util.List;
 import java.util.OptionalLong;
 
-import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.KeyAgreement;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
-import co.nstant.in.cbor.CborBuilder;
-import co.nstant.in.cbor.CborDecoder;
-import co.nstant.in.cbor.CborException;
-import co.nstant.in.cbor.builder.MapBuilder;
-import co.nstant.in.cbor.model.ByteString;
 import co.nstant.in.cbor.model.DataItem;
-import co.nstant.in.cbor.model.Map;
-import co.nstant.in.cbor.model.Number;
-import co.nstant.in.cbor.model.UnicodeString;
 
 
 /**
@@ -67,10 +51,10 @@ final class SessionEncryptionReader {
     private final PublicKey mEReaderKeyPublic;
     private final PublicKey mEDeviceKeyPublic;
 
-    private SecretKeySpec mSKDevice;
-    private SecretKeySpec mSKReader;
-    private int mSKDeviceCounter = 1;
-    private int mSKReaderCounter = 1;
+    private final SessionCipher mSKDeviceCipher;
+    private final SessionCipher mSKReaderCipher;
+
+    private TransactionMetrics mMetrics = TransactionMetrics.getDefault();
     private boolean mSendSessionEstablishment = true;
 
     /**
@@ -90,28 +74,43 @@ final class SessionEncryptionReader {
         mEDeviceKeyPublic = eDeviceKeyPublic;
 
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            KeyAgreement ka = CryptoProvider.getDefault().getKeyAgreement("ECDH");
             ka.init(mEReaderKeyPrivate);
             ka.doPhase(mEDeviceKeyPublic, true);
             byte[] sharedSecret = ka.generateSecret();
 
             byte[] sessionTranscriptBytes = Util.cborEncode(
                     Util.cborBuildTaggedByteString(encodedSessionTranscript));
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoProvider.getDefault().getMessageDigest("SHA-256")
+                    .digest(sessionTranscriptBytes);
 
             byte[] info = "SKDevice".getBytes(UTF_8);
             byte[] derivedKey = Util.computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
 
-            mSKDevice = new SecretKeySpec(derivedKey, "AES");
+            // The identifiers for the IV are specified in ISO/IEC 18013-5:2021 clause 9.1.1.5.
+            mSKDeviceCipher = new SessionCipher(new SecretKeySpec(derivedKey, "AES"), 1,
+                    Cipher.DECRYPT_MODE);
 
             info = "SKReader".getBytes(UTF_8);
             derivedKey = Util.computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
-            mSKReader = new SecretKeySpec(derivedKey, "AES");
+            mSKReaderCipher = new SessionCipher(new SecretKeySpec(derivedKey, "AES"), 0,
+                    Cipher.ENCRYPT_MODE);
         } catch (NoSuchAlgorithmException | InvalidKeyException e) {
             throw new IllegalStateException("Error deriving keys", e);
         }
     }
 
+    /**
+     * Sets the object metrics for encryption and decryption are reported to.
+     *
+     * <p>If not set, {@link TransactionMetrics#getDefault()} is used.
+     *
+     * @param metrics the object to report metrics to.
+     */
+    void setMetrics(@NonNull TransactionMetrics metrics) {
+        mMetrics = metrics;
+    }
+
     /**
      * Configure whether to send <code>SessionEstablishment</code> as the first message.
      *
@@ -143,48 +142,20 @@ final class SessionEncryptionReader {
      */
     public @NonNull byte[] encryptMessageToDevice(@Nullable byte[] messagePlaintext,
             @NonNull OptionalLong statusCode) {
-        byte[] messageCiphertext = null;
-        if (messagePlaintext != null) {
-            try {
-                // The IV and these constants are specified in ISO/IEC 18013-5:2021 clause 9.1.1.5.
-                ByteBuffer iv = ByteBuffer.allocate(12);
-                iv.putInt(0, 0x00000000);
-                iv.putInt(4, 0x00000000);
-                iv.putInt(8, mSKReaderCounter);
-                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                GCMParameterSpec encryptionParameterSpec = new GCMParameterSpec(128, iv.array());
-                cipher.init(Cipher.ENCRYPT_MODE, mSKReader, encryptionParameterSpec);
-                messageCiphertext = cipher.doFinal(messagePlaintext); // This includes the auth tag
-            } catch (BadPaddingException
-                    | IllegalBlockSizeException
-                    | NoSuchPaddingException
-                    | InvalidKeyException
-                    | NoSuchAlgorithmException
-                    | InvalidAlgorithmParameterException e) {
-                throw new IllegalStateException("Error encrypting message", e);
-            }
-            mSKReaderCounter += 1;
-        }
-
-        CborBuilder builder = new CborBuilder();
-        MapBuilder<CborBuilder> mapBuilder = builder.addMap();
+        byte[] encodedEReaderKeyBytes = null;
         if (!mSessionEstablishmentSent && mSendSessionEstablishment) {
             DataItem eReaderKey = Util.cborBuildCoseKey(mEReaderKeyPublic);
-            DataItem eReaderKeyBytes = Util.cborBuildTaggedByteString(
-                    Util.cborEncode(eReaderKey));
-            mapBuilder.put(new UnicodeString("eReaderKey"), eReaderKeyBytes);
-            if (messageCiphertext == null) {
+            encodedEReaderKeyBytes = Util.cborEncode(Util.cborBuildTaggedByteString(
+                    Util.cborEncode(eReaderKey)));
+            if (messagePlaintext == null) {
                 throw new IllegalStateException("Data cannot be empty in initial message");
             }
         }
-        if (messageCiphertext != null) {
-            mapBuilder.put("data", messageCiphertext);
-        }
-        if (statusCode.isPresent()) {
-            mapBuilder.put("status", statusCode.getAsLong());
-        }
-        mapBuilder.end();
-        byte[] messageData = Util.cborEncode(builder.build().get(0));
+        TransactionMetrics.Span span =
+                mMetrics.startSpan(TransactionMetrics.PHASE_ENCRYPT, null);
+        byte[] messageData = mSKReaderCipher.encryptToSessionData(messagePlaintext, statusCode,
+                encodedEReaderKeyBytes);
+        span.addBytes(messageData.length).end();
 
         mSessionEstablishmentSent = true;
 
@@ -207,61 +178,19 @@ final class SessionEncryptionReader {
      */
     public @NonNull Pair<byte[], OptionalLong> decryptMessageFromDevice(
             @NonNull byte[] messageData) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(messageData);
-        List<DataItem> dataItems;
+        TransactionMetrics.Span span = mMetrics.startSpan(TransactionMetrics.PHASE_DECRYPT, null)
+                .addBytes(messageData.length);
+        SessionCipher.ParsedSessionData sessionData =
+                SessionCipher.parseSessionData(messageData);
+        byte[] plainText;
         try {
-            dataItems = new CborDecoder(bais).decode();
-        } catch (CborException e) {
-            throw new IllegalArgumentException("Data is not valid CBOR", e);
+            plainText = mSKDeviceCipher.decrypt(messageData, sessionData);
+        } catch (GeneralSecurityException e) {
+            span.endWithError(e.getClass().getSimpleName());
+            throw new IllegalStateException("Error decrypting data", e);
         }
-        if (dataItems.size() != 1) {
-            throw new IllegalArgumentException("Expected 1 item, found " + dataItems.size());
-        }
-        if (!(dataItems.get(0) instanceof Map)) {
-            throw new IllegalArgumentException("Item is not a map");
-        }
-        Map map = (Map) dataItems.get(0);
-
-        DataItem dataItemData = map.get(new UnicodeString("data"));
-        byte[] messageCiphertext = null;
-        if (dataItemData != null) {
-            if (!(dataItemData instanceof ByteString)) {
-                throw new IllegalArgumentException("data is not a bstr");
-            }
-            messageCiphertext = ((ByteString) dataItemData).getBytes();
-        }
-
-        OptionalLong status = OptionalLong.empty();
-        DataItem dataItemStatus = map.get(new UnicodeString("status"));
-        if (dataItemStatus != null) {
-            if (!(dataItemStatus instanceof Number)) {
-                throw new IllegalArgumentException("status is not a number");
-            }
-            status = OptionalLong.of(((Number) dataItemStatus).getValue().intValue());
-        }
-
-        byte[] plainText = null;
-        if (messageCiphertext != null) {
-            ByteBuffer iv = ByteBuffer.allocate(12);
-            iv.putInt(0, 0x00000000);
-            iv.putInt(4, 0x00000001);
-            iv.putInt(8, mSKDeviceCounter);
-            try {
-                final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-                cipher.init(Cipher.DECRYPT_MODE, mSKDevice, new GCMParameterSpec(128, iv.array()));
-                plainText = cipher.doFinal(messageCiphertext);
-            } catch (BadPaddingException
-                    | IllegalBlockSizeException
-                    | InvalidAlgorithmParameterException
-                    | InvalidKeyException
-                    | NoSuchAlgorithmException
-                    | NoSuchPaddingException e) {
-                throw new IllegalStateException("Error decrypting data", e);
-            }
-            mSKDeviceCounter += 1;
-        }
-
-        return new Pair<>(plainText, status);
+        span.end();
+        return new Pair<>(plainText, sessionData.getStatus());
     }
 
     /**
@@ -271,7 +200,7 @@ final class SessionEncryptionReader {
      * @return Number of messages encrypted.
      */
     public int getNumMessagesEncrypted() {
-        return mSKReaderCounter - 1;
+        return mSKReaderCipher.getNumMessages();
     }
 
     /**
@@ -280,6 +209,6 @@ final class SessionEncryptionReader {
      * @return Number of messages decrypted.
      */
     public int getNumMessagesDecrypted() {
-        return mSKDeviceCounter - 1;
+        return mSKDeviceCipher.getNumMessages();
     }
 }
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import androidx.annotation.NonNull;
+import androidx.core.util.Pair;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.Number;
+
+/**
+ * A bounded cache of decoded <code>staticAuthData</code>, keyed by its encoded bytes.
+ *
+ * <p><code>staticAuthData</code> in the format used by
+ * {@link Utility#encodeStaticAuthData(Map, byte[])} is the same for every presentation made
+ * with a given authentication key, so it only needs to be decoded once. For each
+ * IssuerSignedItem the cache keeps the encoded bytes and the offset of the NULL placeholder
+ * for <code>elementValue</code>, which makes filling in a value a matter of copying bytes
+ * instead of decoding and re-encoding the item.
+ *
+ * <p>Since entries are keyed by content, replacing the <code>staticAuthData</code> for an
+ * authentication key never returns stale data. {@link #remove(byte[])} is used to drop the
+ * old entry right away instead of waiting for it to be evicted.
+ *
+ * <p>This class is thread-safe.
+ */
+class StaticAuthDataCache {
+    private static final String TAG = "StaticAuthDataCache";
+
+    static final int DEFAULT_MAX_ENTRIES = 16;
+
+    // The encoding of the "elementValue" key followed by the NULL placeholder value.
+    private static final byte[] ELEMENT_VALUE_KEY;
+    static {
+        byte[] name = "elementValue".getBytes(UTF_8);
+        ELEMENT_VALUE_KEY = new byte[1 + name.length];
+        ELEMENT_VALUE_KEY[0] = (byte) (0x60 + name.length);   // tstr, short length
+        System.arraycopy(name, 0, ELEMENT_VALUE_KEY, 1, name.length);
+    }
+    private static final byte CBOR_NULL = (byte) 0xf6;
+
+    private static StaticAuthDataCache sDefault;
+
+    private final int mMaxEntries;
+    private final Map<ByteBuffer, Entry> mEntries;
+
+    /**
+     * Creates a new cache.
+     *
+     * @param maxEntries the maximum number of entries to keep.
+     */
+    StaticAuthDataCache(int maxEntries) {
+        mMaxEntries = maxEntries;
+        mEntries = new LinkedHashMap<ByteBuffer, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the cache shared by all credentials in the process.
+     *
+     * @return the cache.
+     */
+    static synchronized @NonNull StaticAuthDataCache getDefault() {
+        if (sDefault == null) {
+            sDefault = new StaticAuthDataCache(DEFAULT_MAX_ENTRIES);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Gets decoded <code>staticAuthData</code>, decoding and caching it if needed.
+     *
+     * @param staticAuthData the bytes of <code>staticAuthData</code>.
+     * @return the decoded data.
+     * @throws IllegalArgumentException if the given data is not in the format specified by
+     *                                  {@link Utility#encodeStaticAuthData(Map, byte[])}.
+     */
+    @NonNull Entry get(@NonNull byte[] staticAuthData) {
+        ByteBuffer key = ByteBuffer.wrap(staticAuthData);
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        // Decode without holding the lock, in the worst case two threads both decode the
+        // same data.
+        Entry entry = new Entry(staticAuthData);
+        synchronized (this) {
+            mEntries.put(ByteBuffer.wrap(staticAuthData.clone()), entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Removes an entry, if present.
+     *
+     * @param staticAuthData the bytes of <code>staticAuthData</code>.
+     */
+    synchronized void remove(@NonNull byte[] staticAuthData) {
+        mEntries.remove(ByteBuffer.wrap(staticAuthData));
+    }
+
+    /**
+     * Removes all entries.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the number of entries.
+     */
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Finds the offset of the NULL placeholder for <code>elementValue</code>.
+     *
+     * @param encodedIssuerSignedItem the bytes of IssuerSignedItem.
+     * @param elementName the expected <code>elementIdentifier</code>.
+     * @return the offset or -1 if it couldn't be determined unambiguously.
+     */
+    static int findValueOffset(@NonNull byte[] encodedIssuerSignedItem,
+                               @NonNull String elementName) {
+        int offset = -1;
+        int last = encodedIssuerSignedItem.length - ELEMENT_VALUE_KEY.length - 1;
+        for (int n = 0; n <= last; n++) {
+            if (encodedIssuerSignedItem[n + ELEMENT_VALUE_KEY.length] != CBOR_NULL
+                    || !regionMatches(encodedIssuerSignedItem, n, ELEMENT_VALUE_KEY)) {
+                continue;
+            }
+            if (offset != -1) {
+                // The pattern also occurs in e.g. the random value, don't guess.
+                return -1;
+            }
+            offset = n + ELEMENT_VALUE_KEY.length;
+        }
+        if (offset == -1) {
+            return -1;
+        }
+
+        // Check the offset really is the value by splicing in a value which is easy to
+        // recognize. This is only done once per item so the cost doesn't matter.
+        byte[] check = splice(encodedIssuerSignedItem, offset, new byte[]{0x00});
+        try {
+            DataItem item = Util.cborDecode(check);
+            DataItem value = Util.cborMapExtract(item, "elementValue");
+            if (!(value instanceof Number) || ((Number) value).getValue().intValue() != 0
+                    || !elementName.equals(
+                            Util.cborMapExtractString(item, "elementIdentifier"))) {
+                return -1;
+            }
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+        return offset;
+    }
+
+    private static boolean regionMatches(@NonNull byte[] data, int offset,
+                                         @NonNull byte[] pattern) {
+        for (int n = 0; n < pattern.length; n++) {
+            if (data[offset + n] != pattern[n]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static @NonNull byte[] splice(@NonNull byte[] encodedIssuerSignedItem,
+                                          int valueOffset,
+                                          @NonNull byte[] encodedElementValue) {
+        byte[] result = new byte[encodedIssuerSignedItem.length - 1
+                + encodedElementValue.length];
+        System.arraycopy(encodedIssuerSignedItem, 0, result, 0, valueOffset);
+        System.arraycopy(encodedElementValue, 0, result, valueOffset,
+                encodedElementValue.length);
+        System.arraycopy(encodedIssuerSignedItem, valueOffset + 1,
+                result, valueOffset + encodedElementValue.length,
+                encodedIssuerSignedItem.length - valueOffset - 1);
+        return result;
+    }
+
+    private static final class Item {
+        final byte[] mEncodedIssuerSignedItem;
+        final int mValueOffset;     // -1 if the item must be decoded to set the value.
+
+        Item(byte[] encodedIssuerSignedItem, int valueOffset) {
+            mEncodedIssuerSignedItem = encodedIssuerSignedItem;
+            mValueOffset = valueOffset;
+        }
+
+        @NonNull byte[] withValue(@NonNull byte[] encodedElementValue) {
+            if (mValueOffset < 0) {
+                return Util.issuerSignedItemSetValue(mEncodedIssuerSignedItem,
+                        encodedElementValue);
+            }
+            return splice(mEncodedIssuerSignedItem, mValueOffset, encodedElementValue);
+        }
+    }
+
+    /**
+     * Decoded <code>staticAuthData</code>.
+     */
+    static final class Entry {
+        private final Map<String, List<byte[]>> mIssuerSignedMapping;
+        private final byte[] mEncodedIssuerAuth;
+        // Namespace -> elementIdentifier -> item, in the order of the digest-id mapping.
+        private final Map<String, Map<String, Item>> mItems = new HashMap<>();
+
+        Entry(@NonNull byte[] staticAuthData) {
+            Pair<Map<String, List<byte[]>>, byte[]> decoded =
+                    Utility.decodeStaticAuthData(staticAuthData);
+            mEncodedIssuerAuth = decoded.second;
+            Map<String, List<byte[]>> issuerSignedMapping = new HashMap<>();
+            for (Map.Entry<String, List<byte[]>> e : decoded.first.entrySet()) {
+                Map<String, Item> itemsForNs = new LinkedHashMap<>();
+                for (byte[] encodedIssuerSignedItem : e.getValue()) {
+                    String elementName = Util.cborMapExtractString(
+                            Util.cborDecode(encodedIssuerSignedItem), "elementIdentifier");
+                    itemsForNs.put(elementName, new Item(encodedIssuerSignedItem,
+                            findValueOffset(encodedIssuerSignedItem, elementName)));
+                }
+                mItems.put(e.getKey(), itemsForNs);
+                issuerSignedMapping.put(e.getKey(), Collections.unmodifiableList(e.getValue()));
+            }
+            mIssuerSignedMapping = Collections.unmodifiableMap(issuerSignedMapping);
+        }
+
+        /**
+         * Gets the digest-id mapping, as returned by
+         * {@link Utility#decodeStaticAuthData(byte[])}. The returned map must not be modified.
+         *
+         * @return the mapping from namespaces into a list of the bytes of IssuerSignedItem.
+         */
+        @NonNull Map<String, List<byte[]>> getIssuerSignedMapping() {
+            return mIssuerSignedMapping;
+        }
+
+        /**
+         * Gets the issuerAuth. The returned array must not be modified.
+         *
+         * @return the bytes of <code>COSE_Sign1</code>.
+         */
+        @NonNull byte[] getEncodedIssuerAuth() {
+            return mEncodedIssuerAuth;
+        }
+
+        /**
+         * Like {@link Utility#mergeIssuerSigned(Map, CredentialDataResult.Entries)} but using
+         * the cached IssuerSignedItems.
+         *
+         * @param issuerSigned data values from a credential.
+         * @return the IssuerSignedItems for the given values, with the values filled in.
+         */
+        @NonNull Map<String, List<byte[]>> mergeIssuerSigned(
+                @NonNull CredentialDataResult.Entries issuerSigned) {
+            Map<String, List<byte[]>> newIssuerSignedMapping = new HashMap<>();
+            for (String namespaceName : issuerSigned.getNamespaces()) {
+                Map<String, Item> itemsForNs = mItems.get(namespaceName);
+                if (itemsForNs == null) {
+                    // Fine if this is null, the verifier might have requested elements in a
+                    // namespace we have no issuer-signed values for.
+                    Logger.w(TAG, "Skipping namespace " + namespaceName + " which is not in "
+                            + "issuerSignedMapping");
+                    continue;
+                }
+                Collection<String> entryNames = issuerSigned.getEntryNames(namespaceName);
+                Set<String> requested = new HashSet<>(entryNames);
+                List<byte[]> newEncodedIssuerSignedItemForNs = new ArrayList<>();
+                for (Map.Entry<String, Item> e : itemsForNs.entrySet()) {
+                    if (!requested.contains(e.getKey())) {
+                        continue;
+                    }
+                    byte[] elemValue = issuerSigned.getEntry(namespaceName, e.getKey());
+                    if (elemValue != null) {
+                        newEncodedIssuerSignedItemForNs.add(e.getValue().withValue(elemValue));
+                    }
+                }
+                if (newEncodedIssuerSignedItemForNs.size() > 0) {
+                    newIssuerSignedMapping.put(namespaceName, newEncodedIssuerSignedItemForNs);
+                }
+            }
+            return newIssuerSignedMapping;
+        }
+    }
+}
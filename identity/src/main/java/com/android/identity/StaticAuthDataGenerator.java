@@ -0,0 +1,372 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.builder.MapBuilder;
+import co.nstant.in.cbor.model.DataItem;
+import co.nstant.in.cbor.model.SimpleValue;
+import co.nstant.in.cbor.model.UnicodeString;
+
+/**
+ * Generates <code>staticAuthData</code> for a batch of dynamic authentication keys.
+ *
+ * <p>For each key a <code>MobileSecurityObject</code> is created with fresh digest ids and
+ * random values for every data element, signed by the issuing authority and encoded together
+ * with the digest-id mapping using {@link Utility#encodeStaticAuthData(Map, byte[])}.
+ *
+ * <p>The parts of the <code>IssuerSignedItem</code> CBOR which are the same for every key, the
+ * element identifier and value, are encoded only once when the generator is built. The
+ * <code>MobileSecurityObject</code> for each key is then created and signed in parallel on the
+ * given {@link Executor}, or on a thread pool sized to the number of processors if none is
+ * given.
+ *
+ * <p>Instances of this class are thread-safe.
+ */
+public final class StaticAuthDataGenerator {
+    private static final int RANDOM_SIZE = 16;
+
+    private static final byte[] ENCODED_DIGEST_ID_KEY = Util.cborEncodeString("digestID");
+    private static final byte[] ENCODED_RANDOM_KEY = Util.cborEncodeString("random");
+    private static final byte[] ENCODED_ELEMENT_IDENTIFIER_KEY =
+            Util.cborEncodeString("elementIdentifier");
+    private static final byte[] ENCODED_ELEMENT_VALUE_KEY = Util.cborEncodeString("elementValue");
+    private static final byte[] ENCODED_NULL = Util.cborEncode(SimpleValue.NULL);
+
+    private final PrivateKey mIssuingAuthorityKey;
+    private final String mSignatureAlgorithm;
+    private final List<X509Certificate> mIssuingAuthorityCertificateChain;
+    private final String mDocType;
+    private final DataItem mValidityInfo;
+    private final Executor mExecutor;
+
+    // The namespaces and, for each, the IssuerSignedItem CBOR following the random value for
+    // each element, with and without the element value.
+    private final List<String> mNamespaces = new ArrayList<>();
+    private final List<List<byte[]>> mEncodedItemTails = new ArrayList<>();
+    private final List<List<byte[]>> mEncodedClearedItemTails = new ArrayList<>();
+    private final int mNumEntries;
+
+    private StaticAuthDataGenerator(@NonNull Builder builder) {
+        mIssuingAuthorityKey = builder.mIssuingAuthorityKey;
+        mSignatureAlgorithm = builder.mSignatureAlgorithm;
+        mIssuingAuthorityCertificateChain = Collections.unmodifiableList(
+                new ArrayList<>(builder.mIssuingAuthorityCertificateChain));
+        mDocType = builder.mDocType;
+        mExecutor = builder.mExecutor;
+        mValidityInfo = new CborBuilder()
+                .addMap()
+                .put(new UnicodeString("signed"), Util.cborBuildDateTime(builder.mSigned))
+                .put(new UnicodeString("validFrom"), Util.cborBuildDateTime(builder.mValidFrom))
+                .put(new UnicodeString("validUntil"), Util.cborBuildDateTime(builder.mValidUntil))
+                .end()
+                .build().get(0);
+
+        int numEntries = 0;
+        for (PersonalizationData.NamespaceData nsd :
+                builder.mPersonalizationData.getNamespaceDatas()) {
+            List<byte[]> tails = new ArrayList<>();
+            List<byte[]> clearedTails = new ArrayList<>();
+            for (String entry : nsd.getEntryNames()) {
+                // Decode and encode again to get the same encoding as a value put in a map.
+                byte[] encodedValue = Util.cborEncode(Util.cborDecode(nsd.getEntryValue(entry)));
+                byte[] encodedIdentifier = concat(
+                        ENCODED_ELEMENT_IDENTIFIER_KEY,
+                        Util.cborEncodeString(entry),
+                        ENCODED_ELEMENT_VALUE_KEY);
+                tails.add(concat(encodedIdentifier, encodedValue));
+                clearedTails.add(concat(encodedIdentifier, ENCODED_NULL));
+            }
+            mNamespaces.add(nsd.getNamespaceName());
+            mEncodedItemTails.add(tails);
+            mEncodedClearedItemTails.add(clearedTails);
+            numEntries += tails.size();
+        }
+        mNumEntries = numEntries;
+    }
+
+    /**
+     * Generates <code>staticAuthData</code> for each of the given authentication keys.
+     *
+     * <p>This blocks until all keys are done.
+     *
+     * @param authenticationKeys the public part of the authentication keys, for example from
+     *                           the certificates returned by
+     *                           {@link IdentityCredential#getAuthKeysNeedingCertification()}.
+     * @return the <code>staticAuthData</code> for each key, in the same order as the keys.
+     * @throws IllegalStateException if signing fails or the calling thread is interrupted.
+     */
+    public @NonNull List<byte[]> generate(@NonNull List<PublicKey> authenticationKeys) {
+        SecureRandom random = new SecureRandom();
+        if (authenticationKeys.size() <= 1) {
+            List<byte[]> result = new ArrayList<>();
+            for (PublicKey authenticationKey : authenticationKeys) {
+                result.add(generateStaticAuthData(authenticationKey, random));
+            }
+            return result;
+        }
+
+        Executor executor = mExecutor;
+        ExecutorService ownedExecutor = null;
+        if (executor == null) {
+            ownedExecutor = Executors.newFixedThreadPool(Math.min(authenticationKeys.size(),
+                    Runtime.getRuntime().availableProcessors()));
+            executor = ownedExecutor;
+        }
+        try {
+            List<FutureTask<byte[]>> tasks = new ArrayList<>();
+            for (PublicKey authenticationKey : authenticationKeys) {
+                FutureTask<byte[]> task = new FutureTask<>(
+                        () -> generateStaticAuthData(authenticationKey, random));
+                tasks.add(task);
+                executor.execute(task);
+            }
+            List<byte[]> result = new ArrayList<>();
+            for (FutureTask<byte[]> task : tasks) {
+                result.add(task.get());
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted generating static auth data", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Error generating static auth data", e.getCause());
+        } finally {
+            if (ownedExecutor != null) {
+                ownedExecutor.shutdownNow();
+            }
+        }
+    }
+
+    private @NonNull byte[] generateStaticAuthData(@NonNull PublicKey authenticationKey,
+            @NonNull SecureRandom random) {
+        // Shuffle digest ids so they can't be used to correlate presentations made with
+        // different keys.
+        int[] digestIds = new int[mNumEntries];
+        for (int n = 0; n < mNumEntries; n++) {
+            int m = random.nextInt(n + 1);
+            digestIds[n] = digestIds[m];
+            digestIds[m] = n;
+        }
+        byte[] randoms = new byte[mNumEntries * RANDOM_SIZE];
+        random.nextBytes(randoms);
+
+        MessageDigest digester;
+        try {
+            digester = CryptoProvider.getDefault().getMessageDigest("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Failed creating digester", e);
+        }
+
+        Map<String, List<byte[]>> issuerSignedMapping = new HashMap<>();
+        CborBuilder vdBuilder = new CborBuilder();
+        MapBuilder<CborBuilder> vdMapBuilder = vdBuilder.addMap();
+        ByteArrayOutputStream prefixBaos = new ByteArrayOutputStream();
+        int entryNum = 0;
+        for (int nsNum = 0; nsNum < mNamespaces.size(); nsNum++) {
+            List<byte[]> tails = mEncodedItemTails.get(nsNum);
+            List<byte[]> clearedTails = mEncodedClearedItemTails.get(nsNum);
+            List<byte[]> innerArray = new ArrayList<>();
+            MapBuilder<MapBuilder<CborBuilder>> vdInner =
+                    vdMapBuilder.putMap(mNamespaces.get(nsNum));
+            for (int n = 0; n < tails.size(); n++, entryNum++) {
+                int digestId = digestIds[entryNum];
+
+                // IssuerSignedItem is a map with four entries, encoded in the order
+                // digestID, random, elementIdentifier, elementValue.
+                prefixBaos.reset();
+                prefixBaos.write(0xa4);
+                prefixBaos.write(ENCODED_DIGEST_ID_KEY, 0, ENCODED_DIGEST_ID_KEY.length);
+                byte[] encodedDigestId = Util.cborEncodeNumber(digestId);
+                prefixBaos.write(encodedDigestId, 0, encodedDigestId.length);
+                prefixBaos.write(ENCODED_RANDOM_KEY, 0, ENCODED_RANDOM_KEY.length);
+                prefixBaos.write(0x40 + RANDOM_SIZE);
+                prefixBaos.write(randoms, entryNum * RANDOM_SIZE, RANDOM_SIZE);
+                byte[] prefix = prefixBaos.toByteArray();
+
+                // For the digest, it's of the _tagged_ bstr so wrap it
+                byte[] encodedIssuerSignedItem = concat(prefix, tails.get(n));
+                byte[] digest = digester.digest(Util.cborEncode(
+                        Util.cborBuildTaggedByteString(encodedIssuerSignedItem)));
+
+                innerArray.add(concat(prefix, clearedTails.get(n)));
+                vdInner.put(digestId, digest);
+            }
+            issuerSignedMapping.put(mNamespaces.get(nsNum), innerArray);
+            vdInner.end();
+        }
+        vdMapBuilder.end();
+
+        byte[] encodedMobileSecurityObject = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("version", "1.0")
+                .put("digestAlgorithm", "SHA-256")
+                .put(new UnicodeString("valueDigests"), vdBuilder.build().get(0))
+                .put("docType", mDocType)
+                .put(new UnicodeString("validityInfo"), mValidityInfo)
+                .putMap("deviceKeyInfo")
+                .put(new UnicodeString("deviceKey"), Util.cborBuildCoseKey(authenticationKey))
+                .end()
+                .end()
+                .build().get(0));
+
+        // IssuerAuth is a COSE_Sign1 where payload is MobileSecurityObjectBytes
+        //
+        // MobileSecurityObjectBytes = #6.24(bstr .cbor MobileSecurityObject)
+        //
+        byte[] taggedEncodedMso = Util.cborEncode(
+                Util.cborBuildTaggedByteString(encodedMobileSecurityObject));
+        byte[] encodedIssuerAuth = Util.cborEncode(Util.coseSign1Sign(mIssuingAuthorityKey,
+                mSignatureAlgorithm, taggedEncodedMso, null,
+                mIssuingAuthorityCertificateChain));
+
+        return Utility.encodeStaticAuthData(issuerSignedMapping, encodedIssuerAuth);
+    }
+
+    private static @NonNull byte[] concat(@NonNull byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+
+    /**
+     * A builder for {@link StaticAuthDataGenerator}.
+     */
+    public static final class Builder {
+        private final PrivateKey mIssuingAuthorityKey;
+        private final List<X509Certificate> mIssuingAuthorityCertificateChain;
+        private final String mDocType;
+        private final PersonalizationData mPersonalizationData;
+        private String mSignatureAlgorithm = "SHA256withECDSA";
+        private Timestamp mSigned;
+        private Timestamp mValidFrom;
+        private Timestamp mValidUntil;
+        private Executor mExecutor;
+
+        /**
+         * Creates a new builder.
+         *
+         * <p>The validity period defaults to one year starting now.
+         *
+         * @param issuingAuthorityKey              the private key to sign the
+         *                                         <code>MobileSecurityObject</code> with.
+         * @param issuingAuthorityCertificateChain the certificate chain for the key, put in
+         *                                         the <code>x5chain</code> header.
+         * @param docType                          the document type, e.g.
+         *                                         "org.iso.18013.5.1.mDL".
+         * @param personalizationData              the data in the document.
+         */
+        public Builder(@NonNull PrivateKey issuingAuthorityKey,
+                @NonNull List<X509Certificate> issuingAuthorityCertificateChain,
+                @NonNull String docType,
+                @NonNull PersonalizationData personalizationData) {
+            mIssuingAuthorityKey = issuingAuthorityKey;
+            mIssuingAuthorityCertificateChain = issuingAuthorityCertificateChain;
+            mDocType = docType;
+            mPersonalizationData = personalizationData;
+            long nowMillis = System.currentTimeMillis();
+            mSigned = Timestamp.ofEpochMilli(nowMillis);
+            mValidFrom = mSigned;
+            mValidUntil = Timestamp.ofEpochMilli(nowMillis + 365L * 24 * 3600 * 1000);
+        }
+
+        /**
+         * Sets the signature algorithm, defaults to "SHA256withECDSA".
+         *
+         * @param signatureAlgorithm one of "SHA256withECDSA", "SHA384withECDSA" or
+         *                           "SHA512withECDSA".
+         * @return the builder.
+         */
+        public @NonNull Builder setSignatureAlgorithm(@NonNull String signatureAlgorithm) {
+            mSignatureAlgorithm = signatureAlgorithm;
+            return this;
+        }
+
+        /**
+         * Sets the <code>validityInfo</code> of the <code>MobileSecurityObject</code>.
+         *
+         * @param signed     when the <code>MobileSecurityObject</code> was signed.
+         * @param validFrom  the start of the validity period.
+         * @param validUntil the end of the validity period.
+         * @return the builder.
+         */
+        public @NonNull Builder setValidityInfo(@NonNull Timestamp signed,
+                @NonNull Timestamp validFrom,
+                @NonNull Timestamp validUntil) {
+            mSigned = signed;
+            mValidFrom = validFrom;
+            mValidUntil = validUntil;
+            return this;
+        }
+
+        /**
+         * Sets the executor to create and sign the <code>MobileSecurityObject</code> for each
+         * key on.
+         *
+         * <p>If not set, a thread pool is created for each call to
+         * {@link StaticAuthDataGenerator#generate(List)}.
+         *
+         * @param executor the executor or {@code null}.
+         * @return the builder.
+         */
+        public @NonNull Builder setExecutor(@Nullable Executor executor) {
+            mExecutor = executor;
+            return this;
+        }
+
+        /**
+         * Builds the {@link StaticAuthDataGenerator}.
+         *
+         * @return the generator.
+         */
+        public @NonNull StaticAuthDataGenerator build() {
+            return new StaticAuthDataGenerator(this);
+        }
+    }
+}
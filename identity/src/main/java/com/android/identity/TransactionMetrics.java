@@ -0,0 +1,614 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.builder.ArrayBuilder;
+import co.nstant.in.cbor.builder.MapBuilder;
+
+/**
+ * Collects per-phase latency, byte-count and chunk-count metrics for transactions.
+ *
+ * <p>{@link DeviceRetrievalHelper}, {@link VerificationHelper}, the data transports and the
+ * session encryption code report each phase of a transaction, such as connecting the
+ * transport or decrypting a message, as an {@link Event}. Events are aggregated into one
+ * {@link Histogram} per phase and transport, which can be exported using
+ * {@link #exportHistograms()}, and are also delivered to listeners added with
+ * {@link #addListener(Listener, Executor)}.
+ *
+ * <p>All timestamps are from {@link System#nanoTime()} and as such are only meaningful
+ * relative to each other.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class TransactionMetrics {
+    private static final String TAG = "TransactionMetrics";
+
+    /** Engagement, from the first engagement message until engagement is complete. */
+    public static final int PHASE_ENGAGEMENT = 0;
+    /** Establishing a connection using a data transport. */
+    public static final int PHASE_TRANSPORT_CONNECT = 1;
+    /** Key agreement and derivation of session keys. */
+    public static final int PHASE_SESSION_ESTABLISHMENT = 2;
+    /** Decrypting a <code>SessionData</code> or <code>SessionEstablishment</code> message. */
+    public static final int PHASE_DECRYPT = 3;
+    /** Parsing a <code>DeviceRequest</code>. */
+    public static final int PHASE_PARSE_REQUEST = 4;
+    /** Retrieving data from a credential. */
+    public static final int PHASE_GET_CREDENTIAL_DATA = 5;
+    /** Generating a <code>DeviceResponse</code>. */
+    public static final int PHASE_GENERATE_RESPONSE = 6;
+    /** Encrypting a message into <code>SessionData</code> or <code>SessionEstablishment</code>. */
+    public static final int PHASE_ENCRYPT = 7;
+    /** Sending a message using a data transport, until the last chunk has been sent. */
+    public static final int PHASE_TRANSPORT_SEND = 8;
+    /** Receiving a message using a data transport, from the first to the last chunk. */
+    public static final int PHASE_TRANSPORT_RECEIVE = 9;
+
+    /** @hidden */
+    @Retention(RetentionPolicy.SOURCE)
+    @IntDef(value = {
+            PHASE_ENGAGEMENT,
+            PHASE_TRANSPORT_CONNECT,
+            PHASE_SESSION_ESTABLISHMENT,
+            PHASE_DECRYPT,
+            PHASE_PARSE_REQUEST,
+            PHASE_GET_CREDENTIAL_DATA,
+            PHASE_GENERATE_RESPONSE,
+            PHASE_ENCRYPT,
+            PHASE_TRANSPORT_SEND,
+            PHASE_TRANSPORT_RECEIVE})
+    public @interface Phase {
+    }
+
+    private static final String[] PHASE_NAMES = {
+            "engagement",
+            "transportConnect",
+            "sessionEstablishment",
+            "decrypt",
+            "parseRequest",
+            "getCredentialData",
+            "generateResponse",
+            "encrypt",
+            "transportSend",
+            "transportReceive",
+    };
+
+    // Upper bounds of the histogram buckets, in microseconds. There is an additional
+    // bucket for durations longer than the last bound.
+    private static final long[] BUCKET_BOUNDS_MICROS = {
+            100, 250, 500,
+            1000, 2500, 5000,
+            10000, 25000, 50000,
+            100000, 250000, 500000,
+            1000000, 2500000, 5000000,
+            10000000,
+    };
+
+    private static TransactionMetrics sDefault;
+
+    private final CopyOnWriteArrayList<ListenerRegistration> mListeners =
+            new CopyOnWriteArrayList<>();
+    private final Map<String, Histogram.Builder> mHistograms = new LinkedHashMap<>();
+
+    private static final class ListenerRegistration {
+        final Listener mListener;
+        final Executor mExecutor;
+
+        ListenerRegistration(Listener listener, Executor executor) {
+            mListener = listener;
+            mExecutor = executor;
+        }
+    }
+
+    /**
+     * Creates a new object with no listeners and empty histograms.
+     */
+    public TransactionMetrics() {
+    }
+
+    /**
+     * Gets the object metrics are reported to when no other object has been configured.
+     *
+     * @return the default object.
+     */
+    public static synchronized @NonNull TransactionMetrics getDefault() {
+        if (sDefault == null) {
+            sDefault = new TransactionMetrics();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the object metrics are reported to when no other object has been configured.
+     *
+     * @param metrics the object to use.
+     */
+    public static synchronized void setDefault(@NonNull TransactionMetrics metrics) {
+        sDefault = metrics;
+    }
+
+    /**
+     * Gets a human-readable name for a phase.
+     *
+     * @param phase the phase.
+     * @return the name, for example {@code transportConnect}.
+     */
+    public static @NonNull String getPhaseName(@Phase int phase) {
+        if (phase < 0 || phase >= PHASE_NAMES.length) {
+            throw new IllegalArgumentException("Unknown phase " + phase);
+        }
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * Adds a listener which is called for every event reported.
+     *
+     * @param listener the listener.
+     * @param executor a {@link Executor} to do the call in.
+     */
+    public void addListener(@NonNull Listener listener, @NonNull Executor executor) {
+        mListeners.add(new ListenerRegistration(listener, executor));
+    }
+
+    /**
+     * Removes a listener previously added with {@link #addListener(Listener, Executor)}.
+     *
+     * @param listener the listener.
+     */
+    public void removeListener(@NonNull Listener listener) {
+        for (ListenerRegistration registration : mListeners) {
+            if (registration.mListener == listener) {
+                mListeners.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Starts timing a phase.
+     *
+     * @param phase the phase.
+     * @param transport the name of the transport used, or {@code null} if the phase doesn't
+     *                  depend on the transport.
+     * @return a {@link Span} which must be ended when the phase completes.
+     */
+    public @NonNull Span startSpan(@Phase int phase, @Nullable String transport) {
+        return new Span(phase, transport, System.nanoTime());
+    }
+
+    /**
+     * Reports a completed phase.
+     *
+     * @param event the event describing the phase.
+     */
+    public void report(@NonNull Event event) {
+        String key = event.getPhase() + "/" + event.getTransport();
+        synchronized (mHistograms) {
+            Histogram.Builder builder = mHistograms.get(key);
+            if (builder == null) {
+                builder = new Histogram.Builder(event.getPhase(), event.getTransport());
+                mHistograms.put(key, builder);
+            }
+            builder.add(event);
+        }
+        for (ListenerRegistration registration : mListeners) {
+            registration.mExecutor.execute(() -> registration.mListener.onEvent(event));
+        }
+        if (Logger.isLoggable(TAG, Logger.LEVEL_D)) {
+            Logger.d(TAG, event::toString);
+        }
+    }
+
+    /**
+     * Gets a snapshot of the histograms for all phases and transports seen so far.
+     *
+     * @return the histograms, in the order the phase and transport was first seen.
+     */
+    public @NonNull List<Histogram> getHistograms() {
+        List<Histogram> histograms = new ArrayList<>();
+        synchronized (mHistograms) {
+            for (Histogram.Builder builder : mHistograms.values()) {
+                histograms.add(builder.build());
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * Exports the histograms as CBOR, for example for uploading to a server.
+     *
+     * <p>The returned data conforms to the following CDDL:
+     * <pre>
+     *     Histograms = [ * Histogram ]
+     *     Histogram = {
+     *       "phase" : tstr,
+     *       ? "transport" : tstr,
+     *       "count" : uint,
+     *       "errors" : uint,
+     *       "bytes" : uint,
+     *       "chunks" : uint,
+     *       "totalMicros" : uint,
+     *       "maxMicros" : uint,
+     *       "bucketBoundsMicros" : [ * uint ],
+     *       "bucketCounts" : [ * uint ]      ; One more than bucketBoundsMicros
+     *     }
+     * </pre>
+     *
+     * @return the bytes of the CBOR described above.
+     */
+    public @NonNull byte[] exportHistograms() {
+        CborBuilder builder = new CborBuilder();
+        ArrayBuilder<CborBuilder> arrayBuilder = builder.addArray();
+        for (Histogram histogram : getHistograms()) {
+            MapBuilder<ArrayBuilder<CborBuilder>> mapBuilder = arrayBuilder.addMap();
+            mapBuilder.put("phase", getPhaseName(histogram.getPhase()));
+            if (histogram.getTransport() != null) {
+                mapBuilder.put("transport", histogram.getTransport());
+            }
+            mapBuilder.put("count", histogram.getCount());
+            mapBuilder.put("errors", histogram.getErrorCount());
+            mapBuilder.put("bytes", histogram.getTotalBytes());
+            mapBuilder.put("chunks", histogram.getTotalChunks());
+            mapBuilder.put("totalMicros", histogram.getTotalDurationNanos() / 1000);
+            mapBuilder.put("maxMicros", histogram.getMaxDurationNanos() / 1000);
+            ArrayBuilder<MapBuilder<ArrayBuilder<CborBuilder>>> boundsBuilder =
+                    mapBuilder.putArray("bucketBoundsMicros");
+            for (long bound : histogram.getBucketBoundsMicros()) {
+                boundsBuilder.add(bound);
+            }
+            boundsBuilder.end();
+            ArrayBuilder<MapBuilder<ArrayBuilder<CborBuilder>>> countsBuilder =
+                    mapBuilder.putArray("bucketCounts");
+            for (long count : histogram.getBucketCounts()) {
+                countsBuilder.add(count);
+            }
+            countsBuilder.end();
+            mapBuilder.end();
+        }
+        arrayBuilder.end();
+        return Util.cborEncode(builder.build().get(0));
+    }
+
+    /**
+     * Clears all histograms.
+     */
+    public void reset() {
+        synchronized (mHistograms) {
+            mHistograms.clear();
+        }
+    }
+
+    /**
+     * Interface for listening to metrics events.
+     */
+    public interface Listener {
+        /**
+         * Called when a phase has completed.
+         *
+         * @param event the event describing the phase.
+         */
+        void onEvent(@NonNull Event event);
+    }
+
+    /**
+     * A phase being timed, started with {@link #startSpan(int, String)}.
+     *
+     * <p>Only the first call to {@link #end()} or {@link #endWithError(String)} has any
+     * effect.
+     */
+    public final class Span {
+        private final @Phase int mPhase;
+        private final @Nullable String mTransport;
+        private final long mStartNanos;
+        private long mNumBytes;
+        private int mNumChunks;
+        private boolean mEnded;
+
+        Span(@Phase int phase, @Nullable String transport, long startNanos) {
+            mPhase = phase;
+            mTransport = transport;
+            mStartNanos = startNanos;
+        }
+
+        /**
+         * Adds to the number of bytes processed in this phase.
+         *
+         * @param numBytes the number of bytes.
+         * @return the span.
+         */
+        public synchronized @NonNull Span addBytes(long numBytes) {
+            mNumBytes += numBytes;
+            return this;
+        }
+
+        /**
+         * Adds a chunk, for example a GATT notification or an APDU, sent or received in
+         * this phase.
+         *
+         * @return the span.
+         */
+        public synchronized @NonNull Span addChunk() {
+            mNumChunks++;
+            return this;
+        }
+
+        /**
+         * Ends the span successfully and reports it.
+         */
+        public void end() {
+            endWithError(null);
+        }
+
+        /**
+         * Ends the span and reports it.
+         *
+         * @param errorTag a short tag describing the error which ended the phase, for
+         *                 example the name of an exception class, or {@code null} if the
+         *                 phase completed successfully.
+         */
+        public void endWithError(@Nullable String errorTag) {
+            Event event;
+            synchronized (this) {
+                if (mEnded) {
+                    return;
+                }
+                mEnded = true;
+                event = new Event(mPhase, mTransport, mStartNanos,
+                        System.nanoTime() - mStartNanos, mNumBytes, mNumChunks, errorTag);
+            }
+            report(event);
+        }
+    }
+
+    /**
+     * A completed phase.
+     */
+    public static final class Event {
+        private final @Phase int mPhase;
+        private final @Nullable String mTransport;
+        private final long mStartNanos;
+        private final long mDurationNanos;
+        private final long mNumBytes;
+        private final int mNumChunks;
+        private final @Nullable String mErrorTag;
+
+        /**
+         * Creates a new event.
+         *
+         * @param phase the phase.
+         * @param transport the name of the transport, or {@code null}.
+         * @param startNanos the time the phase started, from {@link System#nanoTime()}.
+         * @param durationNanos the duration of the phase, in nanoseconds.
+         * @param numBytes the number of bytes processed.
+         * @param numChunks the number of chunks sent or received.
+         * @param errorTag a tag describing the error, or {@code null} on success.
+         */
+        public Event(@Phase int phase,
+                     @Nullable String transport,
+                     long startNanos,
+                     long durationNanos,
+                     long numBytes,
+                     int numChunks,
+                     @Nullable String errorTag) {
+            mPhase = phase;
+            mTransport = transport;
+            mStartNanos = startNanos;
+            mDurationNanos = durationNanos;
+            mNumBytes = numBytes;
+            mNumChunks = numChunks;
+            mErrorTag = errorTag;
+        }
+
+        /** @return the phase. */
+        public @Phase int getPhase() {
+            return mPhase;
+        }
+
+        /** @return the name of the transport, or {@code null} if not transport-specific. */
+        public @Nullable String getTransport() {
+            return mTransport;
+        }
+
+        /** @return the time the phase started, from {@link System#nanoTime()}. */
+        public long getStartNanos() {
+            return mStartNanos;
+        }
+
+        /** @return the duration of the phase, in nanoseconds. */
+        public long getDurationNanos() {
+            return mDurationNanos;
+        }
+
+        /** @return the number of bytes processed. */
+        public long getNumBytes() {
+            return mNumBytes;
+        }
+
+        /** @return the number of chunks sent or received, 0 if not applicable. */
+        public int getNumChunks() {
+            return mNumChunks;
+        }
+
+        /** @return a tag describing the error, or {@code null} if the phase succeeded. */
+        public @Nullable String getErrorTag() {
+            return mErrorTag;
+        }
+
+        @Override
+        public @NonNull String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(getPhaseName(mPhase));
+            if (mTransport != null) {
+                sb.append(" (").append(mTransport).append(")");
+            }
+            sb.append(": ").append(mDurationNanos / 1000).append(" us");
+            sb.append(", ").append(mNumBytes).append(" bytes");
+            if (mNumChunks > 0) {
+                sb.append(", ").append(mNumChunks).append(" chunks");
+            }
+            if (mErrorTag != null) {
+                sb.append(", error ").append(mErrorTag);
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Aggregated durations, byte and chunk counts for one phase and transport.
+     */
+    public static final class Histogram {
+        private final @Phase int mPhase;
+        private final @Nullable String mTransport;
+        private final long mCount;
+        private final long mErrorCount;
+        private final long mTotalBytes;
+        private final long mTotalChunks;
+        private final long mTotalDurationNanos;
+        private final long mMaxDurationNanos;
+        private final long[] mBucketCounts;
+
+        Histogram(@Phase int phase, @Nullable String transport, long count, long errorCount,
+                  long totalBytes, long totalChunks, long totalDurationNanos,
+                  long maxDurationNanos, @NonNull long[] bucketCounts) {
+            mPhase = phase;
+            mTransport = transport;
+            mCount = count;
+            mErrorCount = errorCount;
+            mTotalBytes = totalBytes;
+            mTotalChunks = totalChunks;
+            mTotalDurationNanos = totalDurationNanos;
+            mMaxDurationNanos = maxDurationNanos;
+            mBucketCounts = bucketCounts;
+        }
+
+        /** @return the phase. */
+        public @Phase int getPhase() {
+            return mPhase;
+        }
+
+        /** @return the name of the transport, or {@code null} if not transport-specific. */
+        public @Nullable String getTransport() {
+            return mTransport;
+        }
+
+        /** @return the number of events, including failed ones. */
+        public long getCount() {
+            return mCount;
+        }
+
+        /** @return the number of events with an error tag. */
+        public long getErrorCount() {
+            return mErrorCount;
+        }
+
+        /** @return the total number of bytes processed. */
+        public long getTotalBytes() {
+            return mTotalBytes;
+        }
+
+        /** @return the total number of chunks sent or received. */
+        public long getTotalChunks() {
+            return mTotalChunks;
+        }
+
+        /** @return the sum of the durations of all events, in nanoseconds. */
+        public long getTotalDurationNanos() {
+            return mTotalDurationNanos;
+        }
+
+        /** @return the longest duration seen, in nanoseconds. */
+        public long getMaxDurationNanos() {
+            return mMaxDurationNanos;
+        }
+
+        /**
+         * Gets the upper bounds of the buckets, in microseconds.
+         *
+         * @return the upper bounds, in increasing order.
+         */
+        public @NonNull long[] getBucketBoundsMicros() {
+            return BUCKET_BOUNDS_MICROS.clone();
+        }
+
+        /**
+         * Gets the number of events in each bucket.
+         *
+         * <p>An event with duration <code>d</code> is counted in the first bucket with an
+         * upper bound of at least <code>d</code>. The returned array has one more element
+         * than {@link #getBucketBoundsMicros()}, for events longer than the last bound.
+         *
+         * @return the number of events in each bucket.
+         */
+        public @NonNull long[] getBucketCounts() {
+            return mBucketCounts.clone();
+        }
+
+        static final class Builder {
+            private final @Phase int mPhase;
+            private final @Nullable String mTransport;
+            private long mCount;
+            private long mErrorCount;
+            private long mTotalBytes;
+            private long mTotalChunks;
+            private long mTotalDurationNanos;
+            private long mMaxDurationNanos;
+            private final long[] mBucketCounts = new long[BUCKET_BOUNDS_MICROS.length + 1];
+
+            Builder(@Phase int phase, @Nullable String transport) {
+                mPhase = phase;
+                mTransport = transport;
+            }
+
+            void add(@NonNull Event event) {
+                mCount++;
+                if (event.getErrorTag() != null) {
+                    mErrorCount++;
+                }
+                mTotalBytes += event.getNumBytes();
+                mTotalChunks += event.getNumChunks();
+                mTotalDurationNanos += event.getDurationNanos();
+                mMaxDurationNanos = Math.max(mMaxDurationNanos, event.getDurationNanos());
+                long durationMicros = event.getDurationNanos() / 1000;
+                int bucket = 0;
+                while (bucket < BUCKET_BOUNDS_MICROS.length
+                        && durationMicros > BUCKET_BOUNDS_MICROS[bucket]) {
+                    bucket++;
+                }
+                mBucketCounts[bucket]++;
+            }
+
+            @NonNull Histogram build() {
+                return new Histogram(mPhase, mTransport, mCount, mErrorCount, mTotalBytes,
+                        mTotalChunks, mTotalDurationNanos, mMaxDurationNanos,
+                        mBucketCounts.clone());
+            }
+        }
+    }
+}
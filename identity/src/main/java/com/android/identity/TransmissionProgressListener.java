@@ -14,4 +14,15 @@ public interface TransmissionProgressListener {
    * @param max Maximum progress value (>= progress)
    */
   void onProgressUpdate(long progress, long max);
+
+  /**
+   * Callback with the throughput of a data transmission so far, for transports which can
+   * measure it. The default implementation does nothing.
+   *
+   * @param numBytes Number of bytes transferred so far.
+   * @param numRoundTrips Number of round-trips with the remote device so far.
+   * @param elapsedMillis Time since the transmission started, in milliseconds.
+   */
+  default void onThroughputUpdate(long numBytes, long numRoundTrips, long elapsedMillis) {
+  }
 }
@@ -30,7 +30,6 @@ import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.DERSequenceGenerator;
-import org.bouncycastle.util.BigIntegers;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -39,15 +38,12 @@ import java.io.InputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
@@ -61,12 +57,7 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECGenParameterSpec;
-import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
-import java.security.spec.ECPrivateKeySpec;
-import java.security.spec.ECPublicKeySpec;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
@@ -74,6 +65,7 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -119,12 +111,6 @@ class Util {
     private static final long COSE_ALG_ECDSA_512 = -36;
     private static final long COSE_ALG_HMAC_256_256 = 5;
     private static final long CBOR_SEMANTIC_TAG_ENCODED_CBOR = 24;
-    private static final long COSE_KEY_KTY = 1;
-    private static final long COSE_KEY_TYPE_EC2 = 2;
-    private static final long COSE_KEY_EC2_CRV = -1;
-    private static final long COSE_KEY_EC2_X = -2;
-    private static final long COSE_KEY_EC2_Y = -3;
-    private static final long COSE_KEY_EC2_CRV_P256 = 1;
 
     // Not called.
     private Util() {
@@ -402,7 +388,7 @@ class Util {
             @NonNull final byte[] info, int size) {
         Mac mac = null;
         try {
-            mac = Mac.getInstance(macAlgorithm);
+            mac = CryptoProvider.getDefault().getMac(macAlgorithm);
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalStateException("No such algorithm: " + macAlgorithm, e);
         }
@@ -497,23 +483,10 @@ class Util {
         BigInteger r = castTo(ASN1Integer.class, asn1Encodables[0].toASN1Primitive()).getValue();
         BigInteger s = castTo(ASN1Integer.class, asn1Encodables[1].toASN1Primitive()).getValue();
 
-        byte[] rBytes = stripLeadingZeroes(r.toByteArray());
-        byte[] sBytes = stripLeadingZeroes(s.toByteArray());
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            for (int n = 0; n < keySize - rBytes.length; n++) {
-                baos.write(0x00);
-            }
-            baos.write(rBytes);
-            for (int n = 0; n < keySize - sBytes.length; n++) {
-                baos.write(0x00);
-            }
-            baos.write(sBytes);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-        return baos.toByteArray();
+        byte[] coseSignature = new byte[2 * keySize];
+        CoseKeyCodec.encodeFieldElement(r, coseSignature, 0, keySize);
+        CoseKeyCodec.encodeFieldElement(s, coseSignature, keySize, keySize);
+        return coseSignature;
     }
 
     private static byte[] signatureCoseToDer(byte[] signature) {
@@ -557,7 +530,7 @@ class Util {
             keySize = 48;
             alg = COSE_ALG_ECDSA_384;
         } else if (s.getAlgorithm().equals("SHA512withECDSA")) {
-            keySize = 64;
+            keySize = 66;
             alg = COSE_ALG_ECDSA_512;
         } else {
             throw new IllegalArgumentException("Unsupported algorithm " + s.getAlgorithm());
@@ -699,10 +672,11 @@ class Util {
                 detachedContent);
 
         try {
-            // Using the default provider here. If BounceyCastle is to be used it is up to client
-            // to register that provider before hand.
+            // Using the provider configured in CryptoProvider, the default provider unless the
+            // application chose another one. If BouncyCastle is to be used it is up to client
+            // to either configure it there or register that provider before hand.
             // https://docs.oracle.com/javase/7/docs/api/java/security/Security.html#addProvider(java.security.Provider)
-            Signature verifier = Signature.getInstance(signature);
+            Signature verifier = CryptoProvider.getDefault().getSignature(signature);
             verifier.initVerify(publicKey);
             verifier.update(toBeSigned);
             return verifier.verify(derSignature);
@@ -758,7 +732,7 @@ class Util {
 
         byte[] mac;
         try {
-            Mac m = Mac.getInstance("HmacSHA256");
+            Mac m = CryptoProvider.getDefault().getMac("HmacSHA256");
             m.init(key);
             m.update(toBeMACed);
             mac = m.doFinal();
@@ -897,6 +871,12 @@ class Util {
         return payload;
     }
 
+    // Parsed x5chain values, see coseSign1GetX5Chain().
+    private static final int X5CHAIN_CACHE_MAX_ENTRIES = 32;
+    private static final long X5CHAIN_CACHE_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final CertificateChainCache<List<X509Certificate>> sX5ChainCache =
+            new CertificateChainCache<>(X5CHAIN_CACHE_MAX_ENTRIES);
+
     /**
      * Returns the empty collection if no x5chain is included in the structure.
      *
@@ -919,51 +899,49 @@ class Util {
         co.nstant.in.cbor.model.Map map = (co.nstant.in.cbor.model.Map) items.get(1);
         DataItem x5chainItem = map.get(new UnsignedInteger(COSE_LABEL_X5CHAIN));
         if (x5chainItem != null) {
+            List<byte[]> encodedCertificates = new ArrayList<>();
+            if (x5chainItem instanceof ByteString) {
+                encodedCertificates.add(castTo(ByteString.class, x5chainItem).getBytes());
+            } else if (x5chainItem instanceof Array) {
+                for (DataItem certItem : castTo(Array.class, x5chainItem).getDataItems()) {
+                    encodedCertificates.add(castTo(ByteString.class, certItem).getBytes());
+                }
+            } else {
+                throw new IllegalArgumentException("Unexpected type for x5chain value");
+            }
+
+            // Hashing the chain is a lot cheaper than parsing it and the same few chains
+            // are seen over and over again.
+            long nowMillis = System.currentTimeMillis();
+            byte[] fingerprint = CertificateChainCache.computeFingerprint(encodedCertificates);
+            List<X509Certificate> cachedChain = sX5ChainCache.get(fingerprint, nowMillis);
+            if (cachedChain != null) {
+                ret.addAll(cachedChain);
+                return ret;
+            }
+
             try {
                 CertificateFactory factory = CertificateFactory.getInstance("X.509");
-                if (x5chainItem instanceof ByteString) {
-                    ByteArrayInputStream certBais = new ByteArrayInputStream(
-                            castTo(ByteString.class, x5chainItem).getBytes());
+                for (byte[] encodedCertificate : encodedCertificates) {
+                    ByteArrayInputStream certBais = new ByteArrayInputStream(encodedCertificate);
                     ret.add((X509Certificate) factory.generateCertificate(certBais));
-                } else if (x5chainItem instanceof Array) {
-                    for (DataItem certItem : castTo(Array.class, x5chainItem).getDataItems()) {
-                        ByteArrayInputStream certBais = new ByteArrayInputStream(
-                                castTo(ByteString.class, certItem).getBytes());
-                        ret.add((X509Certificate) factory.generateCertificate(certBais));
-                    }
-                } else {
-                    throw new IllegalArgumentException("Unexpected type for x5chain value");
                 }
             } catch (CertificateException e) {
                 throw new IllegalArgumentException("Unexpected error", e);
             }
+            long expiresAtMillis = CertificateChainCache.getExpiresAtMillis(ret,
+                    nowMillis + X5CHAIN_CACHE_MAX_AGE_MILLIS);
+            if (expiresAtMillis > nowMillis) {
+                sX5ChainCache.put(fingerprint, Collections.unmodifiableList(new ArrayList<>(ret)),
+                        expiresAtMillis);
+            }
         }
         return ret;
     }
 
-    /* Encodes an integer according to Section 2.3.5 Field-Element-to-Octet-String Conversion
-     * of SEC 1: Elliptic Curve Cryptography (https://www.secg.org/sec1-v2.pdf).
-     */
-    static @NonNull
-    byte[] sec1EncodeFieldElementAsOctetString(int octetStringSize, BigInteger fieldValue) {
-        return BigIntegers.asUnsignedByteArray(octetStringSize, fieldValue);
-    }
-
     static @NonNull
     DataItem cborBuildCoseKey(@NonNull PublicKey key) {
-        ECPublicKey ecKey = (ECPublicKey) key;
-        ECPoint w = ecKey.getW();
-        byte[] x = sec1EncodeFieldElementAsOctetString(32, w.getAffineX());
-        byte[] y = sec1EncodeFieldElementAsOctetString(32, w.getAffineY());
-        DataItem item = new CborBuilder()
-                .addMap()
-                .put(COSE_KEY_KTY, COSE_KEY_TYPE_EC2)
-                .put(COSE_KEY_EC2_CRV, COSE_KEY_EC2_CRV_P256)
-                .put(COSE_KEY_EC2_X, x)
-                .put(COSE_KEY_EC2_Y, y)
-                .end()
-                .build().get(0);
-        return item;
+        return CoseKeyCodec.encode(key, false);
     }
 
     static boolean cborMapHasKey(@NonNull DataItem map, @NonNull String key) {
@@ -1084,43 +1062,7 @@ class Util {
 
     static @NonNull
     PublicKey coseKeyDecode(@NonNull DataItem coseKey) {
-        long kty = cborMapExtractNumber(coseKey, COSE_KEY_KTY);
-        if (kty != COSE_KEY_TYPE_EC2) {
-            throw new IllegalArgumentException("Expected COSE_KEY_TYPE_EC2, got " + kty);
-        }
-        long crv = cborMapExtractNumber(coseKey, COSE_KEY_EC2_CRV);
-        if (crv != COSE_KEY_EC2_CRV_P256) {
-            throw new IllegalArgumentException("Expected COSE_KEY_EC2_CRV_P256, got " + crv);
-        }
-        byte[] encodedX = cborMapExtractByteString(coseKey, COSE_KEY_EC2_X);
-        byte[] encodedY = cborMapExtractByteString(coseKey, COSE_KEY_EC2_Y);
-
-        if (encodedX.length != 32) {
-            Logger.w(TAG, "Expected 32 bytes for X in COSE_Key, found " + encodedX.length);
-        }
-        if (encodedY.length != 32) {
-            Logger.w(TAG, "Expected 32 bytes for Y in COSE_Key, found " + encodedY.length);
-        }
-
-        BigInteger x = new BigInteger(1, encodedX);
-        BigInteger y = new BigInteger(1, encodedY);
-
-        try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("secp256r1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
-
-            ECPoint ecPoint = new ECPoint(x, y);
-            ECPublicKeySpec keySpec = new ECPublicKeySpec(ecPoint, ecParameters);
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            ECPublicKey ecPublicKey = (ECPublicKey) kf.generatePublic(keySpec);
-            return ecPublicKey;
-
-        } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
-                | InvalidKeySpecException e) {
-            throw new IllegalStateException("Unexpected error", e);
-        }
+        return CoseKeyCodec.decode(coseKey);
     }
 
     static @NonNull
@@ -1129,7 +1071,7 @@ class Util {
             @NonNull PrivateKey ephemeralReaderPrivateKey,
             @NonNull byte[] encodedSessionTranscript) {
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            KeyAgreement ka = CryptoProvider.getDefault().getKeyAgreement("ECDH");
             ka.init(ephemeralReaderPrivateKey);
             ka.doPhase(authenticationPublicKey, true);
             byte[] sharedSecret = ka.generateSecret();
@@ -1137,7 +1079,8 @@ class Util {
             byte[] sessionTranscriptBytes =
                     Util.cborEncode(Util.cborBuildTaggedByteString(encodedSessionTranscript));
 
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoProvider.getDefault().getMessageDigest("SHA-256")
+                    .digest(sessionTranscriptBytes);
             byte[] info = new byte[]{'E', 'M', 'a', 'c', 'K', 'e', 'y'};
             byte[] derivedKey = computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
 
@@ -1513,40 +1456,13 @@ class Util {
 
     static @NonNull
     PrivateKey getPrivateKeyFromInteger(@NonNull BigInteger s) {
-        try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("secp256r1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
-
-            ECPrivateKeySpec privateKeySpec = new ECPrivateKeySpec(s, ecParameters);
-            KeyFactory keyFactory = KeyFactory.getInstance("EC");
-            return keyFactory.generatePrivate(privateKeySpec);
-
-        } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
-                | InvalidKeySpecException e) {
-            throw new IllegalStateException(e);
-        }
+        return CoseKeyCodec.privateKeyFromScalar(CoseKeyCodec.Curve.P256, s);
     }
 
     static @NonNull
     PublicKey getPublicKeyFromIntegers(@NonNull BigInteger x,
             @NonNull BigInteger y) {
-        try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("secp256r1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
-
-            ECPoint ecPoint = new ECPoint(x, y);
-            ECPublicKeySpec keySpec = new ECPublicKeySpec(ecPoint, ecParameters);
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            ECPublicKey ecPublicKey = (ECPublicKey) kf.generatePublic(keySpec);
-            return ecPublicKey;
-        } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
-                | InvalidKeySpecException e) {
-            throw new IllegalStateException("Unexpected error", e);
-        }
+        return CoseKeyCodec.publicKeyFromAffine(CoseKeyCodec.Curve.P256, x, y);
     }
 
     // Returns null on End Of Stream.
@@ -1788,22 +1704,18 @@ class Util {
      * <p>This is used for handling 18013-5:2021 L2CAP data where messages are not separated
      * by any framing.
      *
+     * <p>Only the headers of the data item are scanned, see {@link CborFramer}.
+     *
      * @param data data with a single encoded CBOR data item and possibly more
      * @return -1 if no single encoded CBOR data item could be found, otherwise the length of the
      *    CBOR data that was decoded.
      */
     static int cborGetLength(byte[] data) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(data);
-        DataItem dataItem = null;
         try {
-            dataItem = new CborDecoder(bais).decodeNext();
-        } catch (CborException e) {
-            return -1;
-        }
-        if (dataItem == null) {
+            return CborFramer.getDataItemLength(data, 0, data.length);
+        } catch (IllegalArgumentException e) {
             return -1;
         }
-        return cborEncode(dataItem).length;
     }
 
     /**
@@ -1823,7 +1735,7 @@ class Util {
             return null;
         }
         byte[] dataItemBytes = new byte[dataItemLength];
-        System.arraycopy(pendingDataBaos.toByteArray(),0, dataItemBytes, 0, dataItemLength);
+        System.arraycopy(pendingData, 0, dataItemBytes, 0, dataItemLength);
         pendingDataBaos.reset();
         pendingDataBaos.write(pendingData, dataItemLength, pendingData.length - dataItemLength);
         return dataItemBytes;
@@ -24,22 +24,17 @@ import androidx.core.util.Pair;
 
 import androidx.annotation.NonNull;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Random;
 
 import co.nstant.in.cbor.CborBuilder;
 import co.nstant.in.cbor.builder.ArrayBuilder;
@@ -158,6 +153,10 @@ public class Utility {
      * <p>Note that the the byte[] arrays returned in the list of map values are
      * the bytes of IssuerSignedItem, not IssuerSignedItemBytes.
      *
+     * <p>When generating responses, consider using
+     * {@link DeviceResponseGenerator#addDocument(String, CredentialDataResult, Map)} instead
+     * which caches the decoded data between presentations.
+     *
      * @param staticAuthData the bytes of CBOR as described above.
      * @return <code>issuerSignedMapping</code> and <code>encodedIssuerAuth</code>.
      * @throws IllegalArgumentException if the given data is not in the format specified by the
@@ -238,7 +237,8 @@ public class Utility {
      * which is encoded in the same format as returned by
      * the {@link #encodeStaticAuthData(Map, byte[])} helper method meaning that at
      * presentation-time the {@link #decodeStaticAuthData(byte[])} helper can be used to recover
-     * the digest-id mapping and <code>IssuerAuth</code> CBOR.
+     * the digest-id mapping and <code>IssuerAuth</code> CBOR. It's generated for all keys at
+     * once using {@link StaticAuthDataGenerator}.
      *
      * <p>This helper is useful only when developing mdoc applications that are not yet
      * using a live issuing authority.
@@ -298,120 +298,26 @@ public class Utility {
         validToCalendar.add(Calendar.MONTH, 12);
         final Timestamp validToDate = Timestamp.ofEpochMilli(validToCalendar.getTimeInMillis());
 
-        for (X509Certificate authKeyCert : authKeysNeedCert) {
-            PublicKey authKey = authKeyCert.getPublicKey();
-
-            Random r = new SecureRandom();
-
-            // Count number of entries and generate digest ids
-            int numEntries = 0;
-            for (PersonalizationData.NamespaceData nsd : personalizationData.getNamespaceDatas()) {
-                numEntries += nsd.getEntryNames().size();
-            }
-            List<Integer> digestIds = new ArrayList<>();
-            for (int n = 0; n < numEntries; n++) {
-                digestIds.add(n);
-            }
-            Collections.shuffle(digestIds);
-
-            HashMap<String, List<byte[]>> issuerSignedMapping = new HashMap<>();
-
-            CborBuilder vdBuilder = new CborBuilder();
-            MapBuilder<CborBuilder> vdMapBuilder = vdBuilder.addMap();
-
-            Iterator<Integer> digestIt = digestIds.iterator();
-            for (PersonalizationData.NamespaceData nsd : personalizationData.getNamespaceDatas()) {
-                String ns = nsd.getNamespaceName();
-
-                List<byte[]> innerArray = new ArrayList<>();
-
-                MapBuilder<MapBuilder<CborBuilder>> vdInner = vdMapBuilder.putMap(ns);
-
-                for (String entry : nsd.getEntryNames()) {
-                    byte[] encodedValue = nsd.getEntryValue(entry);
-                    int digestId = digestIt.next();
-                    byte[] random = new byte[16];
-                    r.nextBytes(random);
-                    DataItem value = Util.cborDecode(encodedValue);
-
-                    DataItem issuerSignedItem = new CborBuilder()
-                            .addMap()
-                            .put("digestID", digestId)
-                            .put("random", random)
-                            .put("elementIdentifier", entry)
-                            .put(new UnicodeString("elementValue"), value)
-                            .end()
-                            .build().get(0);
-                    byte[] encodedIssuerSignedItem = Util.cborEncode(issuerSignedItem);
-
-                    byte[] digest = null;
-                    try {
-                        // For the digest, it's of the _tagged_ bstr so wrap it
-                        byte[] encodedIssuerSignedItemBytes =
-                                Util.cborEncode(Util.cborBuildTaggedByteString(
-                                        encodedIssuerSignedItem));
-                        digest = MessageDigest.getInstance("SHA-256").digest(
-                                encodedIssuerSignedItemBytes);
-                    } catch (NoSuchAlgorithmException e) {
-                        throw new IllegalArgumentException("Failed creating digester", e);
-                    }
-
-                    // Replace elementValue in encodedIssuerSignedItem with NULL value.
-                    //
-                    byte[] encodedIssuerSignedItemCleared =
-                            Util.issuerSignedItemClearValue(encodedIssuerSignedItem);
-                    innerArray.add(encodedIssuerSignedItemCleared);
-
-                    vdInner.put(digestId, digest);
-                }
-
-                issuerSignedMapping.put(ns, innerArray);
-
-                vdInner.end();
-            }
-            vdMapBuilder.end();
-
-            byte[] encodedMobileSecurityObject = Util.cborEncode(new CborBuilder()
-                    .addMap()
-                    .put("version", "1.0")
-                    .put("digestAlgorithm", "SHA-256")
-                    .put(new UnicodeString("valueDigests"), vdBuilder.build().get(0))
-                    .put("docType", docType)
-                    .putMap("validityInfo")
-                    .put(new UnicodeString("signed"), Util.cborBuildDateTime(signedDate))
-                    .put(new UnicodeString("validFrom"), Util.cborBuildDateTime(validFromDate))
-                    .put(new UnicodeString("validUntil"), Util.cborBuildDateTime(validToDate))
-                    .end()
-                    .putMap("deviceKeyInfo")
-                    .put(new UnicodeString("deviceKey"), Util.cborBuildCoseKey(authKey))
-                    .end()
-                    .end()
-                    .build().get(0));
-
-            byte[] taggedEncodedMso = Util.cborEncode(
-                    Util.cborBuildTaggedByteString(encodedMobileSecurityObject));
-
-            // IssuerAuth is a COSE_Sign1 where payload is MobileSecurityObjectBytes
-            //
-            // MobileSecurityObjectBytes = #6.24(bstr .cbor MobileSecurityObject)
-            //
-            ArrayList<X509Certificate> issuerAuthorityCertChain = new ArrayList<>();
-            issuerAuthorityCertChain.add(issuingAuthorityCertificate);
-            byte[] encodedIssuerAuth =
-                    Util.cborEncode(Util.coseSign1Sign(issuingAuthorityKey,
-                            "SHA256withECDSA", taggedEncodedMso,
-                            null,
-                            issuerAuthorityCertChain));
-
-            // Store issuerSignedMapping and issuerAuth (the MSO) in staticAuthData...
-            //
-            byte[] staticAuthData = encodeStaticAuthData(
-                    issuerSignedMapping, encodedIssuerAuth);
-            c.storeStaticAuthenticationData(authKeyCert,
-                    validToCalendar,
-                    staticAuthData);
-
-        } // for each authkey
+        List<X509Certificate> authKeyCerts = new ArrayList<>(authKeysNeedCert);
+        List<PublicKey> authKeys = new ArrayList<>();
+        for (X509Certificate authKeyCert : authKeyCerts) {
+            authKeys.add(authKeyCert.getPublicKey());
+        }
+        StaticAuthDataGenerator generator = new StaticAuthDataGenerator.Builder(
+                issuingAuthorityKey,
+                Collections.singletonList(issuingAuthorityCertificate),
+                docType,
+                personalizationData)
+                .setValidityInfo(signedDate, validFromDate, validToDate)
+                .build();
+        List<byte[]> staticAuthDatas = generator.generate(authKeys);
+
+        List<AuthenticationKeyCertification> certifications = new ArrayList<>();
+        for (int n = 0; n < authKeyCerts.size(); n++) {
+            certifications.add(new AuthenticationKeyCertification(authKeyCerts.get(n),
+                    validToCalendar, staticAuthDatas.get(n)));
+        }
+        c.storeStaticAuthenticationData(certifications);
 
         return signedPop;
     }
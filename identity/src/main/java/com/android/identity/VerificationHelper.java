@@ -39,11 +39,14 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.OptionalLong;
 import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import co.nstant.in.cbor.CborBuilder;
 import co.nstant.in.cbor.model.DataItem;
@@ -79,6 +82,7 @@ public class VerificationHelper {
     private boolean mUseTransportSpecificSessionTermination;
     private boolean mSendSessionTerminationMessage = true;
     private DataTransportOptions mOptions;
+    TransactionMetrics mMetrics;
 
     // If this is non-null it means we're using Reverse Engagement
     //
@@ -89,6 +93,11 @@ public class VerificationHelper {
     private EngagementGenerator mReaderEngagementGenerator;
     private byte[] mReaderEngagement;
 
+    // If this is non-null it means we're racing transports, see connect(List). The value
+    // is the span used to time connecting the transport.
+    //
+    private Map<DataTransport, TransactionMetrics.Span> mRacingTransports;
+
     VerificationHelper() {
     }
 
@@ -109,6 +118,7 @@ public class VerificationHelper {
                 ConnectionMethod.disambiguate(mReverseEngagementConnectionMethods);
         for (ConnectionMethod cm : disambiguatedMethods) {
             DataTransport transport = cm.createDataTransport(mContext, DataTransport.ROLE_MDOC_READER, mOptions);
+            transport.setMetrics(mMetrics);
             mReverseEngagementListeningTransports.add(transport);
             // TODO: we may want to have the DataTransport actually give us a ConnectionMethod,
             //   for example consider the case where a HTTP-based transport uses a cloud-service
@@ -133,6 +143,8 @@ public class VerificationHelper {
         mConnectionMethodsForReaderEngagement = new ArrayList<>();
         synchronized (helper) {
             for (DataTransport transport : mReverseEngagementListeningTransports) {
+                TransactionMetrics.Span connectSpan = mMetrics.startSpan(
+                        TransactionMetrics.PHASE_TRANSPORT_CONNECT, transport.getMetricsName());
                 transport.setListener(new DataTransport.Listener() {
                     @Override
                     public void onConnectionMethodReady() {
@@ -155,6 +167,7 @@ public class VerificationHelper {
                     @Override
                     public void onConnected() {
                         Logger.d(TAG, "onConnected for " + transport);
+                        connectSpan.end();
                         reverseEngagementPeerHasConnected(transport);
                     }
 
@@ -166,6 +179,7 @@ public class VerificationHelper {
 
                     @Override
                     public void onError(@NonNull Throwable error) {
+                        connectSpan.endWithError(error.getClass().getSimpleName());
                         transport.close();
                         reportError(error);
                     }
@@ -269,9 +283,8 @@ public class VerificationHelper {
 
     private void startNfcDataTransport() {
         // connect() may block, run in thread
-        Thread connectThread = new Thread() {
-            @Override
-            public void run() {
+        try {
+            DataTransportIoEngine.getDefault().submit(() -> {
                 try {
                     mNfcIsoDep.connect();
                     mNfcIsoDep.setTimeout(20 * 1000);  // 20 seconds
@@ -281,9 +294,10 @@ public class VerificationHelper {
                 }
                 mListenerExecutor.execute(
                         () -> connectWithDataTransport(mDataTransport));
-            }
-        };
-        connectThread.start();
+            });
+        } catch (RejectedExecutionException e) {
+            reportError(e);
+        }
     }
 
     /**
@@ -479,6 +493,8 @@ public class VerificationHelper {
         Logger.d(TAG, "Starting NFC handover thread");
 
         long timeMillisBegin = System.currentTimeMillis();
+        TransactionMetrics.Span engagementSpan =
+                mMetrics.startSpan(TransactionMetrics.PHASE_ENGAGEMENT, "nfc");
 
         // TODO: need settings UI where the user can specify which methods to offer when
         //   using NFC negotiated handover.
@@ -492,7 +508,7 @@ public class VerificationHelper {
         // TODO: also start these connection methods early...
 
         final IsoDep isoDep = mNfcIsoDep;
-        Thread transceiverThread = new Thread() {
+        Runnable transceiverTask = new Runnable() {
             @Override
             public void run() {
                 byte[] ret;
@@ -573,6 +589,7 @@ public class VerificationHelper {
                                 .end()
                                 .build().get(0);
                         setDeviceEngagement(hs.encodedDeviceEngagement, readerHandover);
+                        engagementSpan.end();
                         reportDeviceEngagementReceived(hs.connectionMethods);
                         return;
                     }
@@ -665,15 +682,21 @@ public class VerificationHelper {
                             .end()
                             .build().get(0);
                     setDeviceEngagement(encodedDeviceEngagement, handover);
+                    engagementSpan.end();
 
                     reportDeviceEngagementReceived(parsedCms);
 
                 } catch (Throwable t) {
+                    engagementSpan.endWithError(t.getClass().getSimpleName());
                     reportError(t);
                 }
             }
         };
-        transceiverThread.start();
+        try {
+            DataTransportIoEngine.getDefault().submit(transceiverTask);
+        } catch (RejectedExecutionException e) {
+            reportError(e);
+        }
     }
 
     private void setDeviceEngagement(@NonNull byte[] deviceEngagement, @NonNull DataItem handover) {
@@ -681,6 +704,8 @@ public class VerificationHelper {
             throw new IllegalStateException("Device Engagement already set");
         }
         mDeviceEngagement = deviceEngagement;
+        TransactionMetrics.Span span =
+                mMetrics.startSpan(TransactionMetrics.PHASE_SESSION_ESTABLISHMENT, null);
 
         EngagementParser engagementParser = new EngagementParser(deviceEngagement);
         EngagementParser.Engagement engagement = engagementParser.parse();
@@ -701,10 +726,12 @@ public class VerificationHelper {
                 mEphemeralKeyPair.getPublic(),
                 eDeviceKey,
                 mEncodedSessionTranscript);
+        mSessionEncryptionReader.setMetrics(mMetrics);
         if (mReaderEngagement != null) {
             // No need to include EReaderKey in first message...
             mSessionEncryptionReader.setSendSessionEstablishment(false);
         }
+        span.addBytes(deviceEngagement.length).end();
     }
 
     /**
@@ -720,8 +747,218 @@ public class VerificationHelper {
         connectWithDataTransport(connectionMethod.createDataTransport(mContext, DataTransport.ROLE_MDOC_READER, mOptions));
     }
 
+    /**
+     * Establishes connection to remote mdoc using all the given {@link ConnectionMethod}s
+     * at the same time.
+     *
+     * <p>A data transport is started for each connection method and the first one to connect
+     * is used for the rest of the session. All other data transports are closed at that point.
+     * This is useful to minimize time to connect when the mdoc offers multiple connection
+     * methods and one of them is slow or unreliable, for example because the radio is
+     * congested.
+     *
+     * <p>The time it took each data transport to connect, or to fail, is reported as a
+     * {@link TransactionMetrics#PHASE_TRANSPORT_CONNECT} event. Transports which were closed
+     * because another transport connected first are reported with the error tag
+     * {@code Cancelled}.
+     *
+     * <p>The {@link Listener#onDeviceConnected()} callback is called when the first transport
+     * connects. If all transports fail the error from the last one to fail is reported using
+     * {@link Listener#onError(Throwable)}.
+     *
+     * <p>NFC connection methods are ignored unless the mdoc is already in the NFC field, that
+     * is, unless engagement happened over NFC.
+     *
+     * <p>This method should be called after receiving the
+     * {@link Listener#onDeviceEngagementReceived(List)} callback with some or all of the
+     * addresses from said callback.
+     *
+     * @param connectionMethods the addresses/methods to connect to.
+     */
+    public void connect(@NonNull List<ConnectionMethod> connectionMethods) {
+        // Need to disambiguate the connection methods here to get e.g. two ConnectionMethods
+        // if both BLE modes are available at the same time.
+        List<DataTransport> transports = new ArrayList<>();
+        for (ConnectionMethod cm : ConnectionMethod.disambiguate(connectionMethods)) {
+            if (cm instanceof ConnectionMethodNfc && mNfcIsoDep == null) {
+                Logger.d(TAG, "Not racing " + cm + " since mdoc is not in the NFC field");
+                continue;
+            }
+            transports.add(cm.createDataTransport(mContext, DataTransport.ROLE_MDOC_READER,
+                    mOptions));
+        }
+        if (transports.isEmpty()) {
+            throw new IllegalArgumentException("No usable connection methods");
+        }
+        if (transports.size() == 1) {
+            connectWithDataTransport(transports.get(0));
+            return;
+        }
+
+        byte[] encodedEDeviceKeyBytes;
+        try {
+            DataItem deDataItem = Util.cborDecode(mDeviceEngagement);
+            DataItem eDeviceKeyBytesDataItem = Util.cborMapExtractArray(deDataItem, 1).get(1);
+            encodedEDeviceKeyBytes = Util.cborEncode(eDeviceKeyBytesDataItem);
+        } catch (Exception e) {
+            reportError(e);
+            return;
+        }
+
+        raceTransports(transports, encodedEDeviceKeyBytes);
+    }
+
+    // Connects all the given transports at the same time and uses the first one to connect.
+    //
+    void raceTransports(@NonNull List<DataTransport> transports,
+                        @NonNull byte[] encodedEDeviceKeyBytes) {
+        // As with reverse engagement, callbacks may happen on other threads so the monitor
+        // for this object is used to protect mRacingTransports.
+        //
+        final VerificationHelper helper = this;
+        synchronized (helper) {
+            mRacingTransports = new LinkedHashMap<>();
+            for (DataTransport transport : transports) {
+                transport.setMetrics(mMetrics);
+                if (transport instanceof DataTransportNfc) {
+                    ((DataTransportNfc) transport).setIsoDep(mNfcIsoDep);
+                }
+                TransactionMetrics.Span connectSpan = mMetrics.startSpan(
+                        TransactionMetrics.PHASE_TRANSPORT_CONNECT, transport.getMetricsName());
+                mRacingTransports.put(transport, connectSpan);
+                transport.setListener(new DataTransport.Listener() {
+                    @Override
+                    public void onConnectionMethodReady() {
+                        Logger.d(TAG, "onConnectionMethodReady for " + transport);
+                    }
+
+                    @Override
+                    public void onConnecting() {
+                        Logger.d(TAG, "onConnecting for " + transport);
+                    }
+
+                    @Override
+                    public void onConnected() {
+                        Logger.d(TAG, "onConnected for " + transport);
+                        connectSpan.end();
+                        racingTransportHasConnected(transport);
+                    }
+
+                    @Override
+                    public void onDisconnected() {
+                        Logger.d(TAG, "onDisconnected for " + transport);
+                        transport.close();
+                        racingTransportHasDisconnected(transport);
+                    }
+
+                    @Override
+                    public void onError(@NonNull Throwable error) {
+                        Logger.d(TAG, "onError for " + transport + ": " + error);
+                        connectSpan.endWithError(error.getClass().getSimpleName());
+                        transport.close();
+                        racingTransportHasFailed(transport, error);
+                    }
+
+                    @Override
+                    public void onMessageReceived() {
+                        if (transport == mDataTransport) {
+                            handleOnMessageReceived();
+                        }
+                    }
+
+                    @Override
+                    public void onTransportSpecificSessionTermination() {
+                        Logger.d(TAG, "Received onTransportSpecificSessionTermination");
+                        transport.close();
+                        if (transport == mDataTransport) {
+                            reportDeviceDisconnected(true);
+                        }
+                    }
+
+                }, mListenerExecutor);
+            }
+
+            for (DataTransport transport : transports) {
+                // With a direct listener executor a transport can connect or fail from within
+                // connect(), on this thread. Once the race is over, or if this transport has
+                // already dropped out, there's nothing left to do for it.
+                if (mRacingTransports == null) {
+                    break;
+                }
+                TransactionMetrics.Span connectSpan = mRacingTransports.get(transport);
+                if (connectSpan == null) {
+                    continue;
+                }
+                Logger.d(TAG, "Racing transport " + transport);
+                try {
+                    transport.setEDeviceKeyBytes(encodedEDeviceKeyBytes);
+                    transport.connect();
+                } catch (Exception e) {
+                    connectSpan.endWithError(e.getClass().getSimpleName());
+                    transport.close();
+                    racingTransportHasFailed(transport, e);
+                }
+            }
+        }
+    }
+
+    synchronized void racingTransportHasConnected(@NonNull DataTransport transport) {
+        if (mRacingTransports == null || !mRacingTransports.containsKey(transport)) {
+            // Another transport already won the race.
+            return;
+        }
+        Logger.d(TAG, "Transport " + transport + " won the race - shutting down other "
+                + "transports");
+        for (Map.Entry<DataTransport, TransactionMetrics.Span> entry
+                : mRacingTransports.entrySet()) {
+            DataTransport t = entry.getKey();
+            if (t != transport) {
+                entry.getValue().endWithError("Cancelled");
+                t.setListener(null, null);
+                t.close();
+            }
+        }
+        mRacingTransports = null;
+        mDataTransport = transport;
+        reportDeviceConnected();
+    }
+
+    synchronized void racingTransportHasDisconnected(@NonNull DataTransport transport) {
+        if (transport == mDataTransport) {
+            reportDeviceDisconnected(false);
+            return;
+        }
+        // Disconnecting before connecting counts as failing to connect.
+        TransactionMetrics.Span connectSpan =
+                (mRacingTransports != null) ? mRacingTransports.get(transport) : null;
+        if (connectSpan == null) {
+            return;
+        }
+        connectSpan.endWithError("Disconnected");
+        racingTransportHasFailed(transport,
+                new IllegalStateException("Transport disconnected while connecting"));
+    }
+
+    synchronized void racingTransportHasFailed(@NonNull DataTransport transport,
+                                               @NonNull Throwable error) {
+        if (transport == mDataTransport) {
+            reportError(error);
+            return;
+        }
+        if (mRacingTransports == null || mRacingTransports.remove(transport) == null) {
+            return;
+        }
+        Logger.d(TAG, "Transport " + transport + " failed, "
+                + mRacingTransports.size() + " transports still racing");
+        if (mRacingTransports.isEmpty()) {
+            mRacingTransports = null;
+            reportError(error);
+        }
+    }
+
     private void connectWithDataTransport(DataTransport transport) {
         mDataTransport = transport;
+        mDataTransport.setMetrics(mMetrics);
         if (mDataTransport instanceof DataTransportNfc) {
             if (mNfcIsoDep == null) {
                 // This can happen if using NFC data transfer with QR code engagement
@@ -751,6 +988,8 @@ public class VerificationHelper {
         // synchronization.
         //
 
+        TransactionMetrics.Span connectSpan = mMetrics.startSpan(
+                TransactionMetrics.PHASE_TRANSPORT_CONNECT, mDataTransport.getMetricsName());
         mDataTransport.setListener(new DataTransport.Listener() {
             @Override
             public void onConnectionMethodReady() {
@@ -765,6 +1004,7 @@ public class VerificationHelper {
             @Override
             public void onConnected() {
                 Logger.d(TAG, "onConnected for " + mDataTransport);
+                connectSpan.end();
                 reportDeviceConnected();
             }
 
@@ -778,6 +1018,7 @@ public class VerificationHelper {
             @Override
             public void onError(@NonNull Throwable error) {
                 Logger.d(TAG, "onError for " + mDataTransport + ": " + error);
+                connectSpan.endWithError(error.getClass().getSimpleName());
                 mDataTransport.close();
                 reportError(error);
             }
@@ -803,6 +1044,7 @@ public class VerificationHelper {
             mDataTransport.setEDeviceKeyBytes(encodedEDeviceKeyBytes);
             mDataTransport.connect();
         } catch (Exception e) {
+            connectSpan.endWithError(e.getClass().getSimpleName());
             reportError(e);
         }
     }
@@ -972,6 +1214,16 @@ public class VerificationHelper {
             mReverseEngagementListeningTransports = null;
         }
 
+        synchronized (this) {
+            if (mRacingTransports != null) {
+                for (DataTransport transport : mRacingTransports.keySet()) {
+                    transport.setListener(null, null);
+                    transport.close();
+                }
+                mRacingTransports = null;
+            }
+        }
+
         if (mDataTransport != null) {
             // Only send session termination message if the session was actually established.
             boolean sessionEstablished = (mSessionEncryptionReader.getNumMessagesEncrypted() > 0);
@@ -1200,6 +1452,7 @@ public class VerificationHelper {
      */
     public static class Builder {
         private VerificationHelper mHelper;
+        private EphemeralKeyPairPool mEphemeralKeyPairPool;
 
         /**
          * Creates a new Builder for {@link VerificationHelper}.
@@ -1215,7 +1468,6 @@ public class VerificationHelper {
             mHelper.mContext = context;
             mHelper.mListener = listener;
             mHelper.mListenerExecutor = executor;
-            mHelper.mEphemeralKeyPair = Util.createEphemeralKeyPair();
         }
 
         /**
@@ -1240,6 +1492,32 @@ public class VerificationHelper {
             return this;
         }
 
+        /**
+         * Sets the pool to take the ephemeral reader key from.
+         *
+         * <p>If not set, {@link EphemeralKeyPairPool#getDefault()} is used.
+         *
+         * @param pool the pool to use.
+         * @return the builder.
+         */
+        public @NonNull Builder setEphemeralKeyPairPool(@NonNull EphemeralKeyPairPool pool) {
+            mEphemeralKeyPairPool = pool;
+            return this;
+        }
+
+        /**
+         * Sets the object to report transaction metrics to.
+         *
+         * <p>If not set, {@link TransactionMetrics#getDefault()} is used.
+         *
+         * @param metrics the object to report metrics to.
+         * @return the builder.
+         */
+        public @NonNull Builder setMetrics(@NonNull TransactionMetrics metrics) {
+            mHelper.mMetrics = metrics;
+            return this;
+        }
+
         /**
          * Builds a {@link VerificationHelper} with the configuration specified in the builder.
          *
@@ -1266,6 +1544,14 @@ public class VerificationHelper {
          * @return A {@link VerificationHelper}.
          */
         public @NonNull VerificationHelper build() {
+            EphemeralKeyPairPool pool = mEphemeralKeyPairPool;
+            if (pool == null) {
+                pool = EphemeralKeyPairPool.getDefault();
+            }
+            mHelper.mEphemeralKeyPair = pool.take();
+            if (mHelper.mMetrics == null) {
+                mHelper.mMetrics = TransactionMetrics.getDefault();
+            }
             mHelper.start();
             return mHelper;
         }
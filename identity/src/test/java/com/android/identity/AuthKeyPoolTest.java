@@ -0,0 +1,150 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+public class AuthKeyPoolTest {
+
+    @Test
+    public void testSelectLowestUseCount() {
+        AuthKeyPool pool = new AuthKeyPool(4, 2);
+        assertEquals(-1, pool.selectKey(0, true, true));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, pool.getKeysNeedingCertification(0));
+
+        pool.setKey(1, true, 1, AuthKeyPool.NO_EXPIRATION, false);
+        pool.setKey(2, true, 0, AuthKeyPool.NO_EXPIRATION, false);
+        pool.setKey(3, true, 0, AuthKeyPool.NO_EXPIRATION, false);
+        assertArrayEquals(new int[]{0}, pool.getKeysNeedingCertification(0));
+
+        // Ties are broken by index.
+        assertEquals(2, pool.selectKey(0, false, false));
+        pool.incrementUseCount(2);
+        assertEquals(3, pool.selectKey(0, false, false));
+        pool.incrementUseCount(3);
+        assertEquals(1, pool.selectKey(0, false, false));
+        pool.incrementUseCount(1);
+        assertArrayEquals(new int[]{0, 1}, pool.getKeysNeedingCertification(0));
+        assertArrayEquals(new int[]{0, 2, 1, 1}, pool.getUseCounts());
+
+        pool.incrementUseCount(2);
+        pool.incrementUseCount(3);
+        assertEquals(-1, pool.selectKey(0, false, false));
+        assertEquals(1, pool.selectKey(0, true, false));
+        assertArrayEquals(new int[]{0, 1, 2, 3}, pool.getKeysNeedingCertification(0));
+    }
+
+    @Test
+    public void testExpiration() {
+        AuthKeyPool pool = new AuthKeyPool(3, 5);
+        pool.setKey(0, true, 0, 1000, false);
+        pool.setKey(1, true, 3, 2000, false);
+        pool.setKey(2, true, 4, AuthKeyPool.NO_EXPIRATION, false);
+
+        assertEquals(0, pool.selectKey(1000, false, false));
+        assertEquals(1, pool.selectKey(1001, false, false));
+        assertArrayEquals(new int[]{0}, pool.getKeysNeedingCertification(1001));
+
+        // Expired keys are only used if there's no unexpired key, exhausted or not.
+        pool.incrementUseCount(2);
+        assertEquals(-1, pool.selectKey(2001, false, false));
+        assertEquals(0, pool.selectKey(2001, false, true));
+        assertEquals(2, pool.selectKey(2001, true, false));
+        assertArrayEquals(new int[]{0, 1, 2}, pool.getKeysNeedingCertification(2001));
+
+        // Re-certifying a key makes it available again.
+        pool.setKey(0, true, 0, 3000, false);
+        assertEquals(0, pool.selectKey(2001, false, false));
+        assertArrayEquals(new int[]{1, 2}, pool.getKeysNeedingCertification(2001));
+    }
+
+    @Test
+    public void testPending() {
+        AuthKeyPool pool = new AuthKeyPool(2, 1);
+        pool.setKey(0, false, 0, AuthKeyPool.NO_EXPIRATION, true);
+        pool.setKey(1, true, 0, AuthKeyPool.NO_EXPIRATION, true);
+        assertArrayEquals(new int[]{0, 1}, pool.getKeysNeedingCertification(0));
+        // A key with a replacement pending certification can still be used.
+        assertEquals(1, pool.selectKey(0, false, false));
+        pool.setKey(1, true, 0, AuthKeyPool.NO_EXPIRATION, false);
+        assertArrayEquals(new int[]{0}, pool.getKeysNeedingCertification(0));
+    }
+
+    // Checks the pool against a linear scan of all keys, the way keys used to be selected.
+    @Test
+    public void testMatchesLinearScan() {
+        final int keyCount = 20;
+        final int maxUsesPerKey = 3;
+        Random random = new Random(31337);
+        AuthKeyPool pool = new AuthKeyPool(keyCount, maxUsesPerKey);
+        boolean[] certified = new boolean[keyCount];
+        int[] useCounts = new int[keyCount];
+        long[] expirations = new long[keyCount];
+        long now = 0;
+
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            now += random.nextInt(10);
+            int index = random.nextInt(keyCount);
+            if (random.nextInt(4) == 0) {
+                certified[index] = random.nextBoolean();
+                useCounts[index] = random.nextInt(maxUsesPerKey + 1);
+                expirations[index] = random.nextBoolean()
+                        ? AuthKeyPool.NO_EXPIRATION : now + random.nextInt(200);
+                pool.setKey(index, certified[index], useCounts[index], expirations[index],
+                        false);
+            }
+
+            boolean allowExhausted = random.nextBoolean();
+            boolean allowExpired = random.nextBoolean();
+            int expected = linearScan(certified, useCounts, expirations, now,
+                    maxUsesPerKey, allowExhausted, false);
+            if (expected < 0 && allowExpired) {
+                expected = linearScan(certified, useCounts, expirations, now,
+                        maxUsesPerKey, allowExhausted, true);
+            }
+            int selected = pool.selectKey(now, allowExhausted, allowExpired);
+            assertEquals(expected, selected);
+            if (selected >= 0) {
+                useCounts[selected] += 1;
+                pool.incrementUseCount(selected);
+            }
+            assertArrayEquals(useCounts, pool.getUseCounts());
+        }
+    }
+
+    private static int linearScan(boolean[] certified, int[] useCounts, long[] expirations,
+            long now, int maxUsesPerKey, boolean allowExhausted, boolean allowExpired) {
+        int candidate = -1;
+        for (int n = 0; n < certified.length; n++) {
+            if (!certified[n] || (!allowExpired && now > expirations[n])) {
+                continue;
+            }
+            if (candidate < 0 || useCounts[n] < useCounts[candidate]) {
+                candidate = n;
+            }
+        }
+        if (candidate >= 0 && useCounts[candidate] >= maxUsesPerKey && !allowExhausted) {
+            return -1;
+        }
+        return candidate;
+    }
+}
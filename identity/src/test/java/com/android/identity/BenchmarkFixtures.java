@@ -0,0 +1,58 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import java.math.BigInteger;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+
+/**
+ * Keys and messages from <em>ISO/IEC 18013-5</em> Annex D, shared by the JMH benchmarks.
+ */
+final class BenchmarkFixtures {
+
+    static final byte[] DEVICE_RESPONSE =
+            Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE);
+
+    static final byte[] DEVICE_REQUEST =
+            Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_DEVICE_REQUEST);
+
+    static final byte[] SESSION_DATA =
+            Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_SESSION_DATA);
+
+    // Strip the #6.24 tag since our APIs expects just the bytes of SessionTranscript.
+    static final byte[] SESSION_TRANSCRIPT = Util.cborEncode(
+            Util.cborExtractTaggedAndEncodedCbor(Util.cborDecode(
+                    Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_SESSION_TRANSCRIPT_BYTES))));
+
+    static final PublicKey E_READER_KEY_PUBLIC = Util.getPublicKeyFromIntegers(
+            new BigInteger(TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_READER_KEY_X, 16),
+            new BigInteger(TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_READER_KEY_Y, 16));
+
+    static final PrivateKey E_READER_KEY_PRIVATE = Util.getPrivateKeyFromInteger(
+            new BigInteger(TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_READER_KEY_D, 16));
+
+    static final PublicKey E_DEVICE_KEY_PUBLIC = Util.getPublicKeyFromIntegers(
+            new BigInteger(TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_DEVICE_KEY_X, 16),
+            new BigInteger(TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_DEVICE_KEY_Y, 16));
+
+    static final PrivateKey E_DEVICE_KEY_PRIVATE = Util.getPrivateKeyFromInteger(
+            new BigInteger(TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_DEVICE_KEY_D, 16));
+
+    private BenchmarkFixtures() {
+    }
+}
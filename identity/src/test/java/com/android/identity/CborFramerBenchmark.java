@@ -0,0 +1,67 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for finding message boundaries with {@link CborFramer}.
+ *
+ * <p>The Annex D response is fed to the framer in chunks of {@link #chunkSize} bytes, the
+ * way it arrives over a stream transport such as L2CAP.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CborFramerBenchmark {
+
+    @Param({"20", "512"})
+    public int chunkSize;
+
+    private CborFramer mFramer;
+
+    @Setup
+    public void setUp() {
+        mFramer = new CborFramer();
+    }
+
+    @Benchmark
+    public byte[] frame() {
+        byte[] data = BenchmarkFixtures.DEVICE_RESPONSE;
+        byte[] message = null;
+        for (int offset = 0; offset < data.length; offset += chunkSize) {
+            mFramer.write(data, offset, Math.min(chunkSize, data.length - offset));
+            message = mFramer.next();
+        }
+        return message;
+    }
+}
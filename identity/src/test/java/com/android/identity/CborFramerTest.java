@@ -0,0 +1,137 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import co.nstant.in.cbor.CborBuilder;
+
+public class CborFramerTest {
+
+    private static final String[] DATA_ITEMS = {
+            "6474657874",                                   // "text"
+            // ["text", 42, {"foo": "bar", "fizz": "buzz"}]
+            "836474657874182aa263666f6f636261726466697a7a6462757a7a",
+            "9f01820203ff",                                 // [_ 1, [2, 3]]
+            "5f42010243030405ff",                           // (_ h'0102', h'030405')
+            "c074323031332d30332d32315432303a30343a30305a", // 0("2013-03-21T20:04:00Z")
+            "a0",                                           // {}
+            "f93c00",                                       // 1.0 (half precision)
+            "fb3ff199999999999a",                           // 1.1
+            "bf6161016162ff",                               // {_ "a": 1, "b"}
+    };
+
+    @Test
+    public void testDataItemLength() {
+        for (String hex : DATA_ITEMS) {
+            byte[] data = Util.fromHex(hex);
+            assertEquals(data.length, CborFramer.getDataItemLength(data, 0, data.length));
+            for (int n = 0; n < data.length; n++) {
+                assertEquals(-1, CborFramer.getDataItemLength(data, 0, n));
+            }
+        }
+    }
+
+    @Test
+    public void testFramingAllChunkSizes() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for (String hex : DATA_ITEMS) {
+            baos.write(Util.fromHex(hex));
+        }
+        byte[] stream = baos.toByteArray();
+
+        for (int chunkSize = 1; chunkSize <= stream.length; chunkSize++) {
+            CborFramer framer = new CborFramer(2);
+            List<byte[]> received = new ArrayList<>();
+            for (int offset = 0; offset < stream.length; offset += chunkSize) {
+                framer.write(stream, offset, Math.min(chunkSize, stream.length - offset));
+                byte[] dataItemBytes;
+                while ((dataItemBytes = framer.next()) != null) {
+                    received.add(dataItemBytes);
+                }
+            }
+            assertEquals(DATA_ITEMS.length, received.size());
+            for (int n = 0; n < DATA_ITEMS.length; n++) {
+                assertArrayEquals(Util.fromHex(DATA_ITEMS[n]), received.get(n));
+            }
+            assertEquals(0, framer.getPendingLength());
+        }
+    }
+
+    @Test
+    public void testReadFromLargeDataItem() throws IOException {
+        byte[] data = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("portrait", new byte[300 * 1024])
+                .put("name", "Erika")
+                .end()
+                .build().get(0));
+        ByteArrayInputStream bais = new ByteArrayInputStream(data);
+
+        CborFramer framer = new CborFramer();
+        byte[] dataItemBytes = null;
+        while (dataItemBytes == null) {
+            if (framer.readFrom(bais, 4096) == -1) {
+                break;
+            }
+            dataItemBytes = framer.next();
+        }
+        assertArrayEquals(data, dataItemBytes);
+        assertEquals(-1, framer.readFrom(bais, 4096));
+    }
+
+    @Test
+    public void testIncompleteDataIsPending() {
+        byte[] data = Util.cborEncode(new CborBuilder().add("text").build().get(0));
+        CborFramer framer = new CborFramer();
+        framer.write(data, 0, data.length - 1);
+        assertNull(framer.next());
+        assertEquals(data.length - 1, framer.getPendingLength());
+        assertArrayEquals(Arrays.copyOf(data, data.length - 1),
+                framer.getPendingData());
+
+        framer.write(data, data.length - 1, 1);
+        assertArrayEquals(data, framer.next());
+        assertEquals(0, framer.getPendingLength());
+    }
+
+    @Test
+    public void testMalformed() {
+        // Reserved additional information.
+        byte[] reserved = new byte[]{0x1c};
+        assertThrows(IllegalArgumentException.class,
+                () -> CborFramer.getDataItemLength(reserved, 0, reserved.length));
+        assertEquals(-1, Util.cborGetLength(reserved));
+
+        // Break outside of indefinite-length item.
+        CborFramer framer = new CborFramer();
+        framer.write(new byte[]{(byte) 0xff}, 0, 1);
+        assertThrows(IllegalArgumentException.class, framer::next);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import co.nstant.in.cbor.model.DataItem;
+
+/**
+ * Benchmarks for walking the Annex D response with {@link CborView}, compared to decoding it
+ * and walking the decoded data items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CborViewBenchmark {
+
+    private static final byte[] DATA = BenchmarkFixtures.DEVICE_RESPONSE;
+
+    @Benchmark
+    public int findIssuerAuth() {
+        int end = DATA.length;
+        int documentsOffset = CborView.getMapValue(DATA, 0, end, "documents");
+        int documentOffset = CborView.getChildOffsets(DATA, documentsOffset, end)[0];
+        int issuerSignedOffset = CborView.getMapValue(DATA, documentOffset, end, "issuerSigned");
+        return CborView.getMapValue(DATA, issuerSignedOffset, end, "issuerAuth");
+    }
+
+    @Benchmark
+    public DataItem decodeIssuerAuth() {
+        DataItem document = Util.cborMapExtractArray(Util.cborDecode(DATA), "documents").get(0);
+        return Util.cborMapExtract(Util.cborMapExtractMap(document, "issuerSigned"),
+                "issuerAuth");
+    }
+
+    // Reads the name of every IssuerSignedItem, the same walk DeviceResponseParser does.
+    @Benchmark
+    public void readElementIdentifiers(Blackhole blackhole) {
+        int end = DATA.length;
+        int documentsOffset = CborView.getMapValue(DATA, 0, end, "documents");
+        int documentOffset = CborView.getChildOffsets(DATA, documentsOffset, end)[0];
+        int issuerSignedOffset = CborView.getMapValue(DATA, documentOffset, end, "issuerSigned");
+        int nameSpacesOffset = CborView.getMapValue(DATA, issuerSignedOffset, end,
+                "nameSpaces");
+        int[] nameSpacesOffsets = CborView.getChildOffsets(DATA, nameSpacesOffset, end);
+        for (int n = 1; n < nameSpacesOffsets.length; n += 2) {
+            for (int elemOffset : CborView.getChildOffsets(DATA, nameSpacesOffsets[n], end)) {
+                int elemEnd = CborView.skip(DATA, elemOffset, end);
+                int itemOffset = CborView.getTaggedEncodedCborOffset(DATA, elemOffset, elemEnd);
+                int[] itemChildOffsets = CborView.getMapChildOffsets(DATA, itemOffset, elemEnd);
+                blackhole.consume(CborView.readTextString(DATA, CborView.getMapValue(
+                        DATA, itemChildOffsets, elemEnd, "elementIdentifier"), elemEnd));
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.model.DataItem;
+
+public class CborViewTest {
+
+    @Test
+    public void testNavigateMap() {
+        // {"a": 1, "bb": ["x", h'0102'], "c": {}}
+        byte[] data = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("a", 1)
+                .putArray("bb").add("x").add(new byte[]{1, 2}).end()
+                .putMap("c").end()
+                .end()
+                .build().get(0));
+        int end = data.length;
+
+        assertEquals(1, CborView.readUnsignedInteger(data,
+                CborView.getMapValue(data, 0, end, "a"), end));
+        assertEquals(-1, CborView.findMapValue(data, 0, end, "b"));
+        assertThrows(IllegalArgumentException.class,
+                () -> CborView.getMapValue(data, 0, end, "b"));
+
+        int arrayOffset = CborView.getMapValue(data, 0, end, "bb");
+        int[] elements = CborView.getChildOffsets(data, arrayOffset, end);
+        assertEquals(2, elements.length);
+        assertEquals("x", CborView.readTextString(data, elements[0], end));
+        assertArrayEquals(new byte[]{1, 2}, CborView.readByteString(data, elements[1], end));
+        assertThrows(IllegalArgumentException.class,
+                () -> CborView.readTextString(data, elements[1], end));
+
+        int mapOffset = CborView.getMapValue(data, 0, end, "c");
+        assertEquals(0, CborView.getChildOffsets(data, mapOffset, end).length);
+        assertEquals(end, CborView.skip(data, mapOffset, end));
+    }
+
+    @Test
+    public void testIndefiniteLength() {
+        // {_ "a": [_ 1, 2], "b": (_ "he", "llo")}
+        byte[] data = Util.fromHex("bf61619f0102ff61627f626865636c6c6fffff");
+        int end = data.length;
+
+        int[] elements = CborView.getChildOffsets(data,
+                CborView.getMapValue(data, 0, end, "a"), end);
+        assertEquals(2, elements.length);
+        assertEquals(2, CborView.readUnsignedInteger(data, elements[1], end));
+        assertEquals("hello", CborView.readTextString(data,
+                CborView.getMapValue(data, 0, end, "b"), end));
+
+        // {_ "a": 1, "b"}
+        byte[] oddMap = Util.fromHex("bf6161016162ff");
+        assertThrows(IllegalArgumentException.class,
+                () -> CborView.getChildOffsets(oddMap, 0, oddMap.length));
+    }
+
+    @Test
+    public void testMapLookup() {
+        // {"a": 1, "b": "xyz", "c": 2}
+        byte[] data = Util.fromHex("a361610161626378797a616302");
+        int end = data.length;
+        int[] childOffsets = CborView.getMapChildOffsets(data, 0, end);
+        for (String key : new String[]{"a", "b", "c", "d"}) {
+            assertEquals(CborView.findMapValue(data, 0, end, key),
+                    CborView.findMapValue(data, childOffsets, end, key));
+        }
+        assertEquals(2, CborView.readUnsignedInteger(data,
+                CborView.getMapValue(data, childOffsets, end, "c"), end));
+        assertThrows(IllegalArgumentException.class,
+                () -> CborView.getMapValue(data, childOffsets, end, "d"));
+        assertThrows(IllegalArgumentException.class,
+                () -> CborView.getMapChildOffsets(data, 1, end));
+
+        // The scan stops at the first match so what comes after isn't looked at, here "b"
+        // claims to be longer than the data.
+        byte[] truncated = Util.fromHex("a361610161627a7fffffff");
+        assertEquals(3, CborView.findMapValue(truncated, 0, truncated.length, "a"));
+        assertThrows(IllegalArgumentException.class,
+                () -> CborView.findMapValue(truncated, 0, truncated.length, "c"));
+
+        // {_ "a": 1, "b"}
+        byte[] oddMap = Util.fromHex("bf6161016162ff");
+        assertEquals(3, CborView.findMapValue(oddMap, 0, oddMap.length, "a"));
+        assertThrows(IllegalArgumentException.class,
+                () -> CborView.findMapValue(oddMap, 0, oddMap.length, "b"));
+    }
+
+    @Test
+    public void testTruncated() {
+        byte[] data = Util.fromHex("836474657874182aa263666f6f636261726466697a7a6462757a7a");
+        for (int n = 1; n < data.length; n++) {
+            final int end = n;
+            assertThrows(IllegalArgumentException.class,
+                    () -> CborView.getChildOffsets(data, 0, end));
+        }
+        // A string claiming to be longer than the data.
+        byte[] longString = Util.fromHex("7a7fffffff61");
+        assertThrows(IllegalArgumentException.class,
+                () -> CborView.readTextString(longString, 0, longString.length));
+    }
+
+    @Test
+    public void testIssuerSignedItems() {
+        byte[] data = Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE);
+        int end = data.length;
+        int documentOffset = CborView.getChildOffsets(data,
+                CborView.getMapValue(data, 0, end, "documents"), end)[0];
+        int issuerSignedOffset = CborView.getMapValue(data, documentOffset, end,
+                "issuerSigned");
+        int nameSpacesOffset = CborView.getMapValue(data, issuerSignedOffset, end,
+                "nameSpaces");
+        int[] nameSpaces = CborView.getChildOffsets(data, nameSpacesOffset, end);
+        assertEquals("org.iso.18013.5.1", CborView.readTextString(data, nameSpaces[0], end));
+
+        DataItem nameSpacesDataItem = Util.cborMapExtractMap(
+                Util.cborMapExtractMap(
+                        Util.cborMapExtractArray(Util.cborDecode(data), "documents").get(0),
+                        "issuerSigned"),
+                "nameSpaces");
+        int[] items = CborView.getChildOffsets(data, nameSpaces[1], end);
+        assertEquals(6, items.length);
+        for (int n = 0; n < items.length; n++) {
+            int itemEnd = CborView.skip(data, items[n], end);
+            byte[] encodedItemBytes = Arrays.copyOfRange(data, items[n], itemEnd);
+            DataItem itemBytes = Util.cborMapExtractArray(nameSpacesDataItem,
+                    "org.iso.18013.5.1").get(n);
+            assertArrayEquals(Util.cborEncode(itemBytes), encodedItemBytes);
+
+            // The view gives the same values as decoding the embedded IssuerSignedItem.
+            DataItem item = Util.cborExtractTaggedAndEncodedCbor(itemBytes);
+            int itemOffset = CborView.getTaggedEncodedCborOffset(data, items[n], itemEnd);
+            assertEquals(Util.cborMapExtractString(item, "elementIdentifier"),
+                    CborView.readTextString(data, CborView.getMapValue(data, itemOffset,
+                            itemEnd, "elementIdentifier"), itemEnd));
+            assertEquals(Util.cborMapExtractNumber(item, "digestID"),
+                    CborView.readUnsignedInteger(data, CborView.getMapValue(data, itemOffset,
+                            itemEnd, "digestID"), itemEnd));
+            int valueOffset = CborView.getMapValue(data, itemOffset, itemEnd, "elementValue");
+            assertArrayEquals(Util.cborEncode(Util.cborMapExtract(item, "elementValue")),
+                    Arrays.copyOfRange(data, valueOffset,
+                            CborView.skip(data, valueOffset, itemEnd)));
+        }
+    }
+}
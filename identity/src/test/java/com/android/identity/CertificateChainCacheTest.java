@@ -0,0 +1,92 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.List;
+
+import co.nstant.in.cbor.model.DataItem;
+
+public class CertificateChainCacheTest {
+
+    private static byte[] fingerprint(String... hexCertificates) {
+        byte[][] encoded = new byte[hexCertificates.length][];
+        for (int n = 0; n < hexCertificates.length; n++) {
+            encoded[n] = Util.fromHex(hexCertificates[n]);
+        }
+        return CertificateChainCache.computeFingerprint(Arrays.asList(encoded));
+    }
+
+    @Test
+    public void testFingerprint() {
+        assertEquals(32, fingerprint("0102").length);
+        // The same bytes split differently must not collide.
+        assertFalse(Arrays.equals(fingerprint("0102", "03"), fingerprint("01", "0203")));
+    }
+
+    @Test
+    public void testExpiry() {
+        CertificateChainCache<String> cache = new CertificateChainCache<>(4);
+        byte[] key = fingerprint("01");
+        cache.put(key, "value", 1000);
+        assertEquals("value", cache.get(key, 999));
+        assertNull(cache.get(key, 1000));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        CertificateChainCache<String> cache = new CertificateChainCache<>(2);
+        byte[] a = fingerprint("0a");
+        byte[] b = fingerprint("0b");
+        byte[] c = fingerprint("0c");
+        cache.put(a, "a", Long.MAX_VALUE);
+        cache.put(b, "b", Long.MAX_VALUE);
+        // Touch a so b becomes the least recently used.
+        assertEquals("a", cache.get(a, 0));
+        cache.put(c, "c", Long.MAX_VALUE);
+        assertEquals(2, cache.size());
+        assertEquals("a", cache.get(a, 0));
+        assertNull(cache.get(b, 0));
+        assertEquals("c", cache.get(c, 0));
+    }
+
+    @Test
+    public void testExpiredX5ChainNotCached() {
+        DataItem deviceResponse = Util.cborDecode(
+                Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE));
+        DataItem document = Util.cborMapExtractArray(deviceResponse, "documents").get(0);
+        DataItem issuerAuth = Util.cborMapExtract(
+                Util.cborMapExtractMap(document, "issuerSigned"), "issuerAuth");
+
+        // The DS certificate in the test vector expired on 2021-10-01 so each call must
+        // parse it again instead of returning a cached instance.
+        List<X509Certificate> first = Util.coseSign1GetX5Chain(issuerAuth);
+        List<X509Certificate> second = Util.coseSign1GetX5Chain(issuerAuth);
+        assertEquals(1, first.size());
+        assertEquals(first, second);
+        assertNotSame(first.get(0), second.get(0));
+    }
+}
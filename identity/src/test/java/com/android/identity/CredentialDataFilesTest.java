@@ -0,0 +1,302 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class CredentialDataFilesTest {
+    private static final String CREDENTIAL_NAME = "test";
+
+    private File mStorageDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        mStorageDirectory = Files.createTempDirectory("CredentialDataFilesTest").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mStorageDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mStorageDirectory.delete();
+    }
+
+    private CredentialDataFiles createFiles() {
+        return new CredentialDataFiles(mStorageDirectory, CREDENTIAL_NAME);
+    }
+
+    private static Map<String, byte[]> segments(String tag) {
+        Map<String, byte[]> segments = new HashMap<>();
+        segments.put(CredentialDataFiles.SEGMENT_DATA, bytes(tag + " data"));
+        segments.put(CredentialDataFiles.SEGMENT_ACPS, bytes(tag + " acps"));
+        segments.put(CredentialDataFiles.SEGMENT_AUTH_KEYS, bytes(tag + " authkeys"));
+        return segments;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertSegments(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+        assertNotNull(actual);
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String segment : expected.keySet()) {
+            assertArrayEquals(expected.get(segment), actual.get(segment));
+        }
+    }
+
+    private File getSegmentFile(String segment, long generation) {
+        return new File(mStorageDirectory, CredentialData.escapeCredentialName(
+                segment + "." + generation, CREDENTIAL_NAME));
+    }
+
+    private File getLegacyFile() {
+        return new File(mStorageDirectory,
+                CredentialData.getFilenameForCredentialData(CREDENTIAL_NAME));
+    }
+
+    private File getJournalFile() {
+        return new File(mStorageDirectory,
+                CredentialData.escapeCredentialName("journal", CREDENTIAL_NAME));
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(data);
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        CredentialDataFiles files = createFiles();
+        assertFalse(files.exists());
+        assertFalse(files.isCurrent());
+        assertNull(files.readCommitted());
+        assertNull(files.readLegacy());
+        assertTrue(files.readJournal().getRecords().isEmpty());
+        assertTrue(files.readJournal().isIntact());
+        assertThrows(IllegalStateException.class,
+                () -> files.replaceSegment(CredentialDataFiles.SEGMENT_AUTH_KEYS, bytes("x")));
+    }
+
+    @Test
+    public void testCommit() {
+        CredentialDataFiles files = createFiles();
+        files.commit(segments("first"));
+        assertTrue(files.exists());
+        assertTrue(files.isCurrent());
+        assertSegments(segments("first"), createFiles().readCommitted());
+
+        files.commit(segments("second"));
+        assertSegments(segments("second"), createFiles().readCommitted());
+        // Only the current generation is kept.
+        assertFalse(getSegmentFile(CredentialDataFiles.SEGMENT_DATA, 1).exists());
+        assertTrue(getSegmentFile(CredentialDataFiles.SEGMENT_DATA, 2).exists());
+    }
+
+    @Test
+    public void testCommitNeedsAllSegments() {
+        CredentialDataFiles files = createFiles();
+        Map<String, byte[]> segments = segments("first");
+        segments.remove(CredentialDataFiles.SEGMENT_ACPS);
+        assertThrows(IllegalArgumentException.class, () -> files.commit(segments));
+        assertFalse(files.exists());
+    }
+
+    @Test
+    public void testPartiallyWrittenGeneration() {
+        CredentialDataFiles files = createFiles();
+        files.commit(segments("first"));
+
+        // Simulate a crash after writing some, or all, of the segments of the next generation
+        // but before committing it.
+        files.writeGeneration(2, segments("second"));
+        getSegmentFile(CredentialDataFiles.SEGMENT_AUTH_KEYS, 2).delete();
+        CredentialDataFiles reloaded = createFiles();
+        assertSegments(segments("first"), reloaded.readCommitted());
+
+        // Committing again writes over the leftovers.
+        reloaded.commit(segments("third"));
+        assertSegments(segments("third"), createFiles().readCommitted());
+        assertFalse(getSegmentFile(CredentialDataFiles.SEGMENT_DATA, 1).exists());
+    }
+
+    @Test
+    public void testMissingSegment() {
+        CredentialDataFiles files = createFiles();
+        files.commit(segments("first"));
+        getSegmentFile(CredentialDataFiles.SEGMENT_ACPS, 1).delete();
+
+        // Nothing usable, but nothing else is deleted either.
+        assertNull(createFiles().readCommitted());
+        assertTrue(files.exists());
+        assertTrue(getSegmentFile(CredentialDataFiles.SEGMENT_DATA, 1).exists());
+        assertTrue(getSegmentFile(CredentialDataFiles.SEGMENT_AUTH_KEYS, 1).exists());
+    }
+
+    @Test
+    public void testLegacyMigration() throws IOException {
+        writeFile(getLegacyFile(), bytes("legacy"));
+        CredentialDataFiles files = createFiles();
+        assertTrue(files.exists());
+        assertNull(files.readCommitted());
+        assertArrayEquals(bytes("legacy"), files.readLegacy());
+
+        // Simulate a crash while migrating, the old file is still there.
+        files.writeGeneration(1, segments("migrated"));
+        assertNull(createFiles().readCommitted());
+        assertArrayEquals(bytes("legacy"), createFiles().readLegacy());
+
+        // And only goes away once migration is committed.
+        files.commit(segments("migrated"));
+        assertFalse(getLegacyFile().exists());
+        assertNull(files.readLegacy());
+        assertSegments(segments("migrated"), createFiles().readCommitted());
+    }
+
+    @Test
+    public void testLegacyBackup() throws IOException {
+        // Left by android.util.AtomicFile when writing didn't finish.
+        writeFile(getLegacyFile(), bytes("partial"));
+        writeFile(new File(getLegacyFile().getPath() + ".bak"), bytes("legacy"));
+        CredentialDataFiles files = createFiles();
+        assertArrayEquals(bytes("legacy"), files.readLegacy());
+
+        files.commit(segments("migrated"));
+        assertNull(files.readLegacy());
+        assertFalse(new File(getLegacyFile().getPath() + ".bak").exists());
+    }
+
+    @Test
+    public void testJournal() {
+        CredentialDataFiles files = createFiles();
+        files.commit(segments("first"));
+        files.appendJournalRecord(bytes("one"));
+        files.appendJournalRecord(bytes("two"));
+        files.appendJournalRecord(new byte[0]);
+        files.appendJournalRecord(bytes("four"));
+
+        CredentialDataFiles.Journal journal = createFiles().readJournal();
+        assertTrue(journal.isIntact());
+        List<byte[]> records = journal.getRecords();
+        assertEquals(4, records.size());
+        assertArrayEquals(bytes("one"), records.get(0));
+        assertArrayEquals(bytes("two"), records.get(1));
+        assertArrayEquals(new byte[0], records.get(2));
+        assertArrayEquals(bytes("four"), records.get(3));
+
+        // Committing a generation makes the journal obsolete.
+        files.commit(segments("second"));
+        assertTrue(createFiles().readJournal().getRecords().isEmpty());
+    }
+
+    @Test
+    public void testTruncatedJournal() throws IOException {
+        CredentialDataFiles files = createFiles();
+        files.commit(segments("first"));
+        files.appendJournalRecord(bytes("one"));
+        files.appendJournalRecord(bytes("two"));
+        long intactLength = getJournalFile().length();
+        files.appendJournalRecord(bytes("three"));
+
+        // Simulate a crash while appending the last record.
+        try (RandomAccessFile file = new RandomAccessFile(getJournalFile(), "rw")) {
+            file.setLength(intactLength + 2);
+        }
+        CredentialDataFiles.Journal journal = createFiles().readJournal();
+        assertFalse(journal.isIntact());
+        assertEquals(2, journal.getRecords().size());
+        assertArrayEquals(bytes("one"), journal.getRecords().get(0));
+        assertArrayEquals(bytes("two"), journal.getRecords().get(1));
+    }
+
+    @Test
+    public void testCompaction() {
+        CredentialDataFiles files = createFiles();
+        files.commit(segments("first"));
+        files.appendJournalRecord(bytes("one"));
+        files.appendJournalRecord(bytes("two"));
+
+        CredentialDataFiles reloaded = createFiles();
+        assertNotNull(reloaded.readCommitted());
+        reloaded.replaceSegment(CredentialDataFiles.SEGMENT_AUTH_KEYS, bytes("compacted"));
+        reloaded.deleteJournal();
+
+        Map<String, byte[]> expected = segments("first");
+        expected.put(CredentialDataFiles.SEGMENT_AUTH_KEYS, bytes("compacted"));
+        assertSegments(expected, createFiles().readCommitted());
+        assertTrue(createFiles().readJournal().getRecords().isEmpty());
+        assertTrue(files.isCurrent());
+    }
+
+    @Test
+    public void testDeleteAll() throws IOException {
+        writeFile(getLegacyFile(), bytes("legacy"));
+        CredentialDataFiles files = createFiles();
+        files.commit(segments("first"));
+        files.commit(segments("second"));
+        files.appendJournalRecord(bytes("one"));
+        files.writeGeneration(3, segments("third"));
+        writeFile(new File(getSegmentFile(CredentialDataFiles.SEGMENT_DATA, 3).getPath()
+                + ".tmp"), bytes("partial"));
+
+        CredentialDataFiles other = createFiles();
+        other.deleteAll();
+        assertFalse(other.exists());
+        assertFalse(files.isCurrent());
+        String[] remaining = mStorageDirectory.list();
+        assertNotNull(remaining);
+        assertEquals(0, remaining.length);
+    }
+
+    @Test
+    public void testOtherCredentialsUntouched() {
+        CredentialDataFiles files = createFiles();
+        CredentialDataFiles otherFiles = new CredentialDataFiles(mStorageDirectory, "1_test");
+        files.commit(segments("first"));
+        otherFiles.commit(segments("other"));
+        otherFiles.appendJournalRecord(bytes("one"));
+
+        files.deleteAll();
+        assertSegments(segments("other"), otherFiles.readCommitted());
+        assertEquals(1, otherFiles.readJournal().getRecords().size());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.PublicKey;
+import java.util.concurrent.TimeUnit;
+
+import co.nstant.in.cbor.model.DataItem;
+
+/**
+ * Compares the providers {@link CryptoProvider} can use on the crypto-heavy parts of a
+ * transaction.
+ *
+ * <p>"JDK" uses SunEC along with SunJCE and SUN for what SunEC doesn't implement. Conscrypt
+ * can be added with {@code -p provider=Conscrypt} if it's on the classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoProviderBenchmark {
+
+    @Param({"JDK", "BC"})
+    public String provider;
+
+    private DataItem mIssuerAuth;
+    private PublicKey mIssuerKey;
+
+    @Setup
+    public void setUp() {
+        CryptoProvider cryptoProvider;
+        switch (provider) {
+            case "JDK":
+                cryptoProvider = new CryptoProvider.Builder()
+                        .setProvider(CryptoProvider.Operation.SIGNATURE, CryptoProvider.SUN_EC)
+                        .setProvider(CryptoProvider.Operation.KEY_AGREEMENT,
+                                CryptoProvider.SUN_EC)
+                        .setProvider(CryptoProvider.Operation.KEY_FACTORY, CryptoProvider.SUN_EC)
+                        .setProvider(CryptoProvider.Operation.MAC, "SunJCE")
+                        .setProvider(CryptoProvider.Operation.CIPHER, "SunJCE")
+                        .setProvider(CryptoProvider.Operation.MESSAGE_DIGEST, "SUN")
+                        .build();
+                break;
+            default:
+                cryptoProvider = new CryptoProvider.Builder()
+                        .setProviderForAllOperations(CryptoProvider.findProvider(provider))
+                        .build();
+                break;
+        }
+        CryptoProvider.setDefault(cryptoProvider);
+
+        DataItem document = Util.cborMapExtractArray(
+                Util.cborDecode(BenchmarkFixtures.DEVICE_RESPONSE), "documents").get(0);
+        mIssuerAuth = Util.cborMapExtract(
+                Util.cborMapExtractMap(document, "issuerSigned"), "issuerAuth");
+        mIssuerKey = Util.coseSign1GetX5Chain(mIssuerAuth).get(0).getPublicKey();
+    }
+
+    @Benchmark
+    public boolean coseSign1CheckSignature() {
+        return Util.coseSign1CheckSignature(mIssuerAuth, null, mIssuerKey);
+    }
+
+    // ECDH, SHA-256 and HKDF for deriving the session keys, then AES-GCM for decrypting the
+    // Annex D response.
+    @Benchmark
+    public Object establishSessionAndDecrypt() {
+        SessionEncryptionReader reader = new SessionEncryptionReader(
+                BenchmarkFixtures.E_READER_KEY_PRIVATE,
+                BenchmarkFixtures.E_READER_KEY_PUBLIC,
+                BenchmarkFixtures.E_DEVICE_KEY_PUBLIC,
+                BenchmarkFixtures.SESSION_TRANSCRIPT);
+        return reader.decryptMessageFromDevice(BenchmarkFixtures.SESSION_DATA);
+    }
+
+    @Benchmark
+    public PublicKey coseKeyDecode() {
+        return Util.coseKeyDecode(Util.cborBuildCoseKey(BenchmarkFixtures.E_DEVICE_KEY_PUBLIC));
+    }
+}
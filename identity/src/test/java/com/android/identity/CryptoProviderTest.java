@@ -0,0 +1,94 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Signature;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class CryptoProviderTest {
+
+    @Test
+    public void testFindProvider() {
+        Provider bouncyCastle = CryptoProvider.findProvider(CryptoProvider.BOUNCY_CASTLE);
+        assertNotNull(bouncyCastle);
+        assertSame(bouncyCastle, CryptoProvider.findProvider(CryptoProvider.BOUNCY_CASTLE));
+        assertNull(CryptoProvider.findProvider("NoSuchProvider"));
+    }
+
+    @Test
+    public void testInstancesCachedPerThread() throws Exception {
+        CryptoProvider cryptoProvider = new CryptoProvider.Builder()
+                .setProviderForAllOperations(
+                        CryptoProvider.findProvider(CryptoProvider.BOUNCY_CASTLE))
+                .build();
+        Signature signature = cryptoProvider.getSignature("SHA256withECDSA");
+        assertEquals(CryptoProvider.BOUNCY_CASTLE, signature.getProvider().getName());
+        assertSame(signature, cryptoProvider.getSignature("SHA256withECDSA"));
+        assertNotSame(signature, cryptoProvider.getSignature("SHA384withECDSA"));
+        assertNotSame(cryptoProvider.getCipher("AES/GCM/NoPadding"),
+                cryptoProvider.newCipher("AES/GCM/NoPadding"));
+
+        AtomicReference<Signature> otherThreadSignature = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                otherThreadSignature.set(cryptoProvider.getSignature("SHA256withECDSA"));
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotNull(otherThreadSignature.get());
+        assertNotSame(signature, otherThreadSignature.get());
+    }
+
+    @Test
+    public void testDefaultProvider() throws Exception {
+        CryptoProvider cryptoProvider = new CryptoProvider.Builder().build();
+        assertNull(cryptoProvider.getProvider(CryptoProvider.Operation.SIGNATURE));
+        // Engines which pick their provider depending on the key aren't cached...
+        assertNotSame(cryptoProvider.getSignature("SHA256withECDSA"),
+                cryptoProvider.getSignature("SHA256withECDSA"));
+        // ... but others are, and come back ready to use. Without a reset the leftover input
+        // would change the digest of the empty input.
+        MessageDigest digest = cryptoProvider.getMessageDigest("SHA-256");
+        digest.update(new byte[]{1, 2, 3});
+        assertSame(digest, cryptoProvider.getMessageDigest("SHA-256"));
+        assertArrayEquals(MessageDigest.getInstance("SHA-256").digest(), digest.digest());
+    }
+
+    @Test
+    public void testUnknownProviderName() {
+        try {
+            new CryptoProvider.Builder()
+                    .setProvider(CryptoProvider.Operation.MAC, "NoSuchProvider");
+            throw new AssertionError("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class DataTransportIoEngineTest {
+
+    @Test
+    public void testRunsTasksConcurrently() throws Exception {
+        DataTransportIoEngine engine = new DataTransportIoEngine("Test", 4);
+        CountDownLatch allStarted = new CountDownLatch(4);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?>[] futures = new Future<?>[4];
+        for (int n = 0; n < futures.length; n++) {
+            futures[n] = engine.submit(() -> {
+                allStarted.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        // Each task blocks until all of them have started, which only works if they're
+        // running on different threads.
+        assertTrue(allStarted.await(5, TimeUnit.SECONDS));
+        assertEquals(4, engine.getActiveCount());
+        release.countDown();
+        for (Future<?> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        engine.shutdown();
+    }
+
+    @Test
+    public void testRejectsWhenSaturated() throws Exception {
+        DataTransportIoEngine engine = new DataTransportIoEngine("Test", 1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<?> future = engine.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThrows(RejectedExecutionException.class, () -> engine.submit(() -> {}));
+        release.countDown();
+        future.get(5, TimeUnit.SECONDS);
+
+        engine.shutdown();
+        assertThrows(RejectedExecutionException.class, () -> engine.submit(() -> {}));
+    }
+}
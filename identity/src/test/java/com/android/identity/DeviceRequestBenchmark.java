@@ -0,0 +1,111 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for generating and parsing <code>DeviceRequest</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceRequestBenchmark {
+    private static final String MDL_DOCTYPE = "org.iso.18013.5.1.mDL";
+    private static final String MDL_NAMESPACE = "org.iso.18013.5.1";
+
+    private Map<String, Map<String, Boolean>> mItemsToRequest;
+    private Signature mReaderKeySignature;
+    private List<X509Certificate> mReaderCertificateChain;
+
+    @Setup
+    public void setUp() throws Exception {
+        // Same elements as the request in Annex D.
+        Map<String, Boolean> mdlItems = new LinkedHashMap<>();
+        mdlItems.put("family_name", true);
+        mdlItems.put("document_number", true);
+        mdlItems.put("driving_privileges", true);
+        mdlItems.put("issue_date", true);
+        mdlItems.put("expiry_date", true);
+        mdlItems.put("portrait", false);
+        mItemsToRequest = new LinkedHashMap<>();
+        mItemsToRequest.put(MDL_NAMESPACE, mdlItems);
+
+        // The private key for the Annex D reader certificate isn't known so sign with a fresh
+        // key. The certificate is only carried along in x5chain so this doesn't matter.
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(new ECGenParameterSpec("secp256r1"));
+        KeyPair readerKey = kpg.generateKeyPair();
+        mReaderKeySignature = Signature.getInstance("SHA256withECDSA");
+        mReaderKeySignature.initSign(readerKey.getPrivate());
+        CertificateFactory cf = CertificateFactory.getInstance("X.509");
+        mReaderCertificateChain = Collections.singletonList(
+                (X509Certificate) cf.generateCertificate(new ByteArrayInputStream(
+                        Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_READER_CERT))));
+    }
+
+    @Benchmark
+    public byte[] generate() {
+        return new DeviceRequestGenerator()
+                .setSessionTranscript(BenchmarkFixtures.SESSION_TRANSCRIPT)
+                .addDocumentRequest(MDL_DOCTYPE, mItemsToRequest, null, null, null)
+                .generate();
+    }
+
+    @Benchmark
+    public byte[] generateWithReaderAuth() {
+        return new DeviceRequestGenerator()
+                .setSessionTranscript(BenchmarkFixtures.SESSION_TRANSCRIPT)
+                .addDocumentRequest(MDL_DOCTYPE, mItemsToRequest, null,
+                        mReaderKeySignature, mReaderCertificateChain)
+                .generate();
+    }
+
+    // Includes checking the reader authentication signature.
+    @Benchmark
+    public DeviceRequestParser.DeviceRequest parse() {
+        return new DeviceRequestParser()
+                .setDeviceRequest(BenchmarkFixtures.DEVICE_REQUEST)
+                .setSessionTranscript(BenchmarkFixtures.SESSION_TRANSCRIPT)
+                .parse();
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import co.nstant.in.cbor.model.ByteString;
+import co.nstant.in.cbor.model.DataItem;
+
+/**
+ * Benchmarks for generating and parsing <code>DeviceResponse</code>.
+ *
+ * <p>The response holds the Annex D document repeated {@link #numDocuments} times so the
+ * cost per additional document can be seen. With {@link #parallel} set, documents are
+ * verified on a thread pool using {@link DeviceResponseParser#setExecutor}. Generation
+ * doesn't depend on it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeviceResponseBenchmark {
+
+    @Param({"1", "3", "10"})
+    public int numDocuments;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private String mDocType;
+    private byte[] mEncodedDeviceNamespaces;
+    private byte[] mEncodedDeviceMac;
+    private Map<String, List<byte[]>> mIssuerSignedData;
+    private byte[] mEncodedIssuerAuth;
+    private byte[] mEncodedDeviceResponse;
+    private ExecutorService mExecutor;
+
+    @Setup
+    public void setUp() {
+        // Take the Annex D document apart so it can be put back together by
+        // DeviceResponseGenerator.
+        DataItem document = Util.cborMapExtractArray(
+                Util.cborDecode(BenchmarkFixtures.DEVICE_RESPONSE), "documents").get(0);
+        mDocType = Util.cborMapExtractString(document, "docType");
+
+        DataItem issuerSigned = Util.cborMapExtractMap(document, "issuerSigned");
+        DataItem issuerNamespaces = Util.cborMapExtractMap(issuerSigned, "nameSpaces");
+        mIssuerSignedData = new LinkedHashMap<>();
+        for (String namespaceName : Util.cborMapExtractMapStringKeys(issuerNamespaces)) {
+            List<byte[]> encodedIssuerSignedItems = new ArrayList<>();
+            for (DataItem item : Util.cborMapExtractArray(issuerNamespaces, namespaceName)) {
+                encodedIssuerSignedItems.add(((ByteString) item).getBytes());
+            }
+            mIssuerSignedData.put(namespaceName, encodedIssuerSignedItems);
+        }
+        mEncodedIssuerAuth = Util.cborEncode(Util.cborMapExtract(issuerSigned, "issuerAuth"));
+
+        DataItem deviceSigned = Util.cborMapExtractMap(document, "deviceSigned");
+        mEncodedDeviceNamespaces =
+                ((ByteString) Util.cborMapExtract(deviceSigned, "nameSpaces")).getBytes();
+        mEncodedDeviceMac = Util.cborEncode(Util.cborMapExtract(
+                Util.cborMapExtractMap(deviceSigned, "deviceAuth"), "deviceMac"));
+
+        mEncodedDeviceResponse = generate();
+        if (parallel) {
+            mExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    @Benchmark
+    public byte[] generate() {
+        DeviceResponseGenerator generator =
+                new DeviceResponseGenerator(Constants.DEVICE_RESPONSE_STATUS_OK);
+        for (int n = 0; n < numDocuments; n++) {
+            generator.addDocument(mDocType, mEncodedDeviceNamespaces, null, mEncodedDeviceMac,
+                    mIssuerSignedData, null, mEncodedIssuerAuth);
+        }
+        return generator.generate();
+    }
+
+    // Includes the MSO digest checks, the issuer signature check and the device MAC check.
+    @Benchmark
+    public DeviceResponseParser.DeviceResponse parse() {
+        return new DeviceResponseParser()
+                .setDeviceResponse(mEncodedDeviceResponse)
+                .setSessionTranscript(BenchmarkFixtures.SESSION_TRANSCRIPT)
+                .setEphemeralReaderKey(BenchmarkFixtures.E_READER_KEY_PRIVATE)
+                .setExecutor(mExecutor)
+                .parse();
+    }
+}
@@ -28,7 +28,14 @@ import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.model.DataItem;
 
 public class DeviceResponseParserTest {
 
@@ -280,4 +287,74 @@ public class DeviceResponseParserTest {
         Assert.assertTrue(d.getDeviceSignedAuthenticated());
     }
 
+    @Test
+    @SmallTest
+    public void testDeviceResponseParserWithExecutor() {
+        // Build a response with three copies of the document from the test vector, the last
+        // one with a poisoned issuer signature.
+        DataItem vectorDocument = Util.cborMapExtractArray(
+                Util.cborDecode(Util.fromHex(TestVectors.ISO_18013_5_ANNEX_D_DEVICE_RESPONSE)),
+                "documents").get(0);
+        byte[] encodedDocument = Util.cborEncode(vectorDocument);
+        byte[] poisonedEncodedDocument = encodedDocument.clone();
+        // Find the issuer signature, which starts with 59E64205DF1E (see
+        // testDeviceResponseParserWithVectorsMalformedIssuerSigned()), and poison it.
+        byte[] issuerSignatureStart = Util.fromHex("59E64205DF1E");
+        int issuerSignatureOffset = -1;
+        for (int n = 0; n + issuerSignatureStart.length <= encodedDocument.length; n++) {
+            if (Arrays.equals(issuerSignatureStart, Arrays.copyOfRange(encodedDocument, n,
+                    n + issuerSignatureStart.length))) {
+                issuerSignatureOffset = n;
+                break;
+            }
+        }
+        Assert.assertNotEquals(-1, issuerSignatureOffset);
+        poisonedEncodedDocument[issuerSignatureOffset] = (byte) 0x5a;
+        byte[] encodedDeviceResponse = Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("version", "1.0")
+                .putArray("documents")
+                .add(Util.cborDecode(encodedDocument))
+                .add(Util.cborDecode(encodedDocument))
+                .add(Util.cborDecode(poisonedEncodedDocument))
+                .end()
+                .put("status", Constants.DEVICE_RESPONSE_STATUS_OK)
+                .end()
+                .build().get(0));
+
+        // Strip the #6.24 tag since our APIs expects just the bytes of SessionTranscript.
+        byte[] encodedSessionTranscriptBytes = Util.fromHex(
+                TestVectors.ISO_18013_5_ANNEX_D_SESSION_TRANSCRIPT_BYTES);
+        byte[] encodedSessionTranscript = Util.cborEncode(
+                Util.cborExtractTaggedAndEncodedCbor(
+                        Util.cborDecode(encodedSessionTranscriptBytes)));
+
+        PrivateKey eReaderKey = Util.getPrivateKeyFromInteger(new BigInteger(
+                TestVectors.ISO_18013_5_ANNEX_D_EPHEMERAL_READER_KEY_D, 16));
+
+        ExecutorService executorService = Executors.newFixedThreadPool(4);
+        // Also check a direct executor works, i.e. that nothing blocks inside a task.
+        for (Executor executor : new Executor[]{executorService, Runnable::run}) {
+            DeviceResponseParser.DeviceResponse dr = new DeviceResponseParser()
+                    .setDeviceResponse(encodedDeviceResponse)
+                    .setSessionTranscript(encodedSessionTranscript)
+                    .setEphemeralReaderKey(eReaderKey)
+                    .setExecutor(executor)
+                    .parse();
+            List<DeviceResponseParser.Document> documents = dr.getDocuments();
+            Assert.assertEquals(3, documents.size());
+            for (int n = 0; n < documents.size(); n++) {
+                DeviceResponseParser.Document d = documents.get(n);
+                Assert.assertEquals(MDL_DOCTYPE, d.getDocType());
+                Assert.assertEquals(n < 2, d.getIssuerSignedAuthenticated());
+                Assert.assertTrue(d.getDeviceSignedAuthenticated());
+                Assert.assertEquals(0, d.getNumIssuerEntryDigestMatchFailures());
+                Assert.assertEquals(1, d.getIssuerCertificateChain().size());
+                Assert.assertEquals("Doe",
+                        d.getIssuerEntryString(MDL_NAMESPACE, "family_name"));
+            }
+        }
+        executorService.shutdown();
+    }
+
 }
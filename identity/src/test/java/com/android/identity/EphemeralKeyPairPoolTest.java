@@ -0,0 +1,107 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+public class EphemeralKeyPairPoolTest {
+
+    // Runs refills only when asked to, so the test controls when the pool is topped up.
+    private static class ManualExecutor implements Executor {
+        final List<Runnable> mPending = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable runnable) {
+            mPending.add(runnable);
+        }
+
+        void runAll() {
+            while (!mPending.isEmpty()) {
+                mPending.remove(0).run();
+            }
+        }
+    }
+
+    @Test
+    public void testPrefillAndTake() {
+        ManualExecutor executor = new ManualExecutor();
+        EphemeralKeyPairPool pool = new EphemeralKeyPairPool(3, executor);
+        assertEquals(0, pool.getAvailableCount());
+
+        pool.prefill();
+        // Only one refill is scheduled at a time.
+        pool.prefill();
+        assertEquals(1, executor.mPending.size());
+        executor.runAll();
+        assertEquals(3, pool.getAvailableCount());
+        assertEquals(3, pool.getGeneratedCount());
+
+        KeyPair keyPair = pool.take();
+        assertTrue(keyPair.getPublic() instanceof ECPublicKey);
+        assertEquals(1, pool.getHitCount());
+        assertEquals(0, pool.getMissCount());
+        assertEquals(2, pool.getAvailableCount());
+        executor.runAll();
+        assertEquals(3, pool.getAvailableCount());
+    }
+
+    @Test
+    public void testEmptyPoolGeneratesOnCallingThread() {
+        ManualExecutor executor = new ManualExecutor();
+        EphemeralKeyPairPool pool = new EphemeralKeyPairPool(1, executor);
+        pool.take();
+        pool.take();
+        assertEquals(0, pool.getHitCount());
+        assertEquals(2, pool.getMissCount());
+        assertEquals(0, pool.getGeneratedCount());
+
+        // A pool with depth 0 never schedules refills.
+        EphemeralKeyPairPool unpooled = new EphemeralKeyPairPool(0, executor);
+        executor.mPending.clear();
+        unpooled.take();
+        assertEquals(0, executor.mPending.size());
+    }
+
+    @Test
+    public void testKeyPairsAreNeverReused() {
+        EphemeralKeyPairPool pool = new EphemeralKeyPairPool(4, Runnable::run);
+        pool.prefill();
+        Set<KeyPair> seen = new HashSet<>();
+        Set<PublicKey> seenPublicKeys = new HashSet<>();
+        for (int n = 0; n < 20; n++) {
+            KeyPair keyPair = pool.take();
+            assertTrue(seen.add(keyPair));
+            assertTrue(seenPublicKeys.add(keyPair.getPublic()));
+        }
+        assertEquals(20, pool.getHitCount() + pool.getMissCount());
+
+        pool.clear();
+        assertEquals(0, pool.getAvailableCount());
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class LogWriterTest {
+
+    private static File createTempLogFile() throws IOException {
+        File file = File.createTempFile("LogWriterTest", ".log");
+        file.deleteOnExit();
+        return file;
+    }
+
+    private static List<String> readLines(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testWritesToFile() throws IOException {
+        File file = createTempLogFile();
+        LogWriter writer = new LogWriter(16, false);
+        writer.startFile(file, LogWriter.DEFAULT_MAX_FILE_SIZE, 0);
+        writer.enqueue(Logger.LEVEL_D, "Tag", "First", null);
+        writer.enqueue(Logger.LEVEL_E, "Tag", "Second", new IOException("Boom"));
+        assertTrue(writer.stopFile());
+        assertFalse(writer.stopFile());
+
+        List<String> lines = readLines(file);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(0).endsWith(": DEBUG: Tag: First"));
+        assertTrue(lines.get(1).endsWith(": ERROR: Tag: Second"));
+        assertEquals("EXCEPTION: java.io.IOException: Boom", lines.get(2));
+    }
+
+    @Test
+    public void testSupplierRunsOnWriterThread() throws IOException {
+        File file = createTempLogFile();
+        LogWriter writer = new LogWriter(16, false);
+        writer.startFile(file, LogWriter.DEFAULT_MAX_FILE_SIZE, 0);
+        AtomicReference<Thread> supplierThread = new AtomicReference<>();
+        writer.enqueue(Logger.LEVEL_I, "Tag", (Logger.MessageSupplier) () -> {
+            supplierThread.set(Thread.currentThread());
+            return "Lazy";
+        }, null);
+        writer.stopFile();
+
+        assertNotSame(Thread.currentThread(), supplierThread.get());
+        List<String> lines = readLines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith(": INFO: Tag: Lazy"));
+    }
+
+    @Test
+    public void testOverflowDropsOldest() throws IOException {
+        File file = createTempLogFile();
+        LogWriter writer = new LogWriter(4, false);
+        writer.startFile(file, LogWriter.DEFAULT_MAX_FILE_SIZE, 0);
+        // Keep the writer thread busy so the following messages pile up in the ring buffer.
+        CountDownLatch writerBlocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        writer.enqueue(Logger.LEVEL_D, "Tag", (Logger.MessageSupplier) () -> {
+            writerBlocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return "Blocking";
+        }, null);
+        try {
+            writerBlocked.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int n = 0; n < 10; n++) {
+            writer.enqueue(Logger.LEVEL_D, "Tag", "Message " + n, null);
+        }
+        release.countDown();
+        writer.stopFile();
+
+        List<String> lines = readLines(file);
+        assertEquals(6, lines.size());
+        assertTrue(lines.get(0).endsWith(": Tag: Blocking"));
+        assertTrue(lines.get(1).endsWith(": WARNING: Logger: Dropped 6 log messages"));
+        for (int n = 0; n < 4; n++) {
+            assertTrue(lines.get(2 + n).endsWith(": Tag: Message " + (6 + n)));
+        }
+    }
+
+    @Test
+    public void testRotation() throws IOException {
+        File file = createTempLogFile();
+        File rotated1 = new File(file.getAbsolutePath() + ".1");
+        File rotated2 = new File(file.getAbsolutePath() + ".2");
+        File rotated3 = new File(file.getAbsolutePath() + ".3");
+        rotated1.deleteOnExit();
+        rotated2.deleteOnExit();
+        rotated3.deleteOnExit();
+
+        LogWriter writer = new LogWriter(16, false);
+        // Every line is longer than the limit, so each message ends up in its own file.
+        writer.startFile(file, 10, 2);
+        for (int n = 0; n < 4; n++) {
+            writer.enqueue(Logger.LEVEL_D, "Tag", "Message " + n, null);
+            writer.flush();
+        }
+        writer.stopFile();
+
+        assertEquals(0, readLines(file).size());
+        assertTrue(readLines(rotated1).get(0).endsWith(": Tag: Message 3"));
+        assertTrue(readLines(rotated2).get(0).endsWith(": Tag: Message 2"));
+        assertFalse(rotated3.exists());
+    }
+
+    @Test
+    public void testTagLevels() {
+        boolean debugEnabled = Logger.isDebugEnabled();
+        try {
+            Logger.setDebugEnabled(false);
+            assertFalse(Logger.isLoggable("LogWriterTest", Logger.LEVEL_D));
+            assertTrue(Logger.isLoggable("LogWriterTest", Logger.LEVEL_I));
+
+            Logger.setTagLevel("LogWriterTest", Logger.LEVEL_D);
+            assertTrue(Logger.isLoggable("LogWriterTest", Logger.LEVEL_D));
+            assertFalse(Logger.isLoggable("OtherTag", Logger.LEVEL_D));
+
+            Logger.setDebugEnabled(true);
+            Logger.setTagLevel("LogWriterTest", Logger.LEVEL_W);
+            assertFalse(Logger.isLoggable("LogWriterTest", Logger.LEVEL_I));
+            assertTrue(Logger.isLoggable("LogWriterTest", Logger.LEVEL_W));
+            assertTrue(Logger.isLoggable("OtherTag", Logger.LEVEL_D));
+
+            Logger.clearTagLevel("LogWriterTest");
+            assertTrue(Logger.isLoggable("LogWriterTest", Logger.LEVEL_D));
+        } finally {
+            Logger.clearTagLevel("LogWriterTest");
+            Logger.setDebugEnabled(debugEnabled);
+        }
+    }
+}
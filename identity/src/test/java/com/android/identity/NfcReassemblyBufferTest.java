@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class NfcReassemblyBufferTest {
+
+    private static byte[] sequence(int length) {
+        byte[] data = new byte[length];
+        for (int n = 0; n < length; n++) {
+            data[n] = (byte) n;
+        }
+        return data;
+    }
+
+    @Test
+    public void testAppendInSmallChunks() {
+        byte[] data = sequence(1000);
+        NfcReassemblyBuffer buffer = new NfcReassemblyBuffer();
+        for (int offset = 0; offset < data.length; offset += 7) {
+            buffer.append(data, offset, Math.min(7, data.length - offset));
+        }
+        assertEquals(data.length, buffer.size());
+        assertArrayEquals(data, buffer.take());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void testWriteAtPosition() {
+        NfcReassemblyBuffer buffer = new NfcReassemblyBuffer();
+        buffer.append(new byte[]{1, 2, 3, 4}, 0, 4);
+        buffer.write(2, new byte[]{9, 9, 5}, 1, 2);
+        buffer.write(6, new byte[]{7}, 0, 1);
+        assertArrayEquals(new byte[]{1, 2, 9, 5, 0, 0, 7}, buffer.take());
+
+        // Gaps must not show data left over from a previous message.
+        buffer.append(sequence(10), 0, 10);
+        buffer.reset();
+        buffer.append(new byte[]{1}, 0, 1);
+        buffer.write(3, new byte[]{3}, 0, 1);
+        assertArrayEquals(new byte[]{1, 0, 0, 3}, buffer.take());
+    }
+
+    @Test
+    public void testDiscardAndPresize() {
+        byte[] data = sequence(300);
+        NfcReassemblyBuffer buffer = new NfcReassemblyBuffer();
+        // A header of 4 bytes followed by the first part of the payload.
+        buffer.append(new byte[]{0x53, (byte) 0x82, 0x01, 0x2c}, 0, 4);
+        buffer.append(data, 0, 100);
+        assertEquals(0x53, buffer.get(0));
+        assertEquals(0x82, buffer.get(1));
+        buffer.discard(4);
+        buffer.presize(data.length);
+        buffer.append(data, 100, 200);
+
+        byte[] message = buffer.take();
+        assertArrayEquals(data, message);
+        // The array sized for the message is handed over, so the next message gets a new one.
+        buffer.append(data, 0, 1);
+        byte[] next = buffer.take();
+        assertNotSame(message, next);
+        assertEquals(1, next.length);
+    }
+
+    @Test
+    public void testPresizeIsClamped() {
+        NfcReassemblyBuffer buffer = new NfcReassemblyBuffer();
+        buffer.presize(Integer.MAX_VALUE);
+        byte[] data = sequence(NfcReassemblyBuffer.MAX_PRESIZE + 10);
+        buffer.append(data, 0, data.length);
+        assertArrayEquals(data, buffer.take());
+    }
+
+    @Test
+    public void testTakeWhenExactlyFull() {
+        NfcReassemblyBuffer buffer = new NfcReassemblyBuffer();
+        buffer.presize(3);
+        byte[] data = new byte[]{1, 2, 3};
+        buffer.append(data, 0, 3);
+        byte[] first = buffer.take();
+        assertArrayEquals(data, first);
+        buffer.presize(3);
+        buffer.append(data, 0, 3);
+        assertNotSame(first, buffer.take());
+    }
+
+    @Test
+    public void testResponseApduPool() {
+        NfcResponseApduPool pool = new NfcResponseApduPool();
+        byte[] first = pool.obtain(4, 0x61, 0x00);
+        assertEquals(6, first.length);
+        assertEquals((byte) 0x61, first[4]);
+        byte[] second = pool.obtain(4, 0x90, 0x00);
+        assertSame(first, second);
+        assertEquals((byte) 0x90, second[4]);
+        assertEquals(3, pool.obtain(1, 0x90, 0x00).length);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+public class NfcResponseStreamTest {
+
+    private static byte[] sequence(int length) {
+        byte[] data = new byte[length];
+        for (int n = 0; n < length; n++) {
+            data[n] = (byte) (n * 7);
+        }
+        return data;
+    }
+
+    private static byte[] encapsulate(byte[] message) {
+        byte[] header = DataTransportNfc.encodeDo53Header(message.length);
+        byte[] data = new byte[header.length + message.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(message, 0, data, header.length, message.length);
+        return data;
+    }
+
+    // Plays the part of the mdoc reader, following the status words the way DataTransportNfc
+    // does. Returns the number of round-trips.
+    private static int receive(NfcResponseStream stream, int maxLe, ByteArrayOutputStream out) {
+        NfcResponseApduPool pool = new NfcResponseApduPool();
+        int le = maxLe;
+        int numRoundTrips = 0;
+        while (true) {
+            byte[] response = stream.nextResponse(le, pool);
+            numRoundTrips += 1;
+            assertTrue(response.length - 2 <= le);
+            out.write(response, 0, response.length - 2);
+            int sw1 = response[response.length - 2] & 0xff;
+            int sw2 = response[response.length - 1] & 0xff;
+            if (sw1 == 0x90 && sw2 == 0x00) {
+                return numRoundTrips;
+            }
+            assertEquals(0x61, sw1);
+            le = (sw2 == 0) ? maxLe : sw2;
+        }
+    }
+
+    private static void checkTransfer(int messageLength, int maxLe, int expectedRoundTrips) {
+        byte[] message = sequence(messageLength);
+        NfcResponseStream stream = new NfcResponseStream(message, maxLe);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(expectedRoundTrips, receive(stream, maxLe, out));
+        assertArrayEquals(encapsulate(message), out.toByteArray());
+        assertTrue(stream.isComplete());
+        assertEquals(stream.getTotalLength(), stream.getPosition());
+        assertEquals(expectedRoundTrips, stream.getNumResponses());
+    }
+
+    @Test
+    public void testShortLe() {
+        // 4 bytes of DO53 header, 1004 bytes in total. 256 + 256 + 256 then 236 remain,
+        // which is announced with '61 EC' and fetched in a single round-trip.
+        checkTransfer(1000, 256, 4);
+        checkTransfer(10, 256, 1);
+        // 3 bytes of DO53 header.
+        checkTransfer(253, 256, 1);
+        checkTransfer(254, 256, 2);
+    }
+
+    @Test
+    public void testExtendedLe() {
+        // A portrait-sized response fits in a single extended-length response APDU.
+        checkTransfer(40000, 0x10000, 1);
+        checkTransfer(0x20000, 0x10000, 3);
+        checkTransfer(0x10000 + 10, 0x10000, 2);
+    }
+
+    @Test
+    public void testSmallerLeInCommand() {
+        byte[] message = sequence(600);
+        NfcResponseStream stream = new NfcResponseStream(message, 0x10000);
+        NfcResponseApduPool pool = new NfcResponseApduPool();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // The reader can ask for less than the negotiated maximum...
+        byte[] response = stream.nextResponse(100, pool);
+        assertEquals(102, response.length);
+        assertEquals((byte) 0x61, response[100]);
+        assertEquals((byte) 0x00, response[101]);
+        out.write(response, 0, 100);
+        // ... and no Le means the negotiated maximum.
+        response = stream.nextResponse(0, pool);
+        assertEquals((byte) 0x90, response[response.length - 2]);
+        out.write(response, 0, response.length - 2);
+        assertArrayEquals(encapsulate(message), out.toByteArray());
+    }
+
+    @Test
+    public void testNothingLeft() {
+        NfcResponseStream stream = new NfcResponseStream(sequence(10), 256);
+        NfcResponseApduPool pool = new NfcResponseApduPool();
+        stream.nextResponse(256, pool);
+        try {
+            stream.nextResponse(256, pool);
+            throw new AssertionError("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testInvalidLe() {
+        try {
+            new NfcResponseStream(sequence(10), 0);
+            throw new AssertionError("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.GeneralSecurityException;
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Benchmarks for {@link SessionCipher}, without the key derivation done when a session is
+ * established.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionCipherBenchmark {
+
+    @Param({"256", "16384"})
+    public int messageSize;
+
+    private byte[] mMessage;
+    private byte[] mOutput;
+    private SessionCipher mEncrypter;
+    // Kept in step so every message is decrypted with the expected counter.
+    private SessionCipher mSender;
+    private SessionCipher mReceiver;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        SecretKeySpec key = new SecretKeySpec(new byte[32], "AES");
+        mMessage = new byte[messageSize];
+        mOutput = new byte[SessionCipher.getSessionDataSize(messageSize, OptionalLong.empty(),
+                null)];
+        mEncrypter = new SessionCipher(key, 1, Cipher.ENCRYPT_MODE);
+        mSender = new SessionCipher(key, 1, Cipher.ENCRYPT_MODE);
+        mReceiver = new SessionCipher(key, 1, Cipher.DECRYPT_MODE);
+    }
+
+    // Writes the SessionData message into a buffer which is reused.
+    @Benchmark
+    public int encryptToSessionData() {
+        return mEncrypter.encryptToSessionData(mMessage, OptionalLong.empty(), null, mOutput, 0);
+    }
+
+    @Benchmark
+    public byte[] roundTrip() throws GeneralSecurityException {
+        byte[] messageData = mSender.encryptToSessionData(mMessage, OptionalLong.empty(), null);
+        return mReceiver.decrypt(messageData, SessionCipher.parseSessionData(messageData));
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.OptionalLong;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for session encryption as specified in <em>ISO/IEC 18013-5</em> section 9.1.1.
+ *
+ * <p>Both sides of a session are kept in step so every message is decrypted with the expected
+ * counter, the same way it happens in a real transaction.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SessionEncryptionBenchmark {
+
+    @Param({"256", "16384"})
+    public int messageSize;
+
+    private byte[] mMessage;
+    private SessionEncryptionReader mReader;
+    private SessionEncryptionDevice mDevice;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        mMessage = new byte[messageSize];
+        mReader = new SessionEncryptionReader(
+                BenchmarkFixtures.E_READER_KEY_PRIVATE,
+                BenchmarkFixtures.E_READER_KEY_PUBLIC,
+                BenchmarkFixtures.E_DEVICE_KEY_PUBLIC,
+                BenchmarkFixtures.SESSION_TRANSCRIPT);
+        mDevice = new SessionEncryptionDevice(
+                BenchmarkFixtures.E_DEVICE_KEY_PRIVATE,
+                BenchmarkFixtures.E_READER_KEY_PUBLIC,
+                BenchmarkFixtures.SESSION_TRANSCRIPT);
+        // Get SessionEstablishment out of the way so all measured messages are SessionData.
+        mDevice.decryptMessageFromReader(
+                mReader.encryptMessageToDevice(mMessage, OptionalLong.empty()));
+    }
+
+    // ECDH and HKDF for deriving the session keys, then decrypting the Annex D response.
+    @Benchmark
+    public Object establishSessionAndDecrypt() {
+        SessionEncryptionReader reader = new SessionEncryptionReader(
+                BenchmarkFixtures.E_READER_KEY_PRIVATE,
+                BenchmarkFixtures.E_READER_KEY_PUBLIC,
+                BenchmarkFixtures.E_DEVICE_KEY_PUBLIC,
+                BenchmarkFixtures.SESSION_TRANSCRIPT);
+        return reader.decryptMessageFromDevice(BenchmarkFixtures.SESSION_DATA);
+    }
+
+    @Benchmark
+    public Object readerToDevice() {
+        return mDevice.decryptMessageFromReader(
+                mReader.encryptMessageToDevice(mMessage, OptionalLong.empty()));
+    }
+
+    @Benchmark
+    public Object deviceToReader() {
+        return mReader.decryptMessageFromDevice(
+                mDevice.encryptMessageToReader(mMessage, OptionalLong.empty()));
+    }
+}
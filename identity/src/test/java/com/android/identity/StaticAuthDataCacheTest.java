@@ -0,0 +1,226 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.icu.util.Calendar;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import co.nstant.in.cbor.CborBuilder;
+import co.nstant.in.cbor.model.SimpleValue;
+import co.nstant.in.cbor.model.UnicodeString;
+
+public class StaticAuthDataCacheTest {
+
+    // Not a real COSE_Sign1 but that doesn't matter for these tests.
+    private static final byte[] ENCODED_ISSUER_AUTH = Util.cborEncode(new CborBuilder()
+            .addArray()
+            .add(new byte[]{0x01})
+            .end()
+            .build().get(0));
+
+    private static byte[] buildIssuerSignedItem(long digestId, byte[] random,
+                                                String elementName) {
+        return Util.cborEncode(new CborBuilder()
+                .addMap()
+                .put("digestID", digestId)
+                .put("random", random)
+                .put("elementIdentifier", elementName)
+                .put(new UnicodeString("elementValue"), SimpleValue.NULL)
+                .end()
+                .build().get(0));
+    }
+
+    private static byte[] buildStaticAuthData() {
+        Map<String, List<byte[]>> mapping = new LinkedHashMap<>();
+        mapping.put("ns1", Arrays.asList(
+                buildIssuerSignedItem(0, new byte[]{1, 2, 3}, "given_name"),
+                buildIssuerSignedItem(1, new byte[]{4, 5, 6}, "family_name"),
+                buildIssuerSignedItem(2, new byte[]{7, 8, 9}, "portrait")));
+        mapping.put("ns2", Arrays.asList(
+                buildIssuerSignedItem(3, new byte[]{10, 11}, "age_over_21")));
+        return Utility.encodeStaticAuthData(mapping, ENCODED_ISSUER_AUTH);
+    }
+
+    // Entries with the values given, all of them requested and retrieved.
+    private static class TestEntries implements CredentialDataResult.Entries {
+        final Map<String, Map<String, byte[]>> mValues = new LinkedHashMap<>();
+
+        void put(String namespaceName, String name, byte[] encodedValue) {
+            Map<String, byte[]> values = mValues.get(namespaceName);
+            if (values == null) {
+                values = new LinkedHashMap<>();
+                mValues.put(namespaceName, values);
+            }
+            values.put(name, encodedValue);
+        }
+
+        @Override
+        public @NonNull Collection<String> getNamespaces() {
+            return mValues.keySet();
+        }
+
+        @Override
+        public @NonNull Collection<String> getEntryNames(@NonNull String namespaceName) {
+            return mValues.get(namespaceName).keySet();
+        }
+
+        @Override
+        public @NonNull Collection<String> getRetrievedEntryNames(
+                @NonNull String namespaceName) {
+            return getEntryNames(namespaceName);
+        }
+
+        @Override
+        public int getStatus(@NonNull String namespaceName, @NonNull String name) {
+            return STATUS_OK;
+        }
+
+        @Override
+        public @Nullable byte[] getEntry(@NonNull String namespaceName, @NonNull String name) {
+            return mValues.get(namespaceName).get(name);
+        }
+
+        @Override
+        public @Nullable String getEntryString(@NonNull String namespaceName,
+                                               @NonNull String name) {
+            return null;
+        }
+
+        @Override
+        public @Nullable byte[] getEntryBytestring(@NonNull String namespaceName,
+                                                   @NonNull String name) {
+            return null;
+        }
+
+        @Override
+        public long getEntryInteger(@NonNull String namespaceName, @NonNull String name) {
+            return 0;
+        }
+
+        @Override
+        public boolean getEntryBoolean(@NonNull String namespaceName, @NonNull String name) {
+            return false;
+        }
+
+        @Override
+        public @Nullable Calendar getEntryCalendar(@NonNull String namespaceName,
+                                                   @NonNull String name) {
+            return null;
+        }
+
+        @Override
+        public boolean isUserAuthenticationNeeded() {
+            return false;
+        }
+    }
+
+    @Test
+    public void testFindValueOffset() {
+        byte[] item = buildIssuerSignedItem(0, new byte[]{1, 2, 3}, "given_name");
+        // NULL is the last byte since elementValue is the last entry in the map.
+        assertEquals(item.length - 1,
+                StaticAuthDataCache.findValueOffset(item, "given_name"));
+        assertEquals(-1, StaticAuthDataCache.findValueOffset(item, "family_name"));
+
+        // If the pattern also shows up in the random value, the offset is ambiguous.
+        byte[] elementValue = "elementValue".getBytes(UTF_8);
+        byte[] random = new byte[elementValue.length + 2];
+        random[0] = (byte) 0x6c;
+        System.arraycopy(elementValue, 0, random, 1, elementValue.length);
+        random[random.length - 1] = (byte) 0xf6;
+        assertEquals(-1, StaticAuthDataCache.findValueOffset(
+                buildIssuerSignedItem(0, random, "given_name"), "given_name"));
+    }
+
+    @Test
+    public void testMergeIssuerSignedMatchesUtility() {
+        byte[] staticAuthData = buildStaticAuthData();
+        StaticAuthDataCache.Entry entry = new StaticAuthDataCache(4).get(staticAuthData);
+
+        TestEntries issuerSigned = new TestEntries();
+        issuerSigned.put("ns1", "portrait", Util.cborEncode(new CborBuilder()
+                .add(new byte[300]).build().get(0)));
+        issuerSigned.put("ns1", "given_name", Util.cborEncodeString("Erika"));
+        issuerSigned.put("ns2", "age_over_21", Util.cborEncodeBoolean(true));
+
+        Map<String, List<byte[]>> expected = Utility.mergeIssuerSigned(
+                Utility.decodeStaticAuthData(staticAuthData).first, issuerSigned);
+        Map<String, List<byte[]>> merged = entry.mergeIssuerSigned(issuerSigned);
+
+        assertEquals(expected.keySet(), merged.keySet());
+        for (String namespaceName : expected.keySet()) {
+            List<byte[]> expectedItems = expected.get(namespaceName);
+            List<byte[]> mergedItems = merged.get(namespaceName);
+            assertEquals(expectedItems.size(), mergedItems.size());
+            for (int n = 0; n < expectedItems.size(); n++) {
+                assertArrayEquals(expectedItems.get(n), mergedItems.get(n));
+            }
+        }
+        // Items are in the order of the digest-id mapping, not the order requested.
+        assertEquals("given_name", Util.cborMapExtractString(
+                Util.cborDecode(merged.get("ns1").get(0)), "elementIdentifier"));
+        assertArrayEquals(ENCODED_ISSUER_AUTH, entry.getEncodedIssuerAuth());
+    }
+
+    @Test
+    public void testCaching() {
+        StaticAuthDataCache cache = new StaticAuthDataCache(2);
+        byte[] staticAuthData = buildStaticAuthData();
+        StaticAuthDataCache.Entry entry = cache.get(staticAuthData);
+        // Lookups are by content, not by array identity.
+        assertSame(entry, cache.get(staticAuthData.clone()));
+        assertEquals(1, cache.size());
+
+        cache.remove(staticAuthData);
+        assertEquals(0, cache.size());
+        assertTrue(entry != cache.get(staticAuthData));
+
+        List<byte[]> others = new ArrayList<>();
+        for (int n = 0; n < 3; n++) {
+            Map<String, List<byte[]>> mapping = new HashMap<>();
+            mapping.put("ns", Arrays.asList(
+                    buildIssuerSignedItem(n, new byte[]{(byte) n}, "name")));
+            others.add(Utility.encodeStaticAuthData(mapping, Util.cborEncodeString("x")));
+            cache.get(others.get(n));
+        }
+        assertEquals(2, cache.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidStaticAuthData() {
+        new StaticAuthDataCache(2).get(Util.cborEncodeString("not staticAuthData"));
+    }
+}
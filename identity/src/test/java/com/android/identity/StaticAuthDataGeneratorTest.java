@@ -0,0 +1,154 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.core.util.Pair;
+
+import org.junit.Test;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import co.nstant.in.cbor.model.DataItem;
+
+public class StaticAuthDataGeneratorTest {
+    private static final String DOC_TYPE = "org.iso.18013.5.1.mDL";
+    private static final String MDL_NAMESPACE = "org.iso.18013.5.1";
+    private static final String AAMVA_NAMESPACE = "org.aamva.18013.5.1";
+
+    private static KeyPair createKeyPair() throws Exception {
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(new ECGenParameterSpec("secp256r1"));
+        return kpg.generateKeyPair();
+    }
+
+    private static PersonalizationData createPersonalizationData() {
+        Collection<AccessControlProfileId> ids =
+                Arrays.asList(new AccessControlProfileId(0));
+        return new PersonalizationData.Builder()
+                .putEntryString(MDL_NAMESPACE, "given_name", ids, "Erika")
+                .putEntryString(MDL_NAMESPACE, "family_name", ids, "Mustermann")
+                .putEntryBoolean(MDL_NAMESPACE, "age_over_21", ids, true)
+                .putEntryInteger(AAMVA_NAMESPACE, "organ_donor", ids, 1)
+                .build();
+    }
+
+    @Test
+    public void testGenerate() throws Exception {
+        KeyPair issuerKeyPair = createKeyPair();
+        List<PublicKey> authKeys = new ArrayList<>();
+        for (int n = 0; n < 5; n++) {
+            authKeys.add(createKeyPair().getPublic());
+        }
+        PersonalizationData personalizationData = createPersonalizationData();
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<byte[]> staticAuthDatas;
+        try {
+            staticAuthDatas = new StaticAuthDataGenerator.Builder(
+                    issuerKeyPair.getPrivate(),
+                    Arrays.asList(TestUtilities.generateSelfSignedCert(issuerKeyPair)),
+                    DOC_TYPE,
+                    personalizationData)
+                    .setExecutor(executor)
+                    .build()
+                    .generate(authKeys);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(authKeys.size(), staticAuthDatas.size());
+
+        Set<String> randoms = new HashSet<>();
+        for (int n = 0; n < authKeys.size(); n++) {
+            Pair<Map<String, List<byte[]>>, byte[]> decoded =
+                    Utility.decodeStaticAuthData(staticAuthDatas.get(n));
+            DataItem issuerAuth = Util.cborDecode(decoded.second);
+            assertTrue(Util.coseSign1CheckSignature(issuerAuth, null,
+                    issuerKeyPair.getPublic()));
+
+            DataItem mso = Util.cborDecode(
+                    Util.cborExtractTaggedCbor(Util.coseSign1GetData(issuerAuth)));
+            assertEquals(DOC_TYPE, Util.cborMapExtractString(mso, "docType"));
+            PublicKey deviceKey = Util.coseKeyDecode(Util.cborMapExtract(
+                    Util.cborMapExtractMap(mso, "deviceKeyInfo"), "deviceKey"));
+            assertEquals(authKeys.get(n), deviceKey);
+
+            DataItem valueDigests = Util.cborMapExtractMap(mso, "valueDigests");
+            Set<Long> digestIds = new HashSet<>();
+            for (PersonalizationData.NamespaceData nsd :
+                    personalizationData.getNamespaceDatas()) {
+                String ns = nsd.getNamespaceName();
+                List<byte[]> items = decoded.first.get(ns);
+                assertEquals(nsd.getEntryNames().size(), items.size());
+                DataItem nsDigests = Util.cborMapExtractMap(valueDigests, ns);
+                for (byte[] encodedItem : items) {
+                    DataItem item = Util.cborDecode(encodedItem);
+                    String name = Util.cborMapExtractString(item, "elementIdentifier");
+                    long digestId = Util.cborMapExtractNumber(item, "digestID");
+                    digestIds.add(digestId);
+                    randoms.add(Util.toHex(Util.cborMapExtractByteString(item, "random")));
+
+                    byte[] encodedItemWithValue =
+                            Util.issuerSignedItemSetValue(encodedItem, nsd.getEntryValue(name));
+                    assertArrayEquals(encodedItem,
+                            Util.issuerSignedItemClearValue(encodedItemWithValue));
+                    byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+                            Util.cborEncode(Util.cborBuildTaggedByteString(
+                                    encodedItemWithValue)));
+                    assertArrayEquals(digest,
+                            Util.cborMapExtractByteString(nsDigests, digestId));
+                }
+            }
+            assertEquals(4, digestIds.size());
+            for (long digestId : digestIds) {
+                assertTrue(digestId >= 0 && digestId < 4);
+            }
+        }
+        // Every element of every key has its own random value.
+        assertEquals(authKeys.size() * 4, randoms.size());
+    }
+
+    @Test
+    public void testGenerateEmpty() throws Exception {
+        KeyPair issuerKeyPair = createKeyPair();
+        StaticAuthDataGenerator generator = new StaticAuthDataGenerator.Builder(
+                issuerKeyPair.getPrivate(),
+                Arrays.asList(TestUtilities.generateSelfSignedCert(issuerKeyPair)),
+                DOC_TYPE,
+                createPersonalizationData())
+                .build();
+        assertTrue(generator.generate(new ArrayList<>()).isEmpty());
+        assertFalse(generator.generate(Arrays.asList(createKeyPair().getPublic())).isEmpty());
+    }
+}
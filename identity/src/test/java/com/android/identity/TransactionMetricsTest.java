@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import co.nstant.in.cbor.model.Array;
+import co.nstant.in.cbor.model.DataItem;
+
+public class TransactionMetricsTest {
+
+    private static TransactionMetrics.Event event(int phase, String transport, long durationMicros,
+                                                  long numBytes, int numChunks, String errorTag) {
+        return new TransactionMetrics.Event(phase, transport, 0, durationMicros * 1000,
+                numBytes, numChunks, errorTag);
+    }
+
+    @Test
+    public void testSpanReportsToListener() {
+        TransactionMetrics metrics = new TransactionMetrics();
+        List<TransactionMetrics.Event> events = new ArrayList<>();
+        TransactionMetrics.Listener listener = events::add;
+        metrics.addListener(listener, Runnable::run);
+
+        TransactionMetrics.Span span =
+                metrics.startSpan(TransactionMetrics.PHASE_TRANSPORT_SEND, "Transport");
+        span.addBytes(100).addChunk().addChunk();
+        span.end();
+        // Only the first end() counts.
+        span.endWithError("Error");
+
+        assertEquals(1, events.size());
+        TransactionMetrics.Event event = events.get(0);
+        assertEquals(TransactionMetrics.PHASE_TRANSPORT_SEND, event.getPhase());
+        assertEquals("Transport", event.getTransport());
+        assertEquals(100, event.getNumBytes());
+        assertEquals(2, event.getNumChunks());
+        assertNull(event.getErrorTag());
+        assertTrue(event.getDurationNanos() >= 0);
+
+        metrics.removeListener(listener);
+        metrics.startSpan(TransactionMetrics.PHASE_DECRYPT, null).end();
+        assertEquals(1, events.size());
+    }
+
+    @Test
+    public void testHistograms() {
+        TransactionMetrics metrics = new TransactionMetrics();
+        metrics.report(event(TransactionMetrics.PHASE_TRANSPORT_CONNECT, "A", 50, 0, 0, null));
+        metrics.report(event(TransactionMetrics.PHASE_TRANSPORT_CONNECT, "A", 100, 0, 0, null));
+        metrics.report(event(TransactionMetrics.PHASE_TRANSPORT_CONNECT, "A", 3000, 0, 0,
+                "IOException"));
+        metrics.report(event(TransactionMetrics.PHASE_TRANSPORT_CONNECT, "B", 60000000, 0, 0,
+                null));
+        metrics.report(event(TransactionMetrics.PHASE_ENCRYPT, null, 10, 1000, 0, null));
+        metrics.report(event(TransactionMetrics.PHASE_ENCRYPT, null, 20, 2000, 0, null));
+
+        List<TransactionMetrics.Histogram> histograms = metrics.getHistograms();
+        assertEquals(3, histograms.size());
+
+        TransactionMetrics.Histogram a = histograms.get(0);
+        assertEquals(TransactionMetrics.PHASE_TRANSPORT_CONNECT, a.getPhase());
+        assertEquals("A", a.getTransport());
+        assertEquals(3, a.getCount());
+        assertEquals(1, a.getErrorCount());
+        assertEquals(3150000, a.getTotalDurationNanos());
+        assertEquals(3000000, a.getMaxDurationNanos());
+        long[] bounds = a.getBucketBoundsMicros();
+        long[] counts = a.getBucketCounts();
+        assertEquals(bounds.length + 1, counts.length);
+        // 50 and 100 us both go in the first bucket, 3000 us in the one bounded by 5000 us.
+        assertEquals(2, counts[0]);
+        for (int n = 0; n < bounds.length; n++) {
+            if (bounds[n] == 5000) {
+                assertEquals(1, counts[n]);
+            }
+        }
+
+        TransactionMetrics.Histogram b = histograms.get(1);
+        assertEquals("B", b.getTransport());
+        assertEquals(1, b.getBucketCounts()[bounds.length]);
+
+        TransactionMetrics.Histogram encrypt = histograms.get(2);
+        assertNull(encrypt.getTransport());
+        assertEquals(2, encrypt.getCount());
+        assertEquals(3000, encrypt.getTotalBytes());
+
+        metrics.reset();
+        assertEquals(0, metrics.getHistograms().size());
+    }
+
+    @Test
+    public void testExportHistograms() {
+        TransactionMetrics metrics = new TransactionMetrics();
+        metrics.report(event(TransactionMetrics.PHASE_TRANSPORT_SEND, "Ble", 2000, 512, 4, null));
+        metrics.report(event(TransactionMetrics.PHASE_DECRYPT, null, 300, 100, 0, null));
+
+        List<DataItem> exported = Util.castTo(Array.class,
+                Util.cborDecode(metrics.exportHistograms())).getDataItems();
+        assertEquals(2, exported.size());
+        DataItem send = exported.get(0);
+        assertEquals("transportSend", Util.cborMapExtractString(send, "phase"));
+        assertEquals("Ble", Util.cborMapExtractString(send, "transport"));
+        assertEquals(1, Util.cborMapExtractNumber(send, "count"));
+        assertEquals(512, Util.cborMapExtractNumber(send, "bytes"));
+        assertEquals(4, Util.cborMapExtractNumber(send, "chunks"));
+        assertEquals(2000, Util.cborMapExtractNumber(send, "totalMicros"));
+
+        DataItem decrypt = exported.get(1);
+        assertEquals("decrypt", Util.cborMapExtractString(decrypt, "phase"));
+        assertFalse(Util.cborMapHasKey(decrypt, "transport"));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyAgreement;
+
+import co.nstant.in.cbor.model.DataItem;
+
+/**
+ * Benchmarks for the crypto and CBOR helpers in {@link Util} which are on the hot path of
+ * every transaction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    private byte[] mSharedSecret;
+    private byte[] mSalt;
+    private KeyPair mSigningKey;
+    private byte[] mDataToSign;
+    private DataItem mIssuerAuth;
+    private PublicKey mIssuerKey;
+    private DataItem mCoseKey;
+
+    @Setup
+    public void setUp() throws Exception {
+        // The same inputs as used for deriving SKReader from the Annex D keys.
+        KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+        ka.init(BenchmarkFixtures.E_READER_KEY_PRIVATE);
+        ka.doPhase(BenchmarkFixtures.E_DEVICE_KEY_PUBLIC, true);
+        mSharedSecret = ka.generateSecret();
+        mSalt = MessageDigest.getInstance("SHA-256").digest(
+                Util.cborEncode(Util.cborBuildTaggedByteString(
+                        BenchmarkFixtures.SESSION_TRANSCRIPT)));
+
+        KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+        kpg.initialize(new ECGenParameterSpec("secp256r1"));
+        mSigningKey = kpg.generateKeyPair();
+        mDataToSign = BenchmarkFixtures.DEVICE_REQUEST;
+
+        // The MSO signature of the Annex D response.
+        DataItem document = Util.cborMapExtractArray(
+                Util.cborDecode(BenchmarkFixtures.DEVICE_RESPONSE), "documents").get(0);
+        mIssuerAuth = Util.cborMapExtract(
+                Util.cborMapExtractMap(document, "issuerSigned"), "issuerAuth");
+        mIssuerKey = Util.coseSign1GetX5Chain(mIssuerAuth).get(0).getPublicKey();
+
+        mCoseKey = Util.cborBuildCoseKey(BenchmarkFixtures.E_DEVICE_KEY_PUBLIC);
+    }
+
+    @Benchmark
+    public byte[] computeHkdf() {
+        return Util.computeHkdf("HmacSha256", mSharedSecret, mSalt,
+                "SKReader".getBytes(UTF_8), 32);
+    }
+
+    @Benchmark
+    public DataItem coseSign1Sign() {
+        return Util.coseSign1Sign(mSigningKey.getPrivate(), "SHA256withECDSA",
+                mDataToSign, null, null);
+    }
+
+    @Benchmark
+    public boolean coseSign1CheckSignature() {
+        return Util.coseSign1CheckSignature(mIssuerAuth, null, mIssuerKey);
+    }
+
+    @Benchmark
+    public DataItem cborBuildCoseKey() {
+        return Util.cborBuildCoseKey(BenchmarkFixtures.E_DEVICE_KEY_PUBLIC);
+    }
+
+    @Benchmark
+    public PublicKey coseKeyDecode() {
+        return Util.coseKeyDecode(mCoseKey);
+    }
+
+    @Benchmark
+    public int cborGetLength() {
+        return Util.cborGetLength(BenchmarkFixtures.DEVICE_RESPONSE);
+    }
+}
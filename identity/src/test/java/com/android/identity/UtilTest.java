@@ -40,9 +40,11 @@ import java.io.IOException;
 import java.math.BigInteger;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
+import java.security.PublicKey;
 import java.security.Security;
 import java.security.Signature;
 import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECGenParameterSpec;
 import java.util.Arrays;
 import java.util.Calendar;
@@ -620,6 +622,45 @@ public class UtilTest {
                                 BigInteger.valueOf(2)))));
     }
 
+    @Test
+    public void coseKeyRoundTrip() throws Exception {
+        for (String curveName : new String[]{"secp256r1", "secp384r1", "secp521r1"}) {
+            KeyPairGenerator kpg = KeyPairGenerator.getInstance("EC");
+            kpg.initialize(new ECGenParameterSpec(curveName));
+            ECPublicKey key = (ECPublicKey) kpg.generateKeyPair().getPublic();
+            int coordinateSize =
+                    CoseKeyCodec.Curve.fromParameterSpec(key.getParams()).getCoordinateSize();
+
+            DataItem coseKey = Util.cborBuildCoseKey(key);
+            assertEquals(coordinateSize, Util.cborMapExtractByteString(coseKey, -2).length);
+            assertEquals(coordinateSize, Util.cborMapExtractByteString(coseKey, -3).length);
+            PublicKey decodedKey = Util.coseKeyDecode(Util.cborDecode(Util.cborEncode(coseKey)));
+            assertEquals(key.getW(), ((ECPublicKey) decodedKey).getW());
+
+            // With only the sign bit of Y.
+            DataItem compressedCoseKey = CoseKeyCodec.encode(key, true);
+            decodedKey = Util.coseKeyDecode(Util.cborDecode(Util.cborEncode(compressedCoseKey)));
+            assertEquals(key.getW(), ((ECPublicKey) decodedKey).getW());
+        }
+    }
+
+    @Test
+    public void coseKeyDecodeUnsupportedCurve() {
+        DataItem coseKey = new CborBuilder()
+                .addMap()
+                .put(1, 2)
+                .put(-1, 8)
+                .put(-2, new byte[32])
+                .put(-3, new byte[32])
+                .end()
+                .build().get(0);
+        try {
+            Util.coseKeyDecode(coseKey);
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
     @Test
     public void replaceLineTest() {
         assertEquals("foo",
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class VerificationHelperRaceTest {
+
+    // What a FakeTransport does when connect() is called.
+    private enum Behavior {
+        PENDING,
+        CONNECT,
+        FAIL,
+        THROW,
+        DISCONNECT,
+    }
+
+    private static class FakeTransport extends DataTransport {
+        final Behavior mBehavior;
+        boolean mConnectCalled;
+        boolean mClosed;
+
+        FakeTransport(Behavior behavior) {
+            super(null, DataTransport.ROLE_MDOC_READER, new DataTransportOptions.Builder().build());
+            mBehavior = behavior;
+        }
+
+        @Override
+        void setEDeviceKeyBytes(@NonNull byte[] encodedEDeviceKeyBytes) {
+        }
+
+        @Override
+        void connect() {
+            mConnectCalled = true;
+            switch (mBehavior) {
+                case PENDING:
+                    break;
+                case CONNECT:
+                    reportConnected();
+                    break;
+                case FAIL:
+                    reportError(new IllegalStateException("Failed"));
+                    break;
+                case THROW:
+                    throw new IllegalStateException("Thrown");
+                case DISCONNECT:
+                    reportDisconnected();
+                    break;
+            }
+        }
+
+        @Override
+        void close() {
+            mClosed = true;
+        }
+
+        @Override
+        void sendMessage(@NonNull byte[] data) {
+        }
+
+        @Override
+        void sendTransportSpecificTerminationMessage() {
+        }
+
+        @Override
+        boolean supportsTransportSpecificTerminationMessage() {
+            return false;
+        }
+
+        @Override
+        public @NonNull ConnectionMethod getConnectionMethod() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class RecordingListener implements VerificationHelper.Listener {
+        int mNumConnected;
+        int mNumDisconnected;
+        List<Throwable> mErrors = new ArrayList<>();
+
+        @Override
+        public void onReaderEngagementReady(@NonNull byte[] readerEngagement) {
+        }
+
+        @Override
+        public void onDeviceEngagementReceived(@NonNull List<ConnectionMethod> connectionMethods) {
+        }
+
+        @Override
+        public void onMoveIntoNfcField() {
+        }
+
+        @Override
+        public void onDeviceConnected() {
+            mNumConnected++;
+        }
+
+        @Override
+        public void onDeviceDisconnected(boolean transportSpecificTermination) {
+            mNumDisconnected++;
+        }
+
+        @Override
+        public void onResponseReceived(@NonNull byte[] deviceResponseBytes) {
+        }
+
+        @Override
+        public void onError(@NonNull Throwable error) {
+            mErrors.add(error);
+        }
+    }
+
+    // Listener callbacks run on the calling thread, so transports can connect or fail while
+    // the race is still starting them.
+    private static VerificationHelper createHelper(RecordingListener listener) {
+        VerificationHelper helper = new VerificationHelper();
+        helper.mListener = listener;
+        helper.mListenerExecutor = Runnable::run;
+        helper.mMetrics = new TransactionMetrics();
+        return helper;
+    }
+
+    @Test
+    public void testFirstSuccessWins() {
+        RecordingListener listener = new RecordingListener();
+        VerificationHelper helper = createHelper(listener);
+        FakeTransport pending = new FakeTransport(Behavior.PENDING);
+        FakeTransport winner = new FakeTransport(Behavior.CONNECT);
+        FakeTransport notStarted = new FakeTransport(Behavior.CONNECT);
+
+        helper.raceTransports(Arrays.asList(pending, winner, notStarted), new byte[0]);
+
+        assertEquals(1, listener.mNumConnected);
+        assertTrue(listener.mErrors.isEmpty());
+        assertSame(winner, helper.mDataTransport);
+        assertFalse(winner.mClosed);
+        assertTrue(pending.mClosed);
+        // The race was over before this one got its turn.
+        assertFalse(notStarted.mConnectCalled);
+        assertTrue(notStarted.mClosed);
+
+        // Callbacks from a loser are ignored.
+        pending.reportConnected();
+        assertEquals(1, listener.mNumConnected);
+    }
+
+    @Test
+    public void testAllFailReportsOneError() {
+        RecordingListener listener = new RecordingListener();
+        VerificationHelper helper = createHelper(listener);
+        List<DataTransport> transports = Arrays.asList(
+                new FakeTransport(Behavior.FAIL),
+                new FakeTransport(Behavior.THROW),
+                new FakeTransport(Behavior.FAIL));
+
+        helper.raceTransports(transports, new byte[0]);
+
+        assertEquals(0, listener.mNumConnected);
+        assertEquals(1, listener.mErrors.size());
+        for (DataTransport transport : transports) {
+            assertTrue(((FakeTransport) transport).mClosed);
+        }
+    }
+
+    @Test
+    public void testLoserDisconnects() {
+        RecordingListener listener = new RecordingListener();
+        VerificationHelper helper = createHelper(listener);
+        FakeTransport disconnecting = new FakeTransport(Behavior.DISCONNECT);
+        FakeTransport failing = new FakeTransport(Behavior.FAIL);
+
+        helper.raceTransports(Arrays.asList(disconnecting, failing), new byte[0]);
+
+        // The disconnect counts as a failure, so the race ends with an error instead of
+        // waiting forever for the disconnected transport.
+        assertTrue(disconnecting.mClosed);
+        assertEquals(0, listener.mNumDisconnected);
+        assertEquals(1, listener.mErrors.size());
+    }
+
+    @Test
+    public void testLoserDisconnectsThenOtherConnects() {
+        RecordingListener listener = new RecordingListener();
+        VerificationHelper helper = createHelper(listener);
+        FakeTransport disconnecting = new FakeTransport(Behavior.DISCONNECT);
+        FakeTransport pending = new FakeTransport(Behavior.PENDING);
+
+        helper.raceTransports(Arrays.asList(disconnecting, pending), new byte[0]);
+        assertTrue(listener.mErrors.isEmpty());
+
+        pending.reportConnected();
+        assertEquals(1, listener.mNumConnected);
+        assertSame(pending, helper.mDataTransport);
+
+        // Once connected, a disconnect is reported as such.
+        pending.reportDisconnected();
+        assertEquals(1, listener.mNumDisconnected);
+        assertTrue(listener.mErrors.isEmpty());
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.identity.wwwreader;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Provider;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECPublicKeySpec;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Picks the fastest available provider for each {@link CryptoProvider.Operation} by timing
+ * the operations done in a typical transaction with each candidate provider.
+ *
+ * <p>This is meant to be run once at startup, for example:
+ *
+ * <pre>
+ *     CryptoProvider.setDefault(new CryptoProviderSelector().select());
+ * </pre>
+ *
+ * <p>Providers which aren't available or don't support an operation are skipped. If no
+ * candidate supports an operation the highest priority provider is used for it.
+ */
+public final class CryptoProviderSelector {
+
+    /**
+     * The providers considered by default. SunJCE and SUN are the JDK providers for MACs,
+     * ciphers and message digests which SunEC doesn't implement.
+     */
+    public static final List<String> DEFAULT_CANDIDATES = Collections.unmodifiableList(
+            Arrays.asList(CryptoProvider.SUN_EC, "SunJCE", "SUN",
+                    CryptoProvider.BOUNCY_CASTLE, CryptoProvider.CONSCRYPT));
+
+    /** The number of times each operation is run before timing it, by default. */
+    public static final int DEFAULT_WARMUP_ITERATIONS = 20;
+
+    /** The number of times each operation is timed, by default. */
+    public static final int DEFAULT_ITERATIONS = 50;
+
+    private static final byte[] DATA = new byte[1024];
+    private static final byte[] KEY = new byte[32];
+    private static final byte[] IV = new byte[12];
+
+    private final List<String> mCandidates;
+    private final int mWarmupIterations;
+    private final int mIterations;
+    private final EnumMap<CryptoProvider.Operation, Map<String, Long>> mNanosPerOperation =
+            new EnumMap<>(CryptoProvider.Operation.class);
+
+    // Inputs shared by all providers.
+    private KeyPair mKeyPair;
+    private KeyPair mPeerKeyPair;
+    private byte[] mSignature;
+    private byte[] mCiphertext;
+
+    /**
+     * Creates a selector considering {@link #DEFAULT_CANDIDATES}.
+     */
+    public CryptoProviderSelector() {
+        this(DEFAULT_CANDIDATES, DEFAULT_WARMUP_ITERATIONS, DEFAULT_ITERATIONS);
+    }
+
+    /**
+     * Creates a selector.
+     *
+     * @param candidates the names of the providers to consider, see
+     *                   {@link CryptoProvider#findProvider(String)}.
+     * @param warmupIterations the number of times to run each operation before timing it.
+     * @param iterations the number of times to time each operation.
+     */
+    public CryptoProviderSelector(List<String> candidates, int warmupIterations,
+            int iterations) {
+        if (warmupIterations < 0 || iterations <= 0) {
+            throw new IllegalArgumentException("Invalid number of iterations");
+        }
+        mCandidates = candidates;
+        mWarmupIterations = warmupIterations;
+        mIterations = iterations;
+    }
+
+    /**
+     * Times every operation with every candidate and builds a {@link CryptoProvider} using
+     * the fastest provider for each operation.
+     *
+     * @return the new {@link CryptoProvider}.
+     */
+    public CryptoProvider select() {
+        setUpInputs();
+        CryptoProvider.Builder builder = new CryptoProvider.Builder();
+        for (CryptoProvider.Operation operation : CryptoProvider.Operation.values()) {
+            Map<String, Long> timings = new LinkedHashMap<>();
+            mNanosPerOperation.put(operation, timings);
+            Provider fastest = null;
+            long fastestNanos = Long.MAX_VALUE;
+            for (String name : mCandidates) {
+                Provider provider = CryptoProvider.findProvider(name);
+                if (provider == null) {
+                    continue;
+                }
+                long nanos;
+                try {
+                    nanos = time(operation, provider);
+                } catch (GeneralSecurityException | RuntimeException e) {
+                    // Not supported by this provider.
+                    continue;
+                }
+                timings.put(name, nanos);
+                if (nanos < fastestNanos) {
+                    fastest = provider;
+                    fastestNanos = nanos;
+                }
+            }
+            builder.setProvider(operation, fastest);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets the average time an operation took with each provider which supports it, as
+     * measured by the last call to {@link #select()}.
+     *
+     * @param operation the operation.
+     * @return a map from provider name to nanoseconds per operation, empty if not measured.
+     */
+    public Map<String, Long> getNanosPerOperation(CryptoProvider.Operation operation) {
+        Map<String, Long> timings = mNanosPerOperation.get(operation);
+        return (timings == null)
+                ? Collections.emptyMap()
+                : Collections.unmodifiableMap(timings);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<CryptoProvider.Operation, Map<String, Long>> entry
+                : mNanosPerOperation.entrySet()) {
+            sb.append(entry.getKey());
+            for (Map.Entry<String, Long> timing : entry.getValue().entrySet()) {
+                sb.append(String.format(Locale.US, " %s=%.1fus", timing.getKey(),
+                        timing.getValue() / 1000.0));
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void setUpInputs() {
+        if (mKeyPair != null) {
+            return;
+        }
+        mKeyPair = Util.createEphemeralKeyPair();
+        mPeerKeyPair = Util.createEphemeralKeyPair();
+        try {
+            Signature signature = Signature.getInstance("SHA256withECDSA");
+            signature.initSign(mKeyPair.getPrivate());
+            signature.update(DATA);
+            mSignature = signature.sign();
+
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(KEY, "AES"),
+                    new GCMParameterSpec(128, IV));
+            mCiphertext = cipher.doFinal(DATA);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Error setting up inputs", e);
+        }
+    }
+
+    // Returns the average number of nanoseconds per operation.
+    private long time(CryptoProvider.Operation operation, Provider provider)
+            throws GeneralSecurityException {
+        CryptoProvider cryptoProvider = new CryptoProvider.Builder()
+                .setProvider(operation, provider)
+                .build();
+        for (int n = 0; n < mWarmupIterations; n++) {
+            runOnce(operation, cryptoProvider);
+        }
+        long start = System.nanoTime();
+        for (int n = 0; n < mIterations; n++) {
+            runOnce(operation, cryptoProvider);
+        }
+        return (System.nanoTime() - start) / mIterations;
+    }
+
+    private void runOnce(CryptoProvider.Operation operation, CryptoProvider cryptoProvider)
+            throws GeneralSecurityException {
+        switch (operation) {
+            case SIGNATURE:
+                Signature signature = cryptoProvider.getSignature("SHA256withECDSA");
+                signature.initVerify(mKeyPair.getPublic());
+                signature.update(DATA);
+                if (!signature.verify(mSignature)) {
+                    throw new GeneralSecurityException("Signature didn't verify");
+                }
+                break;
+            case KEY_AGREEMENT:
+                KeyAgreement keyAgreement = cryptoProvider.getKeyAgreement("ECDH");
+                keyAgreement.init(mKeyPair.getPrivate());
+                keyAgreement.doPhase(mPeerKeyPair.getPublic(), true);
+                keyAgreement.generateSecret();
+                break;
+            case MAC:
+                Mac mac = cryptoProvider.getMac("HmacSHA256");
+                mac.init(new SecretKeySpec(KEY, "HmacSHA256"));
+                mac.doFinal("SKReader".getBytes(UTF_8));
+                break;
+            case CIPHER:
+                // Decrypting, since encrypting again with the same IV isn't allowed.
+                Cipher cipher = cryptoProvider.getCipher("AES/GCM/NoPadding");
+                cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(KEY, "AES"),
+                        new GCMParameterSpec(128, IV));
+                cipher.doFinal(mCiphertext);
+                break;
+            case MESSAGE_DIGEST:
+                cryptoProvider.getMessageDigest("SHA-256").digest(DATA);
+                break;
+            case KEY_FACTORY:
+                ECPublicKey publicKey = (ECPublicKey) mKeyPair.getPublic();
+                cryptoProvider.getKeyFactory("EC").generatePublic(
+                        new ECPublicKeySpec(publicKey.getW(), publicKey.getParams()));
+                break;
+        }
+    }
+}
@@ -203,7 +203,7 @@ public final class DeviceResponseParser {
  
            MessageDigest digester;
            try {
-               digester = MessageDigest.getInstance("SHA-256");
+               digester = CryptoProvider.getDefault().getMessageDigest("SHA-256");
            } catch (NoSuchAlgorithmException e) {
                throw new IllegalStateException("Failed creating digester");
            }
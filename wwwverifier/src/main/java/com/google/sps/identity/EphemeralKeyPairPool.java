@@ -0,0 +1,222 @@
+/*
+* Copyright 2022 The Android Open Source Project
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*      http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+ 
+package com.android.identity.wwwreader;
+ 
+//import androidx.annotation.NonNull;
+
+import java.security.KeyPair;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of pre-generated P-256 key-pairs for use as ephemeral session keys.
+ *
+ * <p>Generating an EC key-pair takes long enough to be noticeable when a reader session is
+ * set up, so this class generates them ahead of time on a background executor and keeps up
+ * to a configurable number of them around. Whenever a key-pair is taken out, the pool is
+ * topped up again in the background. If the pool is empty a key-pair is generated on the
+ * calling thread.
+ *
+ * <p>Each key-pair is handed out at most once. The pool drops its reference to a key-pair
+ * when it's taken, so an ephemeral key can never be reused across sessions.
+ *
+ * <p>This class is thread-safe.
+ */
+public final class EphemeralKeyPairPool {
+    private static final String TAG = "EphemeralKeyPairPool";
+
+    /** The number of key-pairs kept by {@link #getDefault()}. */
+    public static final int DEFAULT_DEPTH = 2;
+
+    private static EphemeralKeyPairPool sDefault;
+
+    private final int mDepth;
+    private final Executor mRefillExecutor;
+    private final ConcurrentLinkedQueue<KeyPair> mKeyPairs = new ConcurrentLinkedQueue<>();
+    // The size of mKeyPairs, kept separately since ConcurrentLinkedQueue.size() is O(n).
+    private final AtomicInteger mNumKeyPairs = new AtomicInteger();
+    private final AtomicBoolean mRefillScheduled = new AtomicBoolean();
+
+    private final AtomicLong mNumHits = new AtomicLong();
+    private final AtomicLong mNumMisses = new AtomicLong();
+    private final AtomicLong mNumGenerated = new AtomicLong();
+
+    /**
+     * Creates a new pool.
+     *
+     * <p>The pool starts out empty, use {@link #prefill()} to start generating key-pairs
+     * before the first one is needed.
+     *
+     * @param depth the maximum number of key-pairs to keep. If 0, key-pairs are always
+     *              generated on the calling thread.
+     * @param refillExecutor the executor used for generating key-pairs in the background.
+     */
+    public EphemeralKeyPairPool(int depth, Executor refillExecutor) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("Depth must be non-negative");
+        }
+        mDepth = depth;
+        mRefillExecutor = refillExecutor;
+    }
+
+    /**
+     * Gets the shared pool.
+     *
+     * <p>Unless replaced with {@link #setDefault(EphemeralKeyPairPool)}, this keeps
+     * {@link #DEFAULT_DEPTH} key-pairs and refills from a single background thread.
+     *
+     * @return the default pool.
+     */
+    public static synchronized EphemeralKeyPairPool getDefault() {
+        if (sDefault == null) {
+            ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            });
+            sDefault = new EphemeralKeyPairPool(DEFAULT_DEPTH, executor);
+        }
+        return sDefault;
+    }
+
+    /**
+     * Replaces the shared pool.
+     *
+     * @param pool the pool to use.
+     */
+    public static synchronized void setDefault(EphemeralKeyPairPool pool) {
+        sDefault = pool;
+    }
+
+    /**
+     * Starts filling up the pool in the background.
+     *
+     * <p>Applications may call this when they expect to need an ephemeral key soon, for
+     * example when the server starts.
+     */
+    public void prefill() {
+        scheduleRefill();
+    }
+
+    /**
+     * Takes a key-pair out of the pool.
+     *
+     * <p>If the pool is empty a new key-pair is generated on the calling thread. In either
+     * case, the pool is refilled in the background. The returned key-pair is never returned
+     * again.
+     *
+     * @return a newly generated P-256 key-pair.
+     */
+    public KeyPair take() {
+        KeyPair keyPair = mKeyPairs.poll();
+        if (keyPair != null) {
+            mNumKeyPairs.decrementAndGet();
+            mNumHits.incrementAndGet();
+        } else {
+            mNumMisses.incrementAndGet();
+            keyPair = generate();
+        }
+        scheduleRefill();
+        return keyPair;
+    }
+
+    /**
+     * Removes all key-pairs currently in the pool.
+     */
+    public void clear() {
+        while (mKeyPairs.poll() != null) {
+            mNumKeyPairs.decrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the number of key-pairs currently in the pool.
+     *
+     * @return the number of key-pairs ready to be taken.
+     */
+    public int getAvailableCount() {
+        return mNumKeyPairs.get();
+    }
+
+    /**
+     * Gets the number of times {@link #take()} returned a pre-generated key-pair.
+     *
+     * @return the number of hits.
+     */
+    public long getHitCount() {
+        return mNumHits.get();
+    }
+
+    /**
+     * Gets the number of times {@link #take()} had to generate a key-pair on the calling
+     * thread because the pool was empty.
+     *
+     * @return the number of misses.
+     */
+    public long getMissCount() {
+        return mNumMisses.get();
+    }
+
+    /**
+     * Gets the number of key-pairs generated in the background.
+     *
+     * @return the number of key-pairs generated for the pool.
+     */
+    public long getGeneratedCount() {
+        return mNumGenerated.get();
+    }
+
+    private static KeyPair generate() {
+        return Util.createEphemeralKeyPair();
+    }
+
+    private void scheduleRefill() {
+        if (mNumKeyPairs.get() >= mDepth || !mRefillScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            mRefillExecutor.execute(this::refill);
+        } catch (RejectedExecutionException e) {
+            mRefillScheduled.set(false);
+            //Log.w(TAG, "Error scheduling refill", e);
+        }
+    }
+
+    private void refill() {
+        try {
+            while (mNumKeyPairs.get() < mDepth) {
+                mKeyPairs.add(generate());
+                mNumKeyPairs.incrementAndGet();
+                mNumGenerated.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            mRefillScheduled.set(false);
+            //Log.w(TAG, "Error generating ephemeral key-pair", e);
+            return;
+        }
+        mRefillScheduled.set(false);
+        // A key-pair may have been taken after the loop ended but before the flag was
+        // cleared, in which case that take() didn't schedule a refill.
+        scheduleRefill();
+    }
+}
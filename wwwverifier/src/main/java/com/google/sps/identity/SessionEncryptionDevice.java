@@ -28,7 +28,6 @@ import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -87,14 +86,15 @@ public final class SessionEncryptionDevice {
         mEReaderKeyPub = eReaderKeyPublic;
 
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            KeyAgreement ka = CryptoProvider.getDefault().getKeyAgreement("ECDH");
             ka.init(mEDeviceKeyPrivate);
             ka.doPhase(mEReaderKeyPub, true);
             byte[] sharedSecret = ka.generateSecret();
 
             byte[] sessionTranscriptBytes = Util.cborEncode(
                     Util.cborBuildTaggedByteString(encodedSessionTranscript));
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoProvider.getDefault().getMessageDigest("SHA-256")
+                    .digest(sessionTranscriptBytes);
 
             byte[] info = "SKDevice".getBytes(UTF_8);
             byte[] derivedKey = Util.computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
@@ -131,7 +131,7 @@ public final class SessionEncryptionDevice {
                 iv.putInt(0, 0x00000000);
                 iv.putInt(4, 0x00000001);
                 iv.putInt(8, mSKDeviceCounter);
-                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                Cipher cipher = CryptoProvider.getDefault().getCipher("AES/GCM/NoPadding");
                 GCMParameterSpec encryptionParameterSpec = new GCMParameterSpec(128, iv.array());
                 cipher.init(Cipher.ENCRYPT_MODE, mSKDevice, encryptionParameterSpec);
                 messageCiphertextAndAuthTag = cipher.doFinal(messagePlaintext);
@@ -210,7 +210,7 @@ public final class SessionEncryptionDevice {
             iv.putInt(4, 0x00000000);
             iv.putInt(8, mSKReaderCounter);
             try {
-                final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                final Cipher cipher = CryptoProvider.getDefault().getCipher("AES/GCM/NoPadding");
                 cipher.init(Cipher.DECRYPT_MODE, mSKReader, new GCMParameterSpec(128,
                         iv.array()));
                 plainText = cipher.doFinal(messageCiphertext);
@@ -27,7 +27,6 @@ import java.io.ByteArrayInputStream;
 import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
@@ -92,14 +91,15 @@ public final class SessionEncryptionReader {
         mEDeviceKeyPublic = eDeviceKeyPublic;
 
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            KeyAgreement ka = CryptoProvider.getDefault().getKeyAgreement("ECDH");
             ka.init(mEReaderKeyPrivate);
             ka.doPhase(mEDeviceKeyPublic, true);
             byte[] sharedSecret = ka.generateSecret();
 
             byte[] sessionTranscriptBytes = Util.cborEncode(
                     Util.cborBuildTaggedByteString(encodedSessionTranscript));
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoProvider.getDefault().getMessageDigest("SHA-256")
+                    .digest(sessionTranscriptBytes);
 
             byte[] info = "SKDevice".getBytes(UTF_8);
             byte[] derivedKey = Util.computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
@@ -153,7 +153,7 @@ public final class SessionEncryptionReader {
                 iv.putInt(0, 0x00000000);
                 iv.putInt(4, 0x00000000);
                 iv.putInt(8, mSKReaderCounter);
-                Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                Cipher cipher = CryptoProvider.getDefault().getCipher("AES/GCM/NoPadding");
                 GCMParameterSpec encryptionParameterSpec = new GCMParameterSpec(128, iv.array());
                 cipher.init(Cipher.ENCRYPT_MODE, mSKReader, encryptionParameterSpec);
                 messageCiphertext = cipher.doFinal(messagePlaintext); // This includes the auth tag
@@ -248,7 +248,7 @@ public final class SessionEncryptionReader {
             iv.putInt(4, 0x00000001);
             iv.putInt(8, mSKDeviceCounter);
             try {
-                final Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+                final Cipher cipher = CryptoProvider.getDefault().getCipher("AES/GCM/NoPadding");
                 cipher.init(Cipher.DECRYPT_MODE, mSKDevice, new GCMParameterSpec(128, iv.array()));
                 plainText = cipher.doFinal(messageCiphertext);
             } catch (BadPaddingException
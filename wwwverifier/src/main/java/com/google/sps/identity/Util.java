@@ -31,7 +31,6 @@ import org.bouncycastle.asn1.ASN1OctetString;
 import org.bouncycastle.asn1.ASN1Primitive;
 import org.bouncycastle.asn1.ASN1Sequence;
 import org.bouncycastle.asn1.DERSequenceGenerator;
-import org.bouncycastle.util.BigIntegers;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -39,15 +38,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.security.AlgorithmParameters;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.KeyFactory;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
@@ -61,12 +57,7 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.interfaces.ECPublicKey;
 import java.security.spec.ECGenParameterSpec;
-import java.security.spec.ECParameterSpec;
 import java.security.spec.ECPoint;
-import java.security.spec.ECPrivateKeySpec;
-import java.security.spec.ECPublicKeySpec;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.InvalidParameterSpecException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.ParseException;
@@ -119,12 +110,6 @@ public class Util {
     private static final long COSE_ALG_ECDSA_512 = -36;
     private static final long COSE_ALG_HMAC_256_256 = 5;
     private static final long CBOR_SEMANTIC_TAG_ENCODED_CBOR = 24;
-    private static final long COSE_KEY_KTY = 1;
-    private static final long COSE_KEY_TYPE_EC2 = 2;
-    private static final long COSE_KEY_EC2_CRV = -1;
-    private static final long COSE_KEY_EC2_X = -2;
-    private static final long COSE_KEY_EC2_Y = -3;
-    private static final long COSE_KEY_EC2_CRV_P256 = 1;
 
     // Not called.
     private Util() {
@@ -425,7 +410,7 @@ public class Util {
               final byte[] info, int size) {
         Mac mac = null;
         try {
-            mac = Mac.getInstance(macAlgorithm);
+            mac = CryptoProvider.getDefault().getMac(macAlgorithm);
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalStateException("No such algorithm: " + macAlgorithm, e);
         }
@@ -579,12 +564,18 @@ public class Util {
                 detachedContent);
 
         try {
-            // Use BouncyCastle provider for verification since it supports a lot more curves than
-            // the default provider, including the brainpool curves
+            // CryptoProvider uses BouncyCastle for verification by default since it supports a
+            // lot more curves than the default provider, including the brainpool curves. If
+            // another provider was picked for speed, fall back to BouncyCastle for such curves.
             //
-            Signature verifier = Signature.getInstance(signature,
-                    new org.bouncycastle.jce.provider.BouncyCastleProvider());
-            verifier.initVerify(publicKey);
+            Signature verifier = CryptoProvider.getDefault().getSignature(signature);
+            try {
+                verifier.initVerify(publicKey);
+            } catch (InvalidKeyException e) {
+                verifier = Signature.getInstance(signature,
+                        CryptoProvider.findProvider(CryptoProvider.BOUNCY_CASTLE));
+                verifier.initVerify(publicKey);
+            }
             verifier.update(toBeSigned);
             return verifier.verify(derSignature);
         } catch (SignatureException | NoSuchAlgorithmException | InvalidKeyException e) {
@@ -637,7 +628,7 @@ public class Util {
 
         byte[] mac;
         try {
-            Mac m = Mac.getInstance("HmacSHA256");
+            Mac m = CryptoProvider.getDefault().getMac("HmacSHA256");
             m.init(key);
             m.update(toBeMACed);
             mac = m.doFinal();
@@ -820,28 +811,9 @@ public class Util {
         return ret;
     }
 
-    /* Encodes an integer according to Section 2.3.5 Field-Element-to-Octet-String Conversion
-     * of SEC 1: Elliptic Curve Cryptography (https://www.secg.org/sec1-v2.pdf).
-     */
-    static byte[] sec1EncodeFieldElementAsOctetString(int octetStringSize, BigInteger fieldValue) {
-        return BigIntegers.asUnsignedByteArray(octetStringSize, fieldValue);
-    }
-
     public static  
     DataItem cborBuildCoseKey(PublicKey key) {
-        ECPublicKey ecKey = (ECPublicKey) key;
-        ECPoint w = ecKey.getW();
-        byte[] x = sec1EncodeFieldElementAsOctetString(32, w.getAffineX());
-        byte[] y = sec1EncodeFieldElementAsOctetString(32, w.getAffineY());
-        DataItem item = new CborBuilder()
-                .addMap()
-                .put(COSE_KEY_KTY, COSE_KEY_TYPE_EC2)
-                .put(COSE_KEY_EC2_CRV, COSE_KEY_EC2_CRV_P256)
-                .put(COSE_KEY_EC2_X, x)
-                .put(COSE_KEY_EC2_Y, y)
-                .end()
-                .build().get(0);
-        return item;
+        return CoseKeyCodec.encode(key, false);
     }
 
     static boolean cborMapHasKey(  DataItem map,   String key) {
@@ -962,36 +934,7 @@ public class Util {
 
     public static  
     PublicKey coseKeyDecode(  DataItem coseKey) {
-        long kty = cborMapExtractNumber(coseKey, COSE_KEY_KTY);
-        if (kty != COSE_KEY_TYPE_EC2) {
-            throw new IllegalArgumentException("Expected COSE_KEY_TYPE_EC2, got " + kty);
-        }
-        long crv = cborMapExtractNumber(coseKey, COSE_KEY_EC2_CRV);
-        if (crv != COSE_KEY_EC2_CRV_P256) {
-            throw new IllegalArgumentException("Expected COSE_KEY_EC2_CRV_P256, got " + crv);
-        }
-        byte[] encodedX = cborMapExtractByteString(coseKey, COSE_KEY_EC2_X);
-        byte[] encodedY = cborMapExtractByteString(coseKey, COSE_KEY_EC2_Y);
-
-        BigInteger x = new BigInteger(1, encodedX);
-        BigInteger y = new BigInteger(1, encodedY);
-
-        try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("secp256r1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
-
-            ECPoint ecPoint = new ECPoint(x, y);
-            ECPublicKeySpec keySpec = new ECPublicKeySpec(ecPoint, ecParameters);
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            ECPublicKey ecPublicKey = (ECPublicKey) kf.generatePublic(keySpec);
-            return ecPublicKey;
-
-        } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
-                | InvalidKeySpecException e) {
-            throw new IllegalStateException("Unexpected error", e);
-        }
+        return CoseKeyCodec.decode(coseKey);
     }
 
     static  
@@ -1000,7 +943,7 @@ public class Util {
               PrivateKey ephemeralReaderPrivateKey,
               byte[] encodedSessionTranscript) {
         try {
-            KeyAgreement ka = KeyAgreement.getInstance("ECDH");
+            KeyAgreement ka = CryptoProvider.getDefault().getKeyAgreement("ECDH");
             ka.init(ephemeralReaderPrivateKey);
             ka.doPhase(authenticationPublicKey, true);
             byte[] sharedSecret = ka.generateSecret();
@@ -1008,7 +951,8 @@ public class Util {
             byte[] sessionTranscriptBytes =
                     Util.cborEncode(Util.cborBuildTaggedByteString(encodedSessionTranscript));
 
-            byte[] salt = MessageDigest.getInstance("SHA-256").digest(sessionTranscriptBytes);
+            byte[] salt = CryptoProvider.getDefault().getMessageDigest("SHA-256")
+                    .digest(sessionTranscriptBytes);
             byte[] info = new byte[]{'E', 'M', 'a', 'c', 'K', 'e', 'y'};
             byte[] derivedKey = computeHkdf("HmacSha256", sharedSecret, salt, info, 32);
 
@@ -1383,40 +1327,13 @@ public class Util {
 
     public static  
     PrivateKey getPrivateKeyFromInteger(  BigInteger s) {
-        try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("secp256r1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
-
-            ECPrivateKeySpec privateKeySpec = new ECPrivateKeySpec(s, ecParameters);
-            KeyFactory keyFactory = KeyFactory.getInstance("EC");
-            return keyFactory.generatePrivate(privateKeySpec);
-
-        } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
-                | InvalidKeySpecException e) {
-            throw new IllegalStateException(e);
-        }
+        return CoseKeyCodec.privateKeyFromScalar(CoseKeyCodec.Curve.P256, s);
     }
 
     public static  
     PublicKey getPublicKeyFromIntegers(  BigInteger x,
               BigInteger y) {
-        try {
-            AlgorithmParameters params = AlgorithmParameters.getInstance("EC");
-            params.init(new ECGenParameterSpec("secp256r1"));
-            ECParameterSpec ecParameters = params.getParameterSpec(ECParameterSpec.class);
-
-            ECPoint ecPoint = new ECPoint(x, y);
-            ECPublicKeySpec keySpec = new ECPublicKeySpec(ecPoint, ecParameters);
-            KeyFactory kf = KeyFactory.getInstance("EC");
-            ECPublicKey ecPublicKey = (ECPublicKey) kf.generatePublic(keySpec);
-            return ecPublicKey;
-        } catch (NoSuchAlgorithmException
-                | InvalidParameterSpecException
-                | InvalidKeySpecException e) {
-            throw new IllegalStateException("Unexpected error", e);
-        }
+        return CoseKeyCodec.publicKeyFromAffine(CoseKeyCodec.Curve.P256, x, y);
     }
 
     // Returns null on End Of Stream.
@@ -1700,7 +1617,7 @@ public class Util {
             keySize = 48;
             alg = COSE_ALG_ECDSA_384;
         } else if (s.getAlgorithm().equals("SHA512withECDSA")) {
-            keySize = 64;
+            keySize = 66;
             alg = COSE_ALG_ECDSA_512;
         } else {
             throw new IllegalArgumentException("Unsupported algorithm " + s.getAlgorithm());
@@ -1765,7 +1682,7 @@ public class Util {
     static
     DataItem coseSign1Sign(PrivateKey key, String algorithm, byte[] data, byte[] additionalData, Collection<X509Certificate> certificateChain) {
         try {
-            Signature s = Signature.getInstance(algorithm);
+            Signature s = CryptoProvider.getDefault().getSignature(algorithm);
             s.initSign(key);
             return coseSign1Sign(s, data, additionalData, certificateChain);
         } catch (NoSuchAlgorithmException | InvalidKeyException e) {
@@ -1787,22 +1704,9 @@ public class Util {
         BigInteger r = castTo(ASN1Integer.class, asn1Encodables[0].toASN1Primitive()).getValue();
         BigInteger s = castTo(ASN1Integer.class, asn1Encodables[1].toASN1Primitive()).getValue();
 
-        byte[] rBytes = stripLeadingZeroes(r.toByteArray());
-        byte[] sBytes = stripLeadingZeroes(s.toByteArray());
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try {
-            for (int n = 0; n < keySize - rBytes.length; n++) {
-                baos.write(0x00);
-            }
-            baos.write(rBytes);
-            for (int n = 0; n < keySize - sBytes.length; n++) {
-                baos.write(0x00);
-            }
-            baos.write(sBytes);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return null;
-        }
-        return baos.toByteArray();
+        byte[] coseSignature = new byte[2 * keySize];
+        CoseKeyCodec.encodeFieldElement(r, coseSignature, 0, keySize);
+        CoseKeyCodec.encodeFieldElement(s, coseSignature, keySize, keySize);
+        return coseSignature;
     }
 }
\ No newline at end of file
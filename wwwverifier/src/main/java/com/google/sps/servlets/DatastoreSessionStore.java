@@ -0,0 +1,45 @@
+package com.android.identity.wwwreader;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import java.util.Collection;
+
+/**
+ * {@link SessionStore} backed by Cloud Datastore. Session state is shared between all
+ * instances of the website.
+ */
+public class DatastoreSessionStore implements SessionStore {
+    private final DatastoreService ds;
+
+    /**
+     * @param ds Datastore service to store sessions in
+     */
+    public DatastoreSessionStore(DatastoreService ds) {
+        this.ds = ds;
+    }
+
+    @Override
+    public Key allocateKey() {
+        return ds.allocateIds(ServletConsts.ENTITY_TYPE, 1).getStart();
+    }
+
+    @Override
+    public Entity get(Key key) {
+        try {
+            return ds.get(key);
+        } catch (EntityNotFoundException e) {
+            throw new IllegalStateException("Entity could not be found in database", e);
+        }
+    }
+
+    @Override
+    public void put(Collection<Entity> entities) {
+        if (entities.size() == 1) {
+            ds.put(entities.iterator().next());
+        } else if (!entities.isEmpty()) {
+            ds.put(entities);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.android.identity.wwwreader;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link SessionStore} keeping sessions in memory, for deployments running on a single
+ * instance. Sessions expire a fixed time after they were last written.
+ */
+public class InMemorySessionStore implements SessionStore {
+    private final long ttlMillis;
+    private final Map<Key, StoredEntity> entities = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private volatile long nextSweepMillis = 0;
+
+    private static class StoredEntity {
+        final Entity entity;
+        final long expiresAtMillis;
+
+        StoredEntity(Entity entity, long expiresAtMillis) {
+            this.entity = entity;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+    }
+
+    /**
+     * @param ttlMillis Time after the last write at which a session expires, in milliseconds
+     */
+    public InMemorySessionStore(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    @Override
+    public Key allocateKey() {
+        return KeyFactory.createKey(ServletConsts.ENTITY_TYPE, nextId.getAndIncrement());
+    }
+
+    @Override
+    public Entity get(Key key) {
+        StoredEntity stored = entities.get(key);
+        if (stored == null || System.currentTimeMillis() >= stored.expiresAtMillis) {
+            throw new IllegalStateException("Entity could not be found in database");
+        }
+        return stored.entity.clone();
+    }
+
+    @Override
+    public void put(Collection<Entity> entitiesToPut) {
+        long nowMillis = System.currentTimeMillis();
+        removeExpired(nowMillis);
+        for (Entity entity : entitiesToPut) {
+            entities.put(entity.getKey(), new StoredEntity(entity.clone(), nowMillis + ttlMillis));
+        }
+    }
+
+    /**
+     * @return number of sessions currently stored, including expired sessions not yet removed
+     */
+    int size() {
+        return entities.size();
+    }
+
+    // Expired sessions are removed at most once per TTL so writes don't scan every session.
+    private void removeExpired(long nowMillis) {
+        if (nowMillis < nextSweepMillis) {
+            return;
+        }
+        nextSweepMillis = nowMillis + ttlMillis;
+        Iterator<StoredEntity> it = entities.values().iterator();
+        while (it.hasNext()) {
+            if (nowMillis >= it.next().expiresAtMillis) {
+                it.remove();
+            }
+        }
+    }
+}
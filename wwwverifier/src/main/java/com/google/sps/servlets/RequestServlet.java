@@ -9,16 +9,14 @@ import java.util.HashMap;
 import java.util.OptionalInt;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 
 // imports for key generation
-import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyFactory;
 import java.security.KeyPair;
-import java.security.KeyPairGenerator;
 import java.security.NoSuchAlgorithmException;
-import java.security.spec.ECGenParameterSpec;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
@@ -37,7 +35,6 @@ import com.google.appengine.api.datastore.Blob;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.Text;
 
@@ -54,6 +51,21 @@ public class RequestServlet extends HttpServlet {
 
     public static final DatastoreService ds = DatastoreServiceFactory.getDatastoreService();
 
+    private static SessionStore sessionStore = createSessionStore();
+    private static final ThreadLocal<SessionCache> requestCache = new ThreadLocal<>();
+
+    /**
+     * Picks the fastest crypto provider for each operation and starts generating ephemeral
+     * reader keys so the first session doesn't have to wait.
+     */
+    @Override
+    public void init() {
+        CryptoProviderSelector selector = new CryptoProviderSelector();
+        CryptoProvider.setDefault(selector.select());
+        log("Crypto provider timings:\n" + selector);
+        EphemeralKeyPairPool.getDefault().prefill();
+    }
+
    /**
     * Handles two types of HTTP GET requests:
     * (1) A request to create a new session, which involves creating a new entity in Datastore
@@ -74,6 +86,51 @@ public class RequestServlet extends HttpServlet {
         }
     }
 
+    /**
+     * @return the SessionStore to use, an InMemorySessionStore if the system property
+     * ServletConsts.SESSION_STORE_PROPERTY is set to ServletConsts.SESSION_STORE_MEMORY and
+     * a DatastoreSessionStore otherwise
+     */
+    private static SessionStore createSessionStore() {
+        if (ServletConsts.SESSION_STORE_MEMORY.equals(
+                System.getProperty(ServletConsts.SESSION_STORE_PROPERTY))) {
+            return new InMemorySessionStore(ServletConsts.SESSION_TTL_MILLIS);
+        }
+        return new DatastoreSessionStore(ds);
+    }
+
+    /**
+     * Replaces the store that session state is kept in.
+     *
+     * @param store SessionStore to use for new requests
+     */
+    public static void setSessionStore(SessionStore store) {
+        sessionStore = store;
+    }
+
+    /**
+     * Runs @param function with the session cache for the current request. If called outside
+     * of a request, a cache is set up for the duration of the call and its changes are
+     * written back when the call returns.
+     *
+     * @return the value returned by @param function
+     */
+    private static <T> T withSessionCache(Function<SessionCache, T> function) {
+        SessionCache cache = requestCache.get();
+        if (cache != null) {
+            return function.apply(cache);
+        }
+        cache = new SessionCache(sessionStore);
+        requestCache.set(cache);
+        try {
+            T result = function.apply(cache);
+            cache.flush();
+            return result;
+        } finally {
+            requestCache.remove();
+        }
+    }
+
     /**
      * @param request Either a GET or POST request
      * @return a String array containing the parsed path information, which includes at least
@@ -87,19 +144,21 @@ public class RequestServlet extends HttpServlet {
 
     /**
      * Creates a new Entity in Datastore for the new session and generates ReaderEngagement.
+     * The entity is written once, with all of its initial properties.
      * 
      * @return String containing the generated mdoc URL and the unique key tied to the
      * new session's entry in Datastore, separated with a comma
      */
     public static String createNewSession() {
-        Entity entity = new Entity(ServletConsts.ENTITY_TYPE);
-        entity.setProperty(ServletConsts.TIMESTAMP_PROP,
-            new java.sql.Timestamp(System.currentTimeMillis()).toString());
-        ds.put(entity);
-        Key key = entity.getKey();
-        String keyStr = com.google.appengine.api.datastore.KeyFactory.keyToString(key);
-        setNumPostRequests(0, key);
-        return createMdocUri(key) + ServletConsts.SESSION_SEPARATOR + keyStr;
+        return withSessionCache(cache -> {
+            Entity entity = cache.create();
+            entity.setProperty(ServletConsts.TIMESTAMP_PROP,
+                new java.sql.Timestamp(System.currentTimeMillis()).toString());
+            Key key = entity.getKey();
+            String keyStr = com.google.appengine.api.datastore.KeyFactory.keyToString(key);
+            setNumPostRequests(0, key);
+            return createMdocUri(key) + ServletConsts.SESSION_SEPARATOR + keyStr;
+        });
     }
 
     /**
@@ -135,14 +194,22 @@ public class RequestServlet extends HttpServlet {
     public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
         String[] pathArr = parsePathInfo(request);
         Key key = com.google.appengine.api.datastore.KeyFactory.stringToKey(pathArr[0]);
-        if (getNumPostRequests(key) == 0) {
-            byte[] sessionData = createDeviceRequest(getBytesFromRequest(request), key);
-            setNumPostRequests(1, key);
-            response.getOutputStream().write(sessionData);
-        } else if (getNumPostRequests(key) == 1) {
-            byte[] terminationMessage = parseDeviceResponse(getBytesFromRequest(request), key);
-            setNumPostRequests(2, key);
-            response.getOutputStream().write(terminationMessage);
+        // all session reads and writes for this request go through one cache, and are written
+        // back in a single batch before the response is sent
+        byte[] responseData = withSessionCache(cache -> {
+            if (getNumPostRequests(key) == 0) {
+                byte[] sessionData = createDeviceRequest(getBytesFromRequest(request), key);
+                setNumPostRequests(1, key);
+                return sessionData;
+            } else if (getNumPostRequests(key) == 1) {
+                byte[] terminationMessage = parseDeviceResponse(getBytesFromRequest(request), key);
+                setNumPostRequests(2, key);
+                return terminationMessage;
+            }
+            return null;
+        });
+        if (responseData != null) {
+            response.getOutputStream().write(responseData);
         } else {
             response.sendError(HttpServletResponse.SC_BAD_REQUEST);
         }
@@ -252,14 +319,7 @@ public class RequestServlet extends HttpServlet {
      * @return generated ephemeral reader key pair (containing a PublicKey and a PrivateKey)
      */
     private static KeyPair generateKeyPair() {
-        try {
-            KeyPairGenerator kpg = KeyPairGenerator.getInstance(ServletConsts.KEYGEN_INSTANCE);
-            ECGenParameterSpec ecSpec = new ECGenParameterSpec(ServletConsts.KEYGEN_CURVE);
-            kpg.initialize(ecSpec);
-            return kpg.generateKeyPair();
-        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
-            throw new IllegalStateException("Error generating ephemeral key-pair", e);
-        }
+        return EphemeralKeyPairPool.getDefault().take();
     }
 
     /**
@@ -388,11 +448,18 @@ public class RequestServlet extends HttpServlet {
      * of the session
      */
     private static Entity getEntity(Key key) {
-        try {
-            return ds.get(key);
-        } catch (EntityNotFoundException e) {
-            throw new IllegalStateException("Entity could not be found in database", e);
-        }
+        return withSessionCache(cache -> cache.get(key));
+    }
+
+    /**
+     * Sets a property of the entity linked to the key @param key . Within a request the
+     * change is written back together with all other changes when the request completes.
+     */
+    private static void setEntityProperty(Key key, String propName, Object value) {
+        withSessionCache(cache -> {
+            cache.setProperty(key, propName, value);
+            return null;
+        });
     }
 
     /**
@@ -435,9 +502,7 @@ public class RequestServlet extends HttpServlet {
      * @param key Unique key of the entity in Datastore that should be updated
      */
     public static void setDatastoreProp(String propName, byte[] arr, Key key) {
-        Entity entity = getEntity(key);
-        entity.setProperty(propName, new Blob(arr));
-        ds.put(entity);
+        setEntityProperty(key, propName, new Blob(arr));
     }
 
     /**
@@ -455,9 +520,7 @@ public class RequestServlet extends HttpServlet {
      * @param key Unique key of the entity in Datastore that should be updated
      */
     public static void setNumPostRequests(int num, Key key) {
-        Entity entity = getEntity(key);
-        entity.setProperty(ServletConsts.NUM_POSTS_PROP, num);
-        ds.put(entity);
+        setEntityProperty(key, ServletConsts.NUM_POSTS_PROP, (long) num);
     }
 
     /**
@@ -473,9 +536,7 @@ public class RequestServlet extends HttpServlet {
      * @param key Unique identifier that corresponds to the current session
      */
     public static void setDeviceResponse(String text, Key key) {
-        Entity entity = getEntity(key);
-        entity.setProperty(ServletConsts.DEV_RESPONSE_PROP, new Text(text));
-        ds.put(entity);
+        setEntityProperty(key, ServletConsts.DEV_RESPONSE_PROP, new Text(text));
     }
 
     /**
@@ -501,9 +562,7 @@ public class RequestServlet extends HttpServlet {
      * @param key Key corresponding to an entity in Datastore assigned to the current session
      */
     public static void setOriginInfoStatus(String status, Key key) {
-        Entity entity = getEntity(key);
-        entity.setProperty(ServletConsts.OI_PROP, status);
-        ds.put(entity);
+        setEntityProperty(key, ServletConsts.OI_PROP, status);
     }
 
     /**
@@ -13,6 +13,11 @@ public class ServletConsts {
     public static final String NUM_POSTS_PROP = "Number of POST requests";
     public static final String OI_PROP = "Origin Info Status";
 
+    // session store constants
+    public static final String SESSION_STORE_PROPERTY = "mdocreader.sessionStore";
+    public static final String SESSION_STORE_MEMORY = "memory";
+    public static final long SESSION_TTL_MILLIS = 30 * 60 * 1000L;
+
     // HTTP request constants
     public static final String SESSION_URL = "create-new-session";
     public static final String RESPONSE_URL = "display-response";
@@ -0,0 +1,81 @@
+package com.android.identity.wwwreader;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Request-scoped cache in front of a {@link SessionStore}.
+ *
+ * Each session entity is read from the store at most once, and all changes made while
+ * handling a request are written back together by {@link #flush()}.
+ */
+public class SessionCache {
+    private final SessionStore store;
+    private final Map<Key, Entity> entities = new HashMap<>();
+    private final Set<Key> dirtyKeys = new LinkedHashSet<>();
+
+    /**
+     * @param store Store to read session entities from and write them back to
+     */
+    public SessionCache(SessionStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Creates a new session entity. It is written to the store on the next flush.
+     *
+     * @return the new entity
+     */
+    public Entity create() {
+        Entity entity = new Entity(store.allocateKey());
+        entities.put(entity.getKey(), entity);
+        dirtyKeys.add(entity.getKey());
+        return entity;
+    }
+
+    /**
+     * @param key Key of the session entity
+     * @return the cached entity, reading it from the store if needed
+     */
+    public Entity get(Key key) {
+        Entity entity = entities.get(key);
+        if (entity == null) {
+            entity = store.get(key);
+            entities.put(key, entity);
+        }
+        return entity;
+    }
+
+    /**
+     * Sets a property on a session entity, to be written to the store on the next flush.
+     *
+     * @param key Key of the session entity
+     * @param propName Name of the property
+     * @param value New value of the property
+     */
+    public void setProperty(Key key, String propName, Object value) {
+        get(key).setProperty(propName, value);
+        dirtyKeys.add(key);
+    }
+
+    /**
+     * Writes all changed entities to the store in one batch.
+     */
+    public void flush() {
+        if (dirtyKeys.isEmpty()) {
+            return;
+        }
+        List<Entity> dirty = new ArrayList<>();
+        for (Key key : dirtyKeys) {
+            dirty.add(entities.get(key));
+        }
+        store.put(dirty);
+        dirtyKeys.clear();
+    }
+}
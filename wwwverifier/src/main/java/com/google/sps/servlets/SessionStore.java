@@ -0,0 +1,33 @@
+package com.android.identity.wwwreader;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import java.util.Collection;
+
+/**
+ * Storage for the state of reader sessions, one entity per session.
+ *
+ * Entities returned by a store are copies; changes only take effect once they are passed
+ * to {@link #put(Collection)}.
+ */
+public interface SessionStore {
+    /**
+     * @return a new key for a session entity of kind ServletConsts.ENTITY_TYPE. Nothing is
+     * stored until an entity with this key is put.
+     */
+    Key allocateKey();
+
+    /**
+     * @param key Key of the session entity
+     * @return the session entity
+     * @throws IllegalStateException if there is no entity for the key
+     */
+    Entity get(Key key);
+
+    /**
+     * Stores the given entities, replacing any existing entities with the same keys.
+     *
+     * @param entities Entities to store
+     */
+    void put(Collection<Entity> entities);
+}
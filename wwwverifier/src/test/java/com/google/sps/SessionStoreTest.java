@@ -0,0 +1,165 @@
+package com.android.identity.wwwreader;
+
+// imports from Datastore
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+// unit testing imports
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+// other imports
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+@RunWith(JUnit4.class)
+public class SessionStoreTest {
+
+    private final LocalServiceTestHelper helper =
+        new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    /**
+     * SessionStore wrapper counting the calls made to the underlying store
+     */
+    private static class CountingSessionStore implements SessionStore {
+        private final SessionStore store;
+        int numGets = 0;
+        int numPuts = 0;
+
+        CountingSessionStore(SessionStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public Key allocateKey() {
+            return store.allocateKey();
+        }
+
+        @Override
+        public Entity get(Key key) {
+            numGets++;
+            return store.get(key);
+        }
+
+        @Override
+        public void put(Collection<Entity> entities) {
+            numPuts++;
+            store.put(entities);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() {
+        RequestServlet.setSessionStore(new DatastoreSessionStore(RequestServlet.ds));
+        helper.tearDown();
+    }
+
+    @Test
+    public void checkDatastoreSessionStore() {
+        checkSessionStore(new DatastoreSessionStore(DatastoreServiceFactory.getDatastoreService()));
+    }
+
+    @Test
+    public void checkInMemorySessionStore() {
+        checkSessionStore(new InMemorySessionStore(ServletConsts.SESSION_TTL_MILLIS));
+    }
+
+    @Test
+    public void checkInMemorySessionStoreExpiry() {
+        InMemorySessionStore store = new InMemorySessionStore(0);
+        Entity entity = new Entity(store.allocateKey());
+        store.put(Collections.singletonList(entity));
+        assertSessionNotFound(store, entity.getKey());
+
+        // expired sessions are removed on the next write
+        store.put(Collections.singletonList(new Entity(store.allocateKey())));
+        Assert.assertEquals(1, store.size());
+    }
+
+    @Test
+    public void checkSessionCacheCoalescesWrites() {
+        CountingSessionStore store =
+            new CountingSessionStore(new InMemorySessionStore(ServletConsts.SESSION_TTL_MILLIS));
+        SessionCache cache = new SessionCache(store);
+        Key key = cache.create().getKey();
+        cache.setProperty(key, ServletConsts.RE_PROP, new Blob(new byte[] {1}));
+        cache.setProperty(key, ServletConsts.NUM_POSTS_PROP, 0L);
+        Assert.assertEquals(0, store.numPuts);
+        cache.flush();
+        Assert.assertEquals(1, store.numPuts);
+        // nothing changed, so nothing to write
+        cache.flush();
+        Assert.assertEquals(1, store.numPuts);
+
+        SessionCache nextRequest = new SessionCache(store);
+        Assert.assertEquals(0L, nextRequest.get(key).getProperty(ServletConsts.NUM_POSTS_PROP));
+        nextRequest.setProperty(key, ServletConsts.NUM_POSTS_PROP, 1L);
+        Assert.assertEquals(1L, nextRequest.get(key).getProperty(ServletConsts.NUM_POSTS_PROP));
+        Assert.assertEquals(1, store.numGets);
+        nextRequest.flush();
+        Assert.assertEquals(2, store.numPuts);
+    }
+
+    @Test
+    public void checkNewSessionIsWrittenOnce() {
+        CountingSessionStore store =
+            new CountingSessionStore(new InMemorySessionStore(ServletConsts.SESSION_TTL_MILLIS));
+        RequestServlet.setSessionStore(store);
+        String keyStr = RequestServlet.createNewSession().split(ServletConsts.SESSION_SEPARATOR)[1];
+        Assert.assertEquals(0, store.numGets);
+        Assert.assertEquals(1, store.numPuts);
+
+        Key key = com.google.appengine.api.datastore.KeyFactory.stringToKey(keyStr);
+        Assert.assertTrue(
+            RequestServlet.getDatastoreProp(ServletConsts.PUBKEY_PROP, key).length > 0);
+        RequestServlet.setDeviceResponse("Sample Device Response", key);
+        Assert.assertEquals("Sample Device Response", RequestServlet.getDeviceResponse(key));
+    }
+
+    private void assertSessionNotFound(SessionStore store, Key key) {
+        try {
+            store.get(key);
+            Assert.fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private void checkSessionStore(SessionStore store) {
+        Key key1 = store.allocateKey();
+        Key key2 = store.allocateKey();
+        Assert.assertNotEquals(key1, key2);
+        Assert.assertEquals(ServletConsts.ENTITY_TYPE, key1.getKind());
+        assertSessionNotFound(store, key1);
+
+        Entity entity1 = new Entity(key1);
+        entity1.setProperty(ServletConsts.OI_PROP, "status");
+        Entity entity2 = new Entity(key2);
+        entity2.setProperty(ServletConsts.NUM_POSTS_PROP, 1L);
+        store.put(Arrays.asList(entity1, entity2));
+
+        Assert.assertEquals("status", store.get(key1).getProperty(ServletConsts.OI_PROP));
+        Assert.assertEquals(1L, store.get(key2).getProperty(ServletConsts.NUM_POSTS_PROP));
+
+        // changes to a returned entity only take effect once it is put
+        Entity changed = store.get(key1);
+        changed.setProperty(ServletConsts.OI_PROP, "changed");
+        Assert.assertEquals("status", store.get(key1).getProperty(ServletConsts.OI_PROP));
+        store.put(Collections.singletonList(changed));
+        Assert.assertEquals("changed", store.get(key1).getProperty(ServletConsts.OI_PROP));
+    }
+}